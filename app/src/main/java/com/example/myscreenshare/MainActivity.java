@@ -122,6 +122,10 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+            case R.id.item_watch:
+                LogUtil.d(TAG, "item watch");
+                startActivity(new Intent(this, WatchActivity.class));
+                break;
             case R.id.item_settings:
                 LogUtil.d(TAG, "item settings");
                 break;
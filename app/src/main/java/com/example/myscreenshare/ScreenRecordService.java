@@ -2,32 +2,41 @@ package com.example.myscreenshare;
 
 import android.app.Service;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.ImageReader;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
-import android.opengl.EGL14;
-import android.opengl.EGLSurface;
-import android.opengl.GLES11Ext;
-import android.opengl.GLES20;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.IBinder;
+import android.util.DisplayMetrics;
 import android.print.PrinterId;
 import android.view.Surface;
 import android.view.SurfaceView;
 import android.view.TextureView;
-
-import com.example.myscreenshare.gles.EGLCore;
+import android.view.WindowManager;
+
+import com.example.myscreenshare.codec.CircularEncoder;
+import com.example.myscreenshare.codec.Simulcast;
+import com.example.myscreenshare.metrics.PipelineMetrics;
+import com.example.myscreenshare.net.BitrateController;
+import com.example.myscreenshare.net.FanOutServer;
+import com.example.myscreenshare.net.NackResponder;
+import com.example.myscreenshare.net.RtpPacketizer;
+import com.example.myscreenshare.net.UdpStreamer;
+import com.example.myscreenshare.render.RenderThread;
+import com.example.myscreenshare.util.Clock;
 import com.example.myscreenshare.util.LogUtil;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 public class ScreenRecordService extends Service {
  // 1080 x 1794
@@ -38,6 +47,9 @@ public class ScreenRecordService extends Service {
     public static final String RECORD_PARAM_WIDTH = "param_width";
     public static final String RECOED_PARAM_HEIGHT = "param_height";
     public static final String RECORD_PARAM_DESITYDPI = "param_density";
+    // optional RTP viewer, an IP literal, the lookup would run on the main thread
+    public static final String RECORD_PARAM_RTP_HOST = "param_rtp_host";
+    public static final String RECORD_PARAM_RTP_PORT = "param_rtp_port";
 
     // params for Encoder
     public static final String MIME_TYPE = "video/avc";
@@ -45,22 +57,33 @@ public class ScreenRecordService extends Service {
     public static final long SECS_IN_MILLI = 1000; // seconds in milliseconds
     public static final int FPS = 30;
     public static final int I_FRAME_INTERVAL = 6;
+    public static final int ENCODER_SPAN_SEC = 10; // replay history kept by the encoder
+    // Viewers connect here over TCP for the full size layer, STREAM_PORT + i
+    // serves simulcast layer i, for links that can't take the full size.
+    public static final int STREAM_PORT = 8554;
     private int mWidth = -1;
     private int mHeight = -1;
-    private int mBitRate = 2000000000;
-    private MediaCodec mEncoder;
-    private MediaCodec.BufferInfo mBufferInfo;
+    private int mDensityDpi;
+    // 2 Gbps overflowed the ring sizing, this is plenty for screen content
+    private int mBitRate = 6000000;
+    // simulcast layers, full size first
+    private CircularEncoder[] mEncoders;
+    // one per layer, null where it didn't start
+    private FanOutServer[] mServers;
+    // RTP over UDP, the bit rate follows the receiver's feedback
+    private volatile UdpStreamer mStreamer;
+    private volatile RenderThread mRenderThread;
 
 
     private static MediaProjection mMediaProjection = null;
     private VirtualDisplay mVirtualDisplay;
-    private SurfaceTexture mSurfaceTexture;
     private Surface mSurface;
-    private int mTextureName;
 
 
     private long mLastTime;
-    private long mFrameCount;
+    private static PipelineMetrics mMetrics = null;
+    // one per simulcast layer, [0] is mMetrics
+    private static PipelineMetrics[] mLayerMetrics = null;
 
     private volatile boolean isLoopExit = true;
 
@@ -88,24 +111,62 @@ public class ScreenRecordService extends Service {
                 int width = bundle.getInt(RECORD_PARAM_WIDTH);
                 int height = bundle.getInt(RECOED_PARAM_HEIGHT);
                 int densityDpi = bundle.getInt(RECORD_PARAM_DESITYDPI);
-                EGLCore eglCore = new EGLCore(null, 0);
-                EGLSurface eglSurface = eglCore.createOffscreenSurface(width, height);
-                eglCore.makeCurrent(eglSurface);
-                mTextureName = createTextureObject();
-                mSurfaceTexture = new SurfaceTexture(mTextureName);
-                mSurfaceTexture.setDefaultBufferSize(width, height);
-                LogUtil.d(TAG, "Texture ID: " + mTextureName);
-                mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
-                    @Override
-                    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                        mFrameCount ++;
-//                        LogUtil.d(TAG, "FRAME COUNT : " + mFrameCount);
-                        surfaceTexture.updateTexImage();
-                        // notify gles to fill encoder
-                    }
-                });
-                mSurface = new Surface(mSurfaceTexture);
-                mSurfaceTexture.updateTexImage();
+                mMetrics = new PipelineMetrics(Clock.SYSTEM);
+                mLayerMetrics = new PipelineMetrics[]{mMetrics};
+                mWidth = width;
+                mHeight = height;
+                mDensityDpi = densityDpi;
+                try {
+                    mEncoders = Simulcast.createEncoders(width, height, mBitRate, FPS,
+                            ENCODER_SPAN_SEC, CircularEncoder.DRAIN_ASYNC,
+                            Simulcast.DEFAULT_DIVISORS, mMetrics,
+                            new CircularEncoder.CircularEncoderCallback() {
+                                @Override
+                                public void fileSaveComplete(int status) {
+                                    LogUtil.d(TAG, "file save complete: " + status);
+                                }
+
+                                @Override
+                                public void encoderFailed(Exception e) {
+                                    LogUtil.e(TAG, "Encoder failed, stopping: " + e);
+                                    // onDestroy() tears the pipeline down on the main thread
+                                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            stopSelf();
+                                        }
+                                    });
+                                }
+                            });
+                } catch (IOException e) {
+                    LogUtil.e(TAG, "Unable to create encoder: " + e);
+                    stopSelf();
+                    return START_NOT_STICKY;
+                }
+                PipelineMetrics[] layerMetrics = new PipelineMetrics[mEncoders.length];
+                for (int i = 0; i < mEncoders.length; i++) {
+                    layerMetrics[i] = mEncoders[i].getMetrics();
+                }
+                mLayerMetrics = layerMetrics;
+                mServers = new FanOutServer[mEncoders.length];
+                for (int i = 0; i < mEncoders.length; i++) {
+                    // joiners and the RTP stream can start at any key frame
+                    mEncoders[i].setParameterSetInjection(true);
+                    mServers[i] = startServer(mEncoders[i], STREAM_PORT + i);
+                }
+                if (bundle.containsKey(RECORD_PARAM_RTP_HOST)) {
+                    startUdpStream(mEncoders[0], bundle.getString(RECORD_PARAM_RTP_HOST),
+                            bundle.getInt(RECORD_PARAM_RTP_PORT));
+                }
+                for (int i = 0; i < mEncoders.length; i++) {
+                    setPacketListener(mEncoders[i], mServers[i], i == 0 ? mStreamer : null);
+                }
+                // the render thread owns the GL context and paces the frames
+                mRenderThread = new RenderThread(width, height, mEncoders, FPS,
+                        mMetrics, Clock.SYSTEM);
+                mRenderThread.start();
+                mRenderThread.waitUntilReady();
+                mSurface = mRenderThread.getInputSurface();
                 startScreenRecord(width, height, densityDpi);
             }
 
@@ -114,26 +175,73 @@ public class ScreenRecordService extends Service {
         return START_STICKY;
     }
 
-    private int createTextureObject() {
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-//        GlUtil.checkGlError("glGenTextures");
+    // the viewers of one layer share its ring, null if the port is taken
+    private FanOutServer startServer(CircularEncoder encoder, int port) {
+        try {
+            FanOutServer server = new FanOutServer(encoder.getBuffer(),
+                    new InetSocketAddress(port));
+            server.setKeyFrameListener(keyFrameRequester(encoder));
+            server.start();
+            LogUtil.d(TAG, "layer " + encoder.getWidth() + "x" + encoder.getHeight() +
+                    " on port " + port);
+            return server;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Unable to start stream server on " + port + ": " + e);
+            return null;
+        }
+    }
 
-        int texId = textures[0];
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
-//        GlUtil.checkGlError("glBindTexture " + texId);
+    // The RTP viewer gets the full size layer, adapted to its link: the
+    // controller moves the encoder bit rate, and halves the frame rate per
+    // degradation step when even the floor is too much.
+    private void startUdpStream(final CircularEncoder encoder, String host, int port) {
+        try {
+            UdpStreamer streamer = new UdpStreamer(new InetSocketAddress(host, port),
+                    RtpPacketizer.CODEC_AVC, RtpPacketizer.DEFAULT_MTU);
+            streamer.enableRetransmission(encoder.getBuffer(), keyFrameRequester(encoder));
+            streamer.enableRateControl(new BitrateController(Clock.SYSTEM, mBitRate,
+                    Simulcast.MIN_BIT_RATE, mBitRate, new BitrateController.Listener() {
+                @Override
+                public void onTargetChanged(int bitRate, int degradation) {
+                    LogUtil.d(TAG, "target " + bitRate + " degradation " + degradation);
+                    encoder.setBitRate(bitRate);
+                    RenderThread renderThread = mRenderThread;
+                    if (renderThread != null) {
+                        renderThread.setFrameRate(FPS >> degradation);
+                    }
+                }
+            }));
+            mStreamer = streamer;
+        } catch (IOException e) {
+            LogUtil.w(TAG, "Unable to start RTP stream: " + e);
+        }
+    }
 
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
-                GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
-                GLES20.GL_CLAMP_TO_EDGE);
-//        GlUtil.checkGlError("glTexParameter");
+    // joins, unrepairable losses and PLIs, the encoder coalesces them
+    private static NackResponder.KeyFrameListener keyFrameRequester(
+            final CircularEncoder encoder) {
+        return new NackResponder.KeyFrameListener() {
+            @Override
+            public void onKeyFrameRequest() {
+                encoder.requestKeyFrame();
+            }
+        };
+    }
 
-        return texId;
+    // the codec config is kept for joiners, the RTP stream gets everything
+    private void setPacketListener(CircularEncoder encoder, final FanOutServer server,
+                                   final UdpStreamer streamer) {
+        encoder.setPacketListener(new CircularEncoder.PacketListener() {
+            @Override
+            public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+                if (server != null && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    server.setCodecConfig(buf);
+                }
+                if (streamer != null) {
+                    streamer.onPacket(buf, flags, ptsUsec);
+                }
+            }
+        });
     }
 
     private void startScreenRecord(int width, int height, int densityDpi) {
@@ -160,69 +268,83 @@ public class ScreenRecordService extends Service {
 
         LogUtil.d(TAG, "set up projection");
         mLastTime = System.currentTimeMillis();
-        mFrameCount = 0;
     }
 
-    private void prepareEncoder () {
-        mBufferInfo = new MediaCodec.BufferInfo();
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
-        try {
-            mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        mEncoder.start();
-    }
-
-    private static class CodecInputSurface {
-        private EGLSurface mEGLSurface;
-        private Surface mSurface;
-        private EGLCore mEGLCore;
-        public CodecInputSurface(Surface surface) {
-            if (surface == null) {
-                throw new NullPointerException();
-            }
-            mSurface = surface;
-            mEGLCore = new EGLCore(null, EGLCore.FLAG_RECORDABLE);
-            mEGLSurface = mEGLCore.createWindowSurface(mSurface);
-        }
-
-        public void release() {
-            mEGLCore.release();
-            mSurface.release();
-            mEGLSurface = EGL14.EGL_NO_SURFACE;
-            mSurface = null;
-        }
-
-        public void makeCurrent() {
-            mEGLCore.makeCurrent(mEGLSurface);
+    // Rotation or a display change: the VirtualDisplay follows the screen,
+    // the encoders keep their size and get the new shape letterboxed.
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (mVirtualDisplay == null || mRenderThread == null) {
+            return;
         }
-
-        public boolean swapBuffers() {
-            return true;
+        DisplayMetrics metrics = new DisplayMetrics();
+        WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+        wm.getDefaultDisplay().getMetrics(metrics);
+        if (metrics.widthPixels == mWidth && metrics.heightPixels == mHeight &&
+                metrics.densityDpi == mDensityDpi) {
+            return;
         }
+        LogUtil.d(TAG, "display changed to " + metrics.widthPixels + "x" +
+                metrics.heightPixels + " density dpi: " + metrics.densityDpi);
+        mWidth = metrics.widthPixels;
+        mHeight = metrics.heightPixels;
+        mDensityDpi = metrics.densityDpi;
+        // the mirrored content comes upright, only the shape changes
+        mRenderThread.setInputGeometry(mWidth, mHeight, 0);
+        mVirtualDisplay.resize(mWidth, mHeight, mDensityDpi);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         LogUtil.d(TAG, "Service destroy");
-        LogUtil.d(TAG, "When destroy frame count: " + mFrameCount);
-        mSurface.release();
-        mSurface = null;
-        mSurfaceTexture.releaseTexImage();
-        if (mMediaProjection != null) {
-            mMediaProjection.stop();
-            mMediaProjection = null;
+        if (mLayerMetrics != null) {
+            for (int i = 0; i < mLayerMetrics.length; i++) {
+                LogUtil.d(TAG, "When destroy, layer " + i + ": " + mLayerMetrics[i].snapshot());
+            }
         }
+        // stop the producer first, then render and encoder in pipeline order
         if (mVirtualDisplay != null) {
             mVirtualDisplay.release();
             mVirtualDisplay = null;
         }
+        if (mRenderThread != null) {
+            mRenderThread.shutdown();
+            mRenderThread = null;
+            mSurface = null;
+        }
+        if (mServers != null) {
+            for (FanOutServer server : mServers) {
+                if (server == null) {
+                    continue;
+                }
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    LogUtil.w(TAG, "close stream server: " + e);
+                }
+            }
+            mServers = null;
+        }
+        if (mStreamer != null) {
+            try {
+                mStreamer.close();
+            } catch (IOException e) {
+                LogUtil.w(TAG, "close RTP stream: " + e);
+            }
+            mStreamer = null;
+        }
+        if (mEncoders != null) {
+            for (CircularEncoder encoder : mEncoders) {
+                encoder.shutdown();
+            }
+            mEncoders = null;
+        }
+        if (mMediaProjection != null) {
+            mMediaProjection.stop();
+            mMediaProjection = null;
+        }
     }
 
 
@@ -230,6 +352,22 @@ public class ScreenRecordService extends Service {
         return (mMediaProjection != null);
     }
 
+    // null until recording started, the UI polls snapshot() on it
+    public static PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    // simulcast layer i, as served on STREAM_PORT + i; null past the last one
+    public static PipelineMetrics getMetrics(int layer) {
+        PipelineMetrics[] metrics = mLayerMetrics;
+        return metrics != null && layer < metrics.length ? metrics[layer] : null;
+    }
+
+    public static int getLayerCount() {
+        PipelineMetrics[] metrics = mLayerMetrics;
+        return metrics != null ? metrics.length : 0;
+    }
+
     public static void setMediaProjection(MediaProjection mediaProjection) {
         mMediaProjection = mediaProjection;
     }
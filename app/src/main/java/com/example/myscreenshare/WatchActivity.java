@@ -0,0 +1,105 @@
+package com.example.myscreenshare;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.DisplayMetrics;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.example.myscreenshare.net.RtpPacketizer;
+import com.example.myscreenshare.receiver.JitterBuffer;
+import com.example.myscreenshare.receiver.RtpReceiver;
+import com.example.myscreenshare.receiver.VideoDecoderThread;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+public class WatchActivity extends AppCompatActivity implements SurfaceHolder.Callback {
+
+    public static final String TAG = WatchActivity.class.getSimpleName();
+
+    public static final String PREF_WATCH_PORT = "pref_watch_port";
+    public static final String PREF_WATCH_MAX_DELAY = "pref_watch_max_delay";
+    public static final int DEFAULT_PORT = 5004;
+    public static final int DEFAULT_MAX_DELAY_MS = 500;
+
+    // a 1080p key frame at the sharing side's 6 Mbps fits with room to spare
+    private static final int MAX_FRAME_SIZE = 512 * 1024;
+    private static final int JITTER_FRAMES = 16;
+
+    private DisplayMetrics mMetrics;
+    private JitterBuffer mJitterBuffer;
+    private RtpReceiver mReceiver;
+    private VideoDecoderThread mDecoderThread;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_watch);
+        mMetrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getMetrics(mMetrics);
+        SurfaceView surfaceView = findViewById(R.id.watch_surface);
+        surfaceView.getHolder().addCallback(this);
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int port = readInt(prefs, PREF_WATCH_PORT, DEFAULT_PORT);
+        int maxDelayMs = readInt(prefs, PREF_WATCH_MAX_DELAY, DEFAULT_MAX_DELAY_MS);
+
+        mJitterBuffer = new JitterBuffer(JITTER_FRAMES, MAX_FRAME_SIZE,
+                JitterBuffer.DEFAULT_MIN_DELAY_USEC, maxDelayMs * 1000L);
+        try {
+            mReceiver = new RtpReceiver(new InetSocketAddress(port), RtpPacketizer.CODEC_AVC,
+                    MAX_FRAME_SIZE, mJitterBuffer, Clock.SYSTEM);
+        } catch (IOException e) {
+            LogUtil.e(TAG, "Unable to listen on " + port + ": " + e);
+            finish();
+            return;
+        }
+        // the sender answers NACKs and adapts its bit rate to the reports
+        mReceiver.enableNack();
+        mReceiver.enableRateFeedback();
+        mReceiver.start();
+        mDecoderThread = new VideoDecoderThread(ScreenRecordService.MIME_TYPE,
+                mMetrics.widthPixels, mMetrics.heightPixels, MAX_FRAME_SIZE,
+                holder.getSurface(), mReceiver, mJitterBuffer, Clock.SYSTEM);
+        mDecoderThread.start();
+        LogUtil.d(TAG, "watching on " + port + ", max delay " + maxDelayMs + " ms");
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // the decoder renders into the surface, it goes first
+        if (mDecoderThread != null) {
+            mDecoderThread.shutdown();
+            mDecoderThread = null;
+        }
+        if (mReceiver != null) {
+            try {
+                mReceiver.close();
+            } catch (IOException e) {
+                LogUtil.w(TAG, "close receiver: " + e);
+            }
+            mReceiver = null;
+        }
+    }
+
+    private static int readInt(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.myscreenshare.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the Annex-B byte stream MediaCodec encoders produce: NAL units
+ * separated by 00 00 01 or 00 00 00 01 start codes. All methods use absolute
+ * positions and leave the buffer's position and limit alone.
+ */
+public final class AnnexB {
+
+    // AVC nal_unit_type
+    public static final int AVC_NAL_IDR = 5;
+    public static final int AVC_NAL_SPS = 7;
+    public static final int AVC_NAL_PPS = 8;
+    public static final int AVC_NAL_AUD = 9;
+
+    // HEVC nal_unit_type
+    public static final int HEVC_NAL_VPS = 32;
+    public static final int HEVC_NAL_SPS = 33;
+    public static final int HEVC_NAL_PPS = 34;
+    public static final int HEVC_NAL_AUD = 35;
+
+    private AnnexB() {
+    }
+
+    // Position of the first start code in [from, limit), or limit if there is
+    // none. A 4 byte start code is reported at its leading zero.
+    public static int findStartCode(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buf.get(i + 2) & 0xFF) > 1) {
+                // no start code can end at i + 2 or i + 1
+                i += 2;
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i > from && buf.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return limit;
+    }
+
+    // first byte of the NAL unit behind the start code at pos
+    public static int skipStartCode(ByteBuffer buf, int pos) {
+        return buf.get(pos + 2) == 1 ? pos + 3 : pos + 4;
+    }
+
+    public static int avcNalType(ByteBuffer buf, int nalStart) {
+        return buf.get(nalStart) & 0x1F;
+    }
+
+    public static int hevcNalType(ByteBuffer buf, int nalStart) {
+        return (buf.get(nalStart) >> 1) & 0x3F;
+    }
+
+    // Copy up to dst.length bytes of the NAL unit starting at nalStart with
+    // the emulation prevention bytes removed, return how many were copied.
+    public static int unescape(ByteBuffer buf, int nalStart, int nalEnd, byte[] dst) {
+        int n = 0;
+        int zeros = 0;
+        for (int i = nalStart; i < nalEnd && n < dst.length; i++) {
+            byte b = buf.get(i);
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            dst[n++] = b;
+        }
+        return n;
+    }
+}
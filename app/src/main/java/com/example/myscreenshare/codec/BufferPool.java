@@ -0,0 +1,86 @@
+package com.example.myscreenshare.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded pool of direct ByteBuffers, so packets can be copied out of the
+ * encoder ring without allocating a direct buffer for each one.
+ */
+public class BufferPool {
+    private static final String TAG = "BufferPool";
+
+    private final ByteBuffer[] mFree;
+    private final int mBufferSize;
+    private int mFreeCount;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mDropCount;
+
+    // maxPooled: how many released buffers are kept at most
+    // bufferSize: capacity of new buffers, larger requests get their own size
+    public BufferPool(int maxPooled, int bufferSize) {
+        mFree = new ByteBuffer[maxPooled];
+        mBufferSize = bufferSize;
+    }
+
+    // return a cleared buffer with at least minCapacity bytes
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        for (int i = mFreeCount - 1; i >= 0; i--) {
+            ByteBuffer buf = mFree[i];
+            if (buf.capacity() >= minCapacity) {
+                mFreeCount--;
+                mFree[i] = mFree[mFreeCount];
+                mFree[mFreeCount] = null;
+                mHitCount++;
+                buf.clear();
+                return buf;
+            }
+        }
+        mMissCount++;
+        return ByteBuffer.allocateDirect(Math.max(minCapacity, mBufferSize));
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        if (mFreeCount == mFree.length) {
+            // keep the larger buffer, they are the expensive ones
+            int smallest = 0;
+            for (int i = 1; i < mFreeCount; i++) {
+                if (mFree[i].capacity() < mFree[smallest].capacity()) {
+                    smallest = i;
+                }
+            }
+            mDropCount++;
+            if (mFreeCount == 0 || mFree[smallest].capacity() >= buf.capacity()) {
+                return;
+            }
+            mFree[smallest] = buf;
+            return;
+        }
+        mFree[mFreeCount++] = buf;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getDropCount() {
+        return mDropCount;
+    }
+
+    public synchronized int getPooledCount() {
+        return mFreeCount;
+    }
+
+    public synchronized void logStats() {
+        CodecLog.d(TAG, "pooled=" + mFreeCount + " hit=" + mHitCount +
+                " miss=" + mMissCount + " drop=" + mDropCount);
+    }
+}
@@ -3,11 +3,17 @@ package com.example.myscreenshare.codec;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.view.Surface;
 
+import com.example.myscreenshare.metrics.PipelineMetrics;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
@@ -16,36 +22,81 @@ import java.nio.ByteBuffer;
 public class CircularEncoder {
 
     public static final String TAG = "CircularEncoder";
-    public static final String MIME_TYPE = "video/hvc";
-    public static final int I_FRAME_INTERVAL = 1;
-
-
-    public MediaCodec mEncoder;
+    public static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    // Longest GOP in seconds. Key frames come on demand in between, see
+    // requestKeyFrame(), a still screen doesn't pay for them.
+    public static final int I_FRAME_INTERVAL = 5;
+    // requested key frames are at least this far apart
+    public static final long MIN_KEY_FRAME_SPACING_NANOS = 500000000L;
+    // upper bound for the replay history, whatever the encoder produces
+    public static final long MAX_BUFFER_MEMORY = 64L * 1024 * 1024;
+
+    // status of CircularEncoderCallback.fileSaveComplete()
+    public static final int SAVE_OK = 0;
+    public static final int SAVE_NO_DATA = 1; // no output format or key frame yet
+    public static final int SAVE_OVERRUN = 2; // memory cap hit, packets were evicted
+    public static final int SAVE_IO_ERROR = 3;
+
+    // how the encoder output gets into the buffer
+    public static final int DRAIN_POLLING = 0; // on frameAvailableSoon()
+    public static final int DRAIN_ASYNC = 1; // MediaCodec callbacks, API 23
+
+
+    public VideoEncoder mEncoder;
     public Surface mInputSurface;
     public EncoderThread mEncoderThread;
+    private PipelineMetrics mMetrics;
+    private final int mWidth;
+    private final int mHeight;
 
     public interface CircularEncoderCallback {
 
+        // called on a background thread, status is one of SAVE_*
         void fileSaveComplete(int status);
-        void bufferStatus(long totalTimeMilli);
+
+        // Called on the encoder thread when the codec failed, no more output
+        // will come. shutdown() the encoder, not from this call.
+        void encoderFailed(Exception e);
+    }
+
+    // Sees every output buffer of the encoder, codec config included, on
+    // the encoder thread before it goes back to the codec. buf is
+    // [position, limit) and only valid during the call, don't block.
+    public interface PacketListener {
+        void onPacket(ByteBuffer buf, int flags, long ptsUsec);
     }
 
     public CircularEncoder (int width, int height, int bitRate,
                             int frameRate, int desiredSpanSec,
                             CircularEncoderCallback cb)
             throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, DRAIN_POLLING,
+                new PipelineMetrics(Clock.SYSTEM), cb);
+    }
+
+    // metrics may be shared with the capture side, which counts the frames
+    public CircularEncoder (int width, int height, int bitRate,
+                            int frameRate, int desiredSpanSec, int drainMode,
+                            PipelineMetrics metrics, CircularEncoderCallback cb)
+            throws IOException {
+        mMetrics = metrics;
+        mWidth = width;
+        mHeight = height;
+        metrics.setKeyFrameIntervalUsec(I_FRAME_INTERVAL * 1000000L);
         if (desiredSpanSec < I_FRAME_INTERVAL * 2) {
             throw new RuntimeException(
                     "Request time span is too short:" +
                     desiredSpanSec + " vs. " + (I_FRAME_INTERVAL *2));
         }
 
+        // keep the replay history off the managed heap
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(
-                bitRate, frameRate, desiredSpanSec
+                bitRate, frameRate, desiredSpanSec, RingStorage.TYPE_DIRECT, null
         );
+        encBuffer.enableAutoResize(MAX_BUFFER_MEMORY);
 
         MediaFormat format = MediaFormat.createVideoFormat(
-                MediaFormat.MIMETYPE_VIDEO_AVC,
+                MIME_TYPE,
                 width,
                 height
         );
@@ -63,28 +114,104 @@ public class CircularEncoder {
                 I_FRAME_INTERVAL
         );
 
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-
-        mEncoder.configure(
-                format,
-                null,
-                null,
-                MediaCodec.CONFIGURE_FLAG_ENCODE
-        );
+        if (drainMode == DRAIN_ASYNC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            CodecLog.w(TAG, "Async drain needs API 23, polling instead");
+            drainMode = DRAIN_POLLING;
+        }
 
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
+        mEncoder = new MediaCodecEncoder(MIME_TYPE);
 
+        mEncoderThread = new EncoderThread(
+                mEncoder, encBuffer, drainMode == DRAIN_ASYNC, metrics, cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
+        if (drainMode == DRAIN_ASYNC) {
+            // the codec hands over each output buffer on the encoder thread
+            mEncoder.setCallback(mEncoderThread.mDrainer, mEncoderThread.getHandler());
+        }
+
+        try {
+            mEncoder.configure(format);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+        } catch (RuntimeException e) {
+            // e.g. no codec instance left for another simulcast layer
+            stopThreads();
+            mEncoder.release();
+            mEncoder = null;
+            throw e;
+        }
     }
 
     public Surface getInputSurface() {
         return mInputSurface;
     }
 
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // Changes the target of the running encoder, any thread. The ring keeps
+    // the size it got for the configured rate.
+    public void setBitRate(int bitRate) {
+        VideoEncoder encoder = mEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            // released meanwhile
+            CodecLog.w(TAG, "Unable to set bit rate: " + e);
+        }
+    }
+
+    // the ring of encoded packets, readers may follow it on any thread
+    public CircularEncoderBuffer getBuffer() {
+        return mEncoderThread.mEncBuffer;
+    }
+
+    // null to remove, one listener at a time
+    public void setPacketListener(PacketListener listener) {
+        mEncoderThread.mDrainer.setPacketListener(listener);
+    }
+
+    // Annex-B parameter sets of the stream, null until the codec sent its
+    // config. getCsd() has them as MediaFormat would. Any thread.
+    public ParameterSets getParameterSets() {
+        return mEncoderThread.mDrainer.getParameterSets();
+    }
+
+    // Any thread: put the parameter sets in front of each key frame that
+    // has none, in the ring and for the packet listener, so saved clips and
+    // late joiners can start at any key frame. Off by default.
+    public void setParameterSetInjection(boolean enabled) {
+        mEncoderThread.mDrainer.setParameterSetInjection(enabled);
+    }
+
+    // poll getMetrics().snapshot() for frame, rate, latency and ring numbers
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
     public void shutdown() {
         CodecLog.d(TAG, "Release encoder objects");
+        stopThreads();
+
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+
+    private void stopThreads() {
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
         try {
@@ -92,12 +219,7 @@ public class CircularEncoder {
         } catch (InterruptedException ie) {
             CodecLog.d(TAG, "Encoder thread join() was interrupted" + ie);
         }
-
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
-        }
+        mEncoderThread.mSaver.quit();
     }
 
     public void frameAvailableSoon() {
@@ -107,33 +229,58 @@ public class CircularEncoder {
         ));
     }
 
+    // Any thread: a viewer joined or lost data it can't get back. Requests
+    // close together give one key frame.
+    public void requestKeyFrame() {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_REQUEST_KEY_FRAME));
+    }
+
+    // Save everything in buffer from the oldest key frame, the file is
+    // written in background and reported by fileSaveComplete().
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, 0);
+    }
+
+    // save about the last spanSec seconds, starting at a key frame
+    public void saveVideo(File outputFile, int spanSec) {
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, spanSec, 0, outputFile
         ));
     }
 
     private static class EncoderThread extends Thread {
-        private MediaCodec mEncoder;
-        private MediaFormat mFormat;
-        private MediaCodec.BufferInfo mBufInfo;
+        private EncoderDrainer mDrainer;
+        private boolean mAsync;
+        private final VideoEncoder mEncoder;
+        private final PipelineMetrics mMetrics;
+        private final KeyFrameScheduler mKeyFrames;
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.CircularEncoderCallback mCallback;
-        private int mFrameCount;
+        private VideoSaver mSaver;
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
-        public EncoderThread(MediaCodec mediaCodec,
+        public EncoderThread(VideoEncoder encoder,
                              CircularEncoderBuffer encBuffer,
+                             boolean async,
+                             PipelineMetrics metrics,
                              CircularEncoder.CircularEncoderCallback callback) {
-            mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mAsync = async;
             mCallback = callback;
-            mBufInfo = new MediaCodec.BufferInfo();
+            mEncoder = encoder;
+            mMetrics = metrics;
+            mDrainer = new EncoderDrainer(encoder, encBuffer, metrics, Clock.SYSTEM);
+            mKeyFrames = new KeyFrameScheduler(Clock.SYSTEM, MIN_KEY_FRAME_SPACING_NANOS);
+            mDrainer.setKeyFrameScheduler(mKeyFrames);
+            mDrainer.setCallback(callback);
+            mSaver = new VideoSaver(encBuffer, callback);
         }
 
         @Override
@@ -175,73 +322,81 @@ public class CircularEncoder {
         }
 
         public void drainEncoder() {
-            final int TIMEOUT_USEC = 0;
-            for (;;) {
-                int outputBufferId
-                        = mEncoder.dequeueOutputBuffer(mBufInfo, TIMEOUT_USEC);
-                if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    break;
-                } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    mFormat = mEncoder.getOutputFormat();
-                } else if (outputBufferId < 0) {
-                    CodecLog.w(
-                            TAG,
-                            "Unexpected result from MediaCodec.dequeueOutputBuffer: " +
-                            outputBufferId);
-                } else {
-                    ByteBuffer encodedData = mEncoder.getOutputBuffer(outputBufferId);
-                    if (encodedData == null) {
-                        throw new RuntimeException(
-                                "OutputBuffer at " +
-                                        outputBufferId +
-                                        "was null!");
-                    }
-
-                    if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        CodecLog.d(TAG, "Ignore BUFFER_FLAG_CODEC_CONFIG");
-                        mBufInfo.size = 0;
-                    }
-
-                    if (mBufInfo.size != 0) {
-                        encodedData.position(mBufInfo.offset);
-                        encodedData.limit(mBufInfo.offset + mBufInfo.size);
-                        mEncBuffer.add(
-                                encodedData,
-                                mBufInfo.flags,
-                                mBufInfo.presentationTimeUs
-                        );
-                        CodecLog.d(
-                                TAG,
-                                "Sent " + mBufInfo.size +
-                                        "bytes to muxer, ts=" +
-                                        mBufInfo.presentationTimeUs
-                                );
-                    }
-                    mEncoder.releaseOutputBuffer(outputBufferId, false);
-                    if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        CodecLog.w(TAG, "Reach end of stream unexpectedly");
-                        break;
-                    }
-                }
+            // in async mode the output is already in buffer
+            if (!mAsync) {
+                mDrainer.drain();
             }
         }
 
         void frameAvailableSoon() {
-            CodecLog.d(TAG, "frameAvailableSoon");
+            CodecLog.v(TAG, "frameAvailableSoon");
             drainEncoder();
-            mFrameCount++;
-            if ((mFrameCount % 10) == 0) {
-                mCallback.bufferStatus(mEncBuffer.computeTimeSpanMillisecond());
-            }
         }
 
-        void saveVideo(File outputFile) {
-            // TODO: save video to outputFile
+        // Only pins the packets, the saver thread does the muxing while we
+        // keep draining the encoder.
+        void saveVideo(File outputFile, int spanSec) {
             CodecLog.d(TAG, "Save video fire");
+            drainEncoder();
+            CircularEncoderBuffer.Snapshot snapshot = null;
+            MediaFormat format = mDrainer.getFormat();
+            if (format != null) {
+                snapshot = mEncBuffer.snapshot(spanSec * 1000000L);
+            }
+            if (snapshot == null) {
+                CodecLog.w(TAG, "Nothing to save yet");
+                mCallback.fileSaveComplete(SAVE_NO_DATA);
+                return;
+            }
+            CodecLog.trace(TraceRing.EVENT_SAVE, snapshot.startSeq,
+                    (int) (snapshot.endSeq - snapshot.startSeq));
+            mSaver.save(outputFile, format, mDrainer.getParameterSets(), snapshot);
+            // the next clip can start about here
+            requestKeyFrame();
+        }
+
+        void requestKeyFrame() {
+            mMetrics.onKeyFrameRequested();
+            long delayNanos = mKeyFrames.request();
+            CodecLog.trace(TraceRing.EVENT_KEY_FRAME, mKeyFrames.getRequestCount(), 0);
+            if (delayNanos >= 0) {
+                scheduleKeyFrame(delayNanos);
+            }
+        }
+
+        void keyFrameDue() {
+            long delayNanos = mKeyFrames.poll();
+            if (delayNanos > 0) {
+                // a natural one may have come meanwhile
+                scheduleKeyFrame(delayNanos);
+                return;
+            }
+            if (delayNanos < 0) {
+                return;
+            }
+            mMetrics.onKeyFrameForced();
+            CodecLog.trace(TraceRing.EVENT_KEY_FRAME, mKeyFrames.getRequestCount(), 1);
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                mEncoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                CodecLog.w(TAG, "Unable to request key frame: " + e);
+            }
+        }
+
+        private void scheduleKeyFrame(long delayNanos) {
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(EncoderHandler.MSG_KEY_FRAME_DUE),
+                    (delayNanos + 999999) / 1000000);
         }
 
         void shutdown() {
-            CodecLog.d(TAG, "shutdown");
+            CodecLog.d(TAG, "shutdown, key frames requested " + mKeyFrames.getRequestCount() +
+                    ", forced " + mKeyFrames.getForcedCount() + ", coalesced " +
+                    mKeyFrames.getCoalescedCount() + ", parameter sets injected " +
+                    mDrainer.getInjectedCount());
+            mDrainer.logLatency(mAsync ? "async" : "polling");
             Looper.myLooper().quit();
         }
 
@@ -249,6 +404,8 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_REQUEST_KEY_FRAME = 4;
+            public static final int MSG_KEY_FRAME_DUE = 5;
 
             private WeakReference<EncoderThread> mWeakEncoderThread;
 
@@ -259,7 +416,7 @@ public class CircularEncoder {
             @Override
             public void handleMessage(Message msg) {
                 int what = msg.what;
-                CodecLog.v(TAG, "EncoderHandler: what=" + what);
+                LogUtil.v(TAG, "EncoderHandler: what={}", what);
                 EncoderThread encoderThread = mWeakEncoderThread.get();
                 if (encoderThread == null) {
                     return;
@@ -269,7 +426,13 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File)msg.obj);
+                        encoderThread.saveVideo((File)msg.obj, msg.arg1);
+                        break;
+                    case MSG_REQUEST_KEY_FRAME:
+                        encoderThread.requestKeyFrame();
+                        break;
+                    case MSG_KEY_FRAME_DUE:
+                        encoderThread.keyFrameDue();
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
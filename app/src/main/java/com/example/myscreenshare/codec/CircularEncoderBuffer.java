@@ -2,13 +2,37 @@ package com.example.myscreenshare.codec;
 
 import android.media.MediaCodec;
 
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 public class CircularEncoderBuffer {
     private static final String TAG = "CircularEncoderBuffer";
 
+    // results of Reader.next()
+    public static final int READ_OK = 0;
+    public static final int READ_NONE = 1; // reader caught up with the head
+    public static final int READ_OVERRUN = 2; // reader position was evicted
+
+    // auto resize, see enableAutoResize()
+    private static final int RATE_WINDOW_SEC = 10;
+    private static final long RESIZE_CHECK_INTERVAL_USEC = 1000000;
+    private static final long EVICT_CHECK_INTERVAL_USEC = 100000;
+    private static final int SHRINK_CHECKS = 5; // checks in a row before shrinking
+    private static final int MIN_DATA_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_META_BUFFER_COUNT = 64;
+    // initial size cap for native and mapped storage, auto resize takes over
+    private static final int MAX_OFF_HEAP_DATA_SIZE = 256 * 1024 * 1024;
+    // flags + pts + start + length + key frame seq
+    private static final int META_SLOT_BYTES = 4 + 8 + 4 + 4 + 8;
+
+    private RingStorage mStorage;
     private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    private ByteBuffer mWrapScratch;
 
     //mete-data
     private int[] mPacketFlags;
@@ -16,33 +40,143 @@ public class CircularEncoderBuffer {
     private int[] mPacketStart;
     private int[] mPacketLength;
 
+    // Sequence numbers of the key frames in buffer, a ring like the packets:
+    // the oldest is at mKeyTail, the newest at mKeyHead - 1.
+    private long[] mKeyFrameSeq;
+
+    // The storage and arrays above for readers, replaced as a whole by resize().
+    private volatile Ring mRing;
+
     // head and tail of queue, head points to an empty node
     // queue is empty, when first==tail
     private int mMetaHead;
     private int mMetaTail;
 
+    // Sequence numbers of the packets at head and tail, they only grow.
+    // Only the encoder thread writes them; mHeadSeq publishes a packet to
+    // readers, mTailSeq tells readers which packets may be overwritten.
+    private volatile long mHeadSeq;
+    private volatile long mTailSeq;
+    private volatile long mKeyHead;
+    private volatile long mKeyTail;
+
+    // bytes taken by the packets in buffer, one byte of gap included
+    private int mDataUsed;
+    private volatile int mMaxPacketSize;
+
+    // Snapshots still being read, oldest first. Encoder thread only, the
+    // readers just flag theirs as released.
+    private final ArrayDeque<Snapshot> mPins = new ArrayDeque<>();
+
+    private final long mDesireSpanUsec;
+    private RateTracker mRateTracker;
+    private long mMaxMemory;
+    private long mNextResizeCheckUsec;
+    private int mShrinkChecks;
+    private int mResizeCount;
+    private long mEvictCount;
+    private volatile PublishListener mPublishListener;
+
+    // Told on the encoder thread after add() published a packet, e.g. to wake
+    // up a selector. Must not block.
+    public interface PublishListener {
+        void onPublished(long seq);
+    }
+
     // param desire, how many seconds of data we want to save at buffer
     public CircularEncoderBuffer(int bitRate, int frameRate, int desireSpanSec) {
-        int dataBufferSize = bitRate * desireSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        this(createStorage(bitRate, desireSpanSec, RingStorage.TYPE_HEAP, null),
+                bitRate, frameRate, desireSpanSec);
+    }
+
+    // storageType is one of RingStorage.TYPE_*, backingFile is only used by TYPE_MAPPED
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desireSpanSec,
+                                 int storageType, File backingFile) throws IOException {
+        this(RingStorage.create(storageType,
+                computeDataBufferSize(bitRate, desireSpanSec, storageType), backingFile),
+                bitRate, frameRate, desireSpanSec);
+    }
+
+    private CircularEncoderBuffer(RingStorage storage, int bitRate,
+                                  int frameRate, int desireSpanSec) {
+        mStorage = storage;
+        mDataBufferWrapper = storage.newView();
+        int dataBufferSize = storage.capacity();
 
         int metaBufferCount = frameRate * desireSpanSec * 2;
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mKeyFrameSeq = new long[metaBufferCount];
+        mRing = new Ring(this);
+        mDesireSpanUsec = desireSpanSec * 1000000L;
+        // room for pinned snapshots, enableAutoResize() sets the real cap
+        mMaxMemory = 2L * (dataBufferSize + (long) metaBufferCount * META_SLOT_BYTES);
 
         CodecLog.d(TAG, "CEB:\n\t" +
                 "bitRate: " + bitRate +
                 "frameRate: " + frameRate +
                 "desireSpanSec: " + desireSpanSec +
                 "bufferSize: " + dataBufferSize +
-                "metaBufferCount: " + metaBufferCount);
+                "metaBufferCount: " + metaBufferCount +
+                "storage: " + storage.getType());
 
     }
 
+    private static RingStorage createStorage(int bitRate, int desireSpanSec,
+                                             int storageType, File backingFile) {
+        try {
+            return RingStorage.create(storageType,
+                    computeDataBufferSize(bitRate, desireSpanSec, storageType), backingFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create ring storage", e);
+        }
+    }
+
+    // bitRate * desireSpanSec / 8 overflows an int for high bit rates
+    private static int computeDataBufferSize(int bitRate, int desireSpanSec, int storageType) {
+        long size = (long) bitRate * desireSpanSec / 8;
+        long max = RingStorage.MAX_CAPACITY;
+        if (storageType == RingStorage.TYPE_HEAP) {
+            // more than a quarter of the heap would just trade frames for GC pauses
+            max = Math.min(max, Runtime.getRuntime().maxMemory() / 4);
+        } else {
+            // a high bit rate would otherwise map or allocate close to 2 GB
+            max = MAX_OFF_HEAP_DATA_SIZE;
+        }
+        if (size > max) {
+            CodecLog.w(TAG, "Data buffer of " + size + " bytes clamped to " + max);
+            size = max;
+        }
+        return (int) size;
+    }
+
+    /**
+     * Let the buffer follow the real encoder output: the data and meta-data
+     * arrays grow and shrink so that they hold the desired span, measured in
+     * bytes/s and packets/s over the last seconds. Growing is immediate,
+     * shrinking needs the demand to stay below half for a few seconds.
+     * maxMemory caps data plus meta-data, in bytes.
+     */
+    public void enableAutoResize(long maxMemory) {
+        mMaxMemory = maxMemory;
+        if (mRateTracker == null) {
+            mRateTracker = new RateTracker(RATE_WINDOW_SEC);
+        }
+    }
+
+    // unmaps/deletes a file backed store, the buffer can't be used afterwards
+    public void release() {
+        mStorage.release();
+    }
+
     public long computeTimeSpanMillisecond() {
+        return computeTimeSpanUsec() / 1000;
+    }
+
+    // pts of the newest packet minus pts of the oldest
+    public long computeTimeSpanUsec() {
         final int metaLen = mPacketStart.length;
         if (mMetaHead == mMetaTail) {
             return 0;
@@ -54,14 +188,27 @@ public class CircularEncoderBuffer {
 
     public void add(ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
-        CodecLog.d(TAG, "add size = " + size +
-                "flags=0x" + Integer.toHexString(flags) +
-                " pts=" + ptsUsec);
+        LogUtil.v(TAG, "add size={} flags=0x{x} pts={}", size, flags, ptsUsec);
+        CodecLog.trace(TraceRing.EVENT_ADD, ptsUsec, size);
+        if (mRateTracker != null) {
+            mRateTracker.record(ptsUsec, size);
+            checkResize(ptsUsec, size);
+            if (size >= mStorage.capacity()) {
+                // bigger than the ring can get under the memory cap
+                CodecLog.w(TAG, "Dropping packet of " + size + " bytes, ring is " +
+                        mStorage.capacity());
+                return;
+            }
+        }
         while (!canAdd(size)) {
+            // a grow may still leave it short, so canAdd() again
+            if (isPinned(mTailSeq) && growForPin(size)) {
+                continue;
+            }
             removeTail();
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
@@ -70,32 +217,63 @@ public class CircularEncoderBuffer {
         mPacketLength[mMetaHead] = size;
 
         if (packetStart + size < dataLen) {
-            buf.get(mDataBuffer, packetStart, size);
+            mStorage.put(packetStart, buf, size);
         } else {
             int firstSize = dataLen - packetStart;
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            mStorage.put(packetStart, buf, firstSize);
+            mStorage.put(0, buf, size - firstSize);
+        }
+        mDataUsed += size + 1;
+        if (size > mMaxPacketSize) {
+            mMaxPacketSize = size;
+        }
+
+        if ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            mKeyFrameSeq[(int) (mKeyHead % mKeyFrameSeq.length)] = mHeadSeq;
+            mKeyHead++;
         }
 
         mMetaHead = (mMetaHead + 1) % metaLen;
+        // volatile store, publishes the meta-data and payload above to readers
+        mHeadSeq++;
+        PublishListener listener = mPublishListener;
+        if (listener != null) {
+            listener.onPublished(mHeadSeq - 1);
+        }
+    }
+
+    // null to remove, one listener at a time
+    public void setPublishListener(PublishListener listener) {
+        mPublishListener = listener;
     }
 
     // return the index of the oldest i-frame.
     public  int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
-                break;
-            }
-            index = (index + 1) % metaLen;
+        if (mKeyTail == mKeyHead) {
+            CodecLog.w(TAG, "There is no I-Frame in buffer");
+            return -1;
         }
+        return (int) (mRing.keyFrameSeqAt(mKeyTail) % mPacketStart.length);
+    }
 
-        if (index == mMetaHead) {
+    // return the index of the newest i-frame.
+    public int getLastKeyFrameIndex() {
+        if (mKeyTail == mKeyHead) {
             CodecLog.w(TAG, "There is no I-Frame in buffer");
-            index = -1;
+            return -1;
         }
-        return index;
+        return (int) (mRing.keyFrameSeqAt(mKeyHead - 1) % mPacketStart.length);
+    }
+
+    // return the index of the i-frame a decoder has to start from to show
+    // the packet at ptsUsec, or the oldest i-frame if ptsUsec is older.
+    public int getKeyFrameIndexForPts(long ptsUsec) {
+        long seq = mRing.findKeyFrameSeq(ptsUsec, mTailSeq, mHeadSeq, mKeyTail, mKeyHead);
+        if (seq < 0) {
+            CodecLog.w(TAG, "There is no I-Frame in buffer");
+            return -1;
+        }
+        return (int) (seq % mPacketStart.length);
     }
 
     public int getNextIndex(int index) {
@@ -107,8 +285,16 @@ public class CircularEncoderBuffer {
         return next;
     }
 
+    // A packet wrapping around the end of the data buffer is copied into
+    // a scratch buffer, which is only valid until the next call.
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        return getChunk(index, info, null);
+    }
+
+    // Same as getChunk(index, info), but a wrapped packet is copied into dst
+    // from its position on, e.g. a buffer taken from a BufferPool.
+    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info, ByteBuffer dst) {
+        final int dataLen = mStorage.capacity();
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
         info.flags = mPacketFlags[index];
@@ -117,32 +303,180 @@ public class CircularEncoderBuffer {
         info.size = length;
 
         if (packetStart + length <= dataLen) {
+            mDataBufferWrapper.clear();
             return mDataBufferWrapper;
         } else {
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            if (dst == null) {
+                dst = getWrapScratch(length);
+            }
+            if (dst.remaining() < length) {
+                throw new RuntimeException("Buffer too small for packet: " +
+                        dst.remaining() + " vs. " + length);
+            }
+            info.offset = dst.position();
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
-            info.offset = 0;
-            return tempBuf;
+            RingStorage.get(mDataBufferWrapper, packetStart, firstSize, dst);
+            RingStorage.get(mDataBufferWrapper, 0, length - firstSize, dst);
+            return dst;
         }
     }
 
+    // Views for getChunkSlices(), create them once per consumer.
+    public Slices newSlices() {
+        return new Slices();
+    }
+
+    // Point the views at the packet without copying, return how many of them
+    // are used: 2 when the packet wraps around the end of the data buffer.
+    // Fits GatheringByteChannel.write(slices.buffers, 0, count).
+    public int getChunkSlices(int index, Slices slices, MediaCodec.BufferInfo info) {
+        if (slices.mStorage != mStorage) {
+            // first use, or the buffer was resized since
+            slices.buffers[0] = mStorage.newView();
+            slices.buffers[1] = mStorage.newView();
+            slices.mStorage = mStorage;
+        }
+        final int dataLen = mStorage.capacity();
+        int packetStart = mPacketStart[index];
+        int length = mPacketLength[index];
+        info.flags = mPacketFlags[index];
+        info.offset = packetStart;
+        info.presentationTimeUs = mPacketPtsUsec[index];
+        info.size = length;
+
+        ByteBuffer first = slices.buffers[0];
+        first.clear();
+        first.position(packetStart);
+        if (packetStart + length <= dataLen) {
+            first.limit(packetStart + length);
+            slices.count = 1;
+            return 1;
+        }
+        ByteBuffer second = slices.buffers[1];
+        second.clear();
+        second.limit(length - (dataLen - packetStart));
+        slices.count = 2;
+        return 2;
+    }
+
+    /**
+     * Pin the packets from a key frame up to the newest one, so a slow
+     * consumer can read them with a Reader while the encoder goes on.
+     * spanUsec <= 0 takes everything from the oldest key frame. Encoder
+     * thread only, returns null if there is no key frame.
+     *
+     * Instead of evicting a pinned packet the buffer grows, up to the memory
+     * cap. Past the cap the snapshot is broken and its reader will overrun.
+     */
+    public Snapshot snapshot(long spanUsec) {
+        long startSeq;
+        if (spanUsec <= 0 || mMetaHead == mMetaTail) {
+            startSeq = mKeyTail < mKeyHead ? mRing.keyFrameSeqAt(mKeyTail) : -1;
+        } else {
+            final int metaLen = mPacketStart.length;
+            long newestUsec = mPacketPtsUsec[(mMetaHead + metaLen - 1) % metaLen];
+            startSeq = mRing.findKeyFrameSeq(newestUsec - spanUsec,
+                    mTailSeq, mHeadSeq, mKeyTail, mKeyHead);
+        }
+        if (startSeq < 0) {
+            CodecLog.w(TAG, "There is no I-Frame in buffer");
+            return null;
+        }
+        Snapshot snapshot = new Snapshot(startSeq, mHeadSeq);
+        mPins.addLast(snapshot);
+        return snapshot;
+    }
+
+    // any thread, lets the encoder evict the snapshot's packets again
+    public void releaseSnapshot(Snapshot snapshot) {
+        snapshot.mReleased = true;
+    }
+
+    // the largest packet added so far, enough room for any Reader.next()
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    // sequence number the next added packet will get
+    public long getHeadSequence() {
+        return mHeadSeq;
+    }
+
+    // sequence number of the oldest packet still in buffer
+    public long getTailSequence() {
+        return mTailSeq;
+    }
+
+    public int getDataBufferSize() {
+        return mStorage.capacity();
+    }
+
+    public int getMetaBufferCount() {
+        return mPacketStart.length;
+    }
+
+    public int getResizeCount() {
+        return mResizeCount;
+    }
+
+    // encoder thread, bytes taken by the packets in buffer
+    public int getUsedBytes() {
+        return mDataUsed;
+    }
+
+    public long getPacketCount() {
+        return mHeadSeq - mTailSeq;
+    }
+
+    // encoder thread, packets dropped to make room
+    public long getEvictionCount() {
+        return mEvictCount;
+    }
+
+    // Readers may run on any thread, each thread needs its own Reader.
+    public Reader newReader() {
+        return new Reader(this);
+    }
+
+    private ByteBuffer getWrapScratch(int length) {
+        if (mWrapScratch == null || mWrapScratch.capacity() < length) {
+            // grows with the largest wrapped packet seen, normally a key frame
+            mWrapScratch = ByteBuffer.allocateDirect(length + length / 4);
+        }
+        mWrapScratch.clear();
+        return mWrapScratch;
+    }
+
     private int getHeadStart() {
         if (mMetaHead == mMetaTail) {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
         return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
     }
 
+    // bytes between head and tail, the gap byte included
+    private int getFreeSpace() {
+        final int dataLen = mStorage.capacity();
+        if (mMetaHead == mMetaTail) {
+            return dataLen;
+        }
+        return (mPacketStart[mMetaTail] + dataLen - getHeadStart()) % dataLen;
+    }
+
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mStorage.capacity();
         final int metaLen = mPacketStart.length;
-        if (size > dataLen) {
+        // one byte of gap always stays between head and tail, a full ring
+        // would look empty
+        if (size >= dataLen) {
+            if (mRateTracker != null) {
+                // checkResize() couldn't grow it that far
+                return false;
+            }
             throw new RuntimeException(
                     "Enormous packet: " + size +
                             " vs. buffer: " + dataLen);
@@ -153,21 +487,17 @@ public class CircularEncoderBuffer {
 
         int nextHead = (mMetaHead + 1) % metaLen;
         if (nextHead == mMetaTail) {
-            CodecLog.v(TAG, "Ran out of metadata (head=" + mMetaHead +
-                    " tail=" + mMetaTail);
+            LogUtil.v(TAG, "Ran out of metadata (head={} tail={})", mMetaHead, mMetaTail);
             return false;
         }
 
-        int headStart = getHeadStart();
-        int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
-            CodecLog.v(TAG, "Ran out of data (tailStart=" + tailStart +
-                    " headStart=" + headStart + " req=" + size + " free=" + freeSpace + ")");
+        int freeSpace = getFreeSpace();
+        if (size >= freeSpace) {
+            LogUtil.v(TAG, "Ran out of data (req={} free={})", size, freeSpace);
             return false;
         }
-       CodecLog.v(TAG, "OK: size=" + size + " free=" + freeSpace +
-               " metaFree=" + ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
+        LogUtil.v(TAG, "OK: size={} free={} metaFree={}", size, freeSpace,
+                (mMetaTail + metaLen - mMetaHead) % metaLen - 1);
 
         return true;
     }
@@ -176,7 +506,571 @@ public class CircularEncoderBuffer {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
+        if (!mPins.isEmpty()) {
+            breakPin();
+        }
         final int metaLen = mPacketStart.length;
+        if (mKeyTail != mKeyHead && mKeyFrameSeq[(int) (mKeyTail % metaLen)] == mTailSeq) {
+            mKeyTail++;
+        }
+        mDataUsed -= mPacketLength[mMetaTail] + 1;
+        CodecLog.trace(TraceRing.EVENT_EVICT, mTailSeq, mPacketLength[mMetaTail]);
+        mEvictCount++;
         mMetaTail = (mMetaTail + 1) % metaLen;
+        // volatile store, must happen before the slot and its data are reused
+        mTailSeq++;
+    }
+
+    // Snapshots may be taken in any order of their ranges, a later one can
+    // start further back, so every live pin is checked.
+    private boolean isPinned(long seq) {
+        boolean pinned = false;
+        for (Iterator<Snapshot> it = mPins.iterator(); it.hasNext(); ) {
+            Snapshot pin = it.next();
+            if (pin.mReleased) {
+                it.remove();
+            } else if (pin.startSeq <= seq && seq < pin.endSeq) {
+                pinned = true;
+            }
+        }
+        return pinned;
+    }
+
+    private boolean hasPins() {
+        isPinned(-1);
+        return !mPins.isEmpty();
+    }
+
+    // grow what ran out by half, both in one resize(), within the memory cap
+    private boolean growForPin(int size) {
+        final int dataLen = mStorage.capacity();
+        final int metaLen = mPacketStart.length;
+        long newData = dataLen;
+        long newMeta = metaLen;
+        if ((mMetaHead + 1) % metaLen == mMetaTail) {
+            newMeta = metaLen + metaLen / 2;
+        }
+        if (size >= getFreeSpace()) {
+            newData = Math.min(Math.max(dataLen + dataLen / 2L, (long) mDataUsed + 2L * size),
+                    RingStorage.MAX_CAPACITY);
+        }
+        if (newData + newMeta * META_SLOT_BYTES > mMaxMemory
+                || newData == dataLen && newMeta == metaLen) {
+            return false;
+        }
+        int resizes = mResizeCount;
+        resize((int) newData, (int) newMeta);
+        return mResizeCount != resizes;
+    }
+
+    // every pin covering the tail loses it, removeTail() calls it first
+    private void breakPin() {
+        for (Iterator<Snapshot> it = mPins.iterator(); it.hasNext(); ) {
+            Snapshot pin = it.next();
+            if (pin.mReleased) {
+                it.remove();
+            } else if (pin.startSeq <= mTailSeq && mTailSeq < pin.endSeq) {
+                CodecLog.w(TAG, "Memory cap reached, evicting pinned packets from " +
+                        pin.startSeq);
+                pin.mBroken = true;
+                it.remove();
+            }
+        }
+    }
+
+    private void checkResize(long nowUsec, int size) {
+        if (size >= mStorage.capacity()) {
+            // a full screen key frame after a still, shrunk ring
+            growForPacket(size);
+        }
+        // evicting packets younger than the desired span can't wait for the next check
+        boolean early = !canAdd(size) && computeTimeSpanUsec() < mDesireSpanUsec
+                && nowUsec >= mNextResizeCheckUsec - RESIZE_CHECK_INTERVAL_USEC
+                + EVICT_CHECK_INTERVAL_USEC;
+        if (!early && nowUsec < mNextResizeCheckUsec) {
+            return;
+        }
+        mNextResizeCheckUsec = nowUsec + RESIZE_CHECK_INTERVAL_USEC;
+
+        final RateTracker rate = mRateTracker;
+        long wantData = rate.getBytesPerSec(nowUsec) * mDesireSpanUsec / 1000000
+                + rate.getPeakBytesPerSec(nowUsec) + 2L * size;
+        long wantMeta = rate.getPacketsPerSec(nowUsec) * mDesireSpanUsec / 1000000
+                + rate.getPeakPacketsPerSec(nowUsec) + 1;
+        wantData = Math.min(Math.max(wantData, MIN_DATA_BUFFER_SIZE), RingStorage.MAX_CAPACITY);
+        wantMeta = Math.max(wantMeta, MIN_META_BUFFER_COUNT);
+
+        final int dataLen = mStorage.capacity();
+        final int metaLen = mPacketStart.length;
+        long newData = dataLen;
+        long newMeta = metaLen;
+        if (wantData > dataLen || wantMeta > metaLen) {
+            // grow with headroom, so a rising rate doesn't resize every second
+            if (wantData > dataLen) {
+                newData = wantData + wantData / 2;
+            }
+            if (wantMeta > metaLen) {
+                newMeta = wantMeta + wantMeta / 2;
+            }
+            mShrinkChecks = 0;
+        } else if (wantData * 2 < dataLen || wantMeta * 2 < metaLen) {
+            if (hasPins() || ++mShrinkChecks < SHRINK_CHECKS
+                    || rate.getSeconds(nowUsec) < RATE_WINDOW_SEC / 2) {
+                return;
+            }
+            if (wantData * 2 < dataLen) {
+                newData = wantData + wantData / 4;
+            }
+            if (wantMeta * 2 < metaLen) {
+                newMeta = wantMeta + wantMeta / 4;
+            }
+            mShrinkChecks = 0;
+        } else {
+            mShrinkChecks = 0;
+            return;
+        }
+
+        // the hard cap wins over the span, data gives way first
+        long metaBytes = newMeta * META_SLOT_BYTES;
+        if (newData + metaBytes > mMaxMemory) {
+            newData = Math.max(MIN_DATA_BUFFER_SIZE, mMaxMemory - metaBytes);
+            if (newData + metaBytes > mMaxMemory) {
+                newMeta = Math.max(MIN_META_BUFFER_COUNT,
+                        (mMaxMemory - newData) / META_SLOT_BYTES);
+            }
+        }
+        newData = Math.min(newData, RingStorage.MAX_CAPACITY);
+        if (newData == dataLen && newMeta == metaLen) {
+            return;
+        }
+        resize((int) newData, (int) newMeta);
+    }
+
+    // at least twice the packet, within the memory cap
+    private void growForPacket(int size) {
+        final int dataLen = mStorage.capacity();
+        final int metaLen = mPacketStart.length;
+        long newData = Math.min(Math.max(2L * size, dataLen + dataLen / 2L),
+                RingStorage.MAX_CAPACITY);
+        newData = Math.min(newData, mMaxMemory - (long) metaLen * META_SLOT_BYTES);
+        if (newData > dataLen) {
+            mShrinkChecks = 0;
+            resize((int) newData, metaLen);
+        }
+    }
+
+    // Move the packets into new storage and arrays, oldest packets that don't
+    // fit are dropped. Readers still holding the old Ring keep reading the old
+    // arrays, which are never written again.
+    private void resize(int dataLen, int metaLen) {
+        RingStorage storage = mStorage;
+        if (dataLen != storage.capacity()) {
+            try {
+                storage = mStorage.createSibling(dataLen);
+            } catch (IOException e) {
+                CodecLog.w(TAG, "resize to " + dataLen + " failed: " + e);
+                return;
+            }
+        }
+        while (mMetaHead != mMetaTail &&
+                (mHeadSeq - mTailSeq > metaLen - 1 || mDataUsed > dataLen)) {
+            removeTail();
+        }
+
+        final int oldMetaLen = mPacketStart.length;
+        final int oldDataLen = mStorage.capacity();
+        int[] flags = new int[metaLen];
+        long[] ptsUsec = new long[metaLen];
+        int[] start = new int[metaLen];
+        int[] length = new int[metaLen];
+        long[] keyFrameSeq = new long[metaLen];
+
+        ByteBuffer src = storage != mStorage ? mStorage.newView() : null;
+        int pos = 0;
+        for (long seq = mTailSeq; seq < mHeadSeq; seq++) {
+            int from = (int) (seq % oldMetaLen);
+            int to = (int) (seq % metaLen);
+            flags[to] = mPacketFlags[from];
+            ptsUsec[to] = mPacketPtsUsec[from];
+            length[to] = mPacketLength[from];
+            if (src == null) {
+                start[to] = mPacketStart[from];
+                continue;
+            }
+            // compact the packets to the start of the new storage
+            int packetStart = mPacketStart[from];
+            int size = mPacketLength[from];
+            int firstSize = Math.min(size, oldDataLen - packetStart);
+            src.clear();
+            src.position(packetStart);
+            storage.put(pos, src, firstSize);
+            if (firstSize < size) {
+                src.clear();
+                storage.put(pos + firstSize, src, size - firstSize);
+            }
+            start[to] = pos;
+            pos += size + 1;
+        }
+        for (long key = mKeyTail; key < mKeyHead; key++) {
+            keyFrameSeq[(int) (key % metaLen)] = mKeyFrameSeq[(int) (key % oldMetaLen)];
+        }
+
+        RingStorage oldStorage = mStorage;
+        if (storage != oldStorage) {
+            mStorage = storage;
+            mDataBufferWrapper = storage.newView();
+        }
+        mPacketFlags = flags;
+        mPacketPtsUsec = ptsUsec;
+        mPacketStart = start;
+        mPacketLength = length;
+        mKeyFrameSeq = keyFrameSeq;
+        mMetaHead = (int) (mHeadSeq % metaLen);
+        mMetaTail = (int) (mTailSeq % metaLen);
+        // volatile store, readers that see a later head see this ring
+        mRing = new Ring(this);
+        if (storage != oldStorage) {
+            oldStorage.release();
+        }
+        mResizeCount++;
+        CodecLog.trace(TraceRing.EVENT_RESIZE, dataLen, metaLen);
+        CodecLog.i(TAG, "resized: data " + oldDataLen + " -> " + dataLen +
+                ", meta " + oldMetaLen + " -> " + metaLen);
+    }
+
+    // Storage and arrays of the buffer at one point in time.
+    private static class Ring {
+        final RingStorage storage;
+        final int[] flags;
+        final long[] ptsUsec;
+        final int[] start;
+        final int[] length;
+        final long[] keyFrameSeq;
+
+        Ring(CircularEncoderBuffer b) {
+            storage = b.mStorage;
+            flags = b.mPacketFlags;
+            ptsUsec = b.mPacketPtsUsec;
+            start = b.mPacketStart;
+            length = b.mPacketLength;
+            keyFrameSeq = b.mKeyFrameSeq;
+        }
+
+        long keyFrameSeqAt(long key) {
+            return keyFrameSeq[(int) (key % keyFrameSeq.length)];
+        }
+
+        // Binary searches, pts of the encoder output grows with the sequence.
+        // Readers on other threads must validate the result against the tail.
+        long findKeyFrameSeq(long targetUsec, long tail, long head,
+                             long keyTail, long keyHead) {
+            if (keyTail >= keyHead) {
+                return -1;
+            }
+
+            final int metaLen = ptsUsec.length;
+            long packet = tail - 1; // last packet with pts <= targetUsec
+            long lo = tail;
+            long hi = head - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                if (ptsUsec[(int) (mid % metaLen)] <= targetUsec) {
+                    packet = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            long key = keyTail; // last key frame with seq <= packet
+            lo = keyTail + 1;
+            hi = keyHead - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                if (keyFrameSeqAt(mid) <= packet) {
+                    key = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return keyFrameSeqAt(key);
+        }
+    }
+
+    // Packets [startSeq, endSeq) pinned by snapshot().
+    public static class Snapshot {
+        public final long startSeq;
+        public final long endSeq;
+        private volatile boolean mReleased;
+        private volatile boolean mBroken;
+
+        private Snapshot(long startSeq, long endSeq) {
+            this.startSeq = startSeq;
+            this.endSeq = endSeq;
+        }
+
+        // the memory cap forced the encoder to evict some of the packets
+        public boolean isBroken() {
+            return mBroken;
+        }
+    }
+
+    // Two views over the data buffer, see getChunkSlices().
+    public static class Slices {
+        public final ByteBuffer[] buffers = new ByteBuffer[2];
+        public int count;
+        private RingStorage mStorage;
+    }
+
+    /**
+     * Lock-free cursor over the packets of a CircularEncoderBuffer.
+     *
+     * The encoder thread never waits for readers. A reader copies a packet
+     * out and then checks the tail sequence again, if the packet has been
+     * evicted in the meantime the copy is thrown away and READ_OVERRUN is
+     * returned, so torn data never reaches the caller.
+     */
+    public static class Reader {
+        private final CircularEncoderBuffer mBuffer;
+        private RingStorage mViewStorage;
+        private ByteBuffer mView;
+        private long mSeq;
+        private long mOverrunCount;
+
+        // Written between the copy and the tail re-check. A volatile store keeps
+        // the plain loads before it (LoadStore) and the volatile load after it
+        // (StoreLoad), API 21 has no Unsafe.loadFence() for us.
+        private volatile int mFence;
+
+        private Reader(CircularEncoderBuffer buffer) {
+            mBuffer = buffer;
+            mSeq = buffer.mTailSeq;
+        }
+
+        public long getPosition() {
+            return mSeq;
+        }
+
+        public void seek(long seq) {
+            mSeq = seq;
+        }
+
+        public long getOverrunCount() {
+            return mOverrunCount;
+        }
+
+        // number of packets published but not read yet
+        public long getLag() {
+            long lag = mBuffer.mHeadSeq - Math.max(mSeq, mBuffer.mTailSeq);
+            return lag < 0 ? 0 : lag;
+        }
+
+        // pts of the newest packet minus pts of the one at the position,
+        // 0 when caught up. Good enough for flow control, not exact.
+        public long getLagUsec() {
+            final CircularEncoderBuffer b = mBuffer;
+            for (;;) {
+                long head = b.mHeadSeq;
+                long seq = Math.max(mSeq, b.mTailSeq);
+                if (seq >= head) {
+                    return 0;
+                }
+                final Ring ring = b.mRing;
+                final int metaLen = ring.ptsUsec.length;
+                long lagUsec = ring.ptsUsec[(int) ((head - 1) % metaLen)] -
+                        ring.ptsUsec[(int) (seq % metaLen)];
+                mFence = 0;
+                if (seq >= b.mTailSeq) {
+                    return lagUsec < 0 ? 0 : lagUsec;
+                }
+            }
+        }
+
+        // move to the oldest key frame, return false if there is none
+        public boolean seekFirstKeyFrame() {
+            final CircularEncoderBuffer b = mBuffer;
+            for (;;) {
+                long keyTail = b.mKeyTail;
+                if (keyTail >= b.mKeyHead) {
+                    return false;
+                }
+                if (trySeek(b.mRing.keyFrameSeqAt(keyTail))) {
+                    return true;
+                }
+            }
+        }
+
+        // move to the newest key frame, return false if there is none
+        public boolean seekLastKeyFrame() {
+            final CircularEncoderBuffer b = mBuffer;
+            for (;;) {
+                long keyHead = b.mKeyHead;
+                if (b.mKeyTail >= keyHead) {
+                    return false;
+                }
+                if (trySeek(b.mRing.keyFrameSeqAt(keyHead - 1))) {
+                    return true;
+                }
+            }
+        }
+
+        // move to the key frame governing the packet at ptsUsec
+        public boolean seekKeyFrameForPts(long ptsUsec) {
+            final CircularEncoderBuffer b = mBuffer;
+            for (;;) {
+                long keyTail = b.mKeyTail;
+                long keyHead = b.mKeyHead;
+                long tail = b.mTailSeq;
+                long head = b.mHeadSeq;
+                long seq = b.mRing.findKeyFrameSeq(ptsUsec, tail, head, keyTail, keyHead);
+                if (seq < 0) {
+                    return false;
+                }
+                if (trySeek(seq)) {
+                    return true;
+                }
+            }
+        }
+
+        // the key frame ring may have been recycled while we looked it up
+        private boolean trySeek(long seq) {
+            mFence = 0;
+            if (seq < mBuffer.mTailSeq || seq >= mBuffer.mHeadSeq) {
+                return false;
+            }
+            mSeq = seq;
+            return true;
+        }
+
+        /**
+         * Copy the packet at the current position into dst (from its position)
+         * and advance. info.offset is the position the packet starts at in dst.
+         */
+        public int next(ByteBuffer dst, MediaCodec.BufferInfo info) {
+            final CircularEncoderBuffer b = mBuffer;
+            final long seq = mSeq;
+            if (seq >= b.mHeadSeq) {
+                return READ_NONE;
+            }
+            if (seq < b.mTailSeq) {
+                return overrun();
+            }
+
+            // read after the head, so the ring holds the packet at seq
+            final Ring ring = b.mRing;
+            if (ring.storage != mViewStorage) {
+                mView = ring.storage.newView();
+                mViewStorage = ring.storage;
+            }
+            final int metaLen = ring.start.length;
+            final int dataLen = ring.storage.capacity();
+            int index = (int) (seq % metaLen);
+            int flags = ring.flags[index];
+            long ptsUsec = ring.ptsUsec[index];
+            int packetStart = ring.start[index];
+            int length = ring.length[index];
+            mFence = 0;
+            if (seq < b.mTailSeq) {
+                return overrun();
+            }
+
+            if (length > dst.remaining()) {
+                throw new RuntimeException("Packet " + seq + " too large: " +
+                        length + " vs. " + dst.remaining());
+            }
+            int offset = dst.position();
+            if (packetStart + length <= dataLen) {
+                RingStorage.get(mView, packetStart, length, dst);
+            } else {
+                int firstSize = dataLen - packetStart;
+                RingStorage.get(mView, packetStart, firstSize, dst);
+                RingStorage.get(mView, 0, length - firstSize, dst);
+            }
+            mFence = 0;
+            if (seq < b.mTailSeq) {
+                dst.position(offset);
+                return overrun();
+            }
+
+            info.flags = flags;
+            info.offset = offset;
+            info.presentationTimeUs = ptsUsec;
+            info.size = length;
+            mSeq = seq + 1;
+            return READ_OK;
+        }
+
+        /**
+         * Point slices at the packet at the current position without copying
+         * and without advancing. The slices stay readable after eviction, but
+         * what they show is only the packet as long as isPeekIntact() says so:
+         * check it after reading through them, then advance().
+         */
+        public int peek(Slices slices, MediaCodec.BufferInfo info) {
+            final CircularEncoderBuffer b = mBuffer;
+            final long seq = mSeq;
+            if (seq >= b.mHeadSeq) {
+                return READ_NONE;
+            }
+            if (seq < b.mTailSeq) {
+                return overrun();
+            }
+
+            final Ring ring = b.mRing;
+            if (slices.mStorage != ring.storage) {
+                slices.buffers[0] = ring.storage.newView();
+                slices.buffers[1] = ring.storage.newView();
+                slices.mStorage = ring.storage;
+            }
+            final int metaLen = ring.start.length;
+            final int dataLen = ring.storage.capacity();
+            int index = (int) (seq % metaLen);
+            int flags = ring.flags[index];
+            long ptsUsec = ring.ptsUsec[index];
+            int packetStart = ring.start[index];
+            int length = ring.length[index];
+            mFence = 0;
+            if (seq < b.mTailSeq) {
+                return overrun();
+            }
+
+            ByteBuffer first = slices.buffers[0];
+            first.clear();
+            first.position(packetStart);
+            if (packetStart + length <= dataLen) {
+                first.limit(packetStart + length);
+                slices.count = 1;
+            } else {
+                ByteBuffer second = slices.buffers[1];
+                second.clear();
+                second.limit(length - (dataLen - packetStart));
+                slices.count = 2;
+            }
+            info.flags = flags;
+            info.offset = packetStart;
+            info.presentationTimeUs = ptsUsec;
+            info.size = length;
+            return READ_OK;
+        }
+
+        // the packet at the current position has not been evicted yet, so
+        // everything read through peek() slices up to now is the real data
+        public boolean isPeekIntact() {
+            mFence = 0;
+            return mSeq >= mBuffer.mTailSeq;
+        }
+
+        // move past the packet of the last peek()
+        public void advance() {
+            mSeq++;
+        }
+
+        private int overrun() {
+            CodecLog.trace(TraceRing.EVENT_OVERRUN, mSeq, 0);
+            mOverrunCount++;
+            mSeq = mBuffer.mTailSeq;
+            return READ_OVERRUN;
+        }
     }
 }
@@ -2,6 +2,8 @@ package com.example.myscreenshare.codec;
 
 import android.util.Log;
 
+import com.example.myscreenshare.BuildConfig;
+
 public class CodecLog {
 
     public static final int VERBOSE = 1;
@@ -16,8 +18,10 @@ public class CodecLog {
 
     public static final int NOTHING = 6;
 
-    public static int level = VERBOSE;
+    // release builds only log problems
+    public static int level = BuildConfig.DEBUG ? DEBUG : WARN;
 
+    // the parameterized forms are LogUtil's, one set for the whole app
     public static void v(String TAG, String msg) {
         if (level <= VERBOSE) {
             Log.v(TAG, msg);
@@ -48,4 +52,28 @@ public class CodecLog {
         }
     }
 
+    // packet level events, null unless enableTrace() was called
+    public static volatile TraceRing traceRing;
+
+    public static void enableTrace(int capacity) {
+        traceRing = new TraceRing(capacity);
+    }
+
+    public static void trace(int event, long a, int b) {
+        TraceRing ring = traceRing;
+        if (ring != null) {
+            ring.record(event, a, b);
+        }
+    }
+
+    public static void dumpTrace(String TAG) {
+        TraceRing ring = traceRing;
+        if (ring != null) {
+            ring.dump(TAG);
+        }
+    }
+
+    public static boolean isLoggable(int lvl) {
+        return level <= lvl;
+    }
 }
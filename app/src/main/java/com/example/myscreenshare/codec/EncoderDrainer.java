@@ -0,0 +1,261 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.example.myscreenshare.metrics.PipelineMetrics;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves the output of a VideoEncoder into a CircularEncoderBuffer.
+ *
+ * In polling mode the encoder thread calls drain() when a frame is about to
+ * come, output that gets ready in between waits for the next frame. In async
+ * mode the drainer is the VideoEncoder.Callback and every buffer is taken as
+ * soon as the codec has it. Both end up in onOutputBufferAvailable().
+ *
+ * Latency is measured from the presentation time, which surface input
+ * stamps with the monotonic clock, to the moment the packet is in buffer.
+ *
+ * The codec config packet is not buffered, its parameter sets are kept in
+ * getParameterSets(). With injection on they also go in front of each key
+ * frame that lacks them, for the listener and the ring alike, so any
+ * reader can start decoding at any key frame.
+ */
+class EncoderDrainer implements VideoEncoder.Callback {
+    private static final String TAG = "EncoderDrainer";
+
+    private final VideoEncoder mEncoder;
+    private final CircularEncoderBuffer mEncBuffer;
+    private final PipelineMetrics mMetrics;
+    private final Clock mClock;
+    private final MediaCodec.BufferInfo mBufInfo = new MediaCodec.BufferInfo();
+
+    private volatile MediaFormat mFormat;
+    private volatile CircularEncoder.PacketListener mListener;
+    private volatile ParameterSets mParameterSets;
+    private volatile boolean mInjectParameterSets;
+    private boolean mHevc;
+    private ByteBuffer mKeyFrameScratch;
+    private long mInjectedCount;
+    private KeyFrameScheduler mKeyFrames;
+    private CircularEncoder.CircularEncoderCallback mCallback;
+    private boolean mEndOfStream;
+    private Exception mError;
+
+    private long mOutputCount;
+    private long mLatencySumUsec;
+    private long mMaxLatencyUsec;
+
+    EncoderDrainer(VideoEncoder encoder, CircularEncoderBuffer encBuffer,
+                   PipelineMetrics metrics, Clock clock) {
+        mEncoder = encoder;
+        mEncBuffer = encBuffer;
+        mMetrics = metrics;
+        mClock = clock;
+    }
+
+    // the format from INFO_OUTPUT_FORMAT_CHANGED, null before
+    MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    void setPacketListener(CircularEncoder.PacketListener listener) {
+        mListener = listener;
+    }
+
+    // from the last codec config packet, null before, any thread
+    ParameterSets getParameterSets() {
+        return mParameterSets;
+    }
+
+    // any thread, takes effect with the next key frame
+    void setParameterSetInjection(boolean enabled) {
+        mInjectParameterSets = enabled;
+    }
+
+    long getInjectedCount() {
+        return mInjectedCount;
+    }
+
+    // told about every key frame, encoder thread
+    void setKeyFrameScheduler(KeyFrameScheduler scheduler) {
+        mKeyFrames = scheduler;
+    }
+
+    // told about codec errors, encoder thread
+    void setCallback(CircularEncoder.CircularEncoderCallback callback) {
+        mCallback = callback;
+    }
+
+    boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    Exception getError() {
+        return mError;
+    }
+
+    // polling mode, take whatever output is ready without waiting
+    void drain() {
+        final int TIMEOUT_USEC = 0;
+        while (!mEndOfStream) {
+            int outputBufferId = mEncoder.dequeueOutputBuffer(mBufInfo, TIMEOUT_USEC);
+            if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged(mEncoder.getOutputFormat());
+            } else if (outputBufferId < 0) {
+                CodecLog.w(
+                        TAG,
+                        "Unexpected result from MediaCodec.dequeueOutputBuffer: " +
+                        outputBufferId);
+            } else {
+                onOutputBufferAvailable(outputBufferId, mBufInfo);
+            }
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        CodecLog.trace(TraceRing.EVENT_OUTPUT, info.presentationTimeUs, info.flags);
+        ByteBuffer encodedData = mEncoder.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new RuntimeException(
+                    "OutputBuffer at " +
+                            index +
+                            "was null!");
+        }
+
+        ByteBuffer data = encodedData;
+        int offset = info.offset;
+        int size = info.size;
+        boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (config && size != 0) {
+            keepParameterSets(encodedData, offset, offset + size);
+        } else if (keyFrame && size != 0 && mInjectParameterSets) {
+            ByteBuffer withSets = prependParameterSets(encodedData, offset, size);
+            if (withSets != null) {
+                data = withSets;
+                offset = 0;
+                size = withSets.limit();
+            }
+        }
+
+        CircularEncoder.PacketListener listener = mListener;
+        if (listener != null && size != 0) {
+            // as the ring gets it, config included
+            data.position(offset);
+            data.limit(offset + size);
+            listener.onPacket(data, info.flags, info.presentationTimeUs);
+        }
+        if (config) {
+            // kept above, the ring holds frames only
+            size = 0;
+        }
+
+        if (size != 0) {
+            data.position(offset);
+            data.limit(offset + size);
+            mEncBuffer.add(data, info.flags, info.presentationTimeUs);
+            long latencyUsec = recordLatency(info.presentationTimeUs);
+            mMetrics.onFrameEncoded(size, latencyUsec, keyFrame, info.presentationTimeUs);
+            if (keyFrame && mKeyFrames != null) {
+                mKeyFrames.onKeyFrame();
+            }
+            mMetrics.setRing(mEncBuffer.getUsedBytes(), mEncBuffer.getPacketCount(),
+                    mEncBuffer.computeTimeSpanUsec(), mEncBuffer.getEvictionCount());
+            LogUtil.v(TAG, "Sent {} bytes to buffer, ts={}", size, info.presentationTimeUs);
+        }
+        mEncoder.releaseOutputBuffer(index);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            CodecLog.w(TAG, "Reach end of stream unexpectedly");
+            mEndOfStream = true;
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        CodecLog.d(TAG, "output format changed");
+        CodecLog.trace(TraceRing.EVENT_FORMAT, 0, 0);
+        mFormat = format;
+        mHevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    @Override
+    public void onError(Exception e) {
+        CodecLog.e(TAG, "Encoder failed: " + e);
+        mError = e;
+        // the codec is gone, nothing more to drain
+        mEndOfStream = true;
+        if (mCallback != null) {
+            mCallback.encoderFailed(e);
+        }
+    }
+
+    private void keepParameterSets(ByteBuffer buf, int pos, int limit) {
+        ParameterSets sets = ParameterSets.parse(buf, pos, limit, mHevc);
+        if (sets == null) {
+            CodecLog.w(TAG, "No parameter sets in codec config of " + (limit - pos) + " bytes");
+            return;
+        }
+        if (!sets.equals(mParameterSets)) {
+            CodecLog.d(TAG, "Parameter sets: " + sets.size() + " bytes");
+            mParameterSets = sets;
+        }
+    }
+
+    // The key frame with the parameter sets in front, in a scratch buffer
+    // that is good until the next call. Null if it has its own or there are
+    // none yet.
+    private ByteBuffer prependParameterSets(ByteBuffer frame, int offset, int size) {
+        ParameterSets sets = mParameterSets;
+        if (sets == null ||
+                ParameterSets.hasParameterSets(frame, offset, offset + size, sets.isHevc())) {
+            return null;
+        }
+        int needed = sets.size() + size;
+        if (mKeyFrameScratch == null || mKeyFrameScratch.capacity() < needed) {
+            mKeyFrameScratch = ByteBuffer.allocateDirect(needed + needed / 4);
+        }
+        mKeyFrameScratch.clear();
+        sets.writeTo(mKeyFrameScratch);
+        ByteBuffer src = frame.duplicate();
+        src.limit(offset + size).position(offset);
+        mKeyFrameScratch.put(src);
+        mKeyFrameScratch.flip();
+        mInjectedCount++;
+        return mKeyFrameScratch;
+    }
+
+    long getOutputCount() {
+        return mOutputCount;
+    }
+
+    long getAverageLatencyUsec() {
+        return mOutputCount == 0 ? 0 : mLatencySumUsec / mOutputCount;
+    }
+
+    long getMaxLatencyUsec() {
+        return mMaxLatencyUsec;
+    }
+
+    void logLatency(String mode) {
+        CodecLog.i(TAG, mode + " drain: " + mOutputCount + " packets, latency avg " +
+                getAverageLatencyUsec() + " us, max " + mMaxLatencyUsec + " us");
+    }
+
+    private long recordLatency(long ptsUsec) {
+        long latencyUsec = mClock.nanoTime() / 1000 - ptsUsec;
+        mOutputCount++;
+        mLatencySumUsec += latencyUsec;
+        if (latencyUsec > mMaxLatencyUsec) {
+            mMaxLatencyUsec = latencyUsec;
+        }
+        return latencyUsec;
+    }
+}
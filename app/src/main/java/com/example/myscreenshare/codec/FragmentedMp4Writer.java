@@ -0,0 +1,474 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Streams encoded AVC or HEVC packets into a fragmented MP4 (ISO-BMFF):
+ * ftyp + moov once, then a moof + mdat pair per fragment. Nothing is ever
+ * patched afterwards, so the channel can be a socket or a pipe, and memory
+ * stays at one fragment however long the recording gets.
+ *
+ * A fragment starts at every key frame and is cut earlier when it gets
+ * longer than the fragment duration. Packets are expected in decode order
+ * without B-frames, what MediaCodec surface encoders produce here.
+ * Not thread safe, feed it from one thread.
+ */
+public class FragmentedMp4Writer {
+    private static final String TAG = "FragmentedMp4Writer";
+
+    public static final int TIMESCALE = 90000;
+    public static final long DEFAULT_FRAGMENT_USEC = 1000000;
+    private static final int MAX_SAMPLES = 256;
+    private static final int TRACK_ID = 1;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    // mfhd + traf(tfhd, tfdt, trun) without the trun entries
+    private static final int MOOF_FIXED_SIZE = 8 + 16 + 8 + 16 + 20 + 20;
+    private static final int TRUN_ENTRY_SIZE = 12;
+
+    private final GatheringByteChannel mChannel;
+    private final boolean mHevc;
+    private final int mWidth;
+    private final int mHeight;
+    private long mFragmentUsec = DEFAULT_FRAGMENT_USEC;
+
+    // parameter sets, NAL units without start code
+    private ByteBuffer mVps;
+    private ByteBuffer mSps;
+    private ByteBuffer mPps;
+    private boolean mHeaderWritten;
+
+    // the fragment being collected
+    private final ByteBuffer mHeader;
+    private ByteBuffer mData;
+    private final int[] mSampleSize = new int[MAX_SAMPLES];
+    private final int[] mSampleFlags = new int[MAX_SAMPLES];
+    private final long[] mSampleTime = new long[MAX_SAMPLES]; // in TIMESCALE
+    private int mSampleCount;
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+    private long mFirstPtsUsec = -1;
+    private long mLastDuration = TIMESCALE / 30;
+    private int mSequence;
+    private long mBytesWritten;
+
+    public FragmentedMp4Writer(GatheringByteChannel channel, String mimeType,
+                               int width, int height) {
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType) &&
+                !MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType)) {
+            throw new RuntimeException("Unsupported mime type " + mimeType);
+        }
+        mChannel = channel;
+        mHevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType);
+        mWidth = width;
+        mHeight = height;
+        mHeader = ByteBuffer.allocateDirect(MOOF_FIXED_SIZE + MAX_SAMPLES * TRUN_ENTRY_SIZE + 8);
+        mData = ByteBuffer.allocateDirect(256 * 1024);
+    }
+
+    public void setFragmentDurationUsec(long fragmentUsec) {
+        mFragmentUsec = fragmentUsec;
+    }
+
+    // Parameter sets in Annex-B, e.g. csd-0/csd-1 of the output format or a
+    // BUFFER_FLAG_CODEC_CONFIG packet. They are also picked up from key frames.
+    public void setCodecConfig(ByteBuffer csd) {
+        scanNals(csd, csd.position(), csd.limit(), false);
+    }
+
+    /**
+     * Add a packet from the encoder drain loop, buf is read from its position
+     * to its limit and left untouched. Packets before the first key frame are
+     * dropped, a full fragment is written out with one gathering write.
+     */
+    public void writeSample(ByteBuffer buf, int flags, long ptsUsec) throws IOException {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            setCodecConfig(buf);
+            return;
+        }
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mFirstPtsUsec < 0) {
+            if (!keyFrame) {
+                CodecLog.w(TAG, "Dropping packet before the first key frame, pts=" + ptsUsec);
+                return;
+            }
+            mFirstPtsUsec = ptsUsec;
+        }
+
+        long time = (ptsUsec - mFirstPtsUsec) * TIMESCALE / 1000000;
+        if (mSampleCount > 0) {
+            long start = mSampleTime[0];
+            if (keyFrame || mSampleCount == MAX_SAMPLES ||
+                    (time - start) * 1000000 / TIMESCALE >= mFragmentUsec) {
+                flush(time);
+            }
+        }
+
+        // room for a 4 byte length per 3 byte start code
+        int size = buf.remaining();
+        ensureData(size + size / 3 + 4);
+        int start = mData.position();
+        scanNals(buf, buf.position(), buf.limit(), true);
+        if (!mHeaderWritten) {
+            writeHeader();
+        }
+        mSampleSize[mSampleCount] = mData.position() - start;
+        mSampleFlags[mSampleCount] = keyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        mSampleTime[mSampleCount] = time;
+        mSampleCount++;
+    }
+
+    // write the pending fragment, the channel stays open
+    public void finish() throws IOException {
+        if (mSampleCount > 0) {
+            flush(mSampleTime[mSampleCount - 1] + mLastDuration);
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFragmentCount() {
+        return mSequence;
+    }
+
+    // the fragment data buffer, it only grows to the largest fragment
+    public int getBufferCapacity() {
+        return mData.capacity();
+    }
+
+    // Copy the NAL units of [pos, limit) length prefixed into mData, or just
+    // remember the parameter sets when copy is false.
+    private void scanNals(ByteBuffer buf, int pos, int limit, boolean copy) {
+        int start = AnnexB.findStartCode(buf, pos, limit);
+        if (start != pos) {
+            // no start code in front, take it all as one NAL unit
+            start = pos;
+            copyNal(buf, pos, AnnexB.findStartCode(buf, pos, limit), copy);
+        }
+        while (start < limit) {
+            int nalStart = AnnexB.skipStartCode(buf, start);
+            int next = AnnexB.findStartCode(buf, nalStart, limit);
+            copyNal(buf, nalStart, next, copy);
+            start = next;
+        }
+    }
+
+    private void copyNal(ByteBuffer buf, int nalStart, int nalEnd, boolean copy) {
+        if (nalEnd <= nalStart) {
+            return;
+        }
+        int type = mHevc ? AnnexB.hevcNalType(buf, nalStart) : AnnexB.avcNalType(buf, nalStart);
+        boolean parameterSet = true;
+        if (mHevc && type == AnnexB.HEVC_NAL_VPS) {
+            mVps = keep(mVps, buf, nalStart, nalEnd);
+        } else if (mHevc ? type == AnnexB.HEVC_NAL_SPS : type == AnnexB.AVC_NAL_SPS) {
+            mSps = keep(mSps, buf, nalStart, nalEnd);
+        } else if (mHevc ? type == AnnexB.HEVC_NAL_PPS : type == AnnexB.AVC_NAL_PPS) {
+            mPps = keep(mPps, buf, nalStart, nalEnd);
+        } else {
+            parameterSet = false;
+        }
+        // avc1/hvc1 carry the parameter sets in the sample entry only
+        if (copy && !parameterSet) {
+            int length = nalEnd - nalStart;
+            mData.putInt(length);
+            ByteBuffer src = buf.duplicate();
+            src.limit(nalEnd).position(nalStart);
+            mData.put(src);
+        }
+    }
+
+    private static ByteBuffer keep(ByteBuffer old, ByteBuffer buf, int nalStart, int nalEnd) {
+        int length = nalEnd - nalStart;
+        if (old != null && old.capacity() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = old.get(i) == buf.get(nalStart + i);
+            }
+            if (same) {
+                return old;
+            }
+        }
+        if (old != null) {
+            // the sample entry is already written, decoders keep the old one
+            CodecLog.w(TAG, "Parameter set changed mid stream");
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        ByteBuffer src = buf.duplicate();
+        src.limit(nalEnd).position(nalStart);
+        copy.put(src).flip();
+        return copy;
+    }
+
+    private void ensureData(int size) {
+        if (mData.remaining() >= size) {
+            return;
+        }
+        int capacity = Math.max(mData.capacity() + mData.capacity() / 2, mData.position() + size);
+        ByteBuffer data = ByteBuffer.allocateDirect(capacity);
+        mData.flip();
+        data.put(mData);
+        mData = data;
+    }
+
+    private void flush(long nextTime) throws IOException {
+        final int count = mSampleCount;
+        long duration = nextTime - mSampleTime[count - 1];
+        if (duration > 0) {
+            mLastDuration = duration;
+        }
+
+        ByteBuffer h = mHeader;
+        h.clear();
+        int moof = begin(h, "moof");
+        int mfhd = beginFull(h, "mfhd", 0, 0);
+        h.putInt(++mSequence);
+        end(h, mfhd);
+        int traf = begin(h, "traf");
+        int tfhd = beginFull(h, "tfhd", 0, 0x020000); // default-base-is-moof
+        h.putInt(TRACK_ID);
+        end(h, tfhd);
+        int tfdt = beginFull(h, "tfdt", 1, 0);
+        h.putLong(mSampleTime[0]);
+        end(h, tfdt);
+        // data-offset, sample duration, size and flags
+        int trun = beginFull(h, "trun", 0, 0x000701);
+        h.putInt(count);
+        int dataOffset = h.position();
+        h.putInt(0);
+        for (int i = 0; i < count; i++) {
+            long next = i + 1 < count ? mSampleTime[i + 1] : nextTime;
+            h.putInt((int) Math.max(next - mSampleTime[i], 0));
+            h.putInt(mSampleSize[i]);
+            h.putInt(mSampleFlags[i]);
+        }
+        end(h, trun);
+        end(h, traf);
+        end(h, moof);
+        h.putInt(dataOffset, h.position() - moof + 8);
+        h.putInt(8 + mData.position());
+        putType(h, "mdat");
+        h.flip();
+        mData.flip();
+
+        mGather[0] = h;
+        mGather[1] = mData;
+        writeFully(mGather);
+        mData.clear();
+        mSampleCount = 0;
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : buffers) {
+            remaining += b.remaining();
+        }
+        mBytesWritten += remaining;
+        // a file channel takes it in one go, a non-blocking socket may not
+        while (remaining > 0) {
+            remaining -= mChannel.write(buffers);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        if (mSps == null || mPps == null || (mHevc && mVps == null)) {
+            throw new RuntimeException("No codec config before the first key frame");
+        }
+        ByteBuffer h = ByteBuffer.allocate(1024 + mSps.capacity() + mPps.capacity() +
+                (mVps != null ? mVps.capacity() : 0));
+        int ftyp = begin(h, "ftyp");
+        putType(h, "isom");
+        h.putInt(0x200);
+        putType(h, "isom");
+        putType(h, "iso5");
+        putType(h, "iso6");
+        putType(h, "mp41");
+        end(h, ftyp);
+
+        int moov = begin(h, "moov");
+        int mvhd = beginFull(h, "mvhd", 0, 0);
+        h.putInt(0).putInt(0); // creation, modification time
+        h.putInt(1000).putInt(0); // timescale, duration
+        h.putInt(0x00010000).putShort((short) 0x0100); // rate, volume
+        h.putShort((short) 0).putInt(0).putInt(0);
+        putMatrix(h);
+        for (int i = 0; i < 6; i++) {
+            h.putInt(0);
+        }
+        h.putInt(TRACK_ID + 1); // next track id
+        end(h, mvhd);
+
+        int trak = begin(h, "trak");
+        int tkhd = beginFull(h, "tkhd", 0, 0x000003); // enabled, in movie
+        h.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        h.putInt(0).putInt(0); // reserved
+        h.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix(h);
+        h.putInt(mWidth << 16).putInt(mHeight << 16);
+        end(h, tkhd);
+
+        int mdia = begin(h, "mdia");
+        int mdhd = beginFull(h, "mdhd", 0, 0);
+        h.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0);
+        h.putShort((short) 0x55C4).putShort((short) 0); // "und"
+        end(h, mdhd);
+        int hdlr = beginFull(h, "hdlr", 0, 0);
+        h.putInt(0);
+        putType(h, "vide");
+        h.putInt(0).putInt(0).putInt(0);
+        h.put("VideoHandler".getBytes()).put((byte) 0);
+        end(h, hdlr);
+
+        int minf = begin(h, "minf");
+        int vmhd = beginFull(h, "vmhd", 0, 1);
+        h.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        end(h, vmhd);
+        int dinf = begin(h, "dinf");
+        int dref = beginFull(h, "dref", 0, 0);
+        h.putInt(1);
+        int url = beginFull(h, "url ", 0, 1); // data in this file
+        end(h, url);
+        end(h, dref);
+        end(h, dinf);
+
+        int stbl = begin(h, "stbl");
+        int stsd = beginFull(h, "stsd", 0, 0);
+        h.putInt(1);
+        putSampleEntry(h);
+        end(h, stsd);
+        // empty tables, the samples are in the fragments
+        String[] tables = {"stts", "stsc", "stco"};
+        for (String table : tables) {
+            int box = beginFull(h, table, 0, 0);
+            h.putInt(0);
+            end(h, box);
+        }
+        int stsz = beginFull(h, "stsz", 0, 0);
+        h.putInt(0).putInt(0);
+        end(h, stsz);
+        end(h, stbl);
+        end(h, minf);
+        end(h, mdia);
+        end(h, trak);
+
+        int mvex = begin(h, "mvex");
+        int trex = beginFull(h, "trex", 0, 0);
+        h.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(h, trex);
+        end(h, mvex);
+        end(h, moov);
+
+        h.flip();
+        mGather[0] = h;
+        mGather[1] = ByteBuffer.allocate(0);
+        writeFully(mGather);
+        mHeaderWritten = true;
+    }
+
+    private void putSampleEntry(ByteBuffer h) {
+        int entry = begin(h, mHevc ? "hvc1" : "avc1");
+        h.putInt(0).putShort((short) 0); // reserved
+        h.putShort((short) 1); // data reference index
+        h.putShort((short) 0).putShort((short) 0);
+        h.putInt(0).putInt(0).putInt(0);
+        h.putShort((short) mWidth).putShort((short) mHeight);
+        h.putInt(0x00480000).putInt(0x00480000); // 72 dpi
+        h.putInt(0);
+        h.putShort((short) 1); // frame count
+        h.put(new byte[32]); // compressor name
+        h.putShort((short) 0x0018).putShort((short) -1);
+        if (mHevc) {
+            putHvcC(h);
+        } else {
+            putAvcC(h);
+        }
+        end(h, entry);
+    }
+
+    private void putAvcC(ByteBuffer h) {
+        int avcC = begin(h, "avcC");
+        h.put((byte) 1);
+        h.put(mSps.get(1)).put(mSps.get(2)).put(mSps.get(3)); // profile, compat, level
+        h.put((byte) 0xFF); // 4 byte NAL lengths
+        h.put((byte) 0xE1);
+        putNal(h, mSps);
+        h.put((byte) 1);
+        putNal(h, mPps);
+        end(h, avcC);
+    }
+
+    // Chroma format and bit depth are left at 4:2:0 8 bit, the only thing
+    // the surface encoders produce.
+    private void putHvcC(ByteBuffer h) {
+        // sub-layer info and profile_tier_level follow the 2 byte NAL header
+        byte[] rbsp = new byte[15];
+        AnnexB.unescape(mSps, 0, mSps.capacity(), rbsp);
+        int maxSubLayersMinus1 = (rbsp[2] >> 1) & 0x07;
+        int temporalIdNested = rbsp[2] & 0x01;
+
+        int hvcC = begin(h, "hvcC");
+        h.put((byte) 1);
+        h.put(rbsp, 3, 12); // general profile, tier and level
+        h.putShort((short) 0xF000); // min_spatial_segmentation_idc
+        h.put((byte) 0xFC); // parallelism type
+        h.put((byte) 0xFD); // chroma_format_idc 1
+        h.put((byte) 0xF8).put((byte) 0xF8); // bit depth 8
+        h.putShort((short) 0); // avg frame rate
+        h.put((byte) (((maxSubLayersMinus1 + 1) << 3) | (temporalIdNested << 2) | 3));
+        h.put((byte) 3);
+        putNalArray(h, AnnexB.HEVC_NAL_VPS, mVps);
+        putNalArray(h, AnnexB.HEVC_NAL_SPS, mSps);
+        putNalArray(h, AnnexB.HEVC_NAL_PPS, mPps);
+        end(h, hvcC);
+    }
+
+    private static void putNalArray(ByteBuffer h, int type, ByteBuffer nal) {
+        h.put((byte) (0x80 | type)); // array completeness
+        h.putShort((short) 1);
+        putNal(h, nal);
+    }
+
+    private static void putNal(ByteBuffer h, ByteBuffer nal) {
+        h.putShort((short) nal.capacity());
+        h.put(nal.duplicate());
+    }
+
+    private static void putMatrix(ByteBuffer h) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int v : matrix) {
+            h.putInt(v);
+        }
+    }
+
+    private static int begin(ByteBuffer h, String type) {
+        int start = h.position();
+        h.putInt(0);
+        putType(h, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer h, String type, int version, int flags) {
+        int start = begin(h, type);
+        h.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer h, int start) {
+        h.putInt(start, h.position() - start);
+    }
+
+    private static void putType(ByteBuffer h, String type) {
+        for (int i = 0; i < 4; i++) {
+            h.put((byte) type.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.myscreenshare.codec;
+
+import com.example.myscreenshare.util.Clock;
+
+/**
+ * Decides when a requested key frame is actually asked of the codec. The
+ * encoder runs long GOPs and makes key frames on demand: a viewer joining,
+ * a loss nobody can repair, a save. Requests are coalesced: one that comes
+ * while a key frame is already asked for and not out yet rides along, and
+ * none is asked for closer than the minimum spacing to the last key frame,
+ * so a burst of joins costs one key frame.
+ *
+ * Not thread safe, the encoder thread owns it.
+ */
+class KeyFrameScheduler {
+
+    // a key frame asked for that never came is given up after this
+    static final long AWAIT_TIMEOUT_NANOS = 2000000000L;
+
+    private final Clock mClock;
+    private final long mMinIntervalNanos;
+
+    private long mLastKeyFrameNanos;
+    private boolean mHaveKeyFrame;
+    private boolean mPending;
+    private boolean mAwaiting;
+    private long mAskedNanos;
+
+    private long mRequestCount;
+    private long mCoalescedCount;
+    private long mForcedCount;
+
+    KeyFrameScheduler(Clock clock, long minIntervalNanos) {
+        mClock = clock;
+        mMinIntervalNanos = minIntervalNanos;
+    }
+
+    // Someone wants a key frame. Returns the delay in nanoseconds after
+    // which poll() should be called, or -1 if an earlier request covers it.
+    long request() {
+        mRequestCount++;
+        long now = mClock.nanoTime();
+        if (mAwaiting && now - mAskedNanos >= AWAIT_TIMEOUT_NANOS) {
+            mAwaiting = false;
+        }
+        if (mPending || mAwaiting) {
+            mCoalescedCount++;
+            return -1;
+        }
+        mPending = true;
+        return delay(now);
+    }
+
+    // Returns 0 if the codec is to be asked for a key frame now, the delay
+    // in nanoseconds to poll again if it is too early, or -1 if nothing is
+    // pending.
+    long poll() {
+        if (!mPending) {
+            return -1;
+        }
+        long now = mClock.nanoTime();
+        long delay = delay(now);
+        if (delay > 0) {
+            return delay;
+        }
+        mPending = false;
+        mAwaiting = true;
+        mAskedNanos = now;
+        mForcedCount++;
+        return 0;
+    }
+
+    // the codec put out a key frame, asked for or not
+    void onKeyFrame() {
+        mLastKeyFrameNanos = mClock.nanoTime();
+        mHaveKeyFrame = true;
+        mAwaiting = false;
+        if (mPending) {
+            // this one serves the waiting request
+            mPending = false;
+            mCoalescedCount++;
+        }
+    }
+
+    private long delay(long now) {
+        if (!mHaveKeyFrame) {
+            return 0;
+        }
+        return Math.max(0, mLastKeyFrameNanos + mMinIntervalNanos - now);
+    }
+
+    long getRequestCount() {
+        return mRequestCount;
+    }
+
+    // requests served by a key frame asked for or made anyway
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    // key frames asked of the codec
+    long getForcedCount() {
+        return mForcedCount;
+    }
+}
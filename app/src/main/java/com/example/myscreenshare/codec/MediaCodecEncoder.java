@@ -0,0 +1,97 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// VideoEncoder on top of a MediaCodec encoder.
+class MediaCodecEncoder implements VideoEncoder {
+
+    private final MediaCodec mCodec;
+
+    MediaCodecEncoder(String mimeType) throws IOException {
+        mCodec = MediaCodec.createEncoderByType(mimeType);
+    }
+
+    // needs API 23, the handler form of MediaCodec.setCallback()
+    @Override
+    public void setCallback(final Callback callback, Handler handler) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // input comes from the surface
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                                MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, handler);
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+}
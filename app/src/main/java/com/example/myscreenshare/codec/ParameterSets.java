@@ -0,0 +1,155 @@
+package com.example.myscreenshare.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The parameter sets of an AVC or HEVC stream (VPS, SPS, PPS) as the codec
+ * sends them in its BUFFER_FLAG_CODEC_CONFIG packet. Parsing walks the
+ * start codes of the codec buffer in place, only the parameter set NAL
+ * units are copied out. Immutable, one instance can go to any thread.
+ */
+public final class ParameterSets {
+
+    private final boolean mHevc;
+    // start code and NAL unit of each, VPS (HEVC only), SPS, PPS
+    private final byte[] mAnnexB;
+    private final int mPpsOffset;
+
+    private ParameterSets(boolean hevc, byte[] annexB, int ppsOffset) {
+        mHevc = hevc;
+        mAnnexB = annexB;
+        mPpsOffset = ppsOffset;
+    }
+
+    // The first of each parameter set in [pos, limit) of buf, or null if one
+    // is missing. Position and limit of buf are left alone.
+    public static ParameterSets parse(ByteBuffer buf, int pos, int limit, boolean hevc) {
+        int vpsStart = -1, vpsEnd = -1;
+        int spsStart = -1, spsEnd = -1;
+        int ppsStart = -1, ppsEnd = -1;
+        int start = AnnexB.findStartCode(buf, pos, limit);
+        while (start < limit) {
+            int nalStart = AnnexB.skipStartCode(buf, start);
+            int next = AnnexB.findStartCode(buf, nalStart, limit);
+            if (next > nalStart) {
+                int type = nalType(buf, nalStart, hevc);
+                if (hevc && type == AnnexB.HEVC_NAL_VPS && vpsStart < 0) {
+                    vpsStart = nalStart;
+                    vpsEnd = next;
+                } else if (isSps(type, hevc) && spsStart < 0) {
+                    spsStart = nalStart;
+                    spsEnd = next;
+                } else if (isPps(type, hevc) && ppsStart < 0) {
+                    ppsStart = nalStart;
+                    ppsEnd = next;
+                }
+            }
+            start = next;
+        }
+        if (spsStart < 0 || ppsStart < 0 || (hevc && vpsStart < 0)) {
+            return null;
+        }
+        int size = 4 + (spsEnd - spsStart) + 4 + (ppsEnd - ppsStart);
+        if (hevc) {
+            size += 4 + vpsEnd - vpsStart;
+        }
+        ByteBuffer annexB = ByteBuffer.allocate(size);
+        if (hevc) {
+            putNal(annexB, buf, vpsStart, vpsEnd);
+        }
+        putNal(annexB, buf, spsStart, spsEnd);
+        int ppsOffset = annexB.position();
+        putNal(annexB, buf, ppsStart, ppsEnd);
+        return new ParameterSets(hevc, annexB.array(), ppsOffset);
+    }
+
+    // True if an SPS comes before the first slice of the access unit in
+    // [pos, limit). Stops at the first slice, so a key frame costs a few
+    // header reads and not a scan of its payload.
+    public static boolean hasParameterSets(ByteBuffer buf, int pos, int limit, boolean hevc) {
+        int start = AnnexB.findStartCode(buf, pos, limit);
+        while (start < limit) {
+            int nalStart = AnnexB.skipStartCode(buf, start);
+            if (nalStart >= limit) {
+                break;
+            }
+            int type = nalType(buf, nalStart, hevc);
+            if (isSps(type, hevc)) {
+                return true;
+            }
+            if (hevc ? type < AnnexB.HEVC_NAL_VPS : type >= 1 && type <= AnnexB.AVC_NAL_IDR) {
+                return false;
+            }
+            start = AnnexB.findStartCode(buf, nalStart, limit);
+        }
+        return false;
+    }
+
+    public boolean isHevc() {
+        return mHevc;
+    }
+
+    // bytes of getCodecConfig()
+    public int size() {
+        return mAnnexB.length;
+    }
+
+    // All of them with 4 byte start codes, read only.
+    public ByteBuffer getCodecConfig() {
+        return ByteBuffer.wrap(mAnnexB).asReadOnlyBuffer();
+    }
+
+    // What MediaFormat has as "csd-<index>": SPS and PPS for AVC, all in
+    // csd-0 for HEVC. Null past the last one.
+    public ByteBuffer getCsd(int index) {
+        if (mHevc) {
+            return index == 0 ? getCodecConfig() : null;
+        }
+        if (index == 0) {
+            return ByteBuffer.wrap(mAnnexB, 0, mPpsOffset).slice().asReadOnlyBuffer();
+        } else if (index == 1) {
+            return ByteBuffer.wrap(mAnnexB, mPpsOffset, mAnnexB.length - mPpsOffset)
+                    .slice().asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    // dst needs size() bytes remaining
+    public void writeTo(ByteBuffer dst) {
+        dst.put(mAnnexB);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ParameterSets)) {
+            return false;
+        }
+        ParameterSets other = (ParameterSets) o;
+        return mHevc == other.mHevc && Arrays.equals(mAnnexB, other.mAnnexB);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mAnnexB);
+    }
+
+    private static int nalType(ByteBuffer buf, int nalStart, boolean hevc) {
+        return hevc ? AnnexB.hevcNalType(buf, nalStart) : AnnexB.avcNalType(buf, nalStart);
+    }
+
+    private static boolean isSps(int type, boolean hevc) {
+        return hevc ? type == AnnexB.HEVC_NAL_SPS : type == AnnexB.AVC_NAL_SPS;
+    }
+
+    private static boolean isPps(int type, boolean hevc) {
+        return hevc ? type == AnnexB.HEVC_NAL_PPS : type == AnnexB.AVC_NAL_PPS;
+    }
+
+    private static void putNal(ByteBuffer dst, ByteBuffer buf, int nalStart, int nalEnd) {
+        dst.putInt(1);
+        for (int i = nalStart; i < nalEnd; i++) {
+            dst.put(buf.get(i));
+        }
+    }
+}
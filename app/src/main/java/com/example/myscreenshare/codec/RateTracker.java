@@ -0,0 +1,105 @@
+package com.example.myscreenshare.codec;
+
+/**
+ * Bytes and packets per second of the encoder output over a sliding window
+ * of one second buckets, keyed by presentation time. No allocation after
+ * construction.
+ */
+public class RateTracker {
+
+    private static final long BUCKET_USEC = 1000000;
+
+    private final long[] mBucketSecond;
+    private final long[] mBucketBytes;
+    private final int[] mBucketPackets;
+
+    public RateTracker(int windowSec) {
+        mBucketSecond = new long[windowSec];
+        mBucketBytes = new long[windowSec];
+        mBucketPackets = new int[windowSec];
+        for (int i = 0; i < windowSec; i++) {
+            mBucketSecond[i] = -1;
+        }
+    }
+
+    public void record(long ptsUsec, int bytes) {
+        long second = ptsUsec / BUCKET_USEC;
+        int i = (int) (second % mBucketSecond.length);
+        if (i < 0) {
+            i += mBucketSecond.length;
+        }
+        if (mBucketSecond[i] != second) {
+            mBucketSecond[i] = second;
+            mBucketBytes[i] = 0;
+            mBucketPackets[i] = 0;
+        }
+        mBucketBytes[i] += bytes;
+        mBucketPackets[i]++;
+    }
+
+    // number of whole seconds that are in the window at nowUsec
+    public int getSeconds(long nowUsec) {
+        long now = nowUsec / BUCKET_USEC;
+        int seconds = 0;
+        for (long second : mBucketSecond) {
+            if (inWindow(second, now)) {
+                seconds++;
+            }
+        }
+        return seconds;
+    }
+
+    public long getBytesPerSec(long nowUsec) {
+        return average(mBucketBytes, null, nowUsec);
+    }
+
+    public long getPacketsPerSec(long nowUsec) {
+        return average(null, mBucketPackets, nowUsec);
+    }
+
+    public long getPeakBytesPerSec(long nowUsec) {
+        long now = nowUsec / BUCKET_USEC;
+        long peak = 0;
+        for (int i = 0; i < mBucketSecond.length; i++) {
+            if (inWindow(mBucketSecond[i], now)) {
+                peak = Math.max(peak, mBucketBytes[i]);
+            }
+        }
+        return peak;
+    }
+
+    public long getPeakPacketsPerSec(long nowUsec) {
+        long now = nowUsec / BUCKET_USEC;
+        long peak = 0;
+        for (int i = 0; i < mBucketSecond.length; i++) {
+            if (inWindow(mBucketSecond[i], now)) {
+                peak = Math.max(peak, mBucketPackets[i]);
+            }
+        }
+        return peak;
+    }
+
+    // the running second is only used while there is no complete one
+    private long average(long[] bytes, int[] packets, long nowUsec) {
+        long now = nowUsec / BUCKET_USEC;
+        long sum = 0;
+        long current = 0;
+        int seconds = 0;
+        for (int i = 0; i < mBucketSecond.length; i++) {
+            if (inWindow(mBucketSecond[i], now)) {
+                long value = bytes != null ? bytes[i] : packets[i];
+                if (mBucketSecond[i] == now) {
+                    current = value;
+                } else {
+                    sum += value;
+                    seconds++;
+                }
+            }
+        }
+        return seconds == 0 ? current : sum / seconds;
+    }
+
+    private boolean inWindow(long second, long now) {
+        return second >= 0 && second <= now && now - second < mBucketSecond.length;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.myscreenshare.codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Backing store for the payload of CircularEncoderBuffer.
+ *
+ * All stores are a ByteBuffer addressed by absolute position, so the ring
+ * logic does not care where the bytes live:
+ * TYPE_HEAP    byte[] on the managed heap
+ * TYPE_DIRECT  native memory, invisible to the GC
+ * TYPE_MAPPED  a file mapped with FileChannel.map(), paged by the kernel
+ */
+public class RingStorage {
+    private static final String TAG = "RingStorage";
+
+    public static final int TYPE_HEAP = 0;
+    public static final int TYPE_DIRECT = 1;
+    public static final int TYPE_MAPPED = 2;
+
+    // a ByteBuffer can't address more
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final int mType;
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriteView;
+    private RandomAccessFile mFile;
+    private File mPath;
+    private int mGeneration;
+
+    private RingStorage(int type, ByteBuffer buffer) {
+        mType = type;
+        mBuffer = buffer;
+        mWriteView = buffer.duplicate();
+    }
+
+    // file is only used by TYPE_MAPPED, it is created or truncated and
+    // deleted again by release()
+    public static RingStorage create(int type, int capacity, File file) throws IOException {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new RuntimeException("Invalid ring capacity: " + capacity);
+        }
+        switch (type) {
+            case TYPE_HEAP:
+                return new RingStorage(type, ByteBuffer.wrap(new byte[capacity]));
+            case TYPE_DIRECT:
+                return new RingStorage(type, ByteBuffer.allocateDirect(capacity));
+            case TYPE_MAPPED:
+                if (file == null) {
+                    throw new RuntimeException("TYPE_MAPPED needs a backing file");
+                }
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(capacity);
+                    ByteBuffer mapped = raf.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, capacity);
+                    RingStorage storage = new RingStorage(type, mapped);
+                    storage.mFile = raf;
+                    storage.mPath = file;
+                    return storage;
+                } catch (IOException e) {
+                    raf.close();
+                    throw e;
+                }
+            default:
+                throw new RuntimeException("Unknown storage type " + type);
+        }
+    }
+
+    // A new store of the same type, e.g. to resize the ring. A mapped store
+    // gets its own file next to this one, readers may still use this mapping.
+    public RingStorage createSibling(int capacity) throws IOException {
+        File file = null;
+        if (mType == TYPE_MAPPED) {
+            String path = mPath.getPath();
+            int mark = path.lastIndexOf('#');
+            if (mark > path.lastIndexOf(File.separatorChar)) {
+                path = path.substring(0, mark);
+            }
+            file = new File(path + "#" + (mGeneration + 1));
+        }
+        RingStorage storage = create(mType, capacity, file);
+        storage.mGeneration = mGeneration + 1;
+        return storage;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    // an independent view for one consumer thread
+    public ByteBuffer newView() {
+        return mBuffer.duplicate();
+    }
+
+    // copy length bytes from src (advancing it) to pos, encoder thread only
+    public void put(int pos, ByteBuffer src, int length) {
+        ByteBuffer view = mWriteView;
+        view.clear();
+        view.position(pos);
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        view.put(src);
+        src.limit(limit);
+    }
+
+    // copy length bytes at pos into dst through the caller's own view
+    public static void get(ByteBuffer view, int pos, int length, ByteBuffer dst) {
+        view.clear();
+        view.position(pos);
+        view.limit(pos + length);
+        dst.put(view);
+    }
+
+    public void release() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                CodecLog.w(TAG, "close backing file failed: " + e);
+            }
+            mFile = null;
+            // the mapping stays valid until collected, unlinking is safe
+            if (!mPath.delete()) {
+                CodecLog.w(TAG, "could not delete " + mPath);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.myscreenshare.codec;
+
+import com.example.myscreenshare.metrics.PipelineMetrics;
+import com.example.myscreenshare.util.Clock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renditions of one capture for viewers on different links. Layer 0 is the
+ * full size, every other layer divides both dimensions and gets the bit
+ * rate of its share of the pixels. Each layer is a CircularEncoder with
+ * its own ring, the render thread draws all of them from one texture.
+ * ScreenRecordService serves layer i to TCP viewers on STREAM_PORT + i.
+ */
+public class Simulcast {
+    public static final String TAG = "Simulcast";
+
+    // full, 1/2 and 1/4 of the capture
+    public static final int[] DEFAULT_DIVISORS = {1, 2, 4};
+    // macroblock alignment, some encoders reject anything else
+    public static final int ALIGNMENT = 16;
+    public static final int MIN_BIT_RATE = 200000;
+
+    private Simulcast() {}
+
+    public static int scaleDimension(int size, int divisor) {
+        int scaled = size / divisor / ALIGNMENT * ALIGNMENT;
+        return Math.max(scaled, ALIGNMENT);
+    }
+
+    public static int scaleBitRate(int bitRate, int divisor) {
+        return Math.max(bitRate / (divisor * divisor), MIN_BIT_RATE);
+    }
+
+    // Layer 0 reports to metrics and has to work, the others get their
+    // own metrics, see CircularEncoder.getMetrics(), and are left out if
+    // the device runs out of encoders.
+    public static CircularEncoder[] createEncoders(int width, int height, int bitRate,
+                                                   int frameRate, int desiredSpanSec,
+                                                   int drainMode, int[] divisors,
+                                                   PipelineMetrics metrics,
+                                                   CircularEncoder.CircularEncoderCallback cb)
+            throws IOException {
+        List<CircularEncoder> encoders = new ArrayList<>();
+        for (int i = 0; i < divisors.length; i++) {
+            int divisor = divisors[i];
+            int w = divisor == 1 ? width : scaleDimension(width, divisor);
+            int h = divisor == 1 ? height : scaleDimension(height, divisor);
+            int br = scaleBitRate(bitRate, divisor);
+            if (i == 0) {
+                encoders.add(new CircularEncoder(w, h, br, frameRate, desiredSpanSec,
+                        drainMode, metrics, cb));
+                continue;
+            }
+            try {
+                encoders.add(new CircularEncoder(w, h, br, frameRate, desiredSpanSec,
+                        drainMode, new PipelineMetrics(Clock.SYSTEM), cb));
+            } catch (IOException | RuntimeException e) {
+                CodecLog.w(TAG, "Skip layer " + w + "x" + h + ": " + e);
+                break;
+            }
+            CodecLog.d(TAG, "layer " + i + ": " + w + "x" + h + " @ " + br);
+        }
+        return encoders.toArray(new CircularEncoder[encoders.size()]);
+    }
+}
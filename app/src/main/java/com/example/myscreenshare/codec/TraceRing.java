@@ -0,0 +1,128 @@
+package com.example.myscreenshare.codec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory trace of packet level events, a ring of fixed size records
+ * made of primitives. Recording allocates nothing and never blocks, the
+ * ring is only turned into text when dump() is called.
+ *
+ * Any thread may record. Each record is a seqlock: its stamp is cleared
+ * before the fields change and set to seq + 1 after, dump() reads the
+ * stamp, the fields and the stamp again and skips the record if the two
+ * differ. So a record being overwritten while it is dumped is left out,
+ * never printed torn.
+ */
+public class TraceRing {
+
+    public static final int EVENT_ADD = 1; // a = pts, b = size
+    public static final int EVENT_EVICT = 2; // a = seq, b = size
+    public static final int EVENT_OUTPUT = 3; // a = pts, b = flags
+    public static final int EVENT_FORMAT = 4;
+    public static final int EVENT_RESIZE = 5; // a = data size, b = meta count
+    public static final int EVENT_OVERRUN = 6; // a = reader position
+    public static final int EVENT_SAVE = 7; // a = first seq, b = packets
+    public static final int EVENT_SKIP = 8; // a = reader position, b = packets skipped
+    public static final int EVENT_KEY_FRAME = 9; // a = requests so far, b = 1 if asked of the codec
+
+    private static final String[] NAMES = {
+            "?", "add", "evict", "output", "format", "resize", "overrun", "save", "skip",
+            "key frame"};
+
+    // time, event << 32 | b, a
+    private static final int STRIDE = 3;
+
+    private final long[] mRecords;
+    // seq + 1 of each record, 0 while it is written
+    private final AtomicLongArray mStamps;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+
+    // Written between the field reads and the stamp re-check of dump(), see
+    // CircularEncoderBuffer.Reader for why a volatile store.
+    private volatile long mFence;
+
+    // capacity is rounded up to a power of two
+    public TraceRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mRecords = new long[size * STRIDE];
+        mStamps = new AtomicLongArray(size);
+        mMask = size - 1;
+    }
+
+    public void record(int event, long a, int b) {
+        long seq = mNext.getAndIncrement();
+        int slot = (int) (seq & mMask);
+        int i = slot * STRIDE;
+        // volatile, the fence after it keeps the field stores behind it
+        mStamps.set(slot, 0);
+        mRecords[i] = System.nanoTime();
+        mRecords[i + 1] = ((long) event << 32) | (b & 0xFFFFFFFFL);
+        mRecords[i + 2] = a;
+        // volatile, publishes the fields
+        mStamps.set(slot, seq + 1);
+    }
+
+    // number of events recorded so far, older ones may be gone
+    public long getCount() {
+        return mNext.get();
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    // one line per event, oldest first, time in usec relative to the first
+    public void dump(Appendable out) throws IOException {
+        long end = mNext.get();
+        long start = Math.max(0, end - getCapacity());
+        long baseNanos = -1;
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mMask);
+            int i = slot * STRIDE;
+            if (mStamps.get(slot) != seq + 1) {
+                continue;
+            }
+            long time = mRecords[i];
+            long eventAndB = mRecords[i + 1];
+            long a = mRecords[i + 2];
+            mFence = seq;
+            if (mStamps.get(slot) != seq + 1) {
+                // overwritten while we read it
+                continue;
+            }
+            if (baseNanos < 0) {
+                baseNanos = time;
+            }
+            int event = (int) (eventAndB >>> 32);
+            out.append(Long.toString((time - baseNanos) / 1000)).append(' ')
+                    .append(event < NAMES.length ? NAMES[event] : Integer.toString(event))
+                    .append(' ').append(Long.toString(a))
+                    .append(' ').append(Integer.toString((int) eventAndB))
+                    .append('\n');
+        }
+    }
+
+    // dump to logcat, in chunks below the logcat line limit
+    public void dump(String tag) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            dump(sb);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+        }
+        CodecLog.i(tag, "trace of " + getCount() + " events");
+        int start = 0;
+        while (start < sb.length()) {
+            int end = Math.min(start + 3000, sb.length());
+            int newline = sb.lastIndexOf("\n", end - 1);
+            if (end < sb.length() && newline > start) {
+                end = newline + 1;
+            }
+            CodecLog.i(tag, sb.substring(start, end));
+            start = end;
+        }
+    }
+}
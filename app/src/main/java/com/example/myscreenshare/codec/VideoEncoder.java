@@ -0,0 +1,50 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of MediaCodec CircularEncoder uses, so the drain logic can run
+ * against a fake encoder on the JVM. MediaCodecEncoder is the real one.
+ */
+public interface VideoEncoder {
+
+    // async mode, called on the handler given to setCallback()
+    interface Callback {
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    // switches to async mode, must be called before configure()
+    void setCallback(Callback callback, Handler handler);
+
+    void configure(MediaFormat format);
+
+    Surface createInputSurface();
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    // while running, e.g. PARAMETER_KEY_VIDEO_BITRATE, needs API 19
+    void setParameters(Bundle params);
+
+    // polling mode only
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+}
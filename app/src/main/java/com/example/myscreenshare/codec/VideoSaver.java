@@ -0,0 +1,130 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes snapshots of a CircularEncoderBuffer as fragmented MP4 files on
+ * its own thread, the encoder thread only pins the range and goes on draining.
+ * Saves run one after another in the order they were requested.
+ */
+class VideoSaver {
+    private static final String TAG = "VideoSaver";
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final CircularEncoderBuffer mEncBuffer;
+    private final CircularEncoder.CircularEncoderCallback mCallback;
+
+    // writer thread only
+    private ByteBuffer mSample;
+
+    VideoSaver(CircularEncoderBuffer encBuffer,
+               CircularEncoder.CircularEncoderCallback callback) {
+        mEncBuffer = encBuffer;
+        mCallback = callback;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    // The snapshot is released once written, fileSaveComplete() is called
+    // on the writer thread. The parameter sets the drainer kept win over
+    // the csd of format, null leaves those.
+    void save(final File outputFile, final MediaFormat format, final ParameterSets sets,
+              final CircularEncoderBuffer.Snapshot snapshot) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int status;
+                try {
+                    status = write(outputFile, format, sets, snapshot);
+                } finally {
+                    mEncBuffer.releaseSnapshot(snapshot);
+                }
+                if (status != CircularEncoder.SAVE_OK && !outputFile.delete()) {
+                    CodecLog.w(TAG, "could not delete " + outputFile);
+                }
+                CodecLog.d(TAG, "saved " + outputFile + " status=" + status);
+                mCallback.fileSaveComplete(status);
+            }
+        });
+    }
+
+    // finish the pending saves, then stop the thread
+    void quit() {
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            CodecLog.d(TAG, "Saver thread join() was interrupted" + ie);
+        }
+    }
+
+    private int write(File outputFile, MediaFormat format, ParameterSets sets,
+                      CircularEncoderBuffer.Snapshot snapshot) {
+        CircularEncoderBuffer.Reader reader = mEncBuffer.newReader();
+        reader.seek(snapshot.startSeq);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        FileOutputStream out = null;
+        int status = CircularEncoder.SAVE_OK;
+        try {
+            out = new FileOutputStream(outputFile);
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(out.getChannel(),
+                    format.getString(MediaFormat.KEY_MIME),
+                    format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT));
+            if (sets != null) {
+                writer.setCodecConfig(sets.getCodecConfig());
+            } else {
+                String[] csdKeys = {"csd-0", "csd-1", "csd-2"};
+                for (String key : csdKeys) {
+                    if (format.containsKey(key)) {
+                        writer.setCodecConfig(format.getByteBuffer(key));
+                    }
+                }
+            }
+
+            while (reader.getPosition() < snapshot.endSeq) {
+                ByteBuffer sample = getSample(mEncBuffer.getMaxPacketSize());
+                if (reader.next(sample, info) != CircularEncoderBuffer.READ_OK) {
+                    // evicted, removeTail() broke the snapshot first
+                    CodecLog.w(TAG, "Lost packets of " + outputFile);
+                    return CircularEncoder.SAVE_OVERRUN;
+                }
+                sample.flip();
+                writer.writeSample(sample, info.flags, info.presentationTimeUs);
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            CodecLog.w(TAG, "Writing " + outputFile + " failed: " + e);
+            status = CircularEncoder.SAVE_IO_ERROR;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    CodecLog.w(TAG, "close " + outputFile + " failed: " + e);
+                    status = CircularEncoder.SAVE_IO_ERROR;
+                }
+            }
+        }
+        return status;
+    }
+
+    private ByteBuffer getSample(int size) {
+        if (mSample == null || mSample.capacity() < size) {
+            mSample = ByteBuffer.allocateDirect(size + size / 4);
+        }
+        mSample.clear();
+        return mSample;
+    }
+}
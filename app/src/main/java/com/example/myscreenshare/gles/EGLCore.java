@@ -20,6 +20,10 @@ public class EGLCore {
 
     public static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
+    // chosen configs of the default display by [recordable][gles version - 2],
+    // eglChooseConfig is slow on some drivers and the answer never changes
+    private static final EGLConfig[][] sConfigCache = new EGLConfig[2][2];
+
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLConfig mEGLConfig = null;
@@ -100,6 +104,18 @@ public class EGLCore {
     }
 
     private EGLConfig getConfig(int flags, int version) {
+        int recordable = (flags & FLAG_RECORDABLE) != 0 ? 1 : 0;
+        synchronized (sConfigCache) {
+            EGLConfig config = sConfigCache[recordable][version - 2];
+            if (config == null) {
+                config = chooseConfig(flags, version);
+                sConfigCache[recordable][version - 2] = config;
+            }
+            return config;
+        }
+    }
+
+    private EGLConfig chooseConfig(int flags, int version) {
         int renderableType = EGL14.EGL_OPENGL_ES2_BIT;
         if (version >= 3) {
             renderableType |= EGLExt.EGL_OPENGL_ES3_BIT_KHR;
@@ -183,6 +199,10 @@ public class EGLCore {
         return eglSurface;
     }
 
+    public void releaseSurface(EGLSurface eglSurface) {
+        EGL14.eglDestroySurface(mEGLDisplay, eglSurface);
+    }
+
     public EGLSurface createOffscreenSurface(int width, int height) {
         int[] surfaceAttrib = {
                 EGL14.EGL_WIDTH, width,
@@ -220,6 +240,13 @@ public class EGLCore {
         }
     }
 
+    public void makeNothingCurrent() {
+        if (!EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT)) {
+            throw new RuntimeException("eglMakeCurrent(none) failed!");
+        }
+    }
+
     public boolean swapBuffers(EGLSurface eglSurface) {
         return EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
     }
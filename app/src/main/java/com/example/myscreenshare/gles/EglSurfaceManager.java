@@ -0,0 +1,132 @@
+package com.example.myscreenshare.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLSurface;
+
+import com.example.myscreenshare.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One recordable EGL context and every surface drawn with it: encoder
+ * inputs, previews, pbuffers. Outputs come and go without another display
+ * init, and they all see the same textures.
+ *
+ * The context belongs to the thread that created the manager, every call
+ * must come from that thread. Programs are compiled once per context and
+ * kept here. release() deletes the programs, destroys the surfaces, newest
+ * first, then the context.
+ */
+public class EglSurfaceManager {
+    public static final String TAG = "EglSurfaceManager";
+
+    private final EGLCore mEglCore;
+    private final Thread mOwner;
+    private final List<EGLSurface> mSurfaces = new ArrayList<>();
+    private final Texture2dProgram[] mPrograms = new Texture2dProgram[Texture2dProgram.TYPE_COUNT];
+
+    // what is current, so switching to it again costs nothing
+    private EGLSurface mCurrentDraw = EGL14.EGL_NO_SURFACE;
+    private EGLSurface mCurrentRead = EGL14.EGL_NO_SURFACE;
+
+    // flags as EGLCore takes them, FLAG_RECORDABLE is always added
+    public EglSurfaceManager(int flags) {
+        mEglCore = new EGLCore(null, flags | EGLCore.FLAG_RECORDABLE);
+        mOwner = Thread.currentThread();
+    }
+
+    public EGLSurface createWindowSurface(Object surface) {
+        checkThread();
+        EGLSurface eglSurface = mEglCore.createWindowSurface(surface);
+        mSurfaces.add(eglSurface);
+        return eglSurface;
+    }
+
+    public EGLSurface createOffscreenSurface(int width, int height) {
+        checkThread();
+        EGLSurface eglSurface = mEglCore.createOffscreenSurface(width, height);
+        mSurfaces.add(eglSurface);
+        return eglSurface;
+    }
+
+    public void releaseSurface(EGLSurface eglSurface) {
+        checkThread();
+        if (!mSurfaces.remove(eglSurface)) {
+            throw new RuntimeException("Not a surface of this manager: " + eglSurface);
+        }
+        if (eglSurface == mCurrentDraw || eglSurface == mCurrentRead) {
+            makeNothingCurrent();
+        }
+        mEglCore.releaseSurface(eglSurface);
+    }
+
+    // one of Texture2dProgram.TYPE_*, compiled on first use, needs a surface current
+    public Texture2dProgram getProgram(int type) {
+        checkThread();
+        Texture2dProgram program = mPrograms[type];
+        if (program == null) {
+            program = new Texture2dProgram(type);
+            mPrograms[type] = program;
+        }
+        return program;
+    }
+
+    public int getSurfaceCount() {
+        return mSurfaces.size();
+    }
+
+    public void makeCurrent(EGLSurface surface) {
+        makeCurrent(surface, surface);
+    }
+
+    public void makeCurrent(EGLSurface drawSurface, EGLSurface readSurface) {
+        checkThread();
+        if (drawSurface == mCurrentDraw && readSurface == mCurrentRead) {
+            return;
+        }
+        mEglCore.makeCurrent(drawSurface, readSurface);
+        mCurrentDraw = drawSurface;
+        mCurrentRead = readSurface;
+    }
+
+    public void makeNothingCurrent() {
+        checkThread();
+        mEglCore.makeNothingCurrent();
+        mCurrentDraw = EGL14.EGL_NO_SURFACE;
+        mCurrentRead = EGL14.EGL_NO_SURFACE;
+    }
+
+    public boolean swapBuffers(EGLSurface surface) {
+        return mEglCore.swapBuffers(surface);
+    }
+
+    public void setPresentationTime(EGLSurface surface, long nsecs) {
+        mEglCore.setPresentationTime(surface, nsecs);
+    }
+
+    public void release() {
+        checkThread();
+        LogUtil.d(TAG, "release " + mSurfaces.size() + " surfaces");
+        // GL objects go while the context is still current
+        for (int i = 0; i < mPrograms.length; i++) {
+            if (mPrograms[i] != null) {
+                mPrograms[i].release();
+                mPrograms[i] = null;
+            }
+        }
+        makeNothingCurrent();
+        for (int i = mSurfaces.size() - 1; i >= 0; i--) {
+            mEglCore.releaseSurface(mSurfaces.get(i));
+        }
+        mSurfaces.clear();
+        mEglCore.release();
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != mOwner) {
+            throw new RuntimeException("EGL context belongs to " + mOwner.getName() +
+                    ", called from " + Thread.currentThread().getName());
+        }
+    }
+}
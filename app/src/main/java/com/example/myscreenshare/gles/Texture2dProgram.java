@@ -1,6 +1,227 @@
 package com.example.myscreenshare.gles;
 
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Draws an external OES texture, e.g. the one behind the VirtualDisplay
+ * SurfaceTexture, into the viewport. Must be created and used on the
+ * thread that has the EGL context current; EglSurfaceManager.getProgram()
+ * keeps one of each type per context.
+ *
+ * The quad lives in a VBO and the locations are looked up at link time, a
+ * draw is a handful of GL calls and allocates nothing.
+ */
 public class Texture2dProgram {
+    public static final String TAG = "Texture2dProgram";
+
+    // the program family
+    public static final int TYPE_PLAIN = 0; // texture fills the viewport
+    public static final int TYPE_MVP = 1; // quad placed, scaled and rotated by a matrix
+    public static final int TYPE_CROPPED = 2; // MVP plus a crop of the texture
+    public static final int TYPE_COUNT = 3;
+
+    // for draws without an MVP matrix
+    private static final float[] IDENTITY = {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f
+    };
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private static final String VERTEX_SHADER_MVP =
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    // crop is offset.xy and scale.zw in texture coordinates
+    private static final String VERTEX_SHADER_CROP =
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uTexMatrix;\n" +
+            "uniform vec4 uCrop;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vec4 tc = vec4(uCrop.xy + aTextureCoord.xy * uCrop.zw, 0.0, 1.0);\n" +
+            "    vTextureCoord = (uTexMatrix * tc).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_EXT =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    // triangle strip over the full viewport, x, y, s, t interleaved
+    private static final float[] FULL_RECT = {
+            -1.0f, -1.0f, 0.0f, 0.0f,
+            1.0f, -1.0f, 1.0f, 0.0f,
+            -1.0f, 1.0f, 0.0f, 1.0f,
+            1.0f, 1.0f, 1.0f, 1.0f
+    };
+    private static final int COORDS_PER_VERTEX = 2;
+    private static final int VERTEX_STRIDE = 2 * COORDS_PER_VERTEX * GLESUtil.SIZEOF_FLOAT;
+    private static final int TEX_COORD_OFFSET = COORDS_PER_VERTEX * GLESUtil.SIZEOF_FLOAT;
+    private static final int VERTEX_COUNT = 4;
+
+    private final int mType;
+    private int mProgramHandle;
+    private int mVertexBuffer;
+    private final int muMVPMatrixLoc;
+    private final int muTexMatrixLoc;
+    private final int muCropLoc;
+    private final int maPositionLoc;
+    private final int maTextureCoordLoc;
+
+    // full texture
+    private float mCropX = 0f;
+    private float mCropY = 0f;
+    private float mCropWidth = 1f;
+    private float mCropHeight = 1f;
+
+    public Texture2dProgram() {
+        this(TYPE_PLAIN);
+    }
+
+    public Texture2dProgram(int type) {
+        mType = type;
+        String vertexShader;
+        switch (type) {
+            case TYPE_PLAIN:
+                vertexShader = VERTEX_SHADER;
+                break;
+            case TYPE_MVP:
+                vertexShader = VERTEX_SHADER_MVP;
+                break;
+            case TYPE_CROPPED:
+                vertexShader = VERTEX_SHADER_CROP;
+                break;
+            default:
+                throw new RuntimeException("Unknown program type " + type);
+        }
+        mProgramHandle = GLESUtil.createProgram(vertexShader, FRAGMENT_SHADER_EXT);
+        if (mProgramHandle == 0) {
+            throw new RuntimeException("Unable to create program");
+        }
+        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        // -1 for the types without them
+        muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
+        muCropLoc = GLES20.glGetUniformLocation(mProgramHandle, "uCrop");
+
+        FloatBuffer rect = GLESUtil.createFloatBuffer(FULL_RECT);
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mVertexBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FULL_RECT.length * GLESUtil.SIZEOF_FLOAT,
+                rect, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLESUtil.checkGlError("glBufferData");
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public void release() {
+        GLES20.glDeleteBuffers(1, new int[]{mVertexBuffer}, 0);
+        GLES20.glDeleteProgram(mProgramHandle);
+        mProgramHandle = -1;
+        mVertexBuffer = 0;
+    }
+
+    // TYPE_CROPPED only, the part of the texture to draw, all in 0..1
+    public void setCrop(float x, float y, float width, float height) {
+        mCropX = x;
+        mCropY = y;
+        mCropWidth = width;
+        mCropHeight = height;
+    }
+
+    // texture for a SurfaceTexture, the producer fills it
+    public int createTextureObject() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLESUtil.checkGlError("glGenTextures");
+
+        int texId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
+        GLESUtil.checkGlError("glBindTexture " + texId);
+
+        // linear both ways, simulcast renditions are downscaled from it
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLESUtil.checkGlError("glTexParameter");
+
+        return texId;
+    }
+
+    // texMatrix comes from SurfaceTexture.getTransformMatrix()
+    public void draw(float[] texMatrix, int textureId) {
+        draw(null, texMatrix, textureId);
+    }
+
+    // mvpMatrix places the quad, ignored by TYPE_PLAIN, null is identity
+    public void draw(float[] mvpMatrix, float[] texMatrix, int textureId) {
+        GLES20.glUseProgram(mProgramHandle);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        if (muMVPMatrixLoc >= 0) {
+            GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false,
+                    mvpMatrix != null ? mvpMatrix : IDENTITY, 0);
+        }
+        if (muCropLoc >= 0) {
+            GLES20.glUniform4f(muCropLoc, mCropX, mCropY, mCropWidth, mCropHeight);
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glVertexAttribPointer(maPositionLoc, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, TEX_COORD_OFFSET);
 
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
 
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glUseProgram(0);
+    }
 }
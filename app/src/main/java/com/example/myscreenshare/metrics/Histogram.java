@@ -0,0 +1,95 @@
+package com.example.myscreenshare.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket histogram. record() is lock-free and allocates nothing, any
+ * thread may call it. Bucket i counts values <= bounds[i] and > bounds[i - 1],
+ * the last bucket takes everything above the last bound.
+ */
+public class Histogram {
+
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    // bounds must be ascending
+    public Histogram(long... bounds) {
+        mBounds = bounds.clone();
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        // few buckets, a linear scan beats a binary search here
+        int i = 0;
+        while (i < mBounds.length && value > mBounds[i]) {
+            i++;
+        }
+        mCounts.incrementAndGet(i);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // lost against another writer, retry
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        long max = mMax.get();
+        return new Snapshot(mBounds, counts, mCount.get(), mSum.get(),
+                max == Long.MIN_VALUE ? 0 : max);
+    }
+
+    // Values of a Histogram at one point in time, the fields are read one by
+    // one, so a snapshot taken while recording may be off by a few values.
+    public static class Snapshot {
+        public final long[] bounds;
+        public final long[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Snapshot(long[] bounds, long[] counts, long count, long sum, long max) {
+            this.bounds = bounds;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        // upper bound of the bucket holding the given fraction of the values,
+        // max for the overflow bucket
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i < bounds.length ? Math.min(bounds[i], max) : max;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + mean() + " p50=" + percentile(0.5) +
+                    " p95=" + percentile(0.95) + " max=" + max;
+        }
+    }
+}
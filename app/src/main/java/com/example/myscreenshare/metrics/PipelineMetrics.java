@@ -0,0 +1,216 @@
+package com.example.myscreenshare.metrics;
+
+import com.example.myscreenshare.util.Clock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the capture pipeline, from the virtual display to the encoder
+ * ring. Recording is lock-free and allocation free so it can sit on the
+ * per-frame path of any thread, readers poll snapshot().
+ */
+public class PipelineMetrics {
+
+    // capture to encoded latency buckets, usec
+    private static final long[] LATENCY_BOUNDS = {
+            1000, 2000, 5000, 10000, 16667, 33333, 50000, 100000, 200000, 500000};
+    // key frame interval buckets, usec
+    private static final long[] KEY_FRAME_BOUNDS = {
+            500000, 1000000, 2000000, 5000000, 10000000, 30000000, 60000000};
+    // the usual fixed GOP, the baseline of the on demand key frames
+    public static final long FIXED_KEY_FRAME_USEC = 1000000;
+
+    private final Clock mClock;
+
+    private final AtomicLong mFramesCaptured = new AtomicLong();
+    private final AtomicLong mFramesEncoded = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mBytesEncoded = new AtomicLong();
+    private final AtomicLong mKeyFrames = new AtomicLong();
+    private final AtomicLong mKeyFrameBytes = new AtomicLong();
+    private final AtomicLong mKeyFrameRequests = new AtomicLong();
+    private final AtomicLong mKeyFramesForced = new AtomicLong();
+    private final Histogram mLatencyUsec = new Histogram(LATENCY_BOUNDS);
+    private final Histogram mKeyFrameIntervalUsec = new Histogram(KEY_FRAME_BOUNDS);
+
+    // ring gauges, written by the encoder thread only
+    private volatile long mRingBytes;
+    private volatile long mRingPackets;
+    private volatile long mRingSpanUsec;
+    private volatile long mEvictions;
+    private long mLastKeyFramePtsUsec = -1;
+    private volatile long mFirstPtsUsec = -1;
+    private volatile long mLastPtsUsec = -1;
+
+    // idle screen, written by the render thread only
+    private volatile long mIdleSinceNanos = -1;
+    private volatile long mIdleNanos;
+    private volatile long mIdleEnterCount;
+    private final AtomicLong mIdleKeyFrames = new AtomicLong();
+    // what the encoder is configured for, the baseline of bytes saved
+    private volatile long mConfiguredKeyFrameUsec;
+
+    // for bytes/s between two snapshots
+    private long mLastSnapshotNanos;
+    private long mLastSnapshotBytes;
+
+    public PipelineMetrics(Clock clock) {
+        mClock = clock;
+        mLastSnapshotNanos = clock.nanoTime();
+    }
+
+    // a frame arrived from the virtual display
+    public void onFrameCaptured() {
+        mFramesCaptured.incrementAndGet();
+    }
+
+    // a captured frame never reached the encoder
+    public void onFrameDropped() {
+        mFramesDropped.incrementAndGet();
+    }
+
+    // encoder thread, one packet of encoded output
+    public void onFrameEncoded(int bytes, long latencyUsec, boolean keyFrame, long ptsUsec) {
+        mFramesEncoded.incrementAndGet();
+        mBytesEncoded.addAndGet(bytes);
+        mLatencyUsec.record(latencyUsec);
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+        }
+        mLastPtsUsec = ptsUsec;
+        if (keyFrame) {
+            mKeyFrames.incrementAndGet();
+            mKeyFrameBytes.addAndGet(bytes);
+            if (mIdleSinceNanos >= 0) {
+                mIdleKeyFrames.incrementAndGet();
+            }
+            if (mLastKeyFramePtsUsec >= 0) {
+                mKeyFrameIntervalUsec.record(ptsUsec - mLastKeyFramePtsUsec);
+            }
+            mLastKeyFramePtsUsec = ptsUsec;
+        }
+    }
+
+    // encoder thread, someone asked for a key frame
+    public void onKeyFrameRequested() {
+        mKeyFrameRequests.incrementAndGet();
+    }
+
+    // encoder thread, the codec was asked for one, after coalescing
+    public void onKeyFrameForced() {
+        mKeyFramesForced.incrementAndGet();
+    }
+
+    // render thread, the screen stopped changing or changed again
+    public void onIdleChanged(boolean idle) {
+        long now = mClock.nanoTime();
+        if (idle && mIdleSinceNanos < 0) {
+            mIdleEnterCount++;
+            mIdleSinceNanos = now;
+        } else if (!idle && mIdleSinceNanos >= 0) {
+            mIdleNanos += now - mIdleSinceNanos;
+            mIdleSinceNanos = -1;
+        }
+    }
+
+    public void setKeyFrameIntervalUsec(long intervalUsec) {
+        mConfiguredKeyFrameUsec = intervalUsec;
+    }
+
+    // encoder thread, after the ring changed
+    public void setRing(long bytes, long packets, long spanUsec, long evictions) {
+        mRingBytes = bytes;
+        mRingPackets = packets;
+        mRingSpanUsec = spanUsec;
+        mEvictions = evictions;
+    }
+
+    // Bytes/s is measured since the previous snapshot, so there should be
+    // one poller, e.g. the UI.
+    public synchronized Snapshot snapshot() {
+        long now = mClock.nanoTime();
+        long bytes = mBytesEncoded.get();
+        long elapsed = now - mLastSnapshotNanos;
+        long bytesPerSec = elapsed > 0 ? (bytes - mLastSnapshotBytes) * 1000000000L / elapsed : 0;
+        mLastSnapshotNanos = now;
+        mLastSnapshotBytes = bytes;
+        return new Snapshot(this, now, bytes, bytesPerSec);
+    }
+
+    public static class Snapshot {
+        public final long timeNanos;
+        public final long framesCaptured;
+        public final long framesEncoded;
+        public final long framesDropped;
+        public final long bytesEncoded;
+        public final long bytesPerSec;
+        public final Histogram.Snapshot latencyUsec;
+        public final long ringBytes;
+        public final long ringPackets;
+        public final long ringSpanUsec;
+        public final long evictions;
+        public final long keyFrames;
+        public final Histogram.Snapshot keyFrameIntervalUsec;
+        public final boolean idle;
+        public final long idleEnterCount;
+        public final long idleTimeUsec;
+        // key frames the configured interval would have spent on a still
+        // screen, at the average key frame size
+        public final long idleBytesSaved;
+        public final long keyFrameRequests;
+        public final long keyFramesForced;
+        // Key frames a FIXED_KEY_FRAME_USEC GOP would have spent over the
+        // encoded time, at what a key frame costs over a delta frame.
+        public final long keyFrameBytesSaved;
+
+        private Snapshot(PipelineMetrics m, long now, long bytes, long bytesPerSec) {
+            timeNanos = now;
+            framesCaptured = m.mFramesCaptured.get();
+            framesEncoded = m.mFramesEncoded.get();
+            framesDropped = m.mFramesDropped.get();
+            bytesEncoded = bytes;
+            this.bytesPerSec = bytesPerSec;
+            latencyUsec = m.mLatencyUsec.snapshot();
+            ringBytes = m.mRingBytes;
+            ringPackets = m.mRingPackets;
+            ringSpanUsec = m.mRingSpanUsec;
+            evictions = m.mEvictions;
+            keyFrames = m.mKeyFrames.get();
+            keyFrameIntervalUsec = m.mKeyFrameIntervalUsec.snapshot();
+
+            long idleSince = m.mIdleSinceNanos;
+            idle = idleSince >= 0;
+            idleEnterCount = m.mIdleEnterCount;
+            idleTimeUsec = (m.mIdleNanos + (idle ? now - idleSince : 0)) / 1000;
+            long interval = m.mConfiguredKeyFrameUsec;
+            long avoided = interval > 0 ? idleTimeUsec / interval - m.mIdleKeyFrames.get() : 0;
+            idleBytesSaved = avoided > 0 && keyFrames > 0 ?
+                    avoided * (m.mKeyFrameBytes.get() / keyFrames) : 0;
+
+            keyFrameRequests = m.mKeyFrameRequests.get();
+            keyFramesForced = m.mKeyFramesForced.get();
+            long keyFrameBytes = m.mKeyFrameBytes.get();
+            long deltaFrames = framesEncoded - keyFrames;
+            long first = m.mFirstPtsUsec;
+            long fixed = first >= 0 ? (m.mLastPtsUsec - first) / FIXED_KEY_FRAME_USEC + 1 : 0;
+            long extraCost = keyFrames > 0 && deltaFrames > 0 ? keyFrameBytes / keyFrames -
+                    (bytes - keyFrameBytes) / deltaFrames : 0;
+            keyFrameBytesSaved = fixed > keyFrames && extraCost > 0 ?
+                    (fixed - keyFrames) * extraCost : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "frames captured=" + framesCaptured + " encoded=" + framesEncoded +
+                    " dropped=" + framesDropped + ", " + bytesPerSec + " B/s" +
+                    ", latency(us) " + latencyUsec +
+                    ", ring " + ringBytes + " B / " + ringPackets + " packets / " +
+                    ringSpanUsec / 1000 + " ms, evictions=" + evictions +
+                    ", key frames=" + keyFrames + " interval(us) " + keyFrameIntervalUsec +
+                    ", idle=" + idle + " x" + idleEnterCount + " " + idleTimeUsec / 1000 +
+                    " ms, saved " + idleBytesSaved + " B" +
+                    ", key frame requests=" + keyFrameRequests + " forced=" + keyFramesForced +
+                    ", saved vs fixed GOP " + keyFrameBytesSaved + " B";
+        }
+    }
+}
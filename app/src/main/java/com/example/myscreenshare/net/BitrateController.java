@@ -0,0 +1,467 @@
+package com.example.myscreenshare.net;
+
+import com.example.myscreenshare.util.Clock;
+
+/**
+ * Sender side congestion control for the live encoder, after Google
+ * Congestion Control (draft-ietf-rmcat-gcc). Two signals:
+ *
+ * Delay gradient: for every frame the receiver reports when it arrived,
+ * the send time is known here. The growth of arrival minus send deltas is
+ * smoothed and a least squares trend over the last frames is compared to an
+ * adaptive threshold. A rising trend means a queue is building somewhere
+ * on the path, before any packet is lost.
+ *
+ * Loss: above 10% per report the target is cut by half the loss, between
+ * 2% and 10% it is held.
+ *
+ * The target follows AIMD: multiplicative increase of 8% per second while
+ * far from the last known capacity, additive near it, and on overuse 0.85
+ * of what the receiver actually got. It never runs far ahead of the
+ * received rate, so a still screen that sends little doesn't build up a
+ * target it can't back. When the target sits at the floor and the path is
+ * still congested, the degradation level goes up (fewer frames), and back
+ * down after a long quiet time.
+ *
+ * Pure state machine, all times from the clock, so recorded traces can be
+ * replayed in tests. Not thread safe, the feedback thread only.
+ */
+public class BitrateController {
+
+    public static final int STATE_HOLD = 0;
+    public static final int STATE_INCREASE = 1;
+    public static final int STATE_DECREASE = 2;
+
+    public static final int SIGNAL_NORMAL = 0;
+    public static final int SIGNAL_OVERUSE = 1;
+    public static final int SIGNAL_UNDERUSE = 2;
+
+    public static final int MAX_DEGRADATION = 2;
+    // no report for this long and the path counts as gone
+    public static final long FEEDBACK_TIMEOUT_NANOS = 1000000000L;
+
+    private static final int TREND_WINDOW = 20;
+    private static final double SMOOTHING = 0.9;
+    private static final double TREND_GAIN = 4;
+    private static final double INITIAL_THRESHOLD_MS = 12.5;
+    private static final double MIN_THRESHOLD_MS = 6;
+    private static final double MAX_THRESHOLD_MS = 600;
+    private static final double THRESHOLD_UP = 0.0087;
+    private static final double THRESHOLD_DOWN = 0.039;
+    private static final double OVERUSE_TIME_MS = 10;
+
+    private static final double BETA = 0.85;
+    private static final double INCREASE_PER_SECOND = 1.08;
+    // one 1200 byte packet per 200 ms response time
+    private static final int ADDITIVE_BPS_PER_SECOND = 48000;
+    private static final long RATE_WINDOW_NANOS = 500000000L;
+    private static final int RATE_SAMPLES = 256;
+    private static final double LOSS_HIGH = 0.10;
+    private static final double LOSS_LOW = 0.02;
+    private static final long LOSS_DECREASE_INTERVAL_NANOS = 300000000L;
+    private static final long DEGRADE_AFTER_NANOS = 2000000000L;
+    private static final long RESTORE_AFTER_NANOS = 10000000000L;
+    private static final int RESTORE_FACTOR = 2;
+
+    public interface Listener {
+        // bitRate in bits per second, degradation 0 up to MAX_DEGRADATION
+        void onTargetChanged(int bitRate, int degradation);
+    }
+
+    private final Clock mClock;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final Listener mListener;
+
+    // delay gradient, in milliseconds
+    private boolean mHaveFrame;
+    private long mLastSendNanos;
+    private long mLastArrivalNanos;
+    private long mFirstArrivalNanos;
+    private double mAccumulatedDelay;
+    private double mSmoothedDelay;
+    private final double[] mTrendX = new double[TREND_WINDOW];
+    private final double[] mTrendY = new double[TREND_WINDOW];
+    private int mTrendCount;
+    private int mDeltaCount;
+    private double mTrend;
+    private double mPrevTrend;
+    private double mThreshold = INITIAL_THRESHOLD_MS;
+    private double mOveruseTime = -1;
+    private int mOveruseCount;
+    private int mSignal = SIGNAL_NORMAL;
+
+    // received rate over the last RATE_WINDOW_NANOS of arrivals
+    private final long[] mRateArrival = new long[RATE_SAMPLES];
+    private final int[] mRateBytes = new int[RATE_SAMPLES];
+    private int mRateHead;
+    private int mRateCount;
+
+    private int mState = STATE_INCREASE;
+    private double mTarget;
+    private long mLastUpdateNanos = -1;
+    private long mLastFeedbackNanos;
+    private long mLastLossDecreaseNanos = Long.MIN_VALUE / 2;
+    // received rate at the decreases, kbps, -1 while unknown
+    private double mCapacityKbps = -1;
+    private double mCapacityVar = 0.4;
+
+    private int mDegradation;
+    private long mCongestedSinceNanos = -1;
+    private long mLastCongestionNanos;
+    private int mNotifiedBitRate;
+    private int mNotifiedDegradation;
+
+    private long mOveruseCountTotal;
+    private long mLossDecreaseCount;
+
+    public BitrateController(Clock clock, int startBitRate, int minBitRate, int maxBitRate,
+                             Listener listener) {
+        if (minBitRate <= 0 || minBitRate > maxBitRate) {
+            throw new RuntimeException("Invalid bit rate range: " + minBitRate + " - " +
+                    maxBitRate);
+        }
+        mClock = clock;
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mListener = listener;
+        mTarget = clamp(startBitRate);
+        mNotifiedBitRate = (int) mTarget;
+        mLastFeedbackNanos = clock.nanoTime();
+        mLastCongestionNanos = mLastFeedbackNanos;
+    }
+
+    // One frame the receiver got: when its last packet was sent, on this
+    // clock, and when it arrived, on the receiver's. Only differences of
+    // either are used. Frames must come in send order.
+    public void onDelivered(long sendNanos, long arrivalNanos, int bytes) {
+        addRateSample(arrivalNanos, bytes);
+        if (!mHaveFrame) {
+            mHaveFrame = true;
+            mFirstArrivalNanos = arrivalNanos;
+            mLastSendNanos = sendNanos;
+            mLastArrivalNanos = arrivalNanos;
+            return;
+        }
+        double sendDelta = (sendNanos - mLastSendNanos) / 1e6;
+        double arrivalDelta = (arrivalNanos - mLastArrivalNanos) / 1e6;
+        if (sendDelta < 0) {
+            // out of order, nothing to learn
+            return;
+        }
+        mLastSendNanos = sendNanos;
+        mLastArrivalNanos = arrivalNanos;
+        mDeltaCount++;
+        mAccumulatedDelay += arrivalDelta - sendDelta;
+        mSmoothedDelay = SMOOTHING * mSmoothedDelay + (1 - SMOOTHING) * mAccumulatedDelay;
+
+        if (mTrendCount == TREND_WINDOW) {
+            System.arraycopy(mTrendX, 1, mTrendX, 0, TREND_WINDOW - 1);
+            System.arraycopy(mTrendY, 1, mTrendY, 0, TREND_WINDOW - 1);
+            mTrendCount--;
+        }
+        mTrendX[mTrendCount] = (arrivalNanos - mFirstArrivalNanos) / 1e6;
+        mTrendY[mTrendCount] = mSmoothedDelay;
+        mTrendCount++;
+        if (mTrendCount == TREND_WINDOW) {
+            mTrend = slope();
+        }
+        detect(sendDelta);
+    }
+
+    // Ends one receiver report: expected and lost packets since the last
+    // one. Updates the target.
+    public void onReport(long expected, long lost) {
+        long now = mClock.nanoTime();
+        mLastFeedbackNanos = now;
+        double loss = expected > 0 ? Math.max(0, lost) / (double) expected : 0;
+        int receivedBps = getReceivedBitRate();
+        boolean congested = mSignal == SIGNAL_OVERUSE;
+
+        updateDelayBased(now, receivedBps, loss < LOSS_LOW);
+        if (loss > LOSS_HIGH) {
+            congested = true;
+            if (now - mLastLossDecreaseNanos >= LOSS_DECREASE_INTERVAL_NANOS) {
+                mLastLossDecreaseNanos = now;
+                mTarget = clamp(mTarget * (1 - 0.5 * loss));
+                mLossDecreaseCount++;
+            }
+        }
+        updateDegradation(now, congested);
+        notifyListener();
+    }
+
+    // Without any report the path may be gone: halve the target once per
+    // timeout. Call it now and then, e.g. on an idle feedback thread.
+    public void onTick() {
+        long now = mClock.nanoTime();
+        if (now - mLastFeedbackNanos < FEEDBACK_TIMEOUT_NANOS) {
+            return;
+        }
+        mLastFeedbackNanos = now;
+        mTarget = clamp(mTarget / 2);
+        mState = STATE_HOLD;
+        mLastUpdateNanos = now;
+        updateDegradation(now, true);
+        notifyListener();
+    }
+
+    private void detect(double sendDelta) {
+        double modified = Math.min(mDeltaCount, 60) * mTrend * TREND_GAIN;
+        if (mTrendCount < TREND_WINDOW) {
+            mSignal = SIGNAL_NORMAL;
+        } else if (modified > mThreshold) {
+            if (mOveruseTime < 0) {
+                mOveruseTime = sendDelta / 2;
+            } else {
+                mOveruseTime += sendDelta;
+            }
+            mOveruseCount++;
+            if (mOveruseTime > OVERUSE_TIME_MS && mOveruseCount > 1 && mTrend >= mPrevTrend) {
+                mOveruseTime = 0;
+                mOveruseCount = 0;
+                mSignal = SIGNAL_OVERUSE;
+            }
+        } else if (modified < -mThreshold) {
+            mOveruseTime = -1;
+            mOveruseCount = 0;
+            mSignal = SIGNAL_UNDERUSE;
+        } else {
+            mOveruseTime = -1;
+            mOveruseCount = 0;
+            mSignal = SIGNAL_NORMAL;
+        }
+        mPrevTrend = mTrend;
+        adaptThreshold(modified, sendDelta);
+    }
+
+    // grows slowly on large trends and shrinks fast, so neither a competing
+    // TCP flow nor noise keeps the detector from firing for long
+    private void adaptThreshold(double modified, double deltaMs) {
+        double abs = Math.abs(modified);
+        if (abs > mThreshold + 15) {
+            // a spike, e.g. a route change
+            return;
+        }
+        double k = abs < mThreshold ? THRESHOLD_DOWN : THRESHOLD_UP;
+        mThreshold += k * (abs - mThreshold) * Math.min(deltaMs, 100);
+        mThreshold = Math.max(MIN_THRESHOLD_MS, Math.min(MAX_THRESHOLD_MS, mThreshold));
+    }
+
+    private double slope() {
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < mTrendCount; i++) {
+            sumX += mTrendX[i];
+            sumY += mTrendY[i];
+        }
+        double meanX = sumX / mTrendCount;
+        double meanY = sumY / mTrendCount;
+        double num = 0;
+        double den = 0;
+        for (int i = 0; i < mTrendCount; i++) {
+            double dx = mTrendX[i] - meanX;
+            num += dx * (mTrendY[i] - meanY);
+            den += dx * dx;
+        }
+        return den == 0 ? mTrend : num / den;
+    }
+
+    private void updateDelayBased(long now, int receivedBps, boolean mayIncrease) {
+        double seconds = mLastUpdateNanos < 0 ? 0 : (now - mLastUpdateNanos) / 1e9;
+        mLastUpdateNanos = now;
+        switch (mSignal) {
+            case SIGNAL_OVERUSE:
+                mState = STATE_DECREASE;
+                break;
+            case SIGNAL_UNDERUSE:
+                // the queues drain, don't add to them yet
+                mState = STATE_HOLD;
+                return;
+            default:
+                if (mState != STATE_INCREASE) {
+                    mState = STATE_INCREASE;
+                    // from the next report on
+                    return;
+                }
+                break;
+        }
+
+        if (mState == STATE_DECREASE) {
+            double decreased = BETA * (receivedBps > 0 ? receivedBps : mTarget);
+            if (decreased < mTarget) {
+                mTarget = clamp(decreased);
+            }
+            if (receivedBps > 0) {
+                updateCapacity(receivedBps / 1000.0);
+            }
+            // one decrease per overuse
+            mSignal = SIGNAL_NORMAL;
+            mState = STATE_HOLD;
+            mOveruseCountTotal++;
+            return;
+        }
+
+        if (!mayIncrease) {
+            return;
+        }
+        double targetKbps = mTarget / 1000;
+        if (mCapacityKbps >= 0 && targetKbps > mCapacityKbps + capacityDeviation()) {
+            // well above the old capacity, it has grown
+            mCapacityKbps = -1;
+        }
+        double increased;
+        if (mCapacityKbps >= 0 && targetKbps > mCapacityKbps - capacityDeviation()) {
+            increased = mTarget + ADDITIVE_BPS_PER_SECOND * seconds;
+        } else {
+            increased = mTarget * Math.pow(INCREASE_PER_SECOND, seconds);
+        }
+        if (receivedBps > 0) {
+            // not much beyond what is actually sent
+            increased = Math.min(increased, 1.5 * receivedBps + 10000);
+        }
+        mTarget = Math.max(mTarget, clamp(increased));
+    }
+
+    // three standard deviations
+    private double capacityDeviation() {
+        return 3 * Math.sqrt(mCapacityVar * mCapacityKbps);
+    }
+
+    // average and variance of the rate at the decreases, normalized by it
+    private void updateCapacity(double kbps) {
+        if (mCapacityKbps >= 0 && kbps < mCapacityKbps - capacityDeviation()) {
+            // the link got slower, start over
+            mCapacityKbps = -1;
+        }
+        if (mCapacityKbps < 0) {
+            mCapacityKbps = kbps;
+        } else {
+            mCapacityKbps = 0.95 * mCapacityKbps + 0.05 * kbps;
+        }
+        double norm = Math.max(mCapacityKbps, 1);
+        double error = mCapacityKbps - kbps;
+        mCapacityVar = 0.95 * mCapacityVar + 0.05 * error * error / norm;
+        mCapacityVar = Math.max(0.4, Math.min(2.5, mCapacityVar));
+    }
+
+    private void updateDegradation(long now, boolean congested) {
+        if (congested) {
+            mLastCongestionNanos = now;
+        }
+        if (congested && mTarget <= mMinBitRate) {
+            if (mCongestedSinceNanos < 0) {
+                mCongestedSinceNanos = now;
+            } else if (now - mCongestedSinceNanos >= DEGRADE_AFTER_NANOS &&
+                    mDegradation < MAX_DEGRADATION) {
+                mDegradation++;
+                mCongestedSinceNanos = now;
+            }
+            return;
+        }
+        if (!congested) {
+            mCongestedSinceNanos = -1;
+        }
+        if (mDegradation > 0 && mTarget >= RESTORE_FACTOR * mMinBitRate &&
+                now - mLastCongestionNanos >= RESTORE_AFTER_NANOS) {
+            mDegradation--;
+            // the next step waits as long again
+            mLastCongestionNanos = now;
+        }
+    }
+
+    private void addRateSample(long arrivalNanos, int bytes) {
+        mRateArrival[mRateHead] = arrivalNanos;
+        mRateBytes[mRateHead] = bytes;
+        mRateHead = (mRateHead + 1) % RATE_SAMPLES;
+        if (mRateCount < RATE_SAMPLES) {
+            mRateCount++;
+        }
+    }
+
+    // bits per second the receiver got over the last arrivals, 0 if unknown
+    public int getReceivedBitRate() {
+        if (mRateCount < 2) {
+            return 0;
+        }
+        int newest = (mRateHead + RATE_SAMPLES - 1) % RATE_SAMPLES;
+        long newestNanos = mRateArrival[newest];
+        long bytes = 0;
+        long oldestNanos = newestNanos;
+        for (int i = 1; i < mRateCount; i++) {
+            int slot = (newest + RATE_SAMPLES - i) % RATE_SAMPLES;
+            if (newestNanos - mRateArrival[slot] > RATE_WINDOW_NANOS) {
+                break;
+            }
+            // the bytes of the oldest one arrived before the window
+            bytes += mRateBytes[(slot + 1) % RATE_SAMPLES];
+            oldestNanos = mRateArrival[slot];
+        }
+        long span = newestNanos - oldestNanos;
+        if (span < RATE_WINDOW_NANOS / 5) {
+            return 0;
+        }
+        return (int) (bytes * 8 * 1000000000L / span);
+    }
+
+    private double clamp(double bitRate) {
+        return Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+
+    // only steps of 5% or more are worth a codec parameter change
+    private void notifyListener() {
+        int bitRate = (int) mTarget;
+        boolean changed = mDegradation != mNotifiedDegradation ||
+                Math.abs(bitRate - mNotifiedBitRate) * 20L >= mNotifiedBitRate ||
+                (bitRate != mNotifiedBitRate &&
+                        (bitRate == mMinBitRate || bitRate == mMaxBitRate));
+        if (!changed) {
+            return;
+        }
+        mNotifiedBitRate = bitRate;
+        mNotifiedDegradation = mDegradation;
+        if (mListener != null) {
+            mListener.onTargetChanged(bitRate, mDegradation);
+        }
+    }
+
+    public int getTargetBitRate() {
+        return (int) mTarget;
+    }
+
+    public int getDegradation() {
+        return mDegradation;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getSignal() {
+        return mSignal;
+    }
+
+    // slope of the smoothed queuing delay, ms per ms of arrivals
+    public double getDelayTrend() {
+        return mTrend;
+    }
+
+    public double getThresholdMs() {
+        return mThreshold;
+    }
+
+    public long getOveruseCount() {
+        return mOveruseCountTotal;
+    }
+
+    public long getLossDecreaseCount() {
+        return mLossDecreaseCount;
+    }
+
+    @Override
+    public String toString() {
+        return "target " + (int) mTarget / 1000 + " kbps, received " +
+                getReceivedBitRate() / 1000 + " kbps, degradation " + mDegradation +
+                ", overuse " + mOveruseCountTotal + ", loss decreases " + mLossDecreaseCount;
+    }
+}
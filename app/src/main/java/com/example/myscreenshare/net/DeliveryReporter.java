@@ -0,0 +1,111 @@
+package com.example.myscreenshare.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver side feedback for the BitrateController: which frames arrived
+ * when, and how many packets were expected and received so far. Written as
+ * an RTCP APP packet (RFC 3550, name "RATE") every REPORT_INTERVAL_NANOS:
+ *
+ *   header, SSRC, "RATE", media SSRC,
+ *   expected packets (32), received packets (32), both since the start,
+ *   then per frame: RTP timestamp (32), arrival in usec (32, wraps).
+ *
+ * A frame counts as arrived with its marker packet, retransmissions and
+ * reordered packets are left out so a late repair doesn't look like a
+ * queue. The counts are cumulative so a lost report only delays them. Not
+ * thread safe, the receiver thread only.
+ */
+public class DeliveryReporter {
+
+    static final int RTCP_APP = 204;
+    static final int NAME = 0x52415445; // "RATE"
+    static final int HEADER_SIZE = 24;
+    static final int ENTRY_SIZE = 8;
+
+    public static final long REPORT_INTERVAL_NANOS = 100000000L;
+    // frames per report, a longer gap keeps the newest
+    public static final int MAX_FRAMES = 32;
+    public static final int MAX_REPORT_SIZE = HEADER_SIZE + MAX_FRAMES * ENTRY_SIZE;
+
+    private final int mSsrc;
+    private final int[] mTimestamp = new int[MAX_FRAMES];
+    private final int[] mArrivalUsec = new int[MAX_FRAMES];
+    private int mFrameCount;
+    private int mFrameHead;
+
+    private boolean mHaveNewest;
+    private int mMediaSsrc;
+    private long mNewest; // extended sequence number
+    private long mFirst;
+    private long mReceived;
+    private boolean mChanged;
+    private long mLastReportNanos;
+    private long mReportCount;
+
+    public DeliveryReporter(int ssrc) {
+        mSsrc = ssrc;
+    }
+
+    // A media packet as it came off the wire, before any reordering.
+    public void onPacket(int sequence, int ssrc, int timestamp, boolean marker, long nowNanos) {
+        mMediaSsrc = ssrc;
+        mReceived++;
+        mChanged = true;
+        if (!mHaveNewest) {
+            mHaveNewest = true;
+            mNewest = sequence;
+            mFirst = sequence;
+            mLastReportNanos = nowNanos;
+        } else {
+            int ahead = (short) (sequence - (int) mNewest);
+            if (ahead <= 0) {
+                // late or a retransmission
+                return;
+            }
+            mNewest += ahead;
+        }
+        if (marker) {
+            int slot = (mFrameHead + mFrameCount) % MAX_FRAMES;
+            if (mFrameCount == MAX_FRAMES) {
+                mFrameHead = (mFrameHead + 1) % MAX_FRAMES;
+            } else {
+                mFrameCount++;
+            }
+            mTimestamp[slot] = timestamp;
+            mArrivalUsec[slot] = (int) (nowNanos / 1000);
+        }
+    }
+
+    // Writes a report into out (from its position) when one is due and
+    // returns true, false writes nothing. out needs MAX_REPORT_SIZE.
+    public boolean poll(long nowNanos, ByteBuffer out) {
+        if (!mChanged || nowNanos - mLastReportNanos < REPORT_INTERVAL_NANOS) {
+            return false;
+        }
+        mChanged = false;
+        mLastReportNanos = nowNanos;
+        int size = HEADER_SIZE + mFrameCount * ENTRY_SIZE;
+        out.put((byte) (RtpPacketizer.RTP_VERSION << 6));
+        out.put((byte) RTCP_APP);
+        out.putShort((short) (size / 4 - 1));
+        out.putInt(mSsrc);
+        out.putInt(NAME);
+        out.putInt(mMediaSsrc);
+        out.putInt((int) (mNewest - mFirst + 1));
+        out.putInt((int) mReceived);
+        for (int i = 0; i < mFrameCount; i++) {
+            int slot = (mFrameHead + i) % MAX_FRAMES;
+            out.putInt(mTimestamp[slot]);
+            out.putInt(mArrivalUsec[slot]);
+        }
+        mFrameCount = 0;
+        mFrameHead = 0;
+        mReportCount++;
+        return true;
+    }
+
+    public long getReportCount() {
+        return mReportCount;
+    }
+}
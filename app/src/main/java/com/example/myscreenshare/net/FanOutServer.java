@@ -0,0 +1,533 @@
+package com.example.myscreenshare.net;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+import com.example.myscreenshare.codec.CodecLog;
+import com.example.myscreenshare.codec.TraceRing;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams one CircularEncoderBuffer to many TCP viewers from a single
+ * selector thread. A viewer is just a Reader on the shared ring: it starts
+ * at the newest key frame, and every packet goes out with a gathering write
+ * of a small header and the ring slices. Nothing is copied per viewer, the
+ * encoder output is encoded and stored once.
+ *
+ * Framing, big endian: int length, int flags, long ptsUsec, then length
+ * bytes. The codec config, if set, goes first with BUFFER_FLAG_CODEC_CONFIG.
+ *
+ * Every viewer has its own pace, nobody waits for the slowest. One that
+ * falls more than the max lag behind, or whose next packet was already
+ * evicted, is fast-forwarded to the newest key frame between two packets.
+ * One whose packet was evicted while half sent has got torn data and is
+ * disconnected.
+ *
+ * The encoder makes key frames on demand: a joining viewer, and one lagging
+ * with no newer key frame to skip to, ask the KeyFrameListener for one.
+ */
+public class FanOutServer implements Closeable {
+    public static final String TAG = "FanOutServer";
+
+    public static final int HEADER_SIZE = 16;
+    // beyond this a viewer waits for a key frame to skip to
+    public static final long DEFAULT_MAX_LAG_USEC = 1500000;
+
+    private final CircularEncoderBuffer mBuffer;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final Thread mThread;
+
+    // changed by the selector thread only, read by getViewerStats()
+    private final CopyOnWriteArrayList<Viewer> mViewers = new CopyOnWriteArrayList<>();
+
+    // selector thread only
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final ByteBuffer mReadScratch = ByteBuffer.allocate(256);
+    private long mServedHead = -1;
+
+    private volatile boolean mRunning;
+    private volatile ByteBuffer mCodecConfig;
+    private volatile long mMaxLagUsec = DEFAULT_MAX_LAG_USEC;
+    private volatile NackResponder.KeyFrameListener mKeyFrameListener;
+
+    // written by the selector thread only
+    private volatile int mViewerCount;
+    private volatile long mSentBytes;
+    private volatile long mSentPackets;
+    private volatile long mSkipCount;
+    private volatile long mSkippedPackets;
+    private volatile long mDisconnectCount;
+    private volatile long mMaxLag;
+    private volatile long mPeakLag;
+    private volatile long mKeyFrameRequests;
+
+    private final CircularEncoderBuffer.PublishListener mPublishListener =
+            new CircularEncoderBuffer.PublishListener() {
+        @Override
+        public void onPublished(long seq) {
+            mSelector.wakeup();
+        }
+    };
+
+    // port 0 picks a free one, see getLocalPort()
+    public FanOutServer(CircularEncoderBuffer buffer, SocketAddress bindAddress)
+            throws IOException {
+        mBuffer = buffer;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        try {
+            mServerChannel.socket().setReuseAddress(true);
+            mServerChannel.socket().bind(bindAddress);
+            mServerChannel.configureBlocking(false);
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServerChannel.close();
+            mSelector.close();
+            throw e;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+    }
+
+    public int getLocalPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        mRunning = true;
+        mBuffer.setPublishListener(mPublishListener);
+        mThread.start();
+        LogUtil.d(TAG, "listening on " + getLocalPort());
+    }
+
+    // SPS/PPS (or VPS/SPS/PPS) for new viewers, copied, null to clear
+    public void setCodecConfig(ByteBuffer config) {
+        if (config == null) {
+            mCodecConfig = null;
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(config.remaining());
+        copy.put(config.duplicate()).flip();
+        mCodecConfig = copy;
+    }
+
+    // how far a viewer may fall behind the newest packet, 0 for no limit
+    public void setMaxLagUsec(long maxLagUsec) {
+        mMaxLagUsec = maxLagUsec;
+    }
+
+    // asked on the selector thread, null for none
+    public void setKeyFrameListener(NackResponder.KeyFrameListener listener) {
+        mKeyFrameListener = listener;
+    }
+
+    private void loop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                serve();
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "selector failed: " + e);
+        } finally {
+            closeViewers();
+        }
+    }
+
+    // One selector round on the caller's thread, for tests that step the
+    // server instead of start()ing it.
+    void poll(long timeoutMs) throws IOException {
+        mSelector.select(timeoutMs);
+        serve();
+    }
+
+    private void serve() throws IOException {
+        Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                continue;
+            }
+            Viewer viewer = (Viewer) key.attachment();
+            if (key.isReadable() && !read(viewer)) {
+                continue;
+            }
+            if (key.isValid() && key.isWritable()) {
+                pump(viewer);
+            }
+        }
+
+        long head = mBuffer.getHeadSequence();
+        if (head != mServedHead) {
+            mServedHead = head;
+            // the ones waiting for OP_WRITE get going on their own
+            for (Viewer viewer : mViewers) {
+                if (!viewer.blocked) {
+                    pump(viewer);
+                }
+            }
+        }
+        updateLag();
+    }
+
+    private void closeViewers() {
+        for (Viewer viewer : mViewers) {
+            closeQuietly(viewer.channel);
+        }
+        mViewers.clear();
+        mViewerCount = 0;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Viewer viewer = new Viewer(channel, mBuffer);
+                // viewers don't talk, OP_READ only notices them leaving
+                viewer.key = channel.register(mSelector, SelectionKey.OP_READ, viewer);
+                mViewers.add(viewer);
+                mViewerCount = mViewers.size();
+                LogUtil.d(TAG, "viewer " + channel.socket().getRemoteSocketAddress() +
+                        ", " + mViewerCount + " now");
+                // no need to replay the whole GOP before it can start
+                requestKeyFrame(viewer);
+                pump(viewer);
+            } catch (IOException e) {
+                LogUtil.w(TAG, "accept failed: " + e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    // returns false if the viewer is gone
+    private boolean read(Viewer viewer) {
+        try {
+            mReadScratch.clear();
+            if (viewer.channel.read(mReadScratch) >= 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            // reset by peer
+        }
+        disconnect(viewer);
+        return false;
+    }
+
+    // Send until the socket is full or the viewer has caught up.
+    private void pump(Viewer viewer) {
+        try {
+            for (;;) {
+                if (viewer.outCount == 0 && !prepare(viewer)) {
+                    setBlocked(viewer, false);
+                    return;
+                }
+                long written = viewer.channel.write(viewer.out, 0, viewer.outCount);
+                mSentBytes += written;
+                viewer.sentBytes += written;
+                if (viewer.inRing && !viewer.reader.isPeekIntact()) {
+                    LogUtil.w(TAG, "viewer overrun mid packet, dropping it");
+                    disconnect(viewer);
+                    return;
+                }
+                if (viewer.out[viewer.outCount - 1].hasRemaining()) {
+                    setBlocked(viewer, true);
+                    return;
+                }
+                if (viewer.inRing) {
+                    viewer.reader.advance();
+                }
+                viewer.outCount = 0;
+                viewer.sentPackets++;
+                mSentPackets++;
+            }
+        } catch (IOException e) {
+            disconnect(viewer);
+        }
+    }
+
+    // Line up the next packet in viewer.out, false if there is none yet.
+    private boolean prepare(Viewer viewer) {
+        CircularEncoderBuffer.Reader reader = viewer.reader;
+        if (!viewer.started) {
+            if (!reader.seekLastKeyFrame()) {
+                return false;
+            }
+            viewer.started = true;
+            ByteBuffer config = mCodecConfig;
+            if (config != null) {
+                putHeader(viewer.header, config.remaining(),
+                        MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+                viewer.out[0] = viewer.header;
+                viewer.out[1] = config.duplicate();
+                viewer.outCount = 2;
+                viewer.inRing = false;
+                return true;
+            }
+        }
+
+        long position = reader.getPosition();
+        long maxLagUsec = mMaxLagUsec;
+        if (maxLagUsec > 0 && reader.getLagUsec() > maxLagUsec) {
+            skipToKeyFrame(viewer, position);
+        }
+        int result = reader.peek(viewer.slices, mInfo);
+        if (result == CircularEncoderBuffer.READ_OVERRUN) {
+            // nothing of the evicted packet went out, the stream stays whole
+            if (!skipToKeyFrame(viewer, position)) {
+                viewer.started = false;
+                return false;
+            }
+            result = reader.peek(viewer.slices, mInfo);
+        }
+        if (result != CircularEncoderBuffer.READ_OK) {
+            return false;
+        }
+        if (viewer.keyFrameRequestedAt >= 0 && reader.getPosition() >= viewer.keyFrameRequestedAt &&
+                (mInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            viewer.keyFrameRequestedAt = -1;
+        }
+        putHeader(viewer.header, mInfo.size, mInfo.flags, mInfo.presentationTimeUs);
+        viewer.out[0] = viewer.header;
+        viewer.out[1] = viewer.slices.buffers[0];
+        viewer.out[2] = viewer.slices.buffers[1];
+        viewer.outCount = 1 + viewer.slices.count;
+        viewer.inRing = true;
+        return true;
+    }
+
+    // Move to the newest key frame if it is ahead of from, false if the
+    // buffer has no key frame at all.
+    private boolean skipToKeyFrame(Viewer viewer, long from) {
+        CircularEncoderBuffer.Reader reader = viewer.reader;
+        if (!reader.seekLastKeyFrame()) {
+            return false;
+        }
+        long to = reader.getPosition();
+        if (to <= from) {
+            // still in the newest GOP, nothing to skip to yet
+            reader.seek(from);
+            requestKeyFrame(viewer);
+            return true;
+        }
+        viewer.skipCount++;
+        viewer.skippedPackets += to - from;
+        mSkipCount++;
+        mSkippedPackets += to - from;
+        CodecLog.trace(TraceRing.EVENT_SKIP, from, (int) (to - from));
+        return true;
+    }
+
+    // once until a key frame made after the request goes out to the viewer
+    private void requestKeyFrame(Viewer viewer) {
+        NackResponder.KeyFrameListener listener = mKeyFrameListener;
+        if (listener != null && viewer.keyFrameRequestedAt < 0) {
+            viewer.keyFrameRequestedAt = mBuffer.getHeadSequence();
+            mKeyFrameRequests++;
+            listener.onKeyFrameRequest();
+        }
+    }
+
+    private static void putHeader(ByteBuffer header, int length, int flags, long ptsUsec) {
+        header.clear();
+        header.putInt(length);
+        header.putInt(flags);
+        header.putLong(ptsUsec);
+        header.flip();
+    }
+
+    private void setBlocked(Viewer viewer, boolean blocked) {
+        if (viewer.blocked != blocked) {
+            viewer.blocked = blocked;
+            viewer.key.interestOps(blocked ?
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void disconnect(Viewer viewer) {
+        viewer.key.cancel();
+        closeQuietly(viewer.channel);
+        mViewers.remove(viewer);
+        mViewerCount = mViewers.size();
+        mDisconnectCount++;
+        LogUtil.d(TAG, "viewer left, " + mViewerCount + " now");
+    }
+
+    private void updateLag() {
+        long max = 0;
+        for (Viewer viewer : mViewers) {
+            long lag = viewer.reader.getLag();
+            viewer.lag = lag;
+            viewer.lagUsec = viewer.reader.getLagUsec();
+            if (lag > max) {
+                max = lag;
+            }
+        }
+        mMaxLag = max;
+        if (max > mPeakLag) {
+            mPeakLag = max;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    public int getViewerCount() {
+        return mViewerCount;
+    }
+
+    public long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public long getSentPackets() {
+        return mSentPackets;
+    }
+
+    // times a viewer was moved up to the newest key frame
+    public long getSkipCount() {
+        return mSkipCount;
+    }
+
+    // packets passed over by those moves, evicted ones not counted
+    public long getSkippedPackets() {
+        return mSkippedPackets;
+    }
+
+    public long getDisconnectCount() {
+        return mDisconnectCount;
+    }
+
+    // key frames asked of the listener for joins and lagging viewers
+    public long getKeyFrameRequests() {
+        return mKeyFrameRequests;
+    }
+
+    // packets the slowest viewer is behind the head, as of the last round
+    public long getMaxLag() {
+        return mMaxLag;
+    }
+
+    public long getPeakLag() {
+        return mPeakLag;
+    }
+
+    // any thread, one entry per connected viewer
+    public List<ViewerStats> getViewerStats() {
+        ArrayList<ViewerStats> stats = new ArrayList<>(mViewers.size());
+        for (Viewer viewer : mViewers) {
+            stats.add(new ViewerStats(viewer));
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBuffer.setPublishListener(null);
+        mRunning = false;
+        mSelector.wakeup();
+        if (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // never started, or stepped with poll()
+            closeViewers();
+        }
+        mServerChannel.close();
+        mSelector.close();
+        LogUtil.d(TAG, "sent " + mSentPackets + " packets, " + mSentBytes + " bytes, skipped " +
+                mSkippedPackets + " in " + mSkipCount + " skips, disconnected " +
+                mDisconnectCount + ", peak lag " + mPeakLag);
+    }
+
+    public static class ViewerStats {
+        public final String address;
+        public final long sentPackets;
+        public final long sentBytes;
+        public final long skipCount;
+        public final long skippedPackets;
+        // behind the newest packet, as of the last selector round
+        public final long lagPackets;
+        public final long lagUsec;
+
+        private ViewerStats(Viewer viewer) {
+            address = viewer.address;
+            sentPackets = viewer.sentPackets;
+            sentBytes = viewer.sentBytes;
+            skipCount = viewer.skipCount;
+            skippedPackets = viewer.skippedPackets;
+            lagPackets = viewer.lag;
+            lagUsec = viewer.lagUsec;
+        }
+
+        @Override
+        public String toString() {
+            return address + ": " + sentPackets + " packets / " + sentBytes + " B, skipped " +
+                    skippedPackets + " in " + skipCount + ", lag " + lagPackets + " packets / " +
+                    lagUsec / 1000 + " ms";
+        }
+    }
+
+    private static class Viewer {
+        final SocketChannel channel;
+        final String address;
+        final CircularEncoderBuffer.Reader reader;
+        final CircularEncoderBuffer.Slices slices;
+        final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        // header plus up to two slices of the packet being sent
+        final ByteBuffer[] out = new ByteBuffer[3];
+        SelectionKey key;
+        int outCount;
+        boolean started; // positioned at a key frame
+        boolean inRing; // out holds a ring packet, not the codec config
+        boolean blocked; // waiting for OP_WRITE
+        long keyFrameRequestedAt = -1; // ring head when the viewer asked for one
+
+        // written by the selector thread, read by getViewerStats()
+        volatile long sentPackets;
+        volatile long sentBytes;
+        volatile long skipCount;
+        volatile long skippedPackets;
+        volatile long lag;
+        volatile long lagUsec;
+
+        Viewer(SocketChannel channel, CircularEncoderBuffer buffer) {
+            this.channel = channel;
+            address = String.valueOf(channel.socket().getRemoteSocketAddress());
+            reader = buffer.newReader();
+            slices = buffer.newSlices();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.example.myscreenshare.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Receiving end of FecEncoder, sits between the socket and the
+ * RtpDepacketizer. Media packets are passed on in sequence order; while
+ * there is a gap the packets after it are held until the repair packets of
+ * the group rebuild the missing ones, or until it is clear they cannot: a
+ * packet of a later group arrived, all repair packets of the group are in,
+ * or too much is held. Then the gap is passed over and the depacketizer
+ * deals with the loss as before.
+ *
+ * Before the first repair packet nothing is held, a stream without FEC goes
+ * straight through, unless a NackGenerator is set: then a gap is also held
+ * while its packets are NACKed and may still come. The last HISTORY media
+ * packets are kept as symbols for the recovery, in pooled slots; nothing is
+ * allocated per packet. Not thread safe.
+ */
+public class FecDecoder {
+
+    private static final int HISTORY = 256;
+    // groups whose repair packets are kept
+    private static final int GROUPS = 8;
+    private static final int MAX_HOLD = 2 * FecEncoder.MAX_GROUP;
+
+    private static class Group {
+        int base = -1;
+        int size;
+        int repairs;
+        int mode;
+        int symbolSize;
+        int received;
+        final boolean[] have = new boolean[FecEncoder.MAX_REPAIR];
+        final byte[][] rows;
+
+        Group(int maxSymbol) {
+            rows = new byte[FecEncoder.MAX_REPAIR][maxSymbol];
+        }
+    }
+
+    private final int mPayloadType;
+    private final int mMaxSymbol;
+    // media packets as symbols: 16 bit length, then the packet
+    private final byte[][] mSlots = new byte[HISTORY][];
+    private final ByteBuffer[] mViews = new ByteBuffer[HISTORY];
+    private final int[] mSlotSequence = new int[HISTORY];
+    private final Group[] mGroups = new Group[GROUPS];
+    private int mNextGroup;
+
+    // recovery scratch
+    private final int[] mLost = new int[FecEncoder.MAX_REPAIR];
+    private final int[] mUsedRows = new int[FecEncoder.MAX_REPAIR];
+    private final int[][] mMatrix = new int[FecEncoder.MAX_REPAIR][2 * FecEncoder.MAX_REPAIR];
+    private final byte[][] mSyndromes;
+
+    private NackGenerator mNack;
+    private boolean mActive;
+    private boolean mHaveNext;
+    private int mNextSequence;
+    private int mNewestSequence;
+    private int mNewestRepairBase;
+
+    private long mRepairPackets;
+    private long mRecoveredPackets;
+    private long mUnrecoveredPackets;
+
+    // mtu is the largest repair packet, as given to the FecEncoder
+    public FecDecoder(int mtu) {
+        this(FecEncoder.DEFAULT_PAYLOAD_TYPE, mtu);
+    }
+
+    public FecDecoder(int payloadType, int mtu) {
+        mPayloadType = payloadType;
+        mMaxSymbol = mtu - RtpPacketizer.RTP_HEADER_SIZE - FecEncoder.FEC_HEADER_SIZE;
+        for (int i = 0; i < HISTORY; i++) {
+            mSlots[i] = new byte[mMaxSymbol];
+            mViews[i] = ByteBuffer.wrap(mSlots[i]);
+            mSlotSequence[i] = -1;
+        }
+        for (int i = 0; i < GROUPS; i++) {
+            mGroups[i] = new Group(mMaxSymbol);
+        }
+        mSyndromes = new byte[FecEncoder.MAX_REPAIR][mMaxSymbol];
+    }
+
+    // retransmissions to wait for, null for none
+    public void setNackGenerator(NackGenerator nack) {
+        mNack = nack;
+    }
+
+    // Takes one RTP packet off the wire, media or repair. Media packets that
+    // are due go to sink, recovered ones included.
+    public void onPacket(ByteBuffer packet, RtpPacketizer.Sink sink) throws IOException {
+        int pos = packet.position();
+        if (packet.remaining() < RtpPacketizer.RTP_HEADER_SIZE) {
+            return;
+        }
+        if (isRepairPacket(packet)) {
+            onRepairPacket(packet, sink);
+        } else {
+            onMediaPacket(packet, sink);
+        }
+    }
+
+    public boolean isRepairPacket(ByteBuffer packet) {
+        return (packet.get(packet.position() + 1) & 0x7F) == mPayloadType;
+    }
+
+    private void onMediaPacket(ByteBuffer packet, RtpPacketizer.Sink sink) throws IOException {
+        int pos = packet.position();
+        int sequence = packet.getShort(pos + 2) & 0xFFFF;
+        int ahead = distance(mNextSequence, sequence);
+        if (!mHaveNext || ahead >= HISTORY) {
+            // first packet, or the sender started over
+            mHaveNext = true;
+            mNextSequence = sequence;
+            mNewestSequence = sequence;
+            ahead = 0;
+        }
+        if (ahead < 0 || packet.remaining() + 2 > mMaxSymbol) {
+            // late, or too large to be protected: straight on
+            sink.onPacket(packet);
+            return;
+        }
+        if (!mActive && mNack == null && ahead > 0) {
+            // no FEC, nothing to wait for
+            mNextSequence = sequence;
+        }
+        int slot = sequence % HISTORY;
+        byte[] symbol = mSlots[slot];
+        int length = packet.remaining();
+        symbol[0] = (byte) (length >> 8);
+        symbol[1] = (byte) length;
+        packet.get(symbol, 2, length);
+        packet.position(pos);
+        mSlotSequence[slot] = sequence;
+        if (distance(mNewestSequence, sequence) > 0) {
+            mNewestSequence = sequence;
+        }
+        deliver(sink);
+    }
+
+    private void onRepairPacket(ByteBuffer packet, RtpPacketizer.Sink sink) throws IOException {
+        int pos = packet.position() + RtpPacketizer.RTP_HEADER_SIZE;
+        int limit = packet.limit();
+        if (pos + FecEncoder.FEC_HEADER_SIZE > limit) {
+            return;
+        }
+        int base = packet.getShort(pos) & 0xFFFF;
+        int size = packet.get(pos + 2) & 0xFF;
+        int repairs = packet.get(pos + 3) & 0xFF;
+        int row = packet.get(pos + 4) & 0xFF;
+        int mode = packet.get(pos + 5) & 0xFF;
+        int symbolSize = packet.getShort(pos + 6) & 0xFFFF;
+        pos += FecEncoder.FEC_HEADER_SIZE;
+        if (size < 1 || size > FecEncoder.MAX_GROUP || repairs > FecEncoder.MAX_REPAIR ||
+                row >= repairs || (mode != FecEncoder.MODE_XOR && mode != FecEncoder.MODE_RS) ||
+                symbolSize > mMaxSymbol || pos + symbolSize > limit) {
+            return;
+        }
+        mRepairPackets++;
+
+        Group group = findGroup(base, size);
+        if (group == null) {
+            group = mGroups[mNextGroup];
+            mNextGroup = (mNextGroup + 1) % GROUPS;
+            group.base = base;
+            group.size = size;
+            group.repairs = repairs;
+            group.mode = mode;
+            group.symbolSize = symbolSize;
+            group.received = 0;
+            Arrays.fill(group.have, false);
+        }
+        if (!group.have[row]) {
+            int position = packet.position();
+            packet.position(pos);
+            packet.get(group.rows[row], 0, symbolSize);
+            packet.position(position);
+            group.have[row] = true;
+            group.received++;
+        }
+        if (!mActive || distance(mNewestRepairBase, base) > 0) {
+            mNewestRepairBase = base;
+        }
+        mActive = true;
+        deliver(sink);
+    }
+
+    // passes on what is due, recovers or gives up on gaps
+    private void deliver(RtpPacketizer.Sink sink) throws IOException {
+        for (;;) {
+            int slot = mNextSequence % HISTORY;
+            if (mSlotSequence[slot] == mNextSequence) {
+                ByteBuffer view = mViews[slot];
+                byte[] symbol = mSlots[slot];
+                view.limit(2 + (((symbol[0] & 0xFF) << 8) | (symbol[1] & 0xFF)));
+                view.position(2);
+                mNextSequence = (mNextSequence + 1) & 0xFFFF;
+                sink.onPacket(view);
+                continue;
+            }
+            Group group = findGroup(mNextSequence);
+            if (group != null && recover(group)) {
+                continue;
+            }
+            if (distance(mNextSequence, mNewestSequence) < 0) {
+                // nothing held
+                return;
+            }
+            if (!shouldGiveUp(group)) {
+                return;
+            }
+            // one at a time, the next may be in a group that can rebuild it
+            mNextSequence = (mNextSequence + 1) & 0xFFFF;
+            mUnrecoveredPackets++;
+        }
+    }
+
+    private boolean shouldGiveUp(Group group) {
+        if (distance(mNextSequence, mNewestSequence) >= MAX_HOLD) {
+            return true;
+        }
+        if (mNack != null && mNack.isPending(mNextSequence)) {
+            return false;
+        }
+        if (!mActive) {
+            return true;
+        }
+        if (group == null) {
+            // repair packets follow their group, a later group's came first
+            return distance(mNextSequence, mNewestRepairBase) > 0;
+        }
+        return group.received == group.repairs ||
+                distance((group.base + group.size) & 0xFFFF, mNewestSequence) >= 0;
+    }
+
+    // Rebuilds the lost packets of group if enough repair rows are in.
+    // Solves C[rows][lost] * x = repair - C[rows][kept] * kept for x.
+    private boolean recover(Group group) {
+        int lost = 0;
+        for (int i = 0; i < group.size; i++) {
+            int sequence = (group.base + i) & 0xFFFF;
+            if (mSlotSequence[sequence % HISTORY] != sequence) {
+                if (lost == group.received) {
+                    return false;
+                }
+                mLost[lost++] = i;
+            }
+        }
+        if (lost == 0) {
+            return false;
+        }
+        int used = 0;
+        for (int row = 0; row < group.repairs && used < lost; row++) {
+            if (group.have[row]) {
+                mUsedRows[used++] = row;
+            }
+        }
+
+        int size = group.symbolSize;
+        for (int r = 0; r < lost; r++) {
+            int row = mUsedRows[r];
+            byte[] syndrome = mSyndromes[r];
+            System.arraycopy(group.rows[row], 0, syndrome, 0, size);
+            for (int i = 0; i < group.size; i++) {
+                int sequence = (group.base + i) & 0xFFFF;
+                int slot = sequence % HISTORY;
+                if (mSlotSequence[slot] == sequence) {
+                    byte[] symbol = mSlots[slot];
+                    int symbolSize = 2 + (((symbol[0] & 0xFF) << 8) | (symbol[1] & 0xFF));
+                    Gf256.mulAdd(syndrome, 0, symbol, 0, Math.min(symbolSize, size),
+                            FecEncoder.coefficient(group.mode, row, i));
+                }
+            }
+            for (int c = 0; c < lost; c++) {
+                mMatrix[r][c] = FecEncoder.coefficient(group.mode, row, mLost[c]);
+                mMatrix[r][lost + c] = r == c ? 1 : 0;
+            }
+        }
+        if (!invert(lost)) {
+            return false;
+        }
+
+        for (int c = 0; c < lost; c++) {
+            int sequence = (group.base + mLost[c]) & 0xFFFF;
+            int slot = sequence % HISTORY;
+            byte[] symbol = mSlots[slot];
+            Arrays.fill(symbol, 0, size, (byte) 0);
+            for (int r = 0; r < lost; r++) {
+                Gf256.mulAdd(symbol, 0, mSyndromes[r], 0, size, mMatrix[c][lost + r]);
+            }
+            int length = ((symbol[0] & 0xFF) << 8) | (symbol[1] & 0xFF);
+            if (length < RtpPacketizer.RTP_HEADER_SIZE || length + 2 > size) {
+                // not what was sent, the repair packets were from elsewhere
+                return false;
+            }
+            mSlotSequence[slot] = sequence;
+            mRecoveredPackets++;
+        }
+        return true;
+    }
+
+    // Gauss-Jordan on [M | I] in mMatrix, n x n, leaves the inverse right
+    private boolean invert(int n) {
+        int[][] m = mMatrix;
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && m[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                return false;
+            }
+            int[] swap = m[pivot];
+            m[pivot] = m[col];
+            m[col] = swap;
+            int scale = Gf256.inv(m[col][col]);
+            for (int k = 0; k < 2 * n; k++) {
+                m[col][k] = Gf256.mul(m[col][k], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = m[r][col];
+                if (r != col && factor != 0) {
+                    for (int k = 0; k < 2 * n; k++) {
+                        m[r][k] ^= Gf256.mul(factor, m[col][k]);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private Group findGroup(int base, int size) {
+        for (Group group : mGroups) {
+            if (group.base == base && group.size == size) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    // the group a media sequence number belongs to
+    private Group findGroup(int sequence) {
+        for (Group group : mGroups) {
+            if (group.base >= 0) {
+                int index = distance(group.base, sequence);
+                if (index >= 0 && index < group.size) {
+                    return group;
+                }
+            }
+        }
+        return null;
+    }
+
+    // signed distance from a to b in 16 bit sequence space
+    private static int distance(int a, int b) {
+        return (short) (b - a);
+    }
+
+    public long getRepairPackets() {
+        return mRepairPackets;
+    }
+
+    public long getRecoveredPackets() {
+        return mRecoveredPackets;
+    }
+
+    // lost for good, passed over
+    public long getUnrecoveredPackets() {
+        return mUnrecoveredPackets;
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.myscreenshare.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Forward error correction for the RTP stream of UdpStreamer. The media
+ * packets go out untouched; every group of them, a frame or up to the group
+ * size, is followed by repair packets the FecDecoder can rebuild lost
+ * packets from:
+ *
+ *  MODE_XOR: one parity packet per group, recovers any one loss.
+ *  MODE_RS:  a systematic Reed-Solomon (Cauchy) code over GF(256) with
+ *            repair packets for the configured percentage of the group,
+ *            recovers as many losses as repair packets arrived.
+ *
+ * A protected packet is the whole RTP packet with its 16 bit length in
+ * front, zero padded to the longest of the group. Repair packets are RTP
+ * packets of their own payload type and sequence, with an FEC header:
+ *
+ *  base sequence (16) | group size (8) | repair count (8) |
+ *  repair index (8) | mode (8) | symbol size (16)
+ *
+ * The parity is accumulated as each media packet passes, so nothing but
+ * the repair rows is kept and nothing is allocated per packet. Not thread
+ * safe.
+ */
+public class FecEncoder {
+
+    public static final int MODE_XOR = 0;
+    public static final int MODE_RS = 1;
+
+    public static final int DEFAULT_PAYLOAD_TYPE = 97;
+    public static final int DEFAULT_GROUP_SIZE = 20;
+    public static final int DEFAULT_REPAIR_PERCENT = 20;
+
+    public static final int FEC_HEADER_SIZE = 8;
+    // a repair packet is this much larger than the largest media packet,
+    // the packetizer's MTU has to leave room for it
+    public static final int OVERHEAD = RtpPacketizer.RTP_HEADER_SIZE + FEC_HEADER_SIZE + 2;
+
+    // MAX_GROUP + MAX_REPAIR distinct field elements for the Cauchy matrix
+    static final int MAX_GROUP = 48;
+    static final int MAX_REPAIR = 16;
+
+    private final int mMode;
+    private final int mGroupSize;
+    private final int mRepairPercent;
+    private final int mPayloadType;
+    private final int mRows;
+    private final byte[] mSymbol;
+    private final byte[][] mParity;
+    private final ByteBuffer mPacket;
+
+    private int mCount;
+    private int mSymbolSize;
+    private int mBaseSequence;
+    private int mTimestamp;
+    private int mSsrc;
+    private int mSequence;
+
+    private long mGroupCount;
+    private long mRepairPackets;
+    private long mRepairBytes;
+
+    // mtu is the largest repair packet, media packets must stay OVERHEAD below
+    public FecEncoder(int mode, int groupSize, int repairPercent, int mtu) {
+        this(mode, groupSize, repairPercent, DEFAULT_PAYLOAD_TYPE, mtu);
+    }
+
+    public FecEncoder(int mode, int groupSize, int repairPercent, int payloadType, int mtu) {
+        if (mode != MODE_XOR && mode != MODE_RS) {
+            throw new RuntimeException("Unknown FEC mode " + mode);
+        }
+        if (groupSize < 1 || groupSize > MAX_GROUP) {
+            throw new RuntimeException("Group size out of range: " + groupSize);
+        }
+        if (mode == MODE_RS && (repairPercent < 1 || repairPercent > 100)) {
+            throw new RuntimeException("Repair percentage out of range: " + repairPercent);
+        }
+        if (mtu <= OVERHEAD + RtpPacketizer.RTP_HEADER_SIZE) {
+            throw new RuntimeException("MTU too small: " + mtu);
+        }
+        mMode = mode;
+        mGroupSize = groupSize;
+        mRepairPercent = repairPercent;
+        mPayloadType = payloadType;
+        mRows = mode == MODE_XOR ? 1 : repairCount(mode, groupSize, repairPercent);
+        int maxSymbol = mtu - RtpPacketizer.RTP_HEADER_SIZE - FEC_HEADER_SIZE;
+        mSymbol = new byte[maxSymbol];
+        mParity = new byte[mRows][maxSymbol];
+        mPacket = ByteBuffer.allocateDirect(mtu);
+    }
+
+    static int repairCount(int mode, int groupSize, int repairPercent) {
+        if (mode == MODE_XOR) {
+            return 1;
+        }
+        int count = (groupSize * repairPercent + 99) / 100;
+        return Math.max(1, Math.min(MAX_REPAIR, count));
+    }
+
+    // weight of data symbol index in repair symbol row
+    static int coefficient(int mode, int row, int index) {
+        return mode == MODE_XOR ? 1 : Gf256.CAUCHY[row][index] & 0xFF;
+    }
+
+    // Takes the media packet [position, limit) just sent, position is kept.
+    // Packets of a group must have consecutive sequence numbers, as from one
+    // RtpPacketizer. After the last one of a group the repair packets go to
+    // sink.
+    public void protect(ByteBuffer packet, RtpPacketizer.Sink sink) throws IOException {
+        int pos = packet.position();
+        int length = packet.remaining();
+        if (length + 2 > mSymbol.length) {
+            throw new RuntimeException("Packet too large for FEC: " + length);
+        }
+        if (mCount == 0) {
+            mBaseSequence = packet.getShort(pos + 2) & 0xFFFF;
+            mSsrc = packet.getInt(pos + 8);
+        }
+        mTimestamp = packet.getInt(pos + 4);
+        boolean marker = (packet.get(pos + 1) & 0x80) != 0;
+
+        mSymbol[0] = (byte) (length >> 8);
+        mSymbol[1] = (byte) length;
+        packet.get(mSymbol, 2, length);
+        packet.position(pos);
+        int size = length + 2;
+        for (int row = 0; row < mRows; row++) {
+            Gf256.mulAdd(mParity[row], 0, mSymbol, 0, size, coefficient(mMode, row, mCount));
+        }
+        mSymbolSize = Math.max(mSymbolSize, size);
+        mCount++;
+        if (marker || mCount == mGroupSize) {
+            flush(sink);
+        }
+    }
+
+    // sends the repair packets of an unfinished group
+    public void flush(RtpPacketizer.Sink sink) throws IOException {
+        if (mCount == 0) {
+            return;
+        }
+        // a short group, e.g. a small frame, gets its share of repair rows
+        int repairs = Math.min(mRows, repairCount(mMode, mCount, mRepairPercent));
+        try {
+            for (int row = 0; row < repairs; row++) {
+                mPacket.clear();
+                mPacket.put((byte) (RtpPacketizer.RTP_VERSION << 6));
+                mPacket.put((byte) mPayloadType);
+                mPacket.putShort((short) mSequence);
+                mPacket.putInt(mTimestamp);
+                mPacket.putInt(mSsrc);
+                mSequence = (mSequence + 1) & 0xFFFF;
+                mPacket.putShort((short) mBaseSequence);
+                mPacket.put((byte) mCount);
+                mPacket.put((byte) repairs);
+                mPacket.put((byte) row);
+                mPacket.put((byte) mMode);
+                mPacket.putShort((short) mSymbolSize);
+                mPacket.put(mParity[row], 0, mSymbolSize);
+                mPacket.flip();
+                mRepairPackets++;
+                mRepairBytes += mPacket.remaining();
+                sink.onPacket(mPacket);
+            }
+        } finally {
+            for (int row = 0; row < mRows; row++) {
+                Arrays.fill(mParity[row], 0, mSymbolSize, (byte) 0);
+            }
+            mGroupCount++;
+            mCount = 0;
+            mSymbolSize = 0;
+        }
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public long getGroupCount() {
+        return mGroupCount;
+    }
+
+    public long getRepairPackets() {
+        return mRepairPackets;
+    }
+
+    public long getRepairBytes() {
+        return mRepairBytes;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.myscreenshare.net;
+
+/**
+ * Arithmetic in GF(2^8) with the polynomial 0x11D, all by table lookup.
+ * Addition is XOR. The full product table is 64 KB, so the inner loops of
+ * the Reed-Solomon code are one lookup and one XOR per byte.
+ */
+final class Gf256 {
+
+    private static final int POLYNOMIAL = 0x11D;
+
+    static final byte[][] MUL = new byte[256][256];
+    // Coefficient of data symbol i in repair symbol j of the Cauchy code,
+    // 1 / (x_j + y_i) with x_j = MAX_GROUP + j and y_i = i all distinct.
+    static final byte[][] CAUCHY = new byte[FecEncoder.MAX_REPAIR][FecEncoder.MAX_GROUP];
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < 512; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+        for (int j = 0; j < FecEncoder.MAX_REPAIR; j++) {
+            for (int i = 0; i < FecEncoder.MAX_GROUP; i++) {
+                CAUCHY[j][i] = (byte) inv((FecEncoder.MAX_GROUP + j) ^ i);
+            }
+        }
+    }
+
+    private Gf256() {}
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+
+    static int inv(int a) {
+        if (a == 0) {
+            throw new RuntimeException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a]];
+    }
+
+    // dst[dstOff..] ^= c * src[srcOff..], for len bytes
+    static void mulAdd(byte[] dst, int dstOff, byte[] src, int srcOff, int len, int c) {
+        if (c == 0) {
+            return;
+        }
+        if (c == 1) {
+            for (int i = 0; i < len; i++) {
+                dst[dstOff + i] ^= src[srcOff + i];
+            }
+            return;
+        }
+        final byte[] row = MUL[c];
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] ^= row[src[srcOff + i] & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.myscreenshare.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver side of NACK retransmission: notices gaps in the RTP sequence
+ * numbers and writes RTCP generic NACKs (RFC 4585) for the NackResponder.
+ *
+ * A missing packet is asked for at once, and again only when its
+ * retransmission is overdue: after srtt + 4 * rttvar, from round trips
+ * measured between a first NACK and the packet it brought back (a packet
+ * asked for twice gives no sample). After MAX_NACKS the packet is given
+ * up. isPending() tells the FecDecoder whether a gap is still worth waiting
+ * for. Not thread safe, the receiver thread only.
+ */
+public class NackGenerator {
+
+    public static final int MAX_NACKS = 3;
+    public static final long INITIAL_RTT_NANOS = 50000000;
+    public static final long MIN_RTO_NANOS = 5000000;
+    // missing packets tracked, older gaps are given up
+    private static final int WINDOW = 512;
+    private static final int RTCP_HEADER_SIZE = 12;
+
+    private final int[] mSequence = new int[WINDOW];
+    private final long[] mNackNanos = new long[WINDOW];
+    private final int[] mAttempts = new int[WINDOW];
+    private final int mSsrc;
+    private int mPendingCount;
+
+    private boolean mHaveNewest;
+    private int mNewest;
+    private int mMediaSsrc;
+    private long mNowNanos;
+
+    private long mSrttNanos = -1;
+    private long mRttVarNanos;
+
+    private long mNackCount;
+    private long mNackedPackets;
+    private long mRepairedPackets;
+    private long mGivenUpPackets;
+
+    public NackGenerator(int ssrc) {
+        mSsrc = ssrc;
+        for (int i = 0; i < WINDOW; i++) {
+            mSequence[i] = -1;
+        }
+    }
+
+    // A media packet as it came off the wire, before any reordering.
+    public void onPacket(int sequence, int ssrc, long nowNanos) {
+        mNowNanos = nowNanos;
+        mMediaSsrc = ssrc;
+        if (!mHaveNewest) {
+            mHaveNewest = true;
+            mNewest = sequence;
+            return;
+        }
+        int ahead = (short) (sequence - mNewest);
+        if (ahead > 0) {
+            // a gap, too large ones only partly
+            for (int i = Math.max(1, ahead - WINDOW + 1); i < ahead; i++) {
+                add((mNewest + i) & 0xFFFF);
+            }
+            mNewest = sequence;
+            return;
+        }
+        int slot = sequence % WINDOW;
+        if (mSequence[slot] == sequence) {
+            if (mAttempts[slot] == 1) {
+                sampleRtt(nowNanos - mNackNanos[slot]);
+            }
+            if (mAttempts[slot] > 0) {
+                mRepairedPackets++;
+            }
+            remove(slot);
+        }
+    }
+
+    // the packet was rebuilt some other way, e.g. by FEC
+    public void cancel(int sequence) {
+        int slot = sequence % WINDOW;
+        if (mSequence[slot] == sequence) {
+            remove(slot);
+        }
+    }
+
+    // missing and still expected to come
+    public boolean isPending(int sequence) {
+        int slot = sequence % WINDOW;
+        return mSequence[slot] == sequence &&
+                (mAttempts[slot] < MAX_NACKS || mNowNanos - mNackNanos[slot] < getRtoNanos());
+    }
+
+    // Writes one RTCP NACK for every packet that is due into out (from its
+    // position) and returns how many it asks for; with 0 nothing is written.
+    // Packets waited for long enough are given up here.
+    public int poll(long nowNanos, ByteBuffer out) {
+        mNowNanos = nowNanos;
+        if (mPendingCount == 0) {
+            return 0;
+        }
+        long rto = getRtoNanos();
+        int start = out.position();
+        int fci = start + RTCP_HEADER_SIZE;
+        int count = 0;
+        int pid = -1;
+        int blp = 0;
+        // oldest first, so a PID and its bitmask cover what follows
+        for (int i = WINDOW - 1; i >= 0; i--) {
+            int sequence = (mNewest - i) & 0xFFFF;
+            int slot = sequence % WINDOW;
+            if (mSequence[slot] != sequence) {
+                continue;
+            }
+            if (mAttempts[slot] > 0 && nowNanos - mNackNanos[slot] < rto) {
+                continue;
+            }
+            if (mAttempts[slot] == MAX_NACKS) {
+                mGivenUpPackets++;
+                remove(slot);
+                continue;
+            }
+            int offset = (sequence - pid) & 0xFFFF;
+            if (pid >= 0 && offset >= 1 && offset <= 16) {
+                blp |= 1 << (offset - 1);
+            } else {
+                if (pid >= 0) {
+                    out.putShort(fci, (short) pid);
+                    out.putShort(fci + 2, (short) blp);
+                    fci += 4;
+                }
+                if (fci + 4 > out.limit()) {
+                    // the rest next time
+                    pid = -1;
+                    break;
+                }
+                pid = sequence;
+                blp = 0;
+            }
+            mAttempts[slot]++;
+            mNackNanos[slot] = nowNanos;
+            count++;
+        }
+        if (pid >= 0) {
+            out.putShort(fci, (short) pid);
+            out.putShort(fci + 2, (short) blp);
+            fci += 4;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        out.put(start, (byte) ((RtpPacketizer.RTP_VERSION << 6) |
+                NackResponder.FMT_GENERIC_NACK));
+        out.put(start + 1, (byte) NackResponder.RTCP_RTPFB);
+        out.putShort(start + 2, (short) ((fci - start) / 4 - 1));
+        out.putInt(start + 4, mSsrc);
+        out.putInt(start + 8, mMediaSsrc);
+        out.position(fci);
+        mNackCount++;
+        mNackedPackets += count;
+        return count;
+    }
+
+    private void add(int sequence) {
+        int slot = sequence % WINDOW;
+        if (mSequence[slot] < 0) {
+            mPendingCount++;
+        } else {
+            // pushed out of the window unanswered
+            mGivenUpPackets++;
+        }
+        mSequence[slot] = sequence;
+        mAttempts[slot] = 0;
+        mNackNanos[slot] = mNowNanos;
+    }
+
+    private void remove(int slot) {
+        mSequence[slot] = -1;
+        mPendingCount--;
+    }
+
+    // RFC 6298 with the TCP gains
+    private void sampleRtt(long rttNanos) {
+        if (mSrttNanos < 0) {
+            mSrttNanos = rttNanos;
+            mRttVarNanos = rttNanos / 2;
+        } else {
+            mRttVarNanos += (Math.abs(mSrttNanos - rttNanos) - mRttVarNanos) / 4;
+            mSrttNanos += (rttNanos - mSrttNanos) / 8;
+        }
+    }
+
+    public long getRttNanos() {
+        return mSrttNanos < 0 ? INITIAL_RTT_NANOS : mSrttNanos;
+    }
+
+    public long getRtoNanos() {
+        if (mSrttNanos < 0) {
+            return 2 * INITIAL_RTT_NANOS;
+        }
+        return Math.max(MIN_RTO_NANOS, mSrttNanos + 4 * mRttVarNanos);
+    }
+
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    // RTCP packets written
+    public long getNackCount() {
+        return mNackCount;
+    }
+
+    // sequence numbers asked for, repeats included
+    public long getNackedPackets() {
+        return mNackedPackets;
+    }
+
+    // came in after a NACK
+    public long getRepairedPackets() {
+        return mRepairedPackets;
+    }
+
+    public long getGivenUpPackets() {
+        return mGivenUpPackets;
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.myscreenshare.net;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sender side of NACK retransmission. The CircularEncoderBuffer already
+ * holds the last seconds of encoder output, so instead of keeping sent
+ * packets around this only remembers, per RTP sequence number, which ring
+ * packet and which bytes of it the payload came from. A table indexed by
+ * the low bits of the sequence number makes the lookup O(1).
+ *
+ * A retransmission is rebuilt from the ring: the same RTP header, the FU
+ * header if any, and the bytes read through Reader.peek(). The packet is
+ * assembled in one buffer and only sent if the ring packet was still
+ * intact after the copy. When the table entry or the ring packet is gone
+ * the loss can't be repaired and the listener is asked for a key frame,
+ * once per feedback packet.
+ *
+ * record() runs on the sender thread, onRtcp() on the feedback thread.
+ */
+public class NackResponder {
+
+    static final int RTCP_RTPFB = 205;
+    static final int RTCP_PSFB = 206;
+    static final int FMT_GENERIC_NACK = 1;
+    static final int FMT_PLI = 1;
+
+    // a bit more than the ring span at 6 Mbps with full packets
+    public static final int DEFAULT_HISTORY = 8192;
+
+    // payload bytes before the chunk: FU indicator and header, HEVC's is 3
+    private static final int MAX_PREFIX = 3;
+
+    public interface KeyFrameListener {
+        // a receiver needs a fresh start, e.g. CircularEncoder.requestKeyFrame(),
+        // on the network thread
+        void onKeyFrameRequest();
+    }
+
+    private final CircularEncoderBuffer mRing;
+    private final CircularEncoderBuffer.Reader mReader;
+    private final CircularEncoderBuffer.Slices mSlices;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final KeyFrameListener mListener;
+    private final ByteBuffer mPacket;
+    private final int mMask;
+
+    // per sequence number, guarded by this
+    private final int[] mSequence;
+    private final long[] mRingSequence;
+    private final int[] mChunkOffset;
+    private final int[] mChunkLength;
+    private final int[] mTimestamp;
+    private final int[] mSsrc;
+    private final byte[] mMarkerType;
+    private final byte[] mPrefixLength;
+    private final byte[] mPrefix;
+
+    // sender thread
+    private long mAccessUnitRingSequence = -1;
+
+    private volatile long mNackedPackets;
+    private volatile long mRetransmittedPackets;
+    private volatile long mEvictedPackets;
+    private volatile long mKeyFrameRequests;
+
+    // history is rounded up to a power of two, mtu is the packetizer's
+    public NackResponder(CircularEncoderBuffer ring, int history, int mtu,
+                         KeyFrameListener listener) {
+        int size = Integer.highestOneBit(Math.max(history - 1, 1)) << 1;
+        mRing = ring;
+        mReader = ring.newReader();
+        mSlices = ring.newSlices();
+        mListener = listener;
+        mPacket = ByteBuffer.allocateDirect(mtu);
+        mMask = size - 1;
+        mSequence = new int[size];
+        mRingSequence = new long[size];
+        mChunkOffset = new int[size];
+        mChunkLength = new int[size];
+        mTimestamp = new int[size];
+        mSsrc = new int[size];
+        mMarkerType = new byte[size];
+        mPrefixLength = new byte[size];
+        mPrefix = new byte[size * MAX_PREFIX];
+        for (int i = 0; i < size; i++) {
+            mSequence[i] = -1;
+        }
+    }
+
+    // Sender thread, before the packets of an access unit. Must be called
+    // before the drainer adds it to the ring: it will get the head sequence.
+    public void onAccessUnit(int flags) {
+        // the codec config is not kept in the ring
+        mAccessUnitRingSequence = (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 ?
+                -1 : mRing.getHeadSequence();
+    }
+
+    // Sender thread, packet [position, limit) as sent, chunk as told by
+    // RtpPacketizer.getChunkOffset() / getChunkLength().
+    public void record(ByteBuffer packet, int chunkOffset, int chunkLength) {
+        int pos = packet.position();
+        int prefixLength = packet.remaining() - RtpPacketizer.RTP_HEADER_SIZE - chunkLength;
+        if (prefixLength < 0 || prefixLength > MAX_PREFIX) {
+            return;
+        }
+        int sequence = packet.getShort(pos + 2) & 0xFFFF;
+        int slot = sequence & mMask;
+        synchronized (this) {
+            mSequence[slot] = sequence;
+            mRingSequence[slot] = mAccessUnitRingSequence;
+            mChunkOffset[slot] = chunkOffset;
+            mChunkLength[slot] = chunkLength;
+            mMarkerType[slot] = packet.get(pos + 1);
+            mTimestamp[slot] = packet.getInt(pos + 4);
+            mSsrc[slot] = packet.getInt(pos + 8);
+            mPrefixLength[slot] = (byte) prefixLength;
+            for (int i = 0; i < prefixLength; i++) {
+                mPrefix[slot * MAX_PREFIX + i] =
+                        packet.get(pos + RtpPacketizer.RTP_HEADER_SIZE + i);
+            }
+        }
+    }
+
+    // Feedback thread: one RTCP packet, compound or not. Generic NACKs are
+    // served to sink, a PLI asks for a key frame.
+    public void onRtcp(ByteBuffer rtcp, RtpPacketizer.Sink sink) throws IOException {
+        int pos = rtcp.position();
+        int limit = rtcp.limit();
+        boolean keyFrame = false;
+        while (pos + 12 <= limit) {
+            int b0 = rtcp.get(pos) & 0xFF;
+            int type = rtcp.get(pos + 1) & 0xFF;
+            int end = pos + 4 * ((rtcp.getShort(pos + 2) & 0xFFFF) + 1);
+            if ((b0 >> 6) != RtpPacketizer.RTP_VERSION || end > limit) {
+                break;
+            }
+            int fmt = b0 & 0x1F;
+            if (type == RTCP_RTPFB && fmt == FMT_GENERIC_NACK) {
+                for (int fci = pos + 12; fci + 4 <= end; fci += 4) {
+                    int pid = rtcp.getShort(fci) & 0xFFFF;
+                    int blp = rtcp.getShort(fci + 2) & 0xFFFF;
+                    keyFrame |= !retransmit(pid, sink);
+                    for (int bit = 0; bit < 16; bit++) {
+                        if ((blp & (1 << bit)) != 0) {
+                            keyFrame |= !retransmit((pid + bit + 1) & 0xFFFF, sink);
+                        }
+                    }
+                }
+            } else if (type == RTCP_PSFB && fmt == FMT_PLI) {
+                keyFrame = true;
+            }
+            pos = end;
+        }
+        if (keyFrame && mListener != null) {
+            mKeyFrameRequests++;
+            mListener.onKeyFrameRequest();
+        }
+    }
+
+    // false if the packet is gone for good
+    private boolean retransmit(int sequence, RtpPacketizer.Sink sink) throws IOException {
+        mNackedPackets++;
+        int slot = sequence & mMask;
+        long ringSequence;
+        int chunkOffset;
+        int chunkLength;
+        mPacket.clear();
+        synchronized (this) {
+            if (mSequence[slot] != sequence) {
+                mEvictedPackets++;
+                return false;
+            }
+            ringSequence = mRingSequence[slot];
+            chunkOffset = mChunkOffset[slot];
+            chunkLength = mChunkLength[slot];
+            mPacket.put((byte) (RtpPacketizer.RTP_VERSION << 6));
+            mPacket.put(mMarkerType[slot]);
+            mPacket.putShort((short) sequence);
+            mPacket.putInt(mTimestamp[slot]);
+            mPacket.putInt(mSsrc[slot]);
+            mPacket.put(mPrefix, slot * MAX_PREFIX, mPrefixLength[slot]);
+        }
+        if (ringSequence < 0 || mPacket.remaining() < chunkLength) {
+            mEvictedPackets++;
+            return false;
+        }
+
+        mReader.seek(ringSequence);
+        if (mReader.peek(mSlices, mInfo) != CircularEncoderBuffer.READ_OK ||
+                chunkOffset + chunkLength > mInfo.size) {
+            mEvictedPackets++;
+            return false;
+        }
+        // the chunk may straddle the wrap of the data buffer
+        for (int i = 0; i < mSlices.count && chunkLength > 0; i++) {
+            ByteBuffer slice = mSlices.buffers[i];
+            int size = slice.remaining();
+            if (chunkOffset >= size) {
+                chunkOffset -= size;
+                continue;
+            }
+            int take = Math.min(size - chunkOffset, chunkLength);
+            int limit = slice.limit();
+            int position = slice.position();
+            slice.position(position + chunkOffset);
+            slice.limit(position + chunkOffset + take);
+            mPacket.put(slice);
+            slice.limit(limit);
+            slice.position(position);
+            chunkOffset = 0;
+            chunkLength -= take;
+        }
+        if (!mReader.isPeekIntact()) {
+            // overwritten while copying
+            mEvictedPackets++;
+            return false;
+        }
+        mPacket.flip();
+        mRetransmittedPackets++;
+        sink.onPacket(mPacket);
+        return true;
+    }
+
+    // sequence numbers asked for
+    public long getNackedPackets() {
+        return mNackedPackets;
+    }
+
+    public long getRetransmittedPackets() {
+        return mRetransmittedPackets;
+    }
+
+    // asked for but no longer in the table or the ring
+    public long getEvictedPackets() {
+        return mEvictedPackets;
+    }
+
+    public long getKeyFrameRequests() {
+        return mKeyFrameRequests;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.myscreenshare.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles RTP packets from RtpPacketizer, or any RFC 6184 / RFC 7798
+ * sender, into Annex-B access units with 4 byte start codes. Single NAL,
+ * aggregation (STAP-A / AP) and fragmentation (FU-A / FU) packets are
+ * understood. An access unit ends at the marker bit, or when a packet with
+ * another timestamp shows that the marker was lost.
+ *
+ * A gap in the sequence numbers spoils the access unit it falls in, or the
+ * next one if it falls between two: it is reported as RESULT_DROPPED
+ * instead of handing out a broken frame. Packets older than the expected
+ * one are ignored. Not thread safe.
+ */
+public class RtpDepacketizer {
+
+    // results of push()
+    public static final int RESULT_NONE = 0; // packet taken, access unit not complete
+    public static final int RESULT_FRAME = 1; // getFrame() has a complete access unit
+    public static final int RESULT_DROPPED = 2; // an access unit was incomplete
+
+    private static final int AVC_NAL_STAP_A = 24;
+    private static final int HEVC_NAL_AP = 48;
+
+    private final int mCodec;
+    private final ByteBuffer mFrame;
+
+    private boolean mHaveSequence;
+    private int mExpectedSequence;
+    private boolean mInFrame;
+    private int mFrameTimestamp;
+    private boolean mFrameCorrupt;
+    private boolean mFrameKey;
+    private boolean mInFragment;
+
+    // the frame handed out by the last RESULT_FRAME
+    private int mDoneTimestamp;
+    private boolean mDoneKey;
+
+    private long mLostPackets;
+    private long mLatePackets;
+    private long mFrameCount;
+    private long mDroppedFrames;
+
+    public RtpDepacketizer(int codec, int maxFrameSize) {
+        if (codec != RtpPacketizer.CODEC_AVC && codec != RtpPacketizer.CODEC_HEVC) {
+            throw new RuntimeException("Unknown codec " + codec);
+        }
+        mCodec = codec;
+        mFrame = ByteBuffer.allocateDirect(maxFrameSize);
+    }
+
+    // Takes [position, limit) of one RTP packet, returns one of RESULT_*.
+    // With RESULT_DROPPED the packet itself was taken for the next frame.
+    public int push(ByteBuffer packet) {
+        int pos = packet.position();
+        int limit = packet.limit();
+        if (limit - pos < RtpPacketizer.RTP_HEADER_SIZE ||
+                ((packet.get(pos) >> 6) & 0x3) != RtpPacketizer.RTP_VERSION) {
+            return RESULT_NONE;
+        }
+        int b0 = packet.get(pos) & 0xFF;
+        boolean marker = (packet.get(pos + 1) & 0x80) != 0;
+        int sequence = packet.getShort(pos + 2) & 0xFFFF;
+        int timestamp = packet.getInt(pos + 4);
+        int payload = pos + RtpPacketizer.RTP_HEADER_SIZE + 4 * (b0 & 0x0F);
+        if ((b0 & 0x10) != 0 && payload + 4 <= limit) {
+            // header extension
+            payload += 4 + 4 * (packet.getShort(payload + 2) & 0xFFFF);
+        }
+        if ((b0 & 0x20) != 0) {
+            limit -= packet.get(limit - 1) & 0xFF;
+        }
+        if (payload >= limit) {
+            return RESULT_NONE;
+        }
+
+        boolean gap = false;
+        if (mHaveSequence) {
+            int missing = (sequence - mExpectedSequence) & 0xFFFF;
+            if (missing >= 0x8000) {
+                mLatePackets++;
+                return RESULT_NONE;
+            }
+            if (missing > 0) {
+                mLostPackets += missing;
+                gap = true;
+            }
+        }
+        mHaveSequence = true;
+        mExpectedSequence = (sequence + 1) & 0xFFFF;
+
+        int result = RESULT_NONE;
+        if (mInFrame && timestamp != mFrameTimestamp) {
+            // the marker of the previous one got lost
+            mDroppedFrames++;
+            mInFrame = false;
+            result = RESULT_DROPPED;
+        }
+        if (!mInFrame) {
+            mInFrame = true;
+            mFrameTimestamp = timestamp;
+            mFrame.clear();
+            mFrameCorrupt = false;
+            mFrameKey = false;
+            mInFragment = false;
+        }
+        if (gap) {
+            // the lost packets may have been the start of this one too
+            mFrameCorrupt = true;
+        }
+
+        if (!mFrameCorrupt) {
+            appendPayload(packet, payload, limit);
+        }
+
+        if (marker) {
+            if (mFrameCorrupt) {
+                mDroppedFrames++;
+                result = RESULT_DROPPED;
+            } else {
+                mFrame.flip();
+                mDoneTimestamp = mFrameTimestamp;
+                mDoneKey = mFrameKey;
+                mFrameCount++;
+                result = RESULT_FRAME;
+            }
+            mInFrame = false;
+        }
+        return result;
+    }
+
+    private void appendPayload(ByteBuffer packet, int payload, int limit) {
+        int headerSize = mCodec == RtpPacketizer.CODEC_AVC ? 1 : 2;
+        int type = nalType(packet.get(payload));
+        int fuType = mCodec == RtpPacketizer.CODEC_AVC ?
+                RtpPacketizer.AVC_NAL_FU_A : RtpPacketizer.HEVC_NAL_FU;
+        int apType = mCodec == RtpPacketizer.CODEC_AVC ? AVC_NAL_STAP_A : HEVC_NAL_AP;
+
+        if (type == fuType) {
+            if (payload + headerSize + 1 > limit) {
+                mFrameCorrupt = true;
+                return;
+            }
+            int fuHeader = packet.get(payload + headerSize) & 0xFF;
+            boolean start = (fuHeader & 0x80) != 0;
+            boolean end = (fuHeader & 0x40) != 0;
+            int origType = mCodec == RtpPacketizer.CODEC_AVC ? fuHeader & 0x1F : fuHeader & 0x3F;
+            if (start) {
+                if (!reserve(4 + headerSize)) {
+                    return;
+                }
+                mFrame.putInt(1);
+                if (mCodec == RtpPacketizer.CODEC_AVC) {
+                    mFrame.put((byte) ((packet.get(payload) & 0xE0) | origType));
+                } else {
+                    mFrame.put((byte) ((packet.get(payload) & 0x81) | (origType << 1)));
+                    mFrame.put(packet.get(payload + 1));
+                }
+                noteType(origType);
+                mInFragment = true;
+            } else if (!mInFragment) {
+                mFrameCorrupt = true;
+                return;
+            }
+            append(packet, payload + headerSize + 1, limit);
+            if (end) {
+                mInFragment = false;
+            }
+        } else if (type == apType) {
+            int pos = payload + headerSize;
+            while (pos + 2 <= limit) {
+                int size = packet.getShort(pos) & 0xFFFF;
+                pos += 2;
+                if (size == 0 || pos + size > limit) {
+                    mFrameCorrupt = true;
+                    return;
+                }
+                appendNal(packet, pos, pos + size);
+                pos += size;
+            }
+        } else {
+            appendNal(packet, payload, limit);
+        }
+    }
+
+    private void appendNal(ByteBuffer packet, int from, int to) {
+        if (!reserve(4)) {
+            return;
+        }
+        mFrame.putInt(1);
+        noteType(nalType(packet.get(from)));
+        append(packet, from, to);
+    }
+
+    private void append(ByteBuffer packet, int from, int to) {
+        if (!reserve(to - from)) {
+            return;
+        }
+        // bulk copy without a slice, the packet gets its window back
+        int position = packet.position();
+        int limit = packet.limit();
+        packet.limit(to);
+        packet.position(from);
+        mFrame.put(packet);
+        packet.limit(limit);
+        packet.position(position);
+    }
+
+    private boolean reserve(int bytes) {
+        if (mFrame.remaining() < bytes) {
+            mFrameCorrupt = true;
+            return false;
+        }
+        return true;
+    }
+
+    private int nalType(byte b0) {
+        return mCodec == RtpPacketizer.CODEC_AVC ? b0 & 0x1F : (b0 >> 1) & 0x3F;
+    }
+
+    private void noteType(int type) {
+        if (mCodec == RtpPacketizer.CODEC_AVC) {
+            mFrameKey |= type == 5;
+        } else {
+            // BLA, IDR and CRA pictures
+            mFrameKey |= type >= 16 && type <= 21;
+        }
+    }
+
+    // the access unit of the last RESULT_FRAME, valid until the next push()
+    public ByteBuffer getFrame() {
+        return mFrame;
+    }
+
+    public int getFrameTimestamp() {
+        return mDoneTimestamp;
+    }
+
+    public boolean isKeyFrame() {
+        return mDoneKey;
+    }
+
+    public long getLostPackets() {
+        return mLostPackets;
+    }
+
+    public long getLatePackets() {
+        return mLatePackets;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.myscreenshare.net;
+
+import com.example.myscreenshare.codec.AnnexB;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits Annex-B access units into RTP packets: RFC 6184 for H.264 and
+ * RFC 7798 for HEVC. A NAL unit that fits the MTU goes out as a single NAL
+ * unit packet, a larger one is cut into FU-A (H.264) or FU (HEVC)
+ * fragments. The last packet of an access unit has the marker bit.
+ *
+ * Every packet is built in the same direct buffer and handed to the sink,
+ * which must send or copy it before returning. Nothing is allocated per
+ * packet. Not thread safe.
+ */
+public class RtpPacketizer {
+
+    public static final int CODEC_AVC = 0;
+    public static final int CODEC_HEVC = 1;
+
+    public static final int RTP_HEADER_SIZE = 12;
+    public static final int RTP_VERSION = 2;
+    public static final int DEFAULT_PAYLOAD_TYPE = 96; // first dynamic one
+    // leaves room for IP, UDP and a tunnel below a 1500 byte link MTU
+    public static final int DEFAULT_MTU = 1200;
+    public static final int CLOCK_RATE = 90000;
+
+    static final int AVC_NAL_FU_A = 28;
+    static final int HEVC_NAL_FU = 49;
+
+    public interface Sink {
+        // packet is [position, limit), only valid during the call
+        void onPacket(ByteBuffer packet) throws IOException;
+    }
+
+    private final int mCodec;
+    private final int mPayloadType;
+    private final int mSsrc;
+    private final int mMtu;
+    private final ByteBuffer mPacket;
+
+    private int mSequence;
+    private int mAccessUnitStart;
+    private int mChunkOffset;
+    private int mChunkLength;
+    private long mPacketCount;
+    private long mByteCount;
+
+    // mtu counts the RTP header and payload, not IP and UDP
+    public RtpPacketizer(int codec, int payloadType, int ssrc, int mtu) {
+        if (codec != CODEC_AVC && codec != CODEC_HEVC) {
+            throw new RuntimeException("Unknown codec " + codec);
+        }
+        if (mtu < RTP_HEADER_SIZE + 16) {
+            throw new RuntimeException("MTU too small: " + mtu);
+        }
+        mCodec = codec;
+        mPayloadType = payloadType;
+        mSsrc = ssrc;
+        mMtu = mtu;
+        mPacket = ByteBuffer.allocateDirect(mtu);
+    }
+
+    public static int rtpTimestamp(long ptsUsec) {
+        return (int) (ptsUsec * (CLOCK_RATE / 1000) / 1000);
+    }
+
+    // Packetizes [position, limit) of accessUnit, position and limit are
+    // restored. Returns the number of packets.
+    public int packetize(ByteBuffer accessUnit, long ptsUsec, Sink sink) throws IOException {
+        int position = accessUnit.position();
+        int limit = accessUnit.limit();
+        int timestamp = rtpTimestamp(ptsUsec);
+        int count = 0;
+        mAccessUnitStart = position;
+        try {
+            int start = AnnexB.findStartCode(accessUnit, position, limit);
+            while (start < limit) {
+                int nalStart = AnnexB.skipStartCode(accessUnit, start);
+                int next = AnnexB.findStartCode(accessUnit, nalStart, limit);
+                boolean last = next >= limit;
+                if (nalStart < next) {
+                    count += packetizeNal(accessUnit, nalStart, next, timestamp, last, sink);
+                }
+                start = next;
+            }
+        } finally {
+            accessUnit.limit(limit);
+            accessUnit.position(position);
+        }
+        return count;
+    }
+
+    private int packetizeNal(ByteBuffer buf, int nalStart, int nalEnd, int timestamp,
+                             boolean lastNal, Sink sink) throws IOException {
+        int nalSize = nalEnd - nalStart;
+        int maxPayload = mMtu - RTP_HEADER_SIZE;
+        if (nalSize <= maxPayload) {
+            writeHeader(lastNal, timestamp);
+            copy(buf, nalStart, nalEnd);
+            send(sink);
+            return 1;
+        }
+
+        int headerSize = mCodec == CODEC_AVC ? 1 : 2;
+        int fuHeaderSize = headerSize + 1;
+        int nalType;
+        byte indicator0;
+        byte indicator1 = 0;
+        if (mCodec == CODEC_AVC) {
+            nalType = AnnexB.avcNalType(buf, nalStart);
+            indicator0 = (byte) ((buf.get(nalStart) & 0xE0) | AVC_NAL_FU_A);
+        } else {
+            nalType = AnnexB.hevcNalType(buf, nalStart);
+            // keep F and the layer id high bit, type becomes FU
+            indicator0 = (byte) ((buf.get(nalStart) & 0x81) | (HEVC_NAL_FU << 1));
+            indicator1 = buf.get(nalStart + 1);
+        }
+
+        int count = 0;
+        int pos = nalStart + headerSize;
+        while (pos < nalEnd) {
+            int chunk = Math.min(maxPayload - fuHeaderSize, nalEnd - pos);
+            boolean first = pos == nalStart + headerSize;
+            boolean lastFragment = pos + chunk == nalEnd;
+            writeHeader(lastNal && lastFragment, timestamp);
+            mPacket.put(indicator0);
+            if (mCodec == CODEC_HEVC) {
+                mPacket.put(indicator1);
+            }
+            int fuHeader = nalType;
+            if (first) {
+                fuHeader |= 0x80;
+            }
+            if (lastFragment) {
+                fuHeader |= 0x40;
+            }
+            mPacket.put((byte) fuHeader);
+            copy(buf, pos, pos + chunk);
+            send(sink);
+            pos += chunk;
+            count++;
+        }
+        return count;
+    }
+
+    private void writeHeader(boolean marker, int timestamp) {
+        mPacket.clear();
+        mPacket.put((byte) (RTP_VERSION << 6));
+        mPacket.put((byte) ((marker ? 0x80 : 0) | mPayloadType));
+        mPacket.putShort((short) mSequence);
+        mPacket.putInt(timestamp);
+        mPacket.putInt(mSsrc);
+        mSequence = (mSequence + 1) & 0xFFFF;
+    }
+
+    // bulk copy without a slice, absolute reads need the limit back after
+    private void copy(ByteBuffer buf, int from, int to) {
+        mChunkOffset = from - mAccessUnitStart;
+        mChunkLength = to - from;
+        int limit = buf.limit();
+        buf.limit(to);
+        buf.position(from);
+        mPacket.put(buf);
+        buf.limit(limit);
+    }
+
+    private void send(Sink sink) throws IOException {
+        mPacket.flip();
+        mPacketCount++;
+        mByteCount += mPacket.remaining();
+        sink.onPacket(mPacket);
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    // sequence number of the next packet
+    public int getSequence() {
+        return mSequence;
+    }
+
+    // Where the payload of the packet in the sink came from: offset from the
+    // start of the access unit and length. The bytes before it in the
+    // payload are the FU header, if any.
+    public int getChunkOffset() {
+        return mChunkOffset;
+    }
+
+    public int getChunkLength() {
+        return mChunkLength;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.myscreenshare.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sender side of the DeliveryReporter feedback: remembers when the last
+ * packet of each recent frame went out and how many bytes the frame took,
+ * and turns the RATE reports of the receiver into BitrateController input.
+ *
+ * onFrameSent() runs on the sender thread, onRtcp() on the feedback thread.
+ */
+public class SendHistory {
+
+    // a few seconds of frames, reports come every 100 ms
+    private static final int FRAMES = 128;
+
+    // guarded by this
+    private final int[] mTimestamp = new int[FRAMES];
+    private final long[] mSendNanos = new long[FRAMES];
+    private final int[] mBytes = new int[FRAMES];
+    private int mHead;
+    private int mCount;
+
+    // feedback thread
+    private boolean mHaveReport;
+    private long mExpected;
+    private long mReceived;
+    private long mArrivalUsec;
+    private boolean mHaveArrival;
+    private long mReportCount;
+
+    // sender thread, after the marker packet of the frame went out
+    public synchronized void onFrameSent(int timestamp, int bytes, long nowNanos) {
+        mTimestamp[mHead] = timestamp;
+        mSendNanos[mHead] = nowNanos;
+        mBytes[mHead] = bytes;
+        mHead = (mHead + 1) % FRAMES;
+        if (mCount < FRAMES) {
+            mCount++;
+        }
+    }
+
+    // Feedback thread: one RTCP packet, compound or not. Returns true if it
+    // held a report for the controller.
+    public boolean onRtcp(ByteBuffer rtcp, BitrateController controller) {
+        int pos = rtcp.position();
+        int limit = rtcp.limit();
+        boolean report = false;
+        while (pos + 12 <= limit) {
+            int b0 = rtcp.get(pos) & 0xFF;
+            int type = rtcp.get(pos + 1) & 0xFF;
+            int end = pos + 4 * ((rtcp.getShort(pos + 2) & 0xFFFF) + 1);
+            if ((b0 >> 6) != RtpPacketizer.RTP_VERSION || end > limit) {
+                break;
+            }
+            if (type == DeliveryReporter.RTCP_APP && end - pos >= DeliveryReporter.HEADER_SIZE &&
+                    rtcp.getInt(pos + 8) == DeliveryReporter.NAME) {
+                onReport(rtcp, pos, end, controller);
+                report = true;
+            }
+            pos = end;
+        }
+        return report;
+    }
+
+    private void onReport(ByteBuffer rtcp, int pos, int end, BitrateController controller) {
+        for (int entry = pos + DeliveryReporter.HEADER_SIZE;
+             entry + DeliveryReporter.ENTRY_SIZE <= end; entry += DeliveryReporter.ENTRY_SIZE) {
+            int timestamp = rtcp.getInt(entry);
+            int arrival = rtcp.getInt(entry + 4);
+            // the receiver's clock in 32 bits of usec, unwrapped here
+            if (!mHaveArrival) {
+                mHaveArrival = true;
+                mArrivalUsec = arrival;
+            } else {
+                mArrivalUsec += arrival - (int) mArrivalUsec;
+            }
+            long sendNanos;
+            int bytes;
+            synchronized (this) {
+                int slot = find(timestamp);
+                if (slot < 0) {
+                    continue;
+                }
+                sendNanos = mSendNanos[slot];
+                bytes = mBytes[slot];
+            }
+            controller.onDelivered(sendNanos, mArrivalUsec * 1000, bytes);
+        }
+        // cumulative, the difference covers lost reports too
+        long expected = rtcp.getInt(pos + 16) & 0xFFFFFFFFL;
+        long received = rtcp.getInt(pos + 20) & 0xFFFFFFFFL;
+        long expectedDelta = mHaveReport ? expected - mExpected : expected;
+        long receivedDelta = mHaveReport ? received - mReceived : received;
+        mHaveReport = true;
+        mExpected = expected;
+        mReceived = received;
+        mReportCount++;
+        controller.onReport(expectedDelta, expectedDelta - receivedDelta);
+    }
+
+    // newest first, reports are about recent frames
+    private int find(int timestamp) {
+        for (int i = 1; i <= mCount; i++) {
+            int slot = (mHead + FRAMES - i) % FRAMES;
+            if (mTimestamp[slot] == timestamp) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public long getReportCount() {
+        return mReportCount;
+    }
+}
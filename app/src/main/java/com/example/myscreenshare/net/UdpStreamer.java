@@ -0,0 +1,236 @@
+package com.example.myscreenshare.net;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoder;
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Sends the encoder output as RTP over UDP to one address. Installed as the
+ * CircularEncoder.PacketListener it packetizes each buffer right where the
+ * drainer takes it from the codec, so a packet is on the wire before the
+ * copy into the ring is even done.
+ *
+ * The channel is non-blocking: when the socket buffer is full the packet is
+ * dropped and counted, the encoder thread never waits for the network.
+ *
+ * With a FecEncoder every media packet is also fed to it, repair packets go
+ * out after each group. The packetizer then keeps FecEncoder.OVERHEAD below
+ * the MTU so the repair packets fit it too.
+ *
+ * enableRetransmission() answers RTCP NACKs from the receiver out of the
+ * encoder ring, see NackResponder, on a feedback thread of its own.
+ * enableRateControl() feeds the receiver's RATE reports, see
+ * DeliveryReporter, to a BitrateController on the same thread.
+ */
+public class UdpStreamer implements CircularEncoder.PacketListener, Closeable {
+    public static final String TAG = "UdpStreamer";
+
+    private static final long FEEDBACK_TICK_MS = 100;
+
+    private final DatagramChannel mChannel;
+    private final RtpPacketizer mPacketizer;
+    private final FecEncoder mFec;
+    private volatile NackResponder mNack;
+    private volatile BitrateController mRate;
+    private final SendHistory mHistory = new SendHistory();
+    private final Clock mClock;
+    private Selector mSelector;
+    private Thread mFeedbackThread;
+    private volatile boolean mRunning;
+    private final RtpPacketizer.Sink mRepairSink = new RtpPacketizer.Sink() {
+        @Override
+        public void onPacket(ByteBuffer packet) throws IOException {
+            if (mChannel.write(packet) == 0) {
+                mDroppedPackets++;
+            }
+        }
+    };
+    private final RtpPacketizer.Sink mSink = new RtpPacketizer.Sink() {
+        @Override
+        public void onPacket(ByteBuffer packet) throws IOException {
+            int position = packet.position();
+            NackResponder nack = mNack;
+            if (nack != null) {
+                nack.record(packet, mPacketizer.getChunkOffset(), mPacketizer.getChunkLength());
+            }
+            if (mChannel.write(packet) == 0) {
+                mDroppedPackets++;
+            }
+            if (mFec != null) {
+                // even when dropped here, the receiver may rebuild it
+                packet.position(position);
+                mFec.protect(packet, mRepairSink);
+            }
+        }
+    };
+
+    private volatile long mDroppedPackets;
+    private volatile long mErrorCount;
+
+    public UdpStreamer(SocketAddress destination, int codec, int mtu) throws IOException {
+        this(destination, codec, mtu, null);
+    }
+
+    // fec may be null, its MTU should be mtu
+    public UdpStreamer(SocketAddress destination, int codec, int mtu, FecEncoder fec)
+            throws IOException {
+        mFec = fec;
+        mClock = Clock.SYSTEM;
+        mPacketizer = new RtpPacketizer(codec, RtpPacketizer.DEFAULT_PAYLOAD_TYPE,
+                (int) System.nanoTime(), fec != null ? mtu - FecEncoder.OVERHEAD : mtu);
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.connect(destination);
+    }
+
+    // Before the stream starts. The buffer must be the one the packets go to
+    // after this listener, listener may be null.
+    public void enableRetransmission(CircularEncoderBuffer buffer,
+                                     NackResponder.KeyFrameListener listener) throws IOException {
+        mNack = new NackResponder(buffer, NackResponder.DEFAULT_HISTORY,
+                mPacketizer.getMtu(), listener);
+        startFeedback();
+    }
+
+    // Before the stream starts. The controller's clock must be
+    // Clock.SYSTEM, its listener is called on the feedback thread.
+    public void enableRateControl(BitrateController controller) throws IOException {
+        mRate = controller;
+        startFeedback();
+    }
+
+    private void startFeedback() throws IOException {
+        if (mFeedbackThread != null) {
+            return;
+        }
+        mSelector = Selector.open();
+        mChannel.register(mSelector, SelectionKey.OP_READ);
+        mRunning = true;
+        mFeedbackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                feedbackLoop();
+            }
+        }, TAG + "-feedback");
+        mFeedbackThread.start();
+    }
+
+    private void feedbackLoop() {
+        ByteBuffer rtcp = ByteBuffer.allocateDirect(RtpPacketizer.DEFAULT_MTU);
+        try {
+            while (mRunning) {
+                // the controller also has to notice when reports stop
+                mSelector.select(FEEDBACK_TICK_MS);
+                mSelector.selectedKeys().clear();
+                BitrateController rate = mRate;
+                if (rate != null) {
+                    rate.onTick();
+                }
+                for (;;) {
+                    rtcp.clear();
+                    try {
+                        if (mChannel.receive(rtcp) == null) {
+                            break;
+                        }
+                    } catch (ClosedChannelException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // e.g. ICMP unreachable for an earlier send
+                        continue;
+                    }
+                    rtcp.flip();
+                    if (rate != null && mHistory.onRtcp(rtcp, rate)) {
+                        continue;
+                    }
+                    NackResponder nack = mNack;
+                    if (nack != null) {
+                        nack.onRtcp(rtcp, mRepairSink);
+                    }
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // close()
+        } catch (IOException e) {
+            LogUtil.e(TAG, "feedback failed: " + e);
+        }
+    }
+
+    @Override
+    public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        NackResponder nack = mNack;
+        if (nack != null) {
+            nack.onAccessUnit(flags);
+        }
+        long bytes = mPacketizer.getByteCount();
+        try {
+            mPacketizer.packetize(buf, ptsUsec, mSink);
+            if (mRate != null && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mHistory.onFrameSent(RtpPacketizer.rtpTimestamp(ptsUsec),
+                        (int) (mPacketizer.getByteCount() - bytes), mClock.nanoTime());
+            }
+        } catch (IOException e) {
+            // e.g. ICMP unreachable while nobody listens yet
+            if (mErrorCount++ == 0) {
+                LogUtil.w(TAG, "send failed: " + e);
+            }
+        }
+    }
+
+    public long getSentPackets() {
+        return mPacketizer.getPacketCount();
+    }
+
+    public long getSentBytes() {
+        return mPacketizer.getByteCount();
+    }
+
+    public long getRepairPackets() {
+        return mFec != null ? mFec.getRepairPackets() : 0;
+    }
+
+    public long getRetransmittedPackets() {
+        return mNack != null ? mNack.getRetransmittedPackets() : 0;
+    }
+
+    public long getDroppedPackets() {
+        return mDroppedPackets;
+    }
+
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        LogUtil.d(TAG, "sent " + getSentPackets() + " packets, " + getSentBytes() +
+                " bytes, repair " + getRepairPackets() + ", retransmitted " +
+                getRetransmittedPackets() + ", dropped " + mDroppedPackets + ", errors " + mErrorCount);
+        if (mRate != null) {
+            LogUtil.d(TAG, "rate control: " + mRate);
+        }
+        if (mFeedbackThread != null) {
+            mRunning = false;
+            mSelector.wakeup();
+            try {
+                mFeedbackThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSelector.close();
+        }
+        mChannel.close();
+    }
+}
@@ -0,0 +1,352 @@
+package com.example.myscreenshare.receiver;
+
+import com.example.myscreenshare.util.Clock;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds reassembled access units between the network and the decoder and
+ * decides when each one is played.
+ *
+ * The delay adapts to the network. Inter-arrival jitter is estimated as in
+ * RFC 3550 and the playout delay follows JITTER_MULTIPLIER times that, kept
+ * between the min and max delay. It grows at once and shrinks slowly: a
+ * stall costs more than a few ms of extra delay.
+ *
+ * The freshest decodable frame wins. A due key frame drops every frame
+ * before it. A due frame with a newer due frame behind it comes out marked
+ * late, to be decoded for its references but not shown. After a loss only
+ * a key frame is taken, frames in between could not be decoded anyway.
+ *
+ * Frames live in a fixed pool, nothing is allocated after construction.
+ * Thread safe: the network thread inserts, the decoder thread takes.
+ */
+public class JitterBuffer {
+
+    // results of insert()
+    public static final int INSERT_OK = 0;
+    public static final int INSERT_LATE = 1; // not newer than a queued or played frame
+    public static final int INSERT_NEED_KEY_FRAME = 2; // chain broken, waiting for a key frame
+    public static final int INSERT_OVERFLOW = 3; // no room or too large
+
+    public static final long DEFAULT_MIN_DELAY_USEC = 20000;
+    public static final long DEFAULT_MAX_DELAY_USEC = 500000;
+    // playout delay in units of the jitter estimate
+    public static final int JITTER_MULTIPLIER = 4;
+    public static final int CLOCK_RATE = 90000;
+
+    // RFC 3550 gain, 1/16
+    private static final int JITTER_GAIN_SHIFT = 4;
+    // delay shrinks by 1/64 of the excess per frame, about 2 s at 30 fps
+    private static final int DELAY_DECAY_SHIFT = 6;
+    // the base transit creeps up by 1/1024 per frame, so a changed route or
+    // clock drift can't pin the delay to an old minimum forever
+    private static final int BASE_LEAK_SHIFT = 10;
+
+    public static class Frame {
+        public final ByteBuffer data; // the access unit, [0, limit)
+        public long ptsUsec; // from the unwrapped RTP timestamp
+        public boolean keyFrame;
+        public boolean late; // a newer frame is due too, decode but don't show
+
+        private Frame(int maxFrameSize) {
+            data = ByteBuffer.allocateDirect(maxFrameSize);
+        }
+    }
+
+    private final int mMaxFrameSize;
+    private final long mMinDelayNanos;
+    private final long mMaxDelayNanos;
+
+    // queued frames oldest first, a ring starting at mHead
+    private final Frame[] mQueue;
+    private int mHead;
+    private int mCount;
+    private final Frame[] mFree;
+    private int mFreeCount;
+
+    private boolean mHaveTimestamp;
+    private int mLastRtpTimestamp;
+    private long mLastTimestamp; // unwrapped
+    private boolean mHaveQueued;
+    private long mLastQueuedUsec;
+
+    // transit: arrival time minus media time
+    private boolean mHaveTransit;
+    private long mBaseTransitNanos;
+    private long mPrevTransitNanos;
+    private long mJitterNanos;
+    private long mDelayNanos;
+    private boolean mNeedKeyFrame = true;
+
+    private long mInsertCount;
+    private long mPlayCount;
+    private long mArrivedLateCount;
+    private long mShownLateCount;
+    private long mSkipCount;
+    private long mLateDropCount;
+    private long mNeedKeyDropCount;
+    private long mOverflowCount;
+    private long mLossCount;
+
+    public JitterBuffer(int capacity, int maxFrameSize) {
+        this(capacity, maxFrameSize, DEFAULT_MIN_DELAY_USEC, DEFAULT_MAX_DELAY_USEC);
+    }
+
+    public JitterBuffer(int capacity, int maxFrameSize, long minDelayUsec, long maxDelayUsec) {
+        if (minDelayUsec > maxDelayUsec) {
+            throw new RuntimeException("Min delay " + minDelayUsec + " > max " + maxDelayUsec);
+        }
+        mMaxFrameSize = maxFrameSize;
+        mMinDelayNanos = minDelayUsec * 1000;
+        mMaxDelayNanos = maxDelayUsec * 1000;
+        mDelayNanos = mMinDelayNanos;
+        mQueue = new Frame[capacity];
+        mFree = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFree[i] = new Frame(maxFrameSize);
+        }
+        mFreeCount = capacity;
+    }
+
+    /**
+     * Copy [position, limit) of an access unit in, arrivalNanos is when its
+     * last packet came. Returns one of INSERT_*.
+     */
+    public synchronized int insert(ByteBuffer accessUnit, int rtpTimestamp,
+                                   boolean keyFrame, long arrivalNanos) {
+        long ptsUsec = unwrap(rtpTimestamp) * 1000000 / CLOCK_RATE;
+        if (mHaveQueued && ptsUsec <= mLastQueuedUsec) {
+            mLateDropCount++;
+            return INSERT_LATE;
+        }
+        updateDelay(ptsUsec, arrivalNanos);
+        if (mNeedKeyFrame && !keyFrame) {
+            mNeedKeyDropCount++;
+            return INSERT_NEED_KEY_FRAME;
+        }
+        int size = accessUnit.remaining();
+        if (size > mMaxFrameSize || (mFreeCount == 0 && !keyFrame)) {
+            mNeedKeyFrame = true;
+            mOverflowCount++;
+            return INSERT_OVERFLOW;
+        }
+        if (mFreeCount == 0) {
+            // a key frame makes the whole queue obsolete
+            mSkipCount += mCount;
+            dropFrames(mCount);
+        }
+
+        Frame frame = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        frame.data.clear();
+        frame.data.put(accessUnit.duplicate()).flip();
+        frame.ptsUsec = ptsUsec;
+        frame.keyFrame = keyFrame;
+        frame.late = false;
+        mQueue[(mHead + mCount) % mQueue.length] = frame;
+        mCount++;
+
+        mNeedKeyFrame = false;
+        mHaveQueued = true;
+        mLastQueuedUsec = ptsUsec;
+        mInsertCount++;
+        if (arrivalNanos > playoutNanos(frame)) {
+            mArrivedLateCount++;
+        }
+        notifyAll();
+        return INSERT_OK;
+    }
+
+    // A frame was lost on the way, nothing but a key frame helps now.
+    public synchronized void onFrameLost() {
+        mNeedKeyFrame = true;
+        mLossCount++;
+    }
+
+    /**
+     * The frame to decode at nowNanos, null if none is due. Give it back
+     * with release() once its data has been consumed.
+     */
+    public synchronized Frame poll(long nowNanos) {
+        int due = 0;
+        int newestKey = -1;
+        while (due < mCount && playoutNanos(frameAt(due)) <= nowNanos) {
+            if (frameAt(due).keyFrame) {
+                newestKey = due;
+            }
+            due++;
+        }
+        if (due == 0) {
+            return null;
+        }
+        if (newestKey > 0) {
+            mSkipCount += newestKey;
+            dropFrames(newestKey);
+            due -= newestKey;
+        }
+
+        Frame frame = mQueue[mHead];
+        mQueue[mHead] = null;
+        mHead = (mHead + 1) % mQueue.length;
+        mCount--;
+        frame.late = due > 1;
+        if (frame.late) {
+            mShownLateCount++;
+        }
+        mPlayCount++;
+        return frame;
+    }
+
+    // poll() by clock, waiting up to maxWaitNanos for a frame to become due
+    public synchronized Frame take(Clock clock, long maxWaitNanos) throws InterruptedException {
+        long deadline = clock.nanoTime() + maxWaitNanos;
+        for (;;) {
+            long now = clock.nanoTime();
+            Frame frame = poll(now);
+            if (frame != null || now >= deadline) {
+                return frame;
+            }
+            long waitNanos = deadline - now;
+            if (mCount > 0) {
+                waitNanos = Math.max(1, Math.min(waitNanos, playoutNanos(mQueue[mHead]) - now));
+            }
+            // woken early by insert()
+            wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    public synchronized void release(Frame frame) {
+        mFree[mFreeCount++] = frame;
+    }
+
+    // drop everything queued, e.g. when the decoder is restarted
+    public synchronized void clear() {
+        dropFrames(mCount);
+        mNeedKeyFrame = true;
+    }
+
+    private Frame frameAt(int i) {
+        return mQueue[(mHead + i) % mQueue.length];
+    }
+
+    private void dropFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            mFree[mFreeCount++] = mQueue[mHead];
+            mQueue[mHead] = null;
+            mHead = (mHead + 1) % mQueue.length;
+        }
+        mCount -= count;
+    }
+
+    private long playoutNanos(Frame frame) {
+        return frame.ptsUsec * 1000 + mBaseTransitNanos + mDelayNanos;
+    }
+
+    // 32 bit RTP timestamps extended to 64, older ones don't move the reference
+    private long unwrap(int rtpTimestamp) {
+        if (!mHaveTimestamp) {
+            mHaveTimestamp = true;
+            mLastRtpTimestamp = rtpTimestamp;
+            mLastTimestamp = rtpTimestamp & 0xFFFFFFFFL;
+            return mLastTimestamp;
+        }
+        long timestamp = mLastTimestamp + (rtpTimestamp - mLastRtpTimestamp);
+        if (timestamp > mLastTimestamp) {
+            mLastTimestamp = timestamp;
+            mLastRtpTimestamp = rtpTimestamp;
+        }
+        return timestamp;
+    }
+
+    private void updateDelay(long ptsUsec, long arrivalNanos) {
+        long transit = arrivalNanos - ptsUsec * 1000;
+        if (!mHaveTransit) {
+            mHaveTransit = true;
+            mBaseTransitNanos = transit;
+            mPrevTransitNanos = transit;
+            return;
+        }
+        long d = Math.abs(transit - mPrevTransitNanos);
+        mPrevTransitNanos = transit;
+        mJitterNanos += (d - mJitterNanos) >> JITTER_GAIN_SHIFT;
+        if (transit < mBaseTransitNanos) {
+            mBaseTransitNanos = transit;
+        } else {
+            mBaseTransitNanos += (transit - mBaseTransitNanos) >> BASE_LEAK_SHIFT;
+        }
+
+        long target = Math.max(mMinDelayNanos,
+                Math.min(mMaxDelayNanos, JITTER_MULTIPLIER * mJitterNanos));
+        if (target > mDelayNanos) {
+            mDelayNanos = target;
+        } else {
+            mDelayNanos -= (mDelayNanos - target) >> DELAY_DECAY_SHIFT;
+        }
+    }
+
+    public synchronized long getDelayUsec() {
+        return mDelayNanos / 1000;
+    }
+
+    public synchronized long getJitterUsec() {
+        return mJitterNanos / 1000;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mCount;
+    }
+
+    public synchronized boolean isWaitingForKeyFrame() {
+        return mNeedKeyFrame;
+    }
+
+    public synchronized long getInsertCount() {
+        return mInsertCount;
+    }
+
+    public synchronized long getPlayCount() {
+        return mPlayCount;
+    }
+
+    // queued after their playout time had passed
+    public synchronized long getArrivedLateCount() {
+        return mArrivedLateCount;
+    }
+
+    // handed out marked late
+    public synchronized long getShownLateCount() {
+        return mShownLateCount;
+    }
+
+    // dropped unplayed because a newer key frame was due
+    public synchronized long getSkipCount() {
+        return mSkipCount;
+    }
+
+    public synchronized long getLateDropCount() {
+        return mLateDropCount;
+    }
+
+    public synchronized long getNeedKeyDropCount() {
+        return mNeedKeyDropCount;
+    }
+
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    public synchronized long getLossCount() {
+        return mLossCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "jitter " + mJitterNanos / 1000 + " us, delay " + mDelayNanos / 1000 +
+                " us, queued " + mCount + ", inserted " + mInsertCount + ", played " +
+                mPlayCount + " (late " + mShownLateCount + "), skipped " + mSkipCount +
+                ", arrived late " + mArrivedLateCount + ", dropped late " + mLateDropCount +
+                " / no key " + mNeedKeyDropCount + " / overflow " + mOverflowCount +
+                ", lost " + mLossCount;
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.myscreenshare.receiver;
+
+import com.example.myscreenshare.codec.AnnexB;
+import com.example.myscreenshare.net.DeliveryReporter;
+import com.example.myscreenshare.net.FecDecoder;
+import com.example.myscreenshare.net.NackGenerator;
+import com.example.myscreenshare.net.RtpDepacketizer;
+import com.example.myscreenshare.net.RtpPacketizer;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Network side of a viewer: takes the RTP stream of a UdpStreamer on a UDP
+ * socket, reassembles the access units and queues them in a JitterBuffer.
+ *
+ * The codec config (SPS / PPS, or VPS / SPS / PPS) is taken out of the
+ * stream, from its own access unit or from the front of a key frame, and
+ * kept for the decoder. A frame the depacketizer had to drop tells the
+ * jitter buffer to wait for the next key frame.
+ *
+ * Packets pass a FecDecoder first: when the sender adds repair packets lost
+ * ones are rebuilt before the depacketizer sees the gap. With enableNack()
+ * missing packets are also asked for again with RTCP NACKs to the address
+ * the stream comes from, and gaps are held while they may still come.
+ * enableRateFeedback() sends the sender's BitrateController a report of
+ * the frame arrivals and the losses every 100 ms, see DeliveryReporter.
+ */
+public class RtpReceiver implements Closeable {
+    public static final String TAG = "RtpReceiver";
+
+    // large enough for any datagram, the MTU is the sender's business
+    private static final int MAX_PACKET_SIZE = 65536;
+    // repair packets up to a full Ethernet payload are understood
+    private static final int MAX_FEC_MTU = 1500;
+    private static final int MAX_NACK_SIZE = 512;
+
+    private final DatagramChannel mChannel;
+    private final FecDecoder mFec;
+    private final RtpDepacketizer mDepacketizer;
+    private final JitterBuffer mJitterBuffer;
+    private final Clock mClock;
+    private final int mCodec;
+    private final Thread mThread;
+
+    private volatile boolean mRunning;
+    private volatile ByteBuffer mCodecConfig;
+    private volatile long mPacketCount;
+    private volatile long mByteCount;
+    private long mArrivalNanos;
+    private NackGenerator mNack;
+    private ByteBuffer mNackPacket;
+    private DeliveryReporter mReporter;
+    private ByteBuffer mReportPacket;
+    private SocketAddress mSender;
+
+    private final RtpPacketizer.Sink mMediaSink = new RtpPacketizer.Sink() {
+        @Override
+        public void onPacket(ByteBuffer packet) {
+            if (mNack != null) {
+                // it may have been rebuilt by FEC
+                mNack.cancel(packet.getShort(packet.position() + 2) & 0xFFFF);
+            }
+            onMediaPacket(packet, mArrivalNanos);
+        }
+    };
+
+    public RtpReceiver(SocketAddress bindAddress, int codec, int maxFrameSize,
+                       JitterBuffer jitterBuffer, Clock clock) throws IOException {
+        mFec = new FecDecoder(MAX_FEC_MTU);
+        mDepacketizer = new RtpDepacketizer(codec, maxFrameSize);
+        mJitterBuffer = jitterBuffer;
+        mClock = clock;
+        mCodec = codec;
+        mChannel = DatagramChannel.open();
+        try {
+            mChannel.socket().bind(bindAddress);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+    }
+
+    public SocketAddress getLocalAddress() {
+        return mChannel.socket().getLocalSocketAddress();
+    }
+
+    // before start()
+    public void enableNack() {
+        mNack = new NackGenerator((int) System.nanoTime());
+        mNackPacket = ByteBuffer.allocateDirect(MAX_NACK_SIZE);
+        mFec.setNackGenerator(mNack);
+    }
+
+    // before start()
+    public void enableRateFeedback() {
+        mReporter = new DeliveryReporter((int) System.nanoTime());
+        mReportPacket = ByteBuffer.allocateDirect(DeliveryReporter.MAX_REPORT_SIZE);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    private void loop() {
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        try {
+            while (mRunning) {
+                packet.clear();
+                mSender = mChannel.receive(packet);
+                long arrivalNanos = mClock.nanoTime();
+                packet.flip();
+                mPacketCount++;
+                mByteCount += packet.remaining();
+                onPacket(packet, arrivalNanos);
+                sendNacks(arrivalNanos);
+                sendReport(arrivalNanos);
+            }
+        } catch (ClosedChannelException e) {
+            // close()
+        } catch (IOException e) {
+            LogUtil.e(TAG, "receive failed: " + e);
+        }
+    }
+
+    // receiver thread
+    void onPacket(ByteBuffer packet, long arrivalNanos) throws IOException {
+        // a recovered packet counts as arrived with the one that rebuilt it
+        mArrivalNanos = arrivalNanos;
+        if ((mNack != null || mReporter != null) &&
+                packet.remaining() >= RtpPacketizer.RTP_HEADER_SIZE &&
+                !mFec.isRepairPacket(packet)) {
+            int pos = packet.position();
+            int sequence = packet.getShort(pos + 2) & 0xFFFF;
+            int ssrc = packet.getInt(pos + 8);
+            if (mNack != null) {
+                mNack.onPacket(sequence, ssrc, arrivalNanos);
+            }
+            if (mReporter != null) {
+                mReporter.onPacket(sequence, ssrc, packet.getInt(pos + 4),
+                        (packet.get(pos + 1) & 0x80) != 0, arrivalNanos);
+            }
+        }
+        mFec.onPacket(packet, mMediaSink);
+    }
+
+    // receiver thread, retries only go out as packets come in
+    private void sendNacks(long nowNanos) throws IOException {
+        if (mNack == null || mSender == null) {
+            return;
+        }
+        mNackPacket.clear();
+        if (mNack.poll(nowNanos, mNackPacket) > 0) {
+            mNackPacket.flip();
+            mChannel.send(mNackPacket, mSender);
+        }
+    }
+
+    private void sendReport(long nowNanos) throws IOException {
+        if (mReporter == null || mSender == null) {
+            return;
+        }
+        mReportPacket.clear();
+        if (mReporter.poll(nowNanos, mReportPacket)) {
+            mReportPacket.flip();
+            mChannel.send(mReportPacket, mSender);
+        }
+    }
+
+    private void onMediaPacket(ByteBuffer packet, long arrivalNanos) {
+        long dropped = mDepacketizer.getDroppedFrames();
+        int result = mDepacketizer.push(packet);
+        if (mDepacketizer.getDroppedFrames() != dropped) {
+            // even if this packet completed the next frame
+            mJitterBuffer.onFrameLost();
+        }
+        if (result != RtpDepacketizer.RESULT_FRAME) {
+            return;
+        }
+        ByteBuffer frame = mDepacketizer.getFrame();
+        int configEnd = findConfigEnd(frame);
+        if (configEnd > frame.position()) {
+            keepCodecConfig(frame, configEnd);
+        }
+        if (configEnd < frame.limit()) {
+            mJitterBuffer.insert(frame, mDepacketizer.getFrameTimestamp(),
+                    mDepacketizer.isKeyFrame(), arrivalNanos);
+        }
+    }
+
+    // end of the parameter set NAL units at the front of the access unit
+    private int findConfigEnd(ByteBuffer frame) {
+        int limit = frame.limit();
+        int start = AnnexB.findStartCode(frame, frame.position(), limit);
+        while (start < limit) {
+            int nalStart = AnnexB.skipStartCode(frame, start);
+            if (nalStart >= limit || !isConfigNal(frame, nalStart)) {
+                return start;
+            }
+            start = AnnexB.findStartCode(frame, nalStart, limit);
+        }
+        return limit;
+    }
+
+    private boolean isConfigNal(ByteBuffer frame, int nalStart) {
+        if (mCodec == RtpPacketizer.CODEC_AVC) {
+            int type = AnnexB.avcNalType(frame, nalStart);
+            return type == AnnexB.AVC_NAL_SPS || type == AnnexB.AVC_NAL_PPS;
+        }
+        int type = AnnexB.hevcNalType(frame, nalStart);
+        return type >= AnnexB.HEVC_NAL_VPS && type <= AnnexB.HEVC_NAL_PPS;
+    }
+
+    private void keepCodecConfig(ByteBuffer frame, int configEnd) {
+        ByteBuffer config = frame.duplicate();
+        config.limit(configEnd);
+        if (config.equals(mCodecConfig)) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(config.remaining());
+        copy.put(config).flip();
+        mCodecConfig = copy;
+        LogUtil.d(TAG, "codec config, " + copy.remaining() + " bytes");
+    }
+
+    // Annex-B parameter sets seen last, null before the first
+    public ByteBuffer getCodecConfig() {
+        ByteBuffer config = mCodecConfig;
+        return config != null ? config.duplicate() : null;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    // after FEC recovery
+    public long getLostPackets() {
+        return mDepacketizer.getLostPackets();
+    }
+
+    public long getRecoveredPackets() {
+        return mFec.getRecoveredPackets();
+    }
+
+    // came in again after a NACK
+    public long getRepairedPackets() {
+        return mNack != null ? mNack.getRepairedPackets() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        mChannel.close();
+        if (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LogUtil.d(TAG, "received " + mPacketCount + " packets, " + mByteCount + " bytes, lost " +
+                mDepacketizer.getLostPackets() + ", recovered " + mFec.getRecoveredPackets() +
+                ", repaired " + getRepairedPackets() + ", " + mJitterBuffer);
+    }
+}
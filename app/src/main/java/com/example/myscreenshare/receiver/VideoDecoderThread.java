@@ -0,0 +1,189 @@
+package com.example.myscreenshare.receiver;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder side of a viewer: takes each frame from the JitterBuffer when it
+ * is due and decodes it to a Surface with MediaCodec. A frame marked late
+ * is decoded for its references but never rendered.
+ *
+ * The codec is configured on the first key frame once the RtpReceiver has
+ * seen the codec config, which goes in as the first input buffer with
+ * BUFFER_FLAG_CODEC_CONFIG.
+ */
+public class VideoDecoderThread extends Thread {
+    public static final String TAG = "VideoDecoderThread";
+
+    private static final long TAKE_TIMEOUT_NANOS = 10000000;
+    private static final long DEQUEUE_TIMEOUT_USEC = 5000;
+    // frames between queueInputBuffer() and their output
+    private static final int MAX_IN_FLIGHT = 32;
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxInputSize;
+    private final Surface mSurface;
+    private final RtpReceiver mReceiver;
+    private final JitterBuffer mJitterBuffer;
+    private final Clock mClock;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    private MediaCodec mDecoder;
+    private volatile boolean mRunning = true;
+
+    // render decision per frame in flight, looked up by pts
+    private final long[] mFlightPtsUsec = new long[MAX_IN_FLIGHT];
+    private final boolean[] mFlightRender = new boolean[MAX_IN_FLIGHT];
+    private int mFlightNext;
+
+    private volatile long mRenderedCount;
+    private volatile long mDiscardedCount;
+
+    public VideoDecoderThread(String mimeType, int width, int height, int maxInputSize,
+                              Surface surface, RtpReceiver receiver,
+                              JitterBuffer jitterBuffer, Clock clock) {
+        super(TAG);
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mMaxInputSize = maxInputSize;
+        mSurface = surface;
+        mReceiver = receiver;
+        mJitterBuffer = jitterBuffer;
+        mClock = clock;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mRunning) {
+                JitterBuffer.Frame frame = mJitterBuffer.take(mClock, TAKE_TIMEOUT_NANOS);
+                if (frame == null) {
+                    drainOutput();
+                    continue;
+                }
+                try {
+                    if (mDecoder == null && !startDecoder(frame)) {
+                        // no config yet, the next key frame may bring it
+                        mJitterBuffer.onFrameLost();
+                        continue;
+                    }
+                    queueFrame(frame);
+                } finally {
+                    mJitterBuffer.release(frame);
+                }
+                drainOutput();
+            }
+        } catch (InterruptedException e) {
+            // shutdown()
+        } catch (IOException | RuntimeException e) {
+            LogUtil.e(TAG, "decoding failed: " + e);
+        } finally {
+            if (mDecoder != null) {
+                mDecoder.stop();
+                mDecoder.release();
+                mDecoder = null;
+            }
+            LogUtil.d(TAG, "rendered " + mRenderedCount + ", discarded " + mDiscardedCount);
+        }
+    }
+
+    private boolean startDecoder(JitterBuffer.Frame frame) throws IOException {
+        ByteBuffer config = mReceiver.getCodecConfig();
+        if (config == null || !frame.keyFrame) {
+            return false;
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mMaxInputSize);
+        mDecoder = MediaCodec.createDecoderByType(mMimeType);
+        mDecoder.configure(format, mSurface, null, 0);
+        mDecoder.start();
+        queueInput(config, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        LogUtil.d(TAG, "decoder started, " + mWidth + "x" + mHeight);
+        return true;
+    }
+
+    private void queueFrame(JitterBuffer.Frame frame) {
+        mFlightPtsUsec[mFlightNext] = frame.ptsUsec;
+        mFlightRender[mFlightNext] = !frame.late;
+        mFlightNext = (mFlightNext + 1) % MAX_IN_FLIGHT;
+        queueInput(frame.data.duplicate(), frame.ptsUsec,
+                frame.keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    private void queueInput(ByteBuffer data, long ptsUsec, int flags) {
+        int index;
+        while ((index = mDecoder.dequeueInputBuffer(DEQUEUE_TIMEOUT_USEC)) < 0) {
+            // the decoder needs its output taken to free input
+            drainOutput();
+            if (!mRunning) {
+                return;
+            }
+        }
+        ByteBuffer input = mDecoder.getInputBuffer(index);
+        input.clear();
+        int size = data.remaining();
+        input.put(data);
+        mDecoder.queueInputBuffer(index, 0, size, ptsUsec, flags);
+    }
+
+    private void drainOutput() {
+        if (mDecoder == null) {
+            return;
+        }
+        for (;;) {
+            int index = mDecoder.dequeueOutputBuffer(mInfo, 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return;
+            }
+            if (index < 0) {
+                // format or buffers changed, nothing to do with surface output
+                continue;
+            }
+            boolean render = shouldRender(mInfo.presentationTimeUs);
+            mDecoder.releaseOutputBuffer(index, render);
+            if (render) {
+                mRenderedCount++;
+            } else {
+                mDiscardedCount++;
+            }
+        }
+    }
+
+    private boolean shouldRender(long ptsUsec) {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            if (mFlightPtsUsec[i] == ptsUsec) {
+                return mFlightRender[i];
+            }
+        }
+        return true;
+    }
+
+    public long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    public long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    // stop decoding and wait for the codec to be released
+    public void shutdown() {
+        mRunning = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
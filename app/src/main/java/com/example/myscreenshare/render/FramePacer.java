@@ -0,0 +1,95 @@
+package com.example.myscreenshare.render;
+
+import com.example.myscreenshare.util.Clock;
+
+/**
+ * Paces frames from the virtual display down to the encoder frame rate.
+ *
+ * The display composes whenever the screen changes, up to the panel refresh
+ * rate, while the encoder wants one frame per slot of 1/fps. At most one
+ * frame waits for its slot: a frame arriving while another one waits takes
+ * its place and the older one counts as dropped, so the encoder always gets
+ * the newest content and never a backlog.
+ *
+ * Not thread safe, the render thread owns it.
+ */
+public class FramePacer {
+
+    private final Clock mClock;
+    private long mIntervalNanos;
+    // frames this close to their slot are drawn at once, absorbs the
+    // compositor jitter and the millisecond granularity of the Handler
+    private long mSlackNanos;
+
+    private long mNextSlotNanos;
+    private boolean mPending;
+    private long mRenderedCount;
+    private long mDroppedCount;
+
+    public FramePacer(Clock clock, int fps) {
+        mClock = clock;
+        setFrameRate(fps);
+        mNextSlotNanos = clock.nanoTime();
+    }
+
+    // e.g. fewer frames on a congested link, from the next slot on
+    public void setFrameRate(int fps) {
+        if (fps <= 0) {
+            throw new RuntimeException("Invalid frame rate: " + fps);
+        }
+        mIntervalNanos = 1000000000L / fps;
+        mSlackNanos = mIntervalNanos / 8;
+    }
+
+    // A frame arrived. Returns the delay in nanoseconds after which poll()
+    // should be called, or -1 if a poll() is already due for the frame it
+    // replaced.
+    public long onFrameAvailable() {
+        if (mPending) {
+            mDroppedCount++;
+            return -1;
+        }
+        mPending = true;
+        return delayToSlot(mClock.nanoTime());
+    }
+
+    // Returns 0 if the waiting frame is to be drawn now, the delay in
+    // nanoseconds to poll again if it is early, or -1 if nothing waits.
+    public long poll() {
+        if (!mPending) {
+            return -1;
+        }
+        long now = mClock.nanoTime();
+        long delay = delayToSlot(now);
+        if (delay > 0) {
+            return delay;
+        }
+        mPending = false;
+        mRenderedCount++;
+        // stay on the slot grid, but don't build up credit while idle
+        mNextSlotNanos = Math.max(mNextSlotNanos + mIntervalNanos,
+                now + mIntervalNanos - mSlackNanos);
+        return 0;
+    }
+
+    public boolean hasPendingFrame() {
+        return mPending;
+    }
+
+    public long getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    private long delayToSlot(long now) {
+        long delay = mNextSlotNanos - now;
+        return delay > mSlackNanos ? delay : 0;
+    }
+}
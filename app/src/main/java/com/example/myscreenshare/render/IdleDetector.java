@@ -0,0 +1,79 @@
+package com.example.myscreenshare.render;
+
+import com.example.myscreenshare.util.Clock;
+
+/**
+ * Tells a still screen from a changing one. The VirtualDisplay only
+ * produces a frame when something was composed, so no frame for a while
+ * means nothing changed. While idle the encoder gets a keepalive repeat
+ * of the last frame at a low rate instead of nothing at all, so viewers
+ * and the ring keep moving. The first new frame ends the idle period.
+ *
+ * Not thread safe, the render thread owns it.
+ */
+public class IdleDetector {
+
+    // results of tick()
+    public static final int TICK_NONE = 0;
+    public static final int TICK_IDLE = 1; // just became idle
+    public static final int TICK_KEEPALIVE = 2; // repeat the last frame now
+
+    private final Clock mClock;
+    private final long mIdleAfterNanos;
+    private final long mKeepaliveNanos;
+
+    private long mLastFrameNanos;
+    private boolean mIdle;
+    private long mNextKeepaliveNanos;
+    private long mKeepaliveCount;
+
+    public IdleDetector(Clock clock, long idleAfterNanos, long keepaliveNanos) {
+        mClock = clock;
+        mIdleAfterNanos = idleAfterNanos;
+        mKeepaliveNanos = keepaliveNanos;
+        mLastFrameNanos = clock.nanoTime();
+    }
+
+    // A new frame from the display, returns true if it ended an idle period.
+    public boolean onFrame() {
+        mLastFrameNanos = mClock.nanoTime();
+        if (mIdle) {
+            mIdle = false;
+            return true;
+        }
+        return false;
+    }
+
+    // Call when getNextTickDelayNanos() has passed, returns one of TICK_*.
+    public int tick() {
+        long now = mClock.nanoTime();
+        if (!mIdle) {
+            if (now - mLastFrameNanos < mIdleAfterNanos) {
+                return TICK_NONE;
+            }
+            mIdle = true;
+            mNextKeepaliveNanos = now + mKeepaliveNanos;
+            return TICK_IDLE;
+        }
+        if (now - mNextKeepaliveNanos < 0) {
+            return TICK_NONE;
+        }
+        // one repeat covers any we slept through
+        mNextKeepaliveNanos = now + mKeepaliveNanos;
+        mKeepaliveCount++;
+        return TICK_KEEPALIVE;
+    }
+
+    public long getNextTickDelayNanos() {
+        long next = mIdle ? mNextKeepaliveNanos : mLastFrameNanos + mIdleAfterNanos;
+        return Math.max(0, next - mClock.nanoTime());
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    public long getKeepaliveCount() {
+        return mKeepaliveCount;
+    }
+}
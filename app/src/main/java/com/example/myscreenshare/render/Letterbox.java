@@ -0,0 +1,46 @@
+package com.example.myscreenshare.render;
+
+/**
+ * Places the capture in an output of another shape: rotated by a multiple
+ * of 90 degrees, then scaled to fit with bars on the sides that are left
+ * over. The result is an MVP matrix for Texture2dProgram, the encoder
+ * output keeps its size whatever the capture does.
+ */
+public class Letterbox {
+
+    private Letterbox() {}
+
+    // Fills mvp (column-major 4x4), returns true if bars are left uncovered.
+    public static boolean computeMvp(float[] mvp, int srcWidth, int srcHeight,
+                                     int rotationDegrees, int dstWidth, int dstHeight) {
+        int rotation = ((rotationDegrees % 360) + 360) % 360;
+        if (rotation % 90 != 0) {
+            throw new RuntimeException("Unsupported rotation " + rotationDegrees);
+        }
+        boolean swap = rotation == 90 || rotation == 270;
+        float contentAspect = swap ? (float) srcHeight / srcWidth : (float) srcWidth / srcHeight;
+        float outputAspect = (float) dstWidth / dstHeight;
+
+        float sx = 1f;
+        float sy = 1f;
+        if (contentAspect > outputAspect) {
+            sy = outputAspect / contentAspect;
+        } else {
+            sx = contentAspect / outputAspect;
+        }
+
+        float cos = rotation == 0 ? 1 : rotation == 180 ? -1 : 0;
+        float sin = rotation == 90 ? 1 : rotation == 270 ? -1 : 0;
+        for (int i = 0; i < 16; i++) {
+            mvp[i] = 0f;
+        }
+        // scale after rotation, in clip space
+        mvp[0] = cos * sx;
+        mvp[1] = sin * sy;
+        mvp[4] = -sin * sx;
+        mvp[5] = cos * sy;
+        mvp[10] = 1f;
+        mvp[15] = 1f;
+        return sx < 1f || sy < 1f;
+    }
+}
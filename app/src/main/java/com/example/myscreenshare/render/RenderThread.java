@@ -0,0 +1,353 @@
+package com.example.myscreenshare.render;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.view.Surface;
+
+import com.example.myscreenshare.codec.CircularEncoder;
+import com.example.myscreenshare.gles.EglSurfaceManager;
+import com.example.myscreenshare.gles.Texture2dProgram;
+import com.example.myscreenshare.metrics.PipelineMetrics;
+import com.example.myscreenshare.util.Clock;
+import com.example.myscreenshare.util.LogUtil;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Owns the GL context between the VirtualDisplay and the encoders. Frames
+ * land in a SurfaceTexture, FramePacer decides which ones get drawn into
+ * the encoder input surfaces, stamped with the capture time. On a still
+ * screen IdleDetector switches to slow repeats of the last frame.
+ *
+ * For simulcast every encoder gets its own window surface on the one
+ * context, a frame is latched once and each extra rendition is a scaled
+ * blit of the same texture.
+ *
+ * The encoders keep their size for their whole life. When the capture
+ * changes size or orientation, setInputGeometry() letterboxes it into
+ * them, the stream goes on without a new codec.
+ *
+ * Start it, waitUntilReady(), then hand getInputSurface() to the
+ * VirtualDisplay.
+ */
+public class RenderThread extends Thread {
+    public static final String TAG = "RenderThread";
+
+    // no frame for this long and the screen counts as still
+    public static final long IDLE_AFTER_NANOS = 500000000L;
+    // Repeat rate of the last frame on a still screen. The encoder counts
+    // its longest GOP in frames, so on a still screen the key frames are
+    // I_FRAME_INTERVAL * fps repeats apart, if nobody asks for one.
+    public static final long KEEPALIVE_NANOS = 1000000000L;
+
+    private final CircularEncoder[] mEncoders;
+    // capture geometry, render thread only
+    private int mInputWidth;
+    private int mInputHeight;
+    private int mRotation;
+    private final PipelineMetrics mMetrics;
+    private final FramePacer mPacer;
+    private final int mFps;
+    private final IdleDetector mIdle;
+    private final Clock mClock;
+
+    private EglSurfaceManager mEgl;
+    private EGLSurface[] mEncoderSurfaces;
+    private Texture2dProgram mProgram;
+    private int mTextureId;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mInputSurface;
+    private final float[] mTexMatrix = new float[16];
+    private float[][] mMvpMatrix;
+    private boolean[] mLetterboxed;
+    private boolean mHasFrame;
+
+    private RenderHandler mHandler;
+    private final Object mLock = new Object();
+    private volatile boolean mReady = false;
+
+    // Width and height of the capture. Each encoder gets the whole capture
+    // fitted into its own size, metrics count the captured frames.
+    public RenderThread(int width, int height, CircularEncoder[] encoders, int fps,
+                        PipelineMetrics metrics, Clock clock) {
+        super(TAG);
+        if (encoders.length == 0) {
+            throw new RuntimeException("No encoder to render to");
+        }
+        mEncoders = encoders.clone();
+        mInputWidth = width;
+        mInputHeight = height;
+        mMetrics = metrics;
+        mPacer = new FramePacer(clock, fps);
+        mFps = fps;
+        mIdle = new IdleDetector(clock, IDLE_AFTER_NANOS, KEEPALIVE_NANOS);
+        mClock = clock;
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        mHandler = new RenderHandler(this);
+        setUp();
+        synchronized (mLock) {
+            mReady = true;
+            mLock.notify();
+        }
+        Looper.loop();
+        tearDown();
+        synchronized (mLock) {
+            mReady = false;
+            mHandler = null;
+        }
+    }
+
+    public void waitUntilReady() {
+        synchronized (mLock) {
+            while (!mReady) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+
+                }
+            }
+        }
+    }
+
+    // the VirtualDisplay renders into this, valid once ready
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    // The capture is about to change size, e.g. after a rotation. Call it
+    // before resizing the VirtualDisplay. rotationDegrees turns the content
+    // in the output, a multiple of 90.
+    public void setInputGeometry(int width, int height, int rotationDegrees) {
+        Handler handler;
+        synchronized (mLock) {
+            if (!mReady) {
+                return;
+            }
+            handler = mHandler;
+        }
+        handler.sendMessage(handler.obtainMessage(
+                RenderHandler.MSG_GEOMETRY, width, height, rotationDegrees));
+    }
+
+    // Frames drawn per second from now on, at most the rate the thread was
+    // created with, which the encoders are configured for.
+    public void setFrameRate(int fps) {
+        Handler handler;
+        synchronized (mLock) {
+            if (!mReady) {
+                return;
+            }
+            handler = mHandler;
+        }
+        handler.sendMessage(handler.obtainMessage(RenderHandler.MSG_FRAME_RATE, fps, 0));
+    }
+
+    public void shutdown() {
+        Handler handler;
+        synchronized (mLock) {
+            if (!mReady) {
+                return;
+            }
+            handler = mHandler;
+        }
+        handler.sendEmptyMessage(RenderHandler.MSG_SHUTDOWN);
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            LogUtil.d(TAG, "Render thread join() was interrupted" + ie);
+        }
+    }
+
+    private void setUp() {
+        mEgl = new EglSurfaceManager(0);
+        mEncoderSurfaces = new EGLSurface[mEncoders.length];
+        for (int i = 0; i < mEncoders.length; i++) {
+            mEncoderSurfaces[i] = mEgl.createWindowSurface(mEncoders[i].getInputSurface());
+        }
+        mEgl.makeCurrent(mEncoderSurfaces[0]);
+
+        mMvpMatrix = new float[mEncoders.length][16];
+        mLetterboxed = new boolean[mEncoders.length];
+        updateGeometry();
+        mTextureId = mProgram.createTextureObject();
+        mSurfaceTexture = new SurfaceTexture(mTextureId);
+        mSurfaceTexture.setDefaultBufferSize(mInputWidth, mInputHeight);
+        // delivered on this thread
+        mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                frameAvailable();
+            }
+        }, mHandler);
+        mInputSurface = new Surface(mSurfaceTexture);
+        LogUtil.d(TAG, "Texture ID: " + mTextureId);
+        scheduleIdleTick();
+    }
+
+    private void tearDown() {
+        LogUtil.d(TAG, "rendered " + mPacer.getRenderedCount() +
+                " frames, dropped " + mPacer.getDroppedCount() +
+                ", keepalive " + mIdle.getKeepaliveCount());
+        mInputSurface.release();
+        mSurfaceTexture.release();
+        mEgl.release();
+    }
+
+    private void setGeometry(int width, int height, int rotationDegrees) {
+        LogUtil.d(TAG, "input " + width + "x" + height + " rotation " + rotationDegrees);
+        mInputWidth = width;
+        mInputHeight = height;
+        mRotation = rotationDegrees;
+        mSurfaceTexture.setDefaultBufferSize(width, height);
+        updateGeometry();
+    }
+
+    private void updateGeometry() {
+        // the letterbox matrix does the rotation too
+        mProgram = mEgl.getProgram(Texture2dProgram.TYPE_MVP);
+        for (int i = 0; i < mEncoders.length; i++) {
+            mLetterboxed[i] = Letterbox.computeMvp(mMvpMatrix[i], mInputWidth, mInputHeight,
+                    mRotation, mEncoders[i].getWidth(), mEncoders[i].getHeight());
+        }
+    }
+
+    private void frameAvailable() {
+        mMetrics.onFrameCaptured();
+        if (mIdle.onFrame()) {
+            LogUtil.d(TAG, "screen active");
+            mMetrics.onIdleChanged(false);
+            scheduleIdleTick();
+        }
+        long delay = mPacer.onFrameAvailable();
+        if (delay < 0) {
+            // the frame waiting for its slot was replaced
+            mMetrics.onFrameDropped();
+            return;
+        }
+        scheduleRender(delay);
+    }
+
+    private void render() {
+        long delay = mPacer.poll();
+        if (delay > 0) {
+            scheduleRender(delay);
+        } else if (delay == 0) {
+            drawFrame(true);
+        }
+    }
+
+    private void applyFrameRate(int fps) {
+        fps = Math.min(fps, mFps);
+        LogUtil.d(TAG, "frame rate " + fps);
+        mPacer.setFrameRate(fps);
+    }
+
+    private void idleTick() {
+        switch (mIdle.tick()) {
+            case IdleDetector.TICK_IDLE:
+                LogUtil.d(TAG, "screen idle");
+                mMetrics.onIdleChanged(true);
+                break;
+            case IdleDetector.TICK_KEEPALIVE:
+                if (mHasFrame && !mPacer.hasPendingFrame()) {
+                    drawFrame(false);
+                }
+                break;
+        }
+        scheduleIdleTick();
+    }
+
+    private void scheduleIdleTick() {
+        mHandler.removeMessages(RenderHandler.MSG_IDLE_TICK);
+        mHandler.sendEmptyMessageDelayed(RenderHandler.MSG_IDLE_TICK,
+                (mIdle.getNextTickDelayNanos() + 999999) / 1000000);
+    }
+
+    private void scheduleRender(long delayNanos) {
+        if (delayNanos == 0) {
+            mHandler.sendEmptyMessage(RenderHandler.MSG_RENDER);
+        } else {
+            mHandler.sendEmptyMessageDelayed(RenderHandler.MSG_RENDER,
+                    (delayNanos + 999999) / 1000000);
+        }
+    }
+
+    // without latch the last frame is drawn again, stamped with the current time
+    private void drawFrame(boolean latch) {
+        long ptsNanos;
+        if (latch) {
+            // latch as late as possible, this is the newest frame the display has
+            mSurfaceTexture.updateTexImage();
+            mSurfaceTexture.getTransformMatrix(mTexMatrix);
+            ptsNanos = mSurfaceTexture.getTimestamp();
+            mHasFrame = true;
+        } else {
+            ptsNanos = mClock.nanoTime();
+        }
+
+        for (int i = 0; i < mEncoders.length; i++) {
+            CircularEncoder encoder = mEncoders[i];
+            EGLSurface surface = mEncoderSurfaces[i];
+            mEgl.makeCurrent(surface);
+            GLES20.glViewport(0, 0, encoder.getWidth(), encoder.getHeight());
+            if (mLetterboxed[i]) {
+                GLES20.glClearColor(0f, 0f, 0f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
+            mProgram.draw(mMvpMatrix[i], mTexMatrix, mTextureId);
+            encoder.frameAvailableSoon();
+            mEgl.setPresentationTime(surface, ptsNanos);
+            mEgl.swapBuffers(surface);
+        }
+    }
+
+    private static class RenderHandler extends Handler {
+        public static final int MSG_RENDER = 1;
+        public static final int MSG_SHUTDOWN = 2;
+        public static final int MSG_IDLE_TICK = 3;
+        public static final int MSG_GEOMETRY = 4;
+        public static final int MSG_FRAME_RATE = 5;
+
+        private WeakReference<RenderThread> mWeakRenderThread;
+
+        public RenderHandler(RenderThread renderThread) {
+            mWeakRenderThread = new WeakReference<RenderThread>(renderThread);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            int what = msg.what;
+            RenderThread renderThread = mWeakRenderThread.get();
+            if (renderThread == null) {
+                return;
+            }
+            switch (what) {
+                case MSG_RENDER:
+                    renderThread.render();
+                    break;
+                case MSG_IDLE_TICK:
+                    renderThread.idleTick();
+                    break;
+                case MSG_GEOMETRY:
+                    renderThread.setGeometry(msg.arg1, msg.arg2, (Integer) msg.obj);
+                    break;
+                case MSG_FRAME_RATE:
+                    renderThread.applyFrameRate(msg.arg1);
+                    break;
+                case MSG_SHUTDOWN:
+                    Looper.myLooper().quit();
+                    break;
+                default:
+                    throw new RuntimeException("Unknown message " + what);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.myscreenshare.util;
+
+/**
+ * Monotonic time source, System.nanoTime() in the app and a hand driven
+ * clock in tests. Surface and encoder timestamps use the same base.
+ */
+public interface Clock {
+
+    long nanoTime();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
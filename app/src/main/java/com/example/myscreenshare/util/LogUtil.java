@@ -2,6 +2,8 @@ package com.example.myscreenshare.util;
 
 import android.util.Log;
 
+import com.example.myscreenshare.BuildConfig;
+
 public class LogUtil {
 
     public static final int VERBOSE = 1;
@@ -16,7 +18,8 @@ public class LogUtil {
 
     public static final int NOTHING = 6;
 
-    public static int level = VERBOSE;
+    // release builds only log problems
+    public static int level = BuildConfig.DEBUG ? DEBUG : WARN;
 
     public static void v(String TAG, String msg) {
         if (level <= VERBOSE) {
@@ -48,4 +51,110 @@ public class LogUtil {
         }
     }
 
+    public static boolean isLoggable(int lvl) {
+        return level <= lvl;
+    }
+
+    // Parameterized forms, "{}" takes the next argument and "{x}" prints it
+    // in hex. Nothing is built or boxed unless the level is enabled.
+
+    public static void v(String TAG, String fmt, long a) {
+        if (level <= VERBOSE) {
+            Log.v(TAG, format(fmt, 1, a, 0, 0));
+        }
+    }
+
+    public static void v(String TAG, String fmt, long a, long b) {
+        if (level <= VERBOSE) {
+            Log.v(TAG, format(fmt, 2, a, b, 0));
+        }
+    }
+
+    public static void v(String TAG, String fmt, long a, long b, long c) {
+        if (level <= VERBOSE) {
+            Log.v(TAG, format(fmt, 3, a, b, c));
+        }
+    }
+
+    public static void d(String TAG, String fmt, long a) {
+        if (level <= DEBUG) {
+            Log.d(TAG, format(fmt, 1, a, 0, 0));
+        }
+    }
+
+    public static void d(String TAG, String fmt, long a, long b) {
+        if (level <= DEBUG) {
+            Log.d(TAG, format(fmt, 2, a, b, 0));
+        }
+    }
+
+    public static void d(String TAG, String fmt, long a, long b, long c) {
+        if (level <= DEBUG) {
+            Log.d(TAG, format(fmt, 3, a, b, c));
+        }
+    }
+
+    public static void i(String TAG, String fmt, long a) {
+        if (level <= INFO) {
+            Log.i(TAG, format(fmt, 1, a, 0, 0));
+        }
+    }
+
+    public static void i(String TAG, String fmt, long a, long b) {
+        if (level <= INFO) {
+            Log.i(TAG, format(fmt, 2, a, b, 0));
+        }
+    }
+
+    public static void i(String TAG, String fmt, long a, long b, long c) {
+        if (level <= INFO) {
+            Log.i(TAG, format(fmt, 3, a, b, c));
+        }
+    }
+
+    public static void w(String TAG, String fmt, long a) {
+        if (level <= WARN) {
+            Log.w(TAG, format(fmt, 1, a, 0, 0));
+        }
+    }
+
+    public static void w(String TAG, String fmt, long a, long b) {
+        if (level <= WARN) {
+            Log.w(TAG, format(fmt, 2, a, b, 0));
+        }
+    }
+
+    public static void w(String TAG, String fmt, long a, long b, long c) {
+        if (level <= WARN) {
+            Log.w(TAG, format(fmt, 3, a, b, c));
+        }
+    }
+
+    // fmt with the placeholders replaced, see the parameterized methods
+    public static String format(String fmt, int argc, long a, long b, long c) {
+        StringBuilder sb = new StringBuilder(fmt.length() + 16 * argc);
+        int arg = 0;
+        int i = 0;
+        while (i < fmt.length()) {
+            char ch = fmt.charAt(i);
+            if (ch == '{' && arg < argc) {
+                boolean plain = fmt.startsWith("}", i + 1);
+                boolean hex = fmt.startsWith("x}", i + 1);
+                if (plain || hex) {
+                    long value = arg == 0 ? a : arg == 1 ? b : c;
+                    if (hex) {
+                        sb.append(Long.toHexString(value));
+                    } else {
+                        sb.append(value);
+                    }
+                    arg++;
+                    i += hex ? 3 : 2;
+                    continue;
+                }
+            }
+            sb.append(ch);
+            i++;
+        }
+        return sb.toString();
+    }
 }
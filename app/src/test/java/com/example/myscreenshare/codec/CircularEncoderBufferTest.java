@@ -0,0 +1,468 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CircularEncoderBufferTest {
+
+    private static final int FRAME_USEC = 33333;
+
+    @Before
+    public void setUp() {
+        CodecLog.level = CodecLog.NOTHING;
+    }
+
+    // payload of packet n is a run of bytes starting at (byte) n
+    private static ByteBuffer packet(int n, int size) {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (n + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int flagsOf(int n) {
+        return (n % 30) == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    }
+
+    private static boolean checkPayload(ByteBuffer dst, MediaCodec.BufferInfo info) {
+        int n = (int) (info.presentationTimeUs / FRAME_USEC);
+        for (int i = 0; i < info.size; i++) {
+            if (dst.get(info.offset + i) != (byte) (n + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void readerSeesPacketsInOrder() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 10000, 30, 2);
+        for (int n = 0; n < 10; n++) {
+            buffer.add(packet(n, 100 + n), flagsOf(n), n * FRAME_USEC);
+        }
+
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        assertTrue(reader.seekFirstKeyFrame());
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int n = 0; n < 10; n++) {
+            dst.clear();
+            assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+            assertEquals(100 + n, info.size);
+            assertEquals(n * FRAME_USEC, info.presentationTimeUs);
+            assertTrue(checkPayload(dst, info));
+        }
+        assertEquals(CircularEncoderBuffer.READ_NONE, reader.next(dst, info));
+    }
+
+    @Test
+    public void evictedPositionReportsOverrun() {
+        // 2000 bytes of data, every packet is 300 bytes
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        for (int n = 0; n < 20; n++) {
+            buffer.add(packet(n, 300), flagsOf(n), n * FRAME_USEC);
+        }
+        assertTrue(buffer.getTailSequence() > 0);
+
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(CircularEncoderBuffer.READ_OVERRUN, reader.next(dst, info));
+        assertEquals(buffer.getTailSequence(), reader.getPosition());
+        assertEquals(1, reader.getOverrunCount());
+        assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+        assertTrue(checkPayload(dst, info));
+    }
+
+    @Test
+    public void keyFrameLookupFollowsEviction() {
+        // 2000 bytes of data, every packet is 100 bytes, key frame every 30
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        assertEquals(-1, buffer.getFirstIndex());
+        for (int n = 0; n < 70; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        // about 19 packets fit, so only the key frame 60 is left
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        buffer.getChunk(buffer.getFirstIndex(), info);
+        assertEquals(60 * FRAME_USEC, info.presentationTimeUs);
+        buffer.getChunk(buffer.getLastKeyFrameIndex(), info);
+        assertEquals(60 * FRAME_USEC, info.presentationTimeUs);
+    }
+
+    @Test
+    public void seekByPtsReturnsGoverningKeyFrame() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 4);
+        for (int n = 0; n < 100; n++) {
+            buffer.add(packet(n, 50), flagsOf(n), n * FRAME_USEC);
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        buffer.getChunk(buffer.getKeyFrameIndexForPts(45 * FRAME_USEC + 10), info);
+        assertEquals(30 * FRAME_USEC, info.presentationTimeUs);
+        buffer.getChunk(buffer.getKeyFrameIndexForPts(60 * FRAME_USEC), info);
+        assertEquals(60 * FRAME_USEC, info.presentationTimeUs);
+        buffer.getChunk(buffer.getKeyFrameIndexForPts(Long.MAX_VALUE), info);
+        assertEquals(90 * FRAME_USEC, info.presentationTimeUs);
+        buffer.getChunk(buffer.getKeyFrameIndexForPts(-1), info);
+        assertEquals(0, info.presentationTimeUs);
+
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        assertTrue(reader.seekKeyFrameForPts(75 * FRAME_USEC));
+        assertEquals(60, reader.getPosition());
+        assertTrue(reader.seekLastKeyFrame());
+        assertEquals(90, reader.getPosition());
+    }
+
+    @Test
+    public void wrappedPacketIsReadWithoutAllocation() {
+        // 2000 bytes of data, the 7th packet of 300 bytes wraps around
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        for (int n = 0; n < 7; n++) {
+            buffer.add(packet(n, 300), MediaCodec.BUFFER_FLAG_KEY_FRAME, n * FRAME_USEC);
+        }
+        int index = buffer.getLastKeyFrameIndex();
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        CircularEncoderBuffer.Slices slices = buffer.newSlices();
+        assertEquals(2, buffer.getChunkSlices(index, slices, info));
+        ByteBuffer[] views = slices.buffers;
+        assertEquals(300, views[0].remaining() + views[1].remaining());
+        ByteBuffer joined = ByteBuffer.allocate(300);
+        joined.put(views[0]).put(views[1]);
+        info.offset = 0;
+        assertTrue(checkPayload(joined, info));
+
+        BufferPool pool = new BufferPool(2, 256);
+        ByteBuffer dst = pool.acquire(info.size);
+        assertEquals(1, pool.getMissCount());
+        assertSame(dst, buffer.getChunk(index, info, dst));
+        assertTrue(checkPayload(dst, info));
+        pool.release(dst);
+        assertSame(dst, pool.acquire(info.size));
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void storageBackendsKeepTheSameContract() throws Exception {
+        File file = File.createTempFile("ring", ".bin");
+        int[] types = {RingStorage.TYPE_HEAP, RingStorage.TYPE_DIRECT, RingStorage.TYPE_MAPPED};
+        for (int type : types) {
+            CircularEncoderBuffer buffer = new CircularEncoderBuffer(
+                    8 * 1000, 30, 2, type, file);
+            for (int n = 0; n < 50; n++) {
+                buffer.add(packet(n, 150 + n), MediaCodec.BUFFER_FLAG_KEY_FRAME, n * FRAME_USEC);
+            }
+            CircularEncoderBuffer.Reader reader = buffer.newReader();
+            ByteBuffer dst = ByteBuffer.allocate(1024);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int count = 0;
+            while (reader.next(dst, info) == CircularEncoderBuffer.READ_OK) {
+                assertTrue("storage " + type, checkPayload(dst, info));
+                ByteBuffer chunk = buffer.getChunk(
+                        buffer.getKeyFrameIndexForPts(info.presentationTimeUs), info);
+                ByteBuffer copy = ByteBuffer.allocate(info.size);
+                for (int i = 0; i < info.size; i++) {
+                    copy.put(chunk.get(info.offset + i));
+                }
+                info.offset = 0;
+                assertTrue("storage " + type, checkPayload(copy, info));
+                dst.clear();
+                count++;
+            }
+            assertTrue(count > 5);
+            buffer.release();
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void autoResizeFollowsTheEncoderRate() {
+        // sized for 8 Mbit/s, but the encoder only produces 30 x 1000 bytes/s
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000000, 30, 2);
+        buffer.enableAutoResize(64 * 1024 * 1024);
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        ByteBuffer dst = ByteBuffer.allocate(8192);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int n = 0;
+        for (; n < 30 * 20; n++) {
+            buffer.add(packet(n, 1000), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        int shrunk = buffer.getDataBufferSize();
+        assertTrue("size " + shrunk, shrunk < 2000000 / 2);
+        assertTrue(buffer.getResizeCount() > 0);
+        assertTrue(buffer.computeTimeSpanMillisecond() >= 1900);
+
+        // a burst of larger frames grows it again without losing the span
+        for (int end = n + 30 * 5; n < end; n++) {
+            buffer.add(packet(n, 5000), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        assertTrue(buffer.getDataBufferSize() > shrunk);
+        assertTrue(buffer.computeTimeSpanMillisecond() >= 1900);
+
+        // the reader was left far behind, it resyncs and reads intact packets
+        int ok = 0;
+        int result;
+        while ((result = reader.next(dst, info)) != CircularEncoderBuffer.READ_NONE) {
+            if (result == CircularEncoderBuffer.READ_OK) {
+                assertTrue(checkPayload(dst, info));
+                ok++;
+            }
+            dst.clear();
+        }
+        assertEquals(buffer.getHeadSequence() - buffer.getTailSequence(), ok);
+        buffer.release();
+    }
+
+    @Test
+    public void packetFillingTheFreeSpaceExactlyKeepsTheGap() {
+        // 2000 bytes: the second packet ends right before the first one
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        int[] sizes = {1000, 998, 1001, 500};
+        for (int n = 0; n < sizes.length; n++) {
+            buffer.add(packet(n, sizes[n]), flagsOf(n), n * FRAME_USEC);
+        }
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        reader.seek(buffer.getTailSequence());
+        ByteBuffer dst = ByteBuffer.allocate(2000);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int live = 0;
+        while (reader.next(dst, info) == CircularEncoderBuffer.READ_OK) {
+            assertEquals(sizes[(int) (info.presentationTimeUs / FRAME_USEC)], info.size);
+            assertTrue(checkPayload(dst, info));
+            dst.clear();
+            live++;
+        }
+        assertEquals(buffer.getHeadSequence() - buffer.getTailSequence(), live);
+        assertEquals(2, buffer.getTailSequence());
+    }
+
+    @Test
+    public void keyFrameLargerThanTheShrunkRingGrowsIt() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000000, 30, 2);
+        buffer.enableAutoResize(64 * 1024 * 1024);
+        int n = 0;
+        // a still screen, tiny frames shrink the ring to about its floor
+        for (; n < 30 * 20; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        int shrunk = buffer.getDataBufferSize();
+        assertTrue("size " + shrunk, shrunk < 200 * 1024);
+
+        // then a full screen key frame
+        int size = 3 * shrunk;
+        buffer.add(packet(n, size), MediaCodec.BUFFER_FLAG_KEY_FRAME, (long) n * FRAME_USEC);
+        assertTrue(buffer.getDataBufferSize() >= 2 * size);
+        assertEquals(n + 1, buffer.getHeadSequence());
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        assertTrue(reader.seekLastKeyFrame());
+        ByteBuffer dst = ByteBuffer.allocate(size);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+        assertEquals(size, info.size);
+        assertTrue(checkPayload(dst, info));
+    }
+
+    @Test
+    public void packetBeyondTheMemoryCapIsDropped() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 10);
+        buffer.enableAutoResize(256 * 1024);
+        buffer.add(packet(0, 1000), MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        int size = buffer.getDataBufferSize() + 1;
+        buffer.add(packet(1, size), MediaCodec.BUFFER_FLAG_KEY_FRAME, FRAME_USEC);
+        buffer.add(packet(2, 1000), 0, 2 * FRAME_USEC);
+        // dropped without evicting what was there
+        assertEquals(2, buffer.getHeadSequence());
+        assertEquals(0, buffer.getTailSequence());
+    }
+
+    @Test
+    public void autoResizeRespectsTheMemoryCap() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 10);
+        buffer.enableAutoResize(256 * 1024);
+        for (int n = 0; n < 30 * 12; n++) {
+            buffer.add(packet(n, 4000), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        // 10 s would need 1.2 MB, the cap keeps it at 256 KB
+        assertTrue(buffer.getDataBufferSize() + buffer.getMetaBufferCount() * 28 <= 256 * 1024);
+        assertTrue(buffer.computeTimeSpanMillisecond() < 10000);
+    }
+
+    @Test
+    public void snapshotIsNotEvictedUntilReleased() {
+        // 2000 bytes of data, every packet is 100 bytes
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        for (int n = 0; n < 15; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        CircularEncoderBuffer.Snapshot snapshot = buffer.snapshot(0);
+        assertEquals(0, snapshot.startSeq);
+        assertEquals(15, snapshot.endSeq);
+
+        // the encoder goes on, the buffer grows instead of evicting
+        for (int n = 15; n < 40; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        assertFalse(snapshot.isBroken());
+        assertEquals(0, buffer.getTailSequence());
+        assertTrue(buffer.getDataBufferSize() > 2000);
+
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        reader.seek(snapshot.startSeq);
+        ByteBuffer dst = ByteBuffer.allocate(buffer.getMaxPacketSize());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (reader.getPosition() < snapshot.endSeq) {
+            dst.clear();
+            assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+            assertTrue(checkPayload(dst, info));
+        }
+        buffer.releaseSnapshot(snapshot);
+        buffer.add(packet(40, 100), flagsOf(40), 40 * FRAME_USEC);
+        int size = buffer.getDataBufferSize();
+        for (int n = 41; n < 100; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        assertTrue(buffer.getTailSequence() > 0);
+        assertEquals(size, buffer.getDataBufferSize());
+    }
+
+    @Test
+    public void laterSnapshotStartingFurtherBackIsPinnedToo() {
+        // 2000 bytes of data, a key frame every 5 packets of 100 bytes
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        int n = 0;
+        for (; n < 15; n++) {
+            buffer.add(packet(n, 100), n % 5 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0,
+                    n * FRAME_USEC);
+        }
+        // saveVideo(f, span) and then saveVideo(f): the second one is older
+        CircularEncoderBuffer.Snapshot recent = buffer.snapshot(2 * FRAME_USEC);
+        CircularEncoderBuffer.Snapshot all = buffer.snapshot(0);
+        assertEquals(10, recent.startSeq);
+        assertEquals(0, all.startSeq);
+
+        for (; n < 40; n++) {
+            buffer.add(packet(n, 100), 0, n * FRAME_USEC);
+        }
+        assertFalse(all.isBroken());
+        assertEquals(0, buffer.getTailSequence());
+
+        // at the cap the pin that covers the tail breaks, the other one holds
+        while (buffer.getTailSequence() == 0) {
+            buffer.add(packet(n, 100), 0, n * FRAME_USEC);
+            n++;
+        }
+        assertTrue(all.isBroken());
+        assertEquals(buffer.getTailSequence() > recent.startSeq, recent.isBroken());
+        buffer.releaseSnapshot(recent);
+        buffer.releaseSnapshot(all);
+    }
+
+    @Test
+    public void snapshotSurvivesTheMetadataFillingUp() {
+        // 2000 bytes and 120 slots, 119 tiny packets use up the slots
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        int n = 0;
+        for (; n < buffer.getMetaBufferCount() - 1; n++) {
+            buffer.add(packet(n, 1), flagsOf(n), n * FRAME_USEC);
+        }
+        CircularEncoderBuffer.Snapshot snapshot = buffer.snapshot(0);
+        assertEquals(0, snapshot.startSeq);
+
+        // out of slots and out of data at once, one resize grows both
+        int resizes = buffer.getResizeCount();
+        buffer.add(packet(n, 1800), flagsOf(n), n * FRAME_USEC);
+        n++;
+        assertEquals(resizes + 1, buffer.getResizeCount());
+        assertEquals(0, buffer.getTailSequence());
+        assertFalse(snapshot.isBroken());
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        reader.seek(snapshot.startSeq);
+        ByteBuffer dst = ByteBuffer.allocate(buffer.getMaxPacketSize());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (reader.getPosition() < snapshot.endSeq) {
+            dst.clear();
+            assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+            assertTrue(checkPayload(dst, info));
+        }
+
+        // at the cap the pin breaks before its first packet goes
+        while (buffer.getTailSequence() == 0) {
+            buffer.add(packet(n, 1), flagsOf(n), n * FRAME_USEC);
+            n++;
+        }
+        assertTrue(snapshot.isBroken());
+        buffer.releaseSnapshot(snapshot);
+    }
+
+    @Test
+    public void snapshotBreaksAtTheMemoryCap() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        for (int n = 0; n < 15; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        CircularEncoderBuffer.Snapshot snapshot = buffer.snapshot(10 * FRAME_USEC);
+        // the key frame governing packet 4
+        assertEquals(0, snapshot.startSeq);
+        for (int n = 15; n < 200; n++) {
+            buffer.add(packet(n, 100), flagsOf(n), n * FRAME_USEC);
+        }
+        assertTrue(snapshot.isBroken());
+        assertTrue(buffer.getTailSequence() > 0);
+        assertNull(new CircularEncoderBuffer(8 * 1000, 30, 2).snapshot(0));
+    }
+
+    @Test
+    public void concurrentReadersNeverSeeTornPackets() throws Exception {
+        final CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 20000, 30, 2);
+        final int packets = 20000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    CircularEncoderBuffer.Reader reader = buffer.newReader();
+                    ByteBuffer dst = ByteBuffer.allocate(4096);
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    long lastPts = -1;
+                    while (reader.getPosition() < packets) {
+                        dst.clear();
+                        int result = reader.next(dst, info);
+                        if (result == CircularEncoderBuffer.READ_OK) {
+                            if (!checkPayload(dst, info)) {
+                                failure.set("torn packet at pts " + info.presentationTimeUs);
+                                return;
+                            }
+                            if (info.presentationTimeUs <= lastPts) {
+                                failure.set("out of order at pts " + info.presentationTimeUs);
+                                return;
+                            }
+                            lastPts = info.presentationTimeUs;
+                        } else if (result == CircularEncoderBuffer.READ_NONE) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int n = 0; n < packets; n++) {
+            buffer.add(packet(n, 200 + (n % 7) * 300), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        for (Thread t : readers) {
+            t.join(10000);
+        }
+        assertNull(failure.get(), failure.get());
+    }
+}
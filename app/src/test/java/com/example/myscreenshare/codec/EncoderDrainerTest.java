@@ -0,0 +1,170 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.metrics.PipelineMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class EncoderDrainerTest {
+
+    private static final long FRAME_NANOS = 33333000;
+    private static final long ENCODE_NANOS = 5000000;
+
+    @Before
+    public void setUp() {
+        CodecLog.level = CodecLog.NOTHING;
+    }
+
+    private static byte[] payload(int n) {
+        byte[] data = new byte[200 + n % 10];
+        data[0] = (byte) n;
+        return data;
+    }
+
+    // Frame n is captured at n * FRAME_NANOS and comes out of the encoder
+    // ENCODE_NANOS later. Polling drains when the next frame is announced.
+    private static EncoderDrainer run(boolean async, int frames, CircularEncoderBuffer buffer) {
+        FakeVideoEncoder encoder = new FakeVideoEncoder();
+        EncoderDrainer drainer = new EncoderDrainer(
+                encoder, buffer, new PipelineMetrics(encoder), encoder);
+        if (async) {
+            encoder.setCallback(drainer, null);
+        }
+        for (int n = 0; n < frames; n++) {
+            long captureNanos = n * FRAME_NANOS;
+            encoder.advanceTo(captureNanos);
+            if (!async) {
+                drainer.drain();
+            }
+            encoder.queueOutput(captureNanos + ENCODE_NANOS, payload(n),
+                    n % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, captureNanos / 1000);
+            encoder.advanceTo(captureNanos + ENCODE_NANOS);
+        }
+        encoder.advanceTo(frames * FRAME_NANOS);
+        if (!async) {
+            drainer.drain();
+        }
+        assertEquals(frames, encoder.getReleasedCount());
+        return drainer;
+    }
+
+    @Test
+    public void pollingDrainMovesEveryPacketIntoBuffer() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 4);
+        EncoderDrainer drainer = run(false, 60, buffer);
+        assertNotNull(drainer.getFormat());
+        assertEquals(60, drainer.getOutputCount());
+
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int n = 0; n < 60; n++) {
+            dst.clear();
+            assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+            assertEquals(payload(n).length, info.size);
+            assertEquals((byte) n, dst.get(0));
+        }
+    }
+
+    @Test
+    public void codecConfigAndEndOfStreamAreNotBuffered() {
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 4);
+        FakeVideoEncoder encoder = new FakeVideoEncoder();
+        EncoderDrainer drainer = new EncoderDrainer(
+                encoder, buffer, new PipelineMetrics(encoder), encoder);
+        encoder.queueOutput(0, new byte[]{0, 0, 0, 1, 0x67}, MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        encoder.queueOutput(0, payload(0), MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        encoder.queueOutput(0, new byte[0], MediaCodec.BUFFER_FLAG_END_OF_STREAM, 1);
+        encoder.queueOutput(0, payload(1), 0, 2);
+        drainer.drain();
+        assertTrue(drainer.isEndOfStream());
+        assertEquals(1, buffer.getHeadSequence());
+        assertEquals(3, encoder.getReleasedCount());
+    }
+
+    @Test
+    public void asyncDrainCutsOutputLatency() {
+        EncoderDrainer polling = run(false, 300, new CircularEncoderBuffer(8 * 100000, 30, 4));
+        EncoderDrainer async = run(true, 300, new CircularEncoderBuffer(8 * 100000, 30, 4));
+        assertEquals(300, polling.getOutputCount());
+        assertEquals(300, async.getOutputCount());
+
+        // polling holds every packet until the next frame is announced
+        assertEquals(FRAME_NANOS / 1000, polling.getAverageLatencyUsec(), 1);
+        assertEquals(ENCODE_NANOS / 1000, async.getAverageLatencyUsec());
+        assertEquals(ENCODE_NANOS / 1000, async.getMaxLatencyUsec());
+    }
+
+    @Test
+    public void parameterSetsAreKeptAndInjectedIntoKeyFrames() {
+        byte[] config = {0, 0, 0, 1, 0x67, 0x42, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE};
+        byte[] keyFrame = {0, 0, 0, 1, 0x65, 0x11, 0x22};
+        byte[] frame = {0, 0, 0, 1, 0x41, 0x33};
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 100000, 30, 4);
+        FakeVideoEncoder encoder = new FakeVideoEncoder();
+        EncoderDrainer drainer = new EncoderDrainer(
+                encoder, buffer, new PipelineMetrics(encoder), encoder);
+        final ByteBuffer heard = ByteBuffer.allocate(1024);
+        drainer.setPacketListener(new CircularEncoder.PacketListener() {
+            @Override
+            public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+                heard.put(buf);
+            }
+        });
+        drainer.setParameterSetInjection(true);
+        encoder.queueOutput(0, config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        encoder.queueOutput(0, keyFrame, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        encoder.queueOutput(0, frame, 0, 1);
+        drainer.drain();
+
+        assertEquals(ByteBuffer.wrap(config), drainer.getParameterSets().getCodecConfig());
+        assertEquals(1, drainer.getInjectedCount());
+        assertEquals(2, buffer.getHeadSequence());
+        CircularEncoderBuffer.Reader reader = buffer.newReader();
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+        dst.flip();
+        ByteBuffer expected = ByteBuffer.allocate(config.length + keyFrame.length);
+        expected.put(config).put(keyFrame).flip();
+        assertEquals(expected, dst);
+        dst.clear();
+        assertEquals(CircularEncoderBuffer.READ_OK, reader.next(dst, info));
+        assertEquals(frame.length, info.size);
+
+        // the listener saw what the ring has, config first
+        heard.flip();
+        expected = ByteBuffer.allocate(2 * config.length + keyFrame.length + frame.length);
+        expected.put(config).put(config).put(keyFrame).put(frame).flip();
+        assertEquals(expected, heard);
+    }
+
+    @Test
+    public void codecErrorIsReported() {
+        FakeVideoEncoder encoder = new FakeVideoEncoder();
+        EncoderDrainer drainer = new EncoderDrainer(encoder,
+                new CircularEncoderBuffer(8 * 100000, 30, 4), new PipelineMetrics(encoder), encoder);
+        final Exception[] failed = new Exception[1];
+        drainer.setCallback(new CircularEncoder.CircularEncoderCallback() {
+            @Override
+            public void fileSaveComplete(int status) {
+            }
+
+            @Override
+            public void encoderFailed(Exception e) {
+                failed[0] = e;
+            }
+        });
+        IllegalStateException error = new IllegalStateException("codec died");
+        drainer.onError(error);
+        assertSame(error, failed[0]);
+        assertSame(error, drainer.getError());
+        assertTrue(drainer.isEndOfStream());
+    }
+}
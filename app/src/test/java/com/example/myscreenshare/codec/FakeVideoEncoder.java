@@ -0,0 +1,139 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import com.example.myscreenshare.util.Clock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * VideoEncoder driven by the test: queued packets become ready at a given
+ * clock time. In async mode they are handed to the callback as soon as the
+ * test advances the clock past that time, like MediaCodec would.
+ */
+class FakeVideoEncoder implements VideoEncoder, Clock {
+
+    private static class Output {
+        long readyNanos;
+        ByteBuffer data;
+        int flags;
+        long ptsUsec;
+    }
+
+    private final ArrayDeque<Output> mPending = new ArrayDeque<>();
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[8];
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private Callback mCallback;
+    private boolean mFormatPending = true;
+    private long mNowNanos;
+    private int mNextIndex;
+    private int mReleased;
+
+    void queueOutput(long readyNanos, byte[] data, int flags, long ptsUsec) {
+        Output output = new Output();
+        output.readyNanos = readyNanos;
+        output.data = ByteBuffer.wrap(data);
+        output.flags = flags;
+        output.ptsUsec = ptsUsec;
+        mPending.add(output);
+    }
+
+    void advanceTo(long nanos) {
+        mNowNanos = nanos;
+        if (mCallback == null) {
+            return;
+        }
+        if (mFormatPending) {
+            mFormatPending = false;
+            mCallback.onOutputFormatChanged(new MediaFormat());
+        }
+        while (!mPending.isEmpty() && mPending.peek().readyNanos <= mNowNanos) {
+            int index = take(mInfo);
+            mCallback.onOutputBufferAvailable(index, mInfo);
+        }
+    }
+
+    int getReleasedCount() {
+        return mReleased;
+    }
+
+    @Override
+    public long nanoTime() {
+        return mNowNanos;
+    }
+
+    private int take(MediaCodec.BufferInfo info) {
+        Output output = mPending.poll();
+        int index = mNextIndex++ % mOutputBuffers.length;
+        mOutputBuffers[index] = output.data;
+        // BufferInfo.set() is a stub in unit tests
+        info.offset = 0;
+        info.size = output.data.remaining();
+        info.presentationTimeUs = output.ptsUsec;
+        info.flags = output.flags;
+        return index;
+    }
+
+    @Override
+    public void setCallback(Callback callback, Handler handler) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (mFormatPending) {
+            mFormatPending = false;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (mPending.isEmpty() || mPending.peek().readyNanos > mNowNanos) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        return take(info);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mOutputBuffers[index] = null;
+        mReleased++;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+}
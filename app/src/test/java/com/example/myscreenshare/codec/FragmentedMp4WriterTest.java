@@ -0,0 +1,204 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+
+    private static final int FRAME_USEC = 33333;
+    private static final byte[] AVC_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] HEVC_CONFIG = {
+            0, 0, 0, 1, 0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF,
+            0, 0, 0, 1, 0x42, 0x01, 0x01, 0x01, 0x60, 0, 0, 0x03, 0, (byte) 0x90,
+            0, 0, 0x03, 0, 0, 0x03, 0, 0x5D, (byte) 0xA0, 0x02,
+            0, 0, 0, 1, 0x44, 0x01, (byte) 0xC1, 0x72};
+
+    private File mFile;
+    private RandomAccessFile mRaf;
+
+    @Before
+    public void setUp() throws Exception {
+        CodecLog.level = CodecLog.NOTHING;
+        mFile = File.createTempFile("fragmented", ".mp4");
+        mRaf = new RandomAccessFile(mFile, "rw");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRaf.close();
+        mFile.delete();
+    }
+
+    // one slice NAL unit of size bytes behind a 3 byte start code
+    private static ByteBuffer frame(boolean hevc, boolean key, int size) {
+        ByteBuffer buf = ByteBuffer.allocate(size + 3);
+        buf.put((byte) 0).put((byte) 0).put((byte) 1);
+        if (hevc) {
+            buf.put((byte) ((key ? 19 : 1) << 1)).put((byte) 1);
+        } else {
+            buf.put((byte) (key ? 0x65 : 0x41));
+        }
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0x55);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private FragmentedMp4Writer writeStream(String mime, byte[] config, int frames) throws Exception {
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        FileChannel channel = mRaf.getChannel();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, mime, 1280, 720);
+        writer.writeSample(ByteBuffer.wrap(config), MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        for (int n = 0; n < frames; n++) {
+            boolean key = n % 30 == 0;
+            writer.writeSample(frame(hevc, key, key ? 5000 : 500 + n % 50),
+                    key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, (long) n * FRAME_USEC);
+        }
+        writer.finish();
+        return writer;
+    }
+
+    private ByteBuffer readFile() throws Exception {
+        return ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+    }
+
+    private static String type(ByteBuffer buf, int box) {
+        byte[] type = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = buf.get(box + 4 + i);
+        }
+        return new String(type);
+    }
+
+    // position of the first child box of the given type inside [from, to)
+    private static int find(ByteBuffer buf, int from, int to, String name) {
+        for (int box = from; box < to; box += buf.getInt(box)) {
+            if (type(buf, box).equals(name)) {
+                return box;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void avcStreamIsSplitIntoFragmentsAtKeyFrames() throws Exception {
+        FragmentedMp4Writer writer = writeStream(MediaFormat.MIMETYPE_VIDEO_AVC, AVC_CONFIG, 95);
+        ByteBuffer buf = readFile();
+        assertEquals(buf.limit(), writer.getBytesWritten());
+        assertEquals("ftyp", type(buf, 0));
+        int moov = buf.getInt(0);
+        assertEquals("moov", type(buf, moov));
+        int avcC = -1;
+        for (int i = moov; i < moov + buf.getInt(moov); i++) {
+            if (type(buf, i - 4).equals("avcC")) {
+                avcC = i - 4;
+            }
+        }
+        assertTrue(avcC > 0);
+        assertEquals(0x42, buf.get(avcC + 9)); // profile from the SPS
+
+        // 30 frame GOPs, one fragment each
+        assertEquals(4, writer.getFragmentCount());
+        int box = moov + buf.getInt(moov);
+        long expectedTime = 0;
+        for (int fragment = 0; fragment < 4; fragment++) {
+            assertEquals("moof", type(buf, box));
+            int moofSize = buf.getInt(box);
+            int traf = find(buf, box + 8, box + moofSize, "traf");
+            int tfdt = find(buf, traf + 8, traf + buf.getInt(traf), "tfdt");
+            assertEquals(expectedTime, buf.getLong(tfdt + 12));
+            int trun = find(buf, traf + 8, traf + buf.getInt(traf), "trun");
+            int count = buf.getInt(trun + 12);
+            assertEquals(fragment < 3 ? 30 : 5, count);
+            assertEquals(moofSize + 8, buf.getInt(trun + 16));
+
+            int mdat = box + moofSize;
+            assertEquals("mdat", type(buf, mdat));
+            int sample = mdat + 8;
+            for (int i = 0; i < count; i++) {
+                int entry = trun + 20 + i * 12;
+                expectedTime += buf.getInt(entry);
+                int size = buf.getInt(entry + 4);
+                // the start code became a 4 byte length
+                assertEquals(size - 4, buf.getInt(sample));
+                assertEquals(i == 0 ? 0x65 : 0x41, buf.get(sample + 4));
+                assertEquals(i == 0 ? 0x02000000 : 0x01010000, buf.getInt(entry + 8));
+                sample += size;
+            }
+            assertEquals(mdat + buf.getInt(mdat), sample);
+            box = sample;
+        }
+        assertEquals(buf.limit(), box);
+        assertEquals(95L * FRAME_USEC * 9 / 100, expectedTime, 95);
+    }
+
+    @Test
+    public void hevcSampleEntryCarriesTheParameterSets() throws Exception {
+        writeStream(MediaFormat.MIMETYPE_VIDEO_HEVC, HEVC_CONFIG, 10);
+        ByteBuffer buf = readFile();
+        int hvcC = -1;
+        for (int i = 0; i + 8 < buf.limit(); i++) {
+            if (type(buf, i).equals("hvcC")) {
+                hvcC = i;
+                break;
+            }
+        }
+        assertTrue(hvcC > 0);
+        assertEquals(1, buf.get(hvcC + 8));
+        assertEquals(0x01, buf.get(hvcC + 9)); // Main profile
+        assertEquals(0x5D, buf.get(hvcC + 20)); // level 3.1
+        assertEquals(3, buf.get(hvcC + 30)); // VPS, SPS and PPS arrays
+        assertEquals((byte) (0x80 | AnnexB.HEVC_NAL_VPS), buf.get(hvcC + 31));
+        assertNotEquals(-1, find(buf, 0, buf.limit(), "moof"));
+    }
+
+    @Test
+    public void memoryStaysAtOneFragment() throws Exception {
+        FileChannel channel = mRaf.getChannel();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(
+                channel, MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720);
+        writer.setCodecConfig(ByteBuffer.wrap(AVC_CONFIG));
+        // a long GOP, cut by the fragment duration instead
+        writer.writeSample(frame(false, true, 5000), MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        int capacity = 0;
+        for (int n = 1; n < 3000; n++) {
+            writer.writeSample(frame(false, false, 1000), 0, (long) n * FRAME_USEC);
+            if (n == 100) {
+                capacity = writer.getBufferCapacity();
+            }
+        }
+        writer.finish();
+        assertEquals(capacity, writer.getBufferCapacity());
+        assertTrue(writer.getFragmentCount() >= 90);
+        assertEquals(channel.size(), writer.getBytesWritten());
+    }
+
+    @Test
+    public void annexBStartCodesAreFound() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{
+                (byte) 0x80, 0, 0, 1, 0x65, 0, 0, 0, 1, 0x41, 0, 0, 3, 1});
+        assertEquals(1, AnnexB.findStartCode(buf, 0, buf.limit()));
+        assertEquals(4, AnnexB.skipStartCode(buf, 1));
+        assertEquals(5, AnnexB.findStartCode(buf, 4, buf.limit()));
+        assertEquals(9, AnnexB.skipStartCode(buf, 5));
+        assertEquals(buf.limit(), AnnexB.findStartCode(buf, 9, buf.limit()));
+        byte[] rbsp = new byte[8];
+        assertEquals(4, AnnexB.unescape(buf, 9, buf.limit(), rbsp));
+        assertEquals(1, rbsp[3]);
+    }
+}
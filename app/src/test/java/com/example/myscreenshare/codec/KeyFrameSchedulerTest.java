@@ -0,0 +1,84 @@
+package com.example.myscreenshare.codec;
+
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyFrameSchedulerTest {
+
+    private static final long MS = 1000000;
+
+    private static class FakeClock implements Clock {
+        long nanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void burstOfRequestsGivesOneKeyFrame() {
+        FakeClock clock = new FakeClock();
+        KeyFrameScheduler scheduler = new KeyFrameScheduler(clock, 500 * MS);
+        assertEquals(0, scheduler.request());
+        assertEquals(0, scheduler.poll());
+        // ten viewers join before the key frame is out
+        for (int i = 0; i < 10; i++) {
+            clock.nanos += MS;
+            assertEquals(-1, scheduler.request());
+        }
+        assertEquals(-1, scheduler.poll());
+        clock.nanos = 30 * MS;
+        scheduler.onKeyFrame();
+        assertEquals(11, scheduler.getRequestCount());
+        assertEquals(1, scheduler.getForcedCount());
+        assertEquals(10, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void requestsKeepTheMinimumSpacing() {
+        FakeClock clock = new FakeClock();
+        KeyFrameScheduler scheduler = new KeyFrameScheduler(clock, 500 * MS);
+        clock.nanos = 1000 * MS;
+        scheduler.onKeyFrame();
+
+        // 200 ms after a key frame: wait 300 ms, later requests ride along
+        clock.nanos = 1200 * MS;
+        assertEquals(300 * MS, scheduler.request());
+        clock.nanos = 1300 * MS;
+        assertEquals(-1, scheduler.request());
+        assertEquals(200 * MS, scheduler.poll());
+        clock.nanos = 1500 * MS;
+        assertEquals(0, scheduler.poll());
+        assertEquals(-1, scheduler.poll());
+        clock.nanos = 1530 * MS;
+        scheduler.onKeyFrame();
+
+        // a natural key frame serves a waiting request
+        clock.nanos = 1600 * MS;
+        assertEquals(430 * MS, scheduler.request());
+        clock.nanos = 1700 * MS;
+        scheduler.onKeyFrame();
+        assertEquals(-1, scheduler.poll());
+        assertEquals(1, scheduler.getForcedCount());
+        assertEquals(2, scheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void lostRequestIsRetried() {
+        FakeClock clock = new FakeClock();
+        KeyFrameScheduler scheduler = new KeyFrameScheduler(clock, 500 * MS);
+        assertEquals(0, scheduler.request());
+        assertEquals(0, scheduler.poll());
+        // the codec never delivered it
+        clock.nanos = KeyFrameScheduler.AWAIT_TIMEOUT_NANOS - MS;
+        assertEquals(-1, scheduler.request());
+        clock.nanos = KeyFrameScheduler.AWAIT_TIMEOUT_NANOS;
+        assertEquals(0, scheduler.request());
+        assertEquals(0, scheduler.poll());
+        assertEquals(2, scheduler.getForcedCount());
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.myscreenshare.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ParameterSetsTest {
+
+    // Annex-B NAL units, payload bytes never zero
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, 0x11};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] SEI = {0x06, 0x05, 0x11};
+    private static final byte[] IDR = {0x65, (byte) 0x88, 0x11, 0x22, 0x33};
+    private static final byte[] VPS = {0x40, 0x01, 0x0C};
+    private static final byte[] HEVC_SPS = {0x42, 0x01, 0x01};
+    private static final byte[] HEVC_PPS = {0x44, 0x01, (byte) 0xC1};
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] nal : nals) {
+            buf.putInt(1).put(nal);
+        }
+        return buf.array();
+    }
+
+    @Test
+    public void parsesAvcConfigInPlace() {
+        // in the middle of a bigger buffer, 3 byte start code in front
+        byte[] config = annexB(SPS, PPS);
+        ByteBuffer buf = ByteBuffer.allocate(config.length + 10);
+        buf.position(5);
+        buf.put(config, 1, config.length - 1);
+        buf.limit(buf.position()).position(5);
+
+        ParameterSets sets = ParameterSets.parse(buf, buf.position(), buf.limit(), false);
+        assertNotNull(sets);
+        assertEquals(5, buf.position());
+        assertFalse(sets.isHevc());
+        assertEquals(ByteBuffer.wrap(config), sets.getCodecConfig());
+        assertEquals(ByteBuffer.wrap(annexB(SPS)), sets.getCsd(0));
+        assertEquals(ByteBuffer.wrap(annexB(PPS)), sets.getCsd(1));
+        assertNull(sets.getCsd(2));
+
+        ByteBuffer dst = ByteBuffer.allocate(sets.size());
+        sets.writeTo(dst);
+        assertArrayEquals(config, dst.array());
+        assertEquals(sets, ParameterSets.parse(ByteBuffer.wrap(config), 0, config.length, false));
+    }
+
+    @Test
+    public void parsesHevcConfigIntoOneCsd() {
+        byte[] config = annexB(VPS, HEVC_SPS, HEVC_PPS);
+        ParameterSets sets = ParameterSets.parse(ByteBuffer.wrap(config), 0, config.length, true);
+        assertNotNull(sets);
+        assertTrue(sets.isHevc());
+        assertEquals(ByteBuffer.wrap(config), sets.getCsd(0));
+        assertNull(sets.getCsd(1));
+    }
+
+    @Test
+    public void incompleteConfigIsRejected() {
+        byte[] spsOnly = annexB(SPS);
+        assertNull(ParameterSets.parse(ByteBuffer.wrap(spsOnly), 0, spsOnly.length, false));
+        byte[] noVps = annexB(HEVC_SPS, HEVC_PPS);
+        assertNull(ParameterSets.parse(ByteBuffer.wrap(noVps), 0, noVps.length, true));
+    }
+
+    @Test
+    public void keyFrameIsCheckedUpToTheFirstSlice() {
+        byte[] bare = annexB(SEI, IDR);
+        assertFalse(ParameterSets.hasParameterSets(ByteBuffer.wrap(bare), 0, bare.length, false));
+        byte[] withSets = annexB(SEI, SPS, PPS, IDR);
+        assertTrue(ParameterSets.hasParameterSets(
+                ByteBuffer.wrap(withSets), 0, withSets.length, false));
+        // an SPS behind the slice doesn't count
+        byte[] late = annexB(IDR, SPS);
+        assertFalse(ParameterSets.hasParameterSets(ByteBuffer.wrap(late), 0, late.length, false));
+    }
+}
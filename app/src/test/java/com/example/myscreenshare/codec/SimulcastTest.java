@@ -0,0 +1,21 @@
+package com.example.myscreenshare.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimulcastTest {
+
+    @Test
+    public void layersAreAlignedAndShareTheBitRateByArea() {
+        // 1080 x 1794 phone screen
+        assertEquals(528, Simulcast.scaleDimension(1080, 2));
+        assertEquals(896, Simulcast.scaleDimension(1794, 2));
+        assertEquals(256, Simulcast.scaleDimension(1080, 4));
+        assertEquals(Simulcast.ALIGNMENT, Simulcast.scaleDimension(20, 4));
+
+        assertEquals(1500000, Simulcast.scaleBitRate(6000000, 2));
+        assertEquals(375000, Simulcast.scaleBitRate(6000000, 4));
+        assertEquals(Simulcast.MIN_BIT_RATE, Simulcast.scaleBitRate(1000000, 8));
+    }
+}
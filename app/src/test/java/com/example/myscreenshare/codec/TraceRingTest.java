@@ -0,0 +1,90 @@
+package com.example.myscreenshare.codec;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.util.LogUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TraceRingTest {
+
+    @After
+    public void tearDown() {
+        CodecLog.traceRing = null;
+        CodecLog.level = CodecLog.NOTHING;
+    }
+
+    @Test
+    public void placeholdersAreReplacedInOrder() {
+        assertEquals("add size=12 flags=0x1a pts=-5",
+                LogUtil.format("add size={} flags=0x{x} pts={}", 3, 12, 26, -5));
+        // extra placeholders and stray braces are left alone
+        assertEquals("a=1 b={} {y}", LogUtil.format("a={} b={} {y}", 1, 1, 0, 0));
+    }
+
+    @Test
+    public void ringKeepsTheLastEvents() throws Exception {
+        TraceRing ring = new TraceRing(5);
+        assertEquals(8, ring.getCapacity());
+        for (int i = 0; i < 20; i++) {
+            ring.record(TraceRing.EVENT_ADD, 1000 + i, i);
+        }
+        assertEquals(20, ring.getCount());
+
+        StringBuilder sb = new StringBuilder();
+        ring.dump(sb);
+        String[] lines = sb.toString().split("\n");
+        assertEquals(8, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("add 1012 12"));
+        assertTrue(lines[7], lines[7].endsWith("add 1019 19"));
+    }
+
+    @Test
+    public void dumpNeverPrintsATornRecord() throws Exception {
+        final TraceRing ring = new TraceRing(16);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2000000; i++) {
+                    ring.record(TraceRing.EVENT_ADD, 1000L * i, i);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            StringBuilder sb = new StringBuilder();
+            ring.dump(sb);
+            for (String line : sb.toString().split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // a and b of one record
+                String[] fields = line.split(" ");
+                long a = Long.parseLong(fields[fields.length - 2]);
+                int b = Integer.parseInt(fields[fields.length - 1]);
+                assertEquals(line, 1000L * b, a);
+            }
+        }
+        writer.join();
+    }
+
+    @Test
+    public void bufferEventsGoToTheTrace() throws Exception {
+        CodecLog.enableTrace(64);
+        // 2000 bytes of data, the 7th packet evicts the first
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 1000, 30, 2);
+        for (int n = 0; n < 7; n++) {
+            ByteBuffer packet = ByteBuffer.allocate(300);
+            buffer.add(packet, MediaCodec.BUFFER_FLAG_KEY_FRAME, n);
+        }
+        StringBuilder sb = new StringBuilder();
+        CodecLog.traceRing.dump(sb);
+        assertTrue(sb.toString(), sb.toString().contains(" evict 0 300\n"));
+        assertTrue(sb.toString(), sb.toString().contains(" add 6 300\n"));
+    }
+}
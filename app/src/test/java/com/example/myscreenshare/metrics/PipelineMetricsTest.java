@@ -0,0 +1,110 @@
+package com.example.myscreenshare.metrics;
+
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    private static class FakeClock implements Clock {
+        long nanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void histogramBucketsAndPercentiles() {
+        Histogram h = new Histogram(10, 20, 50);
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        Histogram.Snapshot s = h.snapshot();
+        assertArrayEquals(new long[]{10, 10, 30, 50}, s.counts);
+        assertEquals(100, s.count);
+        assertEquals(50, s.mean());
+        assertEquals(100, s.max);
+        assertEquals(10, s.percentile(0.1));
+        assertEquals(50, s.percentile(0.5));
+        // overflow bucket reports the max
+        assertEquals(100, s.percentile(0.95));
+    }
+
+    @Test
+    public void snapshotReportsRatesAndKeyFrameInterval() {
+        FakeClock clock = new FakeClock();
+        PipelineMetrics metrics = new PipelineMetrics(clock);
+        for (int n = 0; n < 60; n++) {
+            metrics.onFrameCaptured();
+            metrics.onFrameEncoded(1000, 5000, n % 30 == 0, n * 33333L);
+        }
+        metrics.onFrameDropped();
+        metrics.setRing(60000, 60, 1966647, 3);
+        clock.nanos = 2000000000L;
+
+        PipelineMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(60, s.framesCaptured);
+        assertEquals(60, s.framesEncoded);
+        assertEquals(1, s.framesDropped);
+        assertEquals(60000, s.bytesEncoded);
+        assertEquals(30000, s.bytesPerSec);
+        assertEquals(5000, s.latencyUsec.percentile(0.99));
+        assertEquals(2, s.keyFrames);
+        assertEquals(1, s.keyFrameIntervalUsec.count);
+        assertEquals(30 * 33333L, s.keyFrameIntervalUsec.max);
+        assertEquals(60, s.ringPackets);
+        assertEquals(3, s.evictions);
+
+        // nothing encoded since the last snapshot
+        clock.nanos += 1000000000L;
+        assertEquals(0, metrics.snapshot().bytesPerSec);
+    }
+
+    @Test
+    public void idleTimeCountsTheKeyFramesNotSpent() {
+        FakeClock clock = new FakeClock();
+        PipelineMetrics metrics = new PipelineMetrics(clock);
+        metrics.setKeyFrameIntervalUsec(1000000);
+        metrics.onFrameEncoded(50000, 5000, true, 0);
+        metrics.onFrameEncoded(1000, 5000, false, 33333);
+
+        clock.nanos = 1000000000L;
+        metrics.onIdleChanged(true);
+        clock.nanos = 11000000000L;
+        // one key frame while idle
+        metrics.onFrameEncoded(40000, 5000, true, 10000000);
+        PipelineMetrics.Snapshot s = metrics.snapshot();
+        assertTrue(s.idle);
+        assertEquals(10000000, s.idleTimeUsec);
+        assertEquals(9 * 45000, s.idleBytesSaved);
+
+        metrics.onIdleChanged(false);
+        clock.nanos = 20000000000L;
+        s = metrics.snapshot();
+        assertFalse(s.idle);
+        assertEquals(1, s.idleEnterCount);
+        assertEquals(10000000, s.idleTimeUsec);
+    }
+
+    @Test
+    public void keyFramesOnDemandAgainstTheFixedInterval() {
+        FakeClock clock = new FakeClock();
+        PipelineMetrics metrics = new PipelineMetrics(clock);
+        // 10 s at 30 fps, two key frames where a 1 s GOP has 10
+        for (int n = 0; n < 300; n++) {
+            boolean keyFrame = n == 0 || n == 150;
+            metrics.onFrameEncoded(keyFrame ? 41000 : 1000, 5000, keyFrame, n * 33333L);
+        }
+        metrics.onKeyFrameRequested();
+        metrics.onKeyFrameRequested();
+        metrics.onKeyFrameForced();
+        PipelineMetrics.Snapshot s = metrics.snapshot();
+        assertEquals(2, s.keyFrameRequests);
+        assertEquals(1, s.keyFramesForced);
+        assertEquals(8 * 40000, s.keyFrameBytesSaved);
+    }
+}
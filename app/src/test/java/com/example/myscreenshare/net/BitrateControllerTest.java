@@ -0,0 +1,246 @@
+package com.example.myscreenshare.net;
+
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+
+    private static final long MS = 1000000;
+    private static final int MIN = 200000;
+    private static final int MAX = 6000000;
+
+    // A bottleneck link replayed from a trace of {start ms, kbps} steps,
+    // one way delay both ways, drop tail queue and optional random loss. The
+    // encoder sends its frames as bursts of full packets at the rate the
+    // controller last asked for, the feedback goes through DeliveryReporter
+    // and SendHistory as on the wire.
+    private static class Link implements Clock, BitrateController.Listener {
+        final long[][] trace;
+        final long delayNanos = 20 * MS;
+        final long queueBytes;
+        final double randomLoss;
+        final Random random = new Random(5);
+
+        final BitrateController controller;
+        final DeliveryReporter reporter = new DeliveryReporter(1);
+        final SendHistory history = new SendHistory();
+        final ArrayDeque<long[]> arrivals = new ArrayDeque<>(); // time, seq, ts, marker
+        final ArrayDeque<Object[]> feedback = new ArrayDeque<>(); // time, report
+        final ByteBuffer report = ByteBuffer.allocate(DeliveryReporter.MAX_REPORT_SIZE);
+
+        long nowNanos;
+        long linkFreeNanos;
+        int bitRate = MAX;
+        int degradation;
+        long nextFrameNanos;
+        long nextTickNanos;
+        int sequence;
+
+        // per 100 ms slot: target, degradation and worst queuing delay
+        final int[] targets;
+        final int[] degradations;
+        final long[] queueDelay;
+
+        Link(long[][] trace, long seconds, long queueBytes, double randomLoss) {
+            this.trace = trace;
+            this.queueBytes = queueBytes;
+            this.randomLoss = randomLoss;
+            targets = new int[(int) (seconds * 10)];
+            degradations = new int[targets.length];
+            queueDelay = new long[targets.length];
+            controller = new BitrateController(this, MAX, MIN, MAX, this);
+        }
+
+        @Override
+        public long nanoTime() {
+            return nowNanos;
+        }
+
+        @Override
+        public void onTargetChanged(int bitRate, int degradation) {
+            this.bitRate = bitRate;
+            this.degradation = degradation;
+        }
+
+        long capacityBps(long nanos) {
+            long kbps = trace[0][1];
+            for (long[] step : trace) {
+                if (nanos >= step[0] * MS) {
+                    kbps = step[1];
+                }
+            }
+            return kbps * 1000;
+        }
+
+        void sendFrame() {
+            int fps = 30 >> degradation;
+            int size = Math.max(bitRate / 8 / fps, 100);
+            int timestamp = RtpPacketizer.rtpTimestamp(nowNanos / 1000);
+            int packets = (size + 1179) / 1180;
+            int slot = Math.min((int) (nowNanos / (100 * MS)), targets.length - 1);
+            for (int i = 0; i < packets; i++) {
+                int bytes = Math.min(1180, size - i * 1180) + RtpPacketizer.RTP_HEADER_SIZE;
+                int sequence = this.sequence++ & 0xFFFF;
+                long rate = capacityBps(nowNanos);
+                long backlogNanos = Math.max(0, linkFreeNanos - nowNanos);
+                if (backlogNanos * rate / 8000000000L + bytes > queueBytes ||
+                        random.nextDouble() < randomLoss) {
+                    continue;
+                }
+                queueDelay[slot] = Math.max(queueDelay[slot], backlogNanos);
+                linkFreeNanos = Math.max(linkFreeNanos, nowNanos) + bytes * 8000000000L / rate;
+                arrivals.add(new long[]{linkFreeNanos + delayNanos, sequence, timestamp,
+                        i == packets - 1 ? 1 : 0});
+            }
+            history.onFrameSent(timestamp, size, nowNanos);
+            nextFrameNanos += 1000000000L / fps;
+        }
+
+        void run() {
+            long end = targets.length * 100 * MS;
+            for (nowNanos = 0; nowNanos < end; nowNanos += MS) {
+                if (nowNanos >= nextFrameNanos) {
+                    sendFrame();
+                }
+                while (!arrivals.isEmpty() && arrivals.peek()[0] <= nowNanos) {
+                    long[] packet = arrivals.poll();
+                    reporter.onPacket((int) packet[1], 42, (int) packet[2], packet[3] != 0,
+                            nowNanos);
+                    report.clear();
+                    if (reporter.poll(nowNanos, report)) {
+                        report.flip();
+                        ByteBuffer copy = ByteBuffer.allocate(report.remaining());
+                        copy.put(report).flip();
+                        feedback.add(new Object[]{nowNanos + delayNanos, copy});
+                    }
+                }
+                while (!feedback.isEmpty() && (Long) feedback.peek()[0] <= nowNanos) {
+                    assertTrue(history.onRtcp((ByteBuffer) feedback.poll()[1], controller));
+                }
+                if (nowNanos >= nextTickNanos) {
+                    controller.onTick();
+                    targets[(int) (nowNanos / (100 * MS))] = bitRate;
+                    degradations[(int) (nowNanos / (100 * MS))] = degradation;
+                    nextTickNanos += 100 * MS;
+                }
+            }
+        }
+
+        double meanTarget(int fromSec, int toSec) {
+            long sum = 0;
+            for (int i = fromSec * 10; i < toSec * 10; i++) {
+                sum += targets[i];
+            }
+            return sum / (double) ((toSec - fromSec) * 10);
+        }
+
+        // 95th percentile of the worst delay per 100 ms
+        long queueDelayMs(int fromSec, int toSec) {
+            long[] delays = Arrays.copyOfRange(queueDelay, fromSec * 10, toSec * 10);
+            Arrays.sort(delays);
+            return delays[delays.length * 95 / 100] / MS;
+        }
+
+        // first slot from which the target stays below bps
+        double settledBelow(int fromSec, int toSec, long bps) {
+            int settled = -1;
+            for (int i = fromSec * 10; i < toSec * 10; i++) {
+                if (targets[i] > bps) {
+                    settled = -1;
+                } else if (settled < 0) {
+                    settled = i;
+                }
+            }
+            return settled < 0 ? -1 : settled / 10.0 - fromSec;
+        }
+    }
+
+    @Test
+    public void convergesToCapacity() {
+        // starts at 6 Mbps on a 2.5 Mbps link with a 300 ms queue
+        Link link = new Link(new long[][]{{0, 2500}}, 30, 2500 * 1000 / 8 * 300 / 1000, 0);
+        link.run();
+        double settled = link.settledBelow(0, 30, 2750000);
+        double mean = link.meanTarget(15, 30);
+        long delay = link.queueDelayMs(15, 30);
+        assertTrue(settled >= 0 && settled < 5);
+        assertTrue(mean > 0.6 * 2500000);
+        assertTrue(mean < 1.1 * 2500000);
+        assertTrue(delay < 150);
+        assertEquals(0, link.degradation);
+    }
+
+    @Test
+    public void followsCapacitySteps() {
+        // 4 Mbps, down to 1 Mbps at 15 s, back up at 35 s
+        Link link = new Link(new long[][]{{0, 4000}, {15000, 1000}, {35000, 4000}}, 60,
+                4000 * 1000 / 8 * 300 / 1000, 0);
+        link.run();
+        double down = link.settledBelow(15, 35, 1100000);
+        long delay = link.queueDelayMs(20, 35);
+        double mean = link.meanTarget(25, 35);
+        double up = link.meanTarget(55, 60);
+        assertTrue(down >= 0 && down < 3);
+        assertTrue(mean > 600000);
+        assertTrue(delay < 150);
+        assertTrue(up > 2000000);
+    }
+
+    @Test
+    public void randomLossBacksOff() {
+        // no queue to speak of, only loss
+        Link lossy = new Link(new long[][]{{0, 50000}}, 20, 1000000, 0.2);
+        lossy.run();
+        Link clean = new Link(new long[][]{{0, 50000}}, 20, 1000000, 0.01);
+        clean.run();
+        assertTrue(lossy.meanTarget(10, 20) < 1000000);
+        assertTrue(lossy.controller.getLossDecreaseCount() > 0);
+        assertEquals(0, clean.controller.getLossDecreaseCount());
+        assertTrue(clean.meanTarget(10, 20) > 5000000);
+    }
+
+    @Test
+    public void fewerFramesAtTheFloor() {
+        // below the minimum bit rate for 20 s, then plenty
+        Link link = new Link(new long[][]{{0, 150}, {20000, 5000}}, 60, 150 * 1000 / 8, 0);
+        link.run();
+        assertEquals(MIN, (int) link.meanTarget(10, 20));
+        assertTrue(link.degradations[100] >= 1);
+        assertEquals(BitrateController.MAX_DEGRADATION, link.degradations[199]);
+        assertEquals(0, link.degradation);
+        assertTrue(link.meanTarget(50, 60) > 1000000);
+    }
+
+    @Test
+    public void feedbackTimeoutHalvesTheTarget() {
+        final long[] now = {0};
+        Clock clock = new Clock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+        };
+        BitrateController controller = new BitrateController(clock, 4000000, MIN, MAX, null);
+        now[0] = 500 * MS;
+        controller.onTick();
+        assertEquals(4000000, controller.getTargetBitRate());
+        now[0] = 1000 * MS;
+        controller.onTick();
+        assertEquals(2000000, controller.getTargetBitRate());
+        now[0] = 1500 * MS;
+        controller.onTick();
+        assertEquals(2000000, controller.getTargetBitRate());
+        controller.onReport(100, 0);
+        now[0] = 2500 * MS;
+        controller.onTick();
+        assertEquals(1000000, controller.getTargetBitRate());
+    }
+}
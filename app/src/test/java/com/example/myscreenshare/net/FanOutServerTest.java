@@ -0,0 +1,263 @@
+package com.example.myscreenshare.net;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+import com.example.myscreenshare.codec.CodecLog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FanOutServerTest {
+
+    private static final int FRAME_USEC = 33333;
+    private static final int GOP = 30;
+
+    @Before
+    public void setUp() {
+        CodecLog.level = CodecLog.NOTHING;
+    }
+
+    // payload of packet n is a run of bytes starting at (byte) n
+    private static ByteBuffer packet(int n, int size) {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (n + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static int flagsOf(int n) {
+        return n % GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    }
+
+    // Parses the framing of one connection and checks every packet.
+    private static class Viewer {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(256 * 1024);
+        int lastFrame = -1;
+        long packets;
+        long bytes;
+        boolean sawConfig;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("server closed the connection");
+            }
+            in.flip();
+            while (in.remaining() >= FanOutServer.HEADER_SIZE) {
+                int length = in.getInt(in.position());
+                if (in.remaining() < FanOutServer.HEADER_SIZE + length) {
+                    break;
+                }
+                int flags = in.getInt(in.position() + 4);
+                long ptsUsec = in.getLong(in.position() + 8);
+                int start = in.position() + FanOutServer.HEADER_SIZE;
+                in.position(start + length);
+                if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    assertEquals(-1, lastFrame);
+                    sawConfig = true;
+                    continue;
+                }
+                int n = (int) ((ptsUsec - BASE_USEC) / FRAME_USEC);
+                assertEquals(flagsOf(n), flags);
+                if (n != lastFrame + 1) {
+                    // a joiner or a skip lands on a key frame
+                    assertTrue("jump to " + n, n > lastFrame && n % GOP == 0);
+                }
+                for (int i = 0; i < length; i++) {
+                    assertEquals((byte) (n + i), in.get(start + i));
+                }
+                lastFrame = n;
+                packets++;
+                bytes += length;
+            }
+            in.compact();
+        }
+    }
+
+    private static long BASE_USEC;
+
+    @Test
+    public void fansOutToManyViewers() throws Exception {
+        final int viewerCount = 100;
+        final int frames = 150;
+        final int frameSize = 16 * 1024;
+        final CircularEncoderBuffer buffer = new CircularEncoderBuffer(8000000, 30, 4);
+        FanOutServer server = new FanOutServer(buffer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setCodecConfig(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42}));
+        final AtomicInteger keyFrameRequests = new AtomicInteger();
+        server.setKeyFrameListener(new NackResponder.KeyFrameListener() {
+            @Override
+            public void onKeyFrameRequest() {
+                keyFrameRequests.incrementAndGet();
+            }
+        });
+        server.start();
+
+        Selector selector = Selector.open();
+        Viewer[] viewers = new Viewer[viewerCount];
+        for (int i = 0; i < viewerCount; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            channel.configureBlocking(false);
+            viewers[i] = new Viewer(channel);
+            channel.register(selector, SelectionKey.OP_READ, viewers[i]);
+        }
+
+        while (server.getViewerCount() < viewerCount) {
+            Thread.sleep(1);
+        }
+        // encoder pace: frame n is due at n * FRAME_USEC, viewers wait for the first
+        BASE_USEC = System.nanoTime() / 1000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; n < frames; n++) {
+                    long dueUsec = BASE_USEC + (long) n * FRAME_USEC;
+                    long waitUsec = dueUsec - System.nanoTime() / 1000;
+                    if (waitUsec > 0) {
+                        try {
+                            Thread.sleep(waitUsec / 1000, (int) (waitUsec % 1000) * 1000);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    buffer.add(packet(n, frameSize), flagsOf(n), dueUsec);
+                }
+            }
+        });
+        producer.start();
+
+        long deadline = System.currentTimeMillis() + 60000;
+        int done = 0;
+        while (done < viewerCount && System.currentTimeMillis() < deadline) {
+            selector.select(100);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                Viewer viewer = (Viewer) it.next().attachment();
+                it.remove();
+                int before = viewer.lastFrame;
+                viewer.read();
+                if (before < frames - 1 && viewer.lastFrame == frames - 1) {
+                    done++;
+                }
+            }
+        }
+        producer.join();
+        assertEquals(viewerCount, server.getViewerCount());
+        for (FanOutServer.ViewerStats stats : server.getViewerStats()) {
+            assertEquals(frames + 1, stats.sentPackets);
+        }
+        server.close();
+
+        for (Viewer viewer : viewers) {
+            viewer.channel.close();
+            assertTrue(viewer.sawConfig);
+            assertEquals(frames - 1, viewer.lastFrame);
+            assertEquals((long) frames * frameSize, viewer.bytes);
+        }
+        selector.close();
+        assertEquals(viewerCount, done);
+        assertEquals(0, server.getDisconnectCount());
+        // every join asks, the encoder coalesces them
+        assertTrue(keyFrameRequests.get() >= viewerCount);
+        assertEquals(keyFrameRequests.get(), server.getKeyFrameRequests());
+    }
+
+    // A stepped server: the test thread runs its selector rounds, so the
+    // producer can get ahead of it by exactly as much as the test wants.
+    private static Viewer connect(FanOutServer server) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().setReceiveBufferSize(4096);
+        channel.connect(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), server.getLocalPort()));
+        channel.configureBlocking(false);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getViewerCount() == 0 && System.currentTimeMillis() < deadline) {
+            server.poll(10);
+        }
+        assertEquals(1, server.getViewerCount());
+        return new Viewer(channel);
+    }
+
+    // steps the server and reads until the viewer has frame last
+    private static void serve(FanOutServer server, Viewer viewer, int last) throws IOException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (viewer.lastFrame < last && System.currentTimeMillis() < deadline) {
+            server.poll(1);
+            viewer.read();
+        }
+        assertEquals(last, viewer.lastFrame);
+    }
+
+    @Test
+    public void slowViewerSkipsToKeyFrame() throws Exception {
+        // a ring of a few frames, wrapped many times before the server's next round
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(8 * 30000, 30, 2);
+        FanOutServer server = new FanOutServer(buffer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        // only the eviction makes it skip
+        server.setMaxLagUsec(0);
+        BASE_USEC = 0;
+        buffer.add(packet(0, 1000), flagsOf(0), 0);
+        Viewer viewer = connect(server);
+        serve(server, viewer, 0);
+
+        for (int n = 1; n < 20 * GOP; n++) {
+            buffer.add(packet(n, 1000), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        serve(server, viewer, 20 * GOP - 1);
+        // packet 0 and the newest GOP
+        assertEquals(1 + GOP, viewer.packets);
+        assertEquals(0, server.getDisconnectCount());
+        assertEquals(1, server.getSkipCount());
+        viewer.channel.close();
+        server.close();
+    }
+
+    @Test
+    public void laggingViewerFastForwards() throws Exception {
+        // the ring holds everything, only the lag limit makes it skip
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(32000000, 30, 20);
+        FanOutServer server = new FanOutServer(buffer,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.setMaxLagUsec(4 * FRAME_USEC);
+        BASE_USEC = 0;
+        final int frames = 20 * GOP;
+        buffer.add(packet(0, 20000), flagsOf(0), 0);
+        Viewer viewer = connect(server);
+
+        for (int n = 1; n < frames; n++) {
+            buffer.add(packet(n, 20000), flagsOf(n), (long) n * FRAME_USEC);
+        }
+        serve(server, viewer, frames - 1);
+        FanOutServer.ViewerStats stats = server.getViewerStats().get(0);
+        assertEquals(0, buffer.getEvictionCount());
+        // packet 0, then straight to the newest GOP
+        assertEquals(1, stats.skipCount);
+        assertEquals(1 + GOP, viewer.packets);
+        assertEquals(frames, viewer.packets + stats.skippedPackets);
+        assertEquals(0, server.getDisconnectCount());
+        viewer.channel.close();
+        server.close();
+    }
+}
@@ -0,0 +1,334 @@
+package com.example.myscreenshare.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FecTest {
+
+    private static final int MTU = RtpPacketizer.DEFAULT_MTU;
+
+    // what goes on the wire, media and repair packets in sending order
+    private static class Wire {
+        final List<byte[]> packets = new ArrayList<>();
+        final List<byte[]> media = new ArrayList<>();
+        final RtpPacketizer packetizer;
+        final FecEncoder fec;
+
+        Wire(FecEncoder fec) {
+            this.fec = fec;
+            packetizer = new RtpPacketizer(RtpPacketizer.CODEC_AVC,
+                    RtpPacketizer.DEFAULT_PAYLOAD_TYPE, 1234,
+                    fec != null ? MTU - FecEncoder.OVERHEAD : MTU);
+        }
+
+        void send(byte[] au, long ptsUsec) throws IOException {
+            final RtpPacketizer.Sink repairSink = new RtpPacketizer.Sink() {
+                @Override
+                public void onPacket(ByteBuffer packet) {
+                    packets.add(toArray(packet));
+                }
+            };
+            packetizer.packetize(ByteBuffer.wrap(au), ptsUsec, new RtpPacketizer.Sink() {
+                @Override
+                public void onPacket(ByteBuffer packet) throws IOException {
+                    byte[] bytes = toArray(packet);
+                    packets.add(bytes);
+                    media.add(bytes);
+                    if (fec != null) {
+                        fec.protect(packet, repairSink);
+                    }
+                }
+            });
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+
+    private static boolean isRepair(byte[] packet) {
+        return (packet[1] & 0x7F) == FecEncoder.DEFAULT_PAYLOAD_TYPE;
+    }
+
+    // runs the surviving packets through a decoder, returns what came out
+    private static List<byte[]> receive(List<byte[]> wire, boolean[] lost, FecDecoder decoder)
+            throws IOException {
+        final List<byte[]> out = new ArrayList<>();
+        RtpPacketizer.Sink sink = new RtpPacketizer.Sink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                out.add(toArray(packet));
+            }
+        };
+        for (int i = 0; i < wire.size(); i++) {
+            if (!lost[i]) {
+                decoder.onPacket(ByteBuffer.wrap(wire.get(i)), sink);
+            }
+        }
+        return out;
+    }
+
+    private static void assertSamePackets(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("packet " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void fieldArithmetic() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals(1, Gf256.mul(a, Gf256.inv(a)));
+            assertEquals(a, Gf256.mul(a, 1));
+            assertEquals(0, Gf256.mul(a, 0));
+        }
+        // distributive over XOR
+        Random random = new Random(1);
+        for (int n = 0; n < 1000; n++) {
+            int a = random.nextInt(256);
+            int b = random.nextInt(256);
+            int c = random.nextInt(256);
+            assertEquals(Gf256.mul(a, b ^ c), Gf256.mul(a, b) ^ Gf256.mul(a, c));
+        }
+    }
+
+    @Test
+    public void xorRecoversAnySingleLoss() throws Exception {
+        Random random = new Random(2);
+        Wire wire = new Wire(new FecEncoder(FecEncoder.MODE_XOR, 20, 0, MTU));
+        // the decoder takes the stream as protected from its first repair packet
+        wire.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41}, new int[]{100}), 0);
+        wire.send(RtpPacketizerTest.avcKeyFrame(random, 10000), 33333);
+        wire.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41}, new int[]{3000}), 66667);
+        // a group per frame, one parity packet each
+        assertEquals(3, wire.fec.getGroupCount());
+        assertEquals(wire.media.size() + 3, wire.packets.size());
+
+        for (int i = 2; i < wire.packets.size(); i++) {
+            boolean[] lost = new boolean[wire.packets.size()];
+            lost[i] = true;
+            FecDecoder decoder = new FecDecoder(MTU);
+            assertSamePackets(wire.media, receive(wire.packets, lost, decoder));
+            assertEquals(isRepair(wire.packets.get(i)) ? 0 : 1, decoder.getRecoveredPackets());
+        }
+
+        // two from the first frame is one too many, the second frame is fine
+        boolean[] lost = new boolean[wire.packets.size()];
+        lost[3] = true;
+        lost[5] = true;
+        FecDecoder decoder = new FecDecoder(MTU);
+        List<byte[]> out = receive(wire.packets, lost, decoder);
+        assertEquals(wire.media.size() - 2, out.size());
+        assertEquals(0, decoder.getRecoveredPackets());
+        assertEquals(2, decoder.getUnrecoveredPackets());
+        assertArrayEquals(wire.media.get(wire.media.size() - 1), out.get(out.size() - 1));
+    }
+
+    @Test
+    public void reedSolomonRecoversUpToRepairCount() throws Exception {
+        Random random = new Random(3);
+        Wire wire = new Wire(new FecEncoder(FecEncoder.MODE_RS, 20, 25, MTU));
+        wire.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41}, new int[]{100}), 0);
+        // 20 packets, with short ones in the group from the SPS and PPS
+        wire.send(RtpPacketizerTest.avcKeyFrame(random, 18 * 1160), 33333);
+        assertEquals(21, wire.media.size());
+        assertEquals(27, wire.packets.size());
+
+        for (int trial = 0; trial < 200; trial++) {
+            int count = 1 + trial % 6;
+            boolean[] lost = new boolean[wire.packets.size()];
+            int mediaLost = 0;
+            for (int n = 0; n < count; n++) {
+                int i;
+                do {
+                    i = 2 + random.nextInt(lost.length - 2);
+                } while (lost[i]);
+                lost[i] = true;
+                if (!isRepair(wire.packets.get(i))) {
+                    mediaLost++;
+                }
+            }
+            FecDecoder decoder = new FecDecoder(MTU);
+            List<byte[]> out = receive(wire.packets, lost, decoder);
+            if (count <= 5) {
+                assertSamePackets(wire.media, out);
+                assertEquals(mediaLost, decoder.getRecoveredPackets());
+            } else if (mediaLost == count) {
+                assertEquals(wire.media.size() - mediaLost, out.size());
+            }
+        }
+    }
+
+    @Test
+    public void streamWithoutFecPassesStraightThrough() throws Exception {
+        Random random = new Random(4);
+        Wire wire = new Wire(null);
+        for (int n = 0; n < 5; n++) {
+            wire.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41}, new int[]{2500}),
+                    n * 33333L);
+        }
+        boolean[] lost = new boolean[wire.packets.size()];
+        lost[4] = true;
+        final int[] delivered = new int[1];
+        FecDecoder decoder = new FecDecoder(MTU);
+        for (int i = 0; i < wire.packets.size(); i++) {
+            if (!lost[i]) {
+                decoder.onPacket(ByteBuffer.wrap(wire.packets.get(i)), new RtpPacketizer.Sink() {
+                    @Override
+                    public void onPacket(ByteBuffer packet) {
+                        delivered[0]++;
+                    }
+                });
+                // nothing is held back waiting for repair that never comes
+                assertEquals(i < 4 ? i + 1 : i, delivered[0]);
+            }
+        }
+    }
+
+    // Per packet loss: independent, or Gilbert-Elliott bursts. The first
+    // frame and the last packets get through so that FEC is on from the
+    // start and every loss is noticed.
+    private static boolean[] lossPattern(int count, double loss, boolean bursty, long seed) {
+        Random random = new Random(seed);
+        boolean[] lost = new boolean[count];
+        boolean bad = false;
+        for (int i = 2; i < count - 100; i++) {
+            if (bursty) {
+                // bursts of four on average, loss is the fraction of bad time
+                double toGood = 0.25;
+                double toBad = loss * toGood / (1 - loss);
+                bad = bad ? random.nextDouble() >= toGood : random.nextDouble() < toBad;
+                lost[i] = bad;
+            } else {
+                lost[i] = random.nextDouble() < loss;
+            }
+        }
+        return lost;
+    }
+
+    private static List<byte[]> stream(Random random, int frames) {
+        List<byte[]> aus = new ArrayList<>();
+        // one small packet first, see lossPattern()
+        aus.add(RtpPacketizerTest.accessUnit(random, new int[]{0x41}, new int[]{100}));
+        for (int n = 1; n < frames; n++) {
+            aus.add(n % 30 == 0 ? RtpPacketizerTest.avcKeyFrame(random, 40000) :
+                    RtpPacketizerTest.accessUnit(random, new int[]{0x41},
+                            new int[]{2000 + random.nextInt(6000)}));
+        }
+        return aus;
+    }
+
+    @Test
+    public void repairCutsTheResidualLoss() throws Exception {
+        List<byte[]> aus = stream(new Random(5), 1800);
+        // repair packets per media packet each config asks for
+        double[] rates = {0, 0.1, 0.2, 0.5};
+        double[] losses = {0.01, 0.05};
+        for (double loss : losses) {
+            for (boolean bursty : new boolean[]{false, true}) {
+                double baselineResidual = -1;
+                double lastResidual = -1;
+                int baselineFrames = -1;
+                for (int config = 0; config < rates.length; config++) {
+                    FecEncoder fec = config == 0 ? null : config == 1 ?
+                            new FecEncoder(FecEncoder.MODE_XOR, 10, 0, MTU) :
+                            new FecEncoder(FecEncoder.MODE_RS, 20, config == 2 ? 20 : 50, MTU);
+                    Wire wire = new Wire(fec);
+                    for (int n = 0; n < aus.size(); n++) {
+                        wire.send(aus.get(n), n * 33333L);
+                    }
+                    boolean[] lost = lossPattern(wire.packets.size(), loss, bursty, 6);
+                    int mediaLost = 0;
+                    for (int i = 0; i < lost.length; i++) {
+                        if (lost[i] && !isRepair(wire.packets.get(i))) {
+                            mediaLost++;
+                        }
+                    }
+
+                    FecDecoder decoder = new FecDecoder(MTU);
+                    final RtpDepacketizer depacketizer =
+                            new RtpDepacketizer(RtpPacketizer.CODEC_AVC, 1 << 17);
+                    final int[] frames = new int[1];
+                    final List<byte[]> sent = wire.media;
+                    RtpPacketizer.Sink sink = new RtpPacketizer.Sink() {
+                        @Override
+                        public void onPacket(ByteBuffer packet) {
+                            // sequence numbers start at 0 and don't wrap here
+                            int sequence = packet.getShort(packet.position() + 2) & 0xFFFF;
+                            assertArrayEquals(sent.get(sequence), toArray(packet));
+                            if (depacketizer.push(packet) == RtpDepacketizer.RESULT_FRAME) {
+                                frames[0]++;
+                            }
+                        }
+                    };
+                    for (int i = 0; i < lost.length; i++) {
+                        if (!lost[i]) {
+                            decoder.onPacket(ByteBuffer.wrap(wire.packets.get(i)), sink);
+                        }
+                    }
+                    String name = (bursty ? "burst " : "iid ") + loss + " config " + config;
+                    double residual = (double) depacketizer.getLostPackets() / wire.media.size();
+                    double overhead = (double) (wire.packets.size() - wire.media.size()) /
+                            wire.media.size();
+                    assertEquals(name, mediaLost, decoder.getRecoveredPackets() +
+                            depacketizer.getLostPackets());
+                    // short groups at the end of a frame cost a little extra
+                    assertTrue(name, overhead >= rates[config] && overhead < rates[config] + 0.1);
+                    if (config == 0) {
+                        assertEquals(name, 0, decoder.getRecoveredPackets());
+                        baselineResidual = residual;
+                        baselineFrames = frames[0];
+                    } else {
+                        assertTrue(name, residual < baselineResidual);
+                        assertTrue(name, frames[0] >= baselineFrames);
+                        if (!bursty) {
+                            // independent losses are what the codes are built for
+                            assertTrue(name, residual < baselineResidual / 2);
+                        }
+                    }
+                    if (config == 3) {
+                        // more repair rows in the same group size never do worse
+                        assertTrue(name, residual <= lastResidual);
+                        if (!bursty) {
+                            assertTrue(name, residual < 0.002);
+                        }
+                    }
+                    lastResidual = residual;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fullGroupsAreRebuilt() throws Exception {
+        // full size packets, groups of 20 with 4 repair rows
+        Random random = new Random(7);
+        FecEncoder fec = new FecEncoder(FecEncoder.MODE_RS, 20, 20, MTU);
+        Wire wire = new Wire(fec);
+        for (int n = 0; n < 100; n++) {
+            wire.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41},
+                    new int[]{20 * (MTU - FecEncoder.OVERHEAD - 14)}), n * 33333L);
+        }
+        assertEquals(100 * 24, wire.packets.size());
+
+        // four media packets of every group but the first lost, all rebuilt
+        boolean[] lost = new boolean[wire.packets.size()];
+        for (int i = 24; i < lost.length; i += 24) {
+            for (int k = 0; k < 4; k++) {
+                lost[i + 3 + 4 * k] = true;
+            }
+        }
+        FecDecoder decoder = new FecDecoder(MTU);
+        assertSamePackets(wire.media, receive(wire.packets, lost, decoder));
+        assertEquals(99 * 4, decoder.getRecoveredPackets());
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.myscreenshare.net;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NackTest {
+
+    private static final long MS = 1000000;
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+
+    // The drainer's order: listener first, then the ring. Records every
+    // packet sent, indexed by sequence number.
+    private static class Sender {
+        final CircularEncoderBuffer ring;
+        final NackResponder responder;
+        final RtpPacketizer packetizer = new RtpPacketizer(RtpPacketizer.CODEC_AVC,
+                RtpPacketizer.DEFAULT_PAYLOAD_TYPE, 42, RtpPacketizer.DEFAULT_MTU);
+        final List<byte[]> sent = new ArrayList<>();
+        int keyFrameRequests;
+
+        Sender(CircularEncoderBuffer ring) {
+            this.ring = ring;
+            responder = new NackResponder(ring, 1024, RtpPacketizer.DEFAULT_MTU,
+                    new NackResponder.KeyFrameListener() {
+                        @Override
+                        public void onKeyFrameRequest() {
+                            keyFrameRequests++;
+                        }
+                    });
+        }
+
+        void send(byte[] au, int flags, long ptsUsec) throws IOException {
+            responder.onAccessUnit(flags);
+            packetizer.packetize(ByteBuffer.wrap(au), ptsUsec, new RtpPacketizer.Sink() {
+                @Override
+                public void onPacket(ByteBuffer packet) {
+                    responder.record(packet, packetizer.getChunkOffset(),
+                            packetizer.getChunkLength());
+                    sent.add(toArray(packet));
+                }
+            });
+            if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                ring.add(ByteBuffer.wrap(au), flags, ptsUsec);
+            }
+        }
+
+        // what the responder sends back for the NACK
+        List<byte[]> answer(ByteBuffer nack) throws IOException {
+            final List<byte[]> out = new ArrayList<>();
+            responder.onRtcp(nack, new RtpPacketizer.Sink() {
+                @Override
+                public void onPacket(ByteBuffer packet) {
+                    out.add(toArray(packet));
+                }
+            });
+            return out;
+        }
+    }
+
+    private static ByteBuffer nackFor(NackGenerator generator, long nowNanos) {
+        ByteBuffer nack = ByteBuffer.allocate(512);
+        generator.poll(nowNanos, nack);
+        nack.flip();
+        return nack;
+    }
+
+    @Test
+    public void retransmissionsComeFromTheRing() throws Exception {
+        Random random = new Random(1);
+        // 60 KB of data, so packets straddle the wrap of the ring
+        Sender sender = new Sender(new CircularEncoderBuffer(8 * 30000, 30, 2));
+        for (int n = 0; n < 40; n++) {
+            byte[] au = n % 10 == 0 ? RtpPacketizerTest.avcKeyFrame(random, 6000) :
+                    RtpPacketizerTest.accessUnit(random, new int[]{0x41, 0x41},
+                            new int[]{200, 1500 + random.nextInt(3000)});
+            sender.send(au, n % 10 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, n * 33333L);
+        }
+
+        // every other one of the last 20 packets lost
+        NackGenerator generator = new NackGenerator(7);
+        int first = sender.sent.size() - 20;
+        List<byte[]> lost = new ArrayList<>();
+        for (int i = first; i < sender.sent.size(); i++) {
+            if (i % 2 == 1 && i < sender.sent.size() - 1) {
+                lost.add(sender.sent.get(i));
+            } else {
+                generator.onPacket(i, 42, 0);
+            }
+        }
+        assertEquals(lost.size(), generator.getPendingCount());
+        List<byte[]> answer = sender.answer(nackFor(generator, 0));
+        assertEquals(lost.size(), answer.size());
+        for (int i = 0; i < lost.size(); i++) {
+            assertArrayEquals(lost.get(i), answer.get(i));
+        }
+        assertEquals(0, sender.keyFrameRequests);
+        assertEquals(lost.size(), sender.responder.getRetransmittedPackets());
+    }
+
+    @Test
+    public void evictedPacketsAskForOneKeyFrame() throws Exception {
+        Random random = new Random(2);
+        Sender sender = new Sender(new CircularEncoderBuffer(8 * 30000, 30, 2));
+        // not in the ring at all
+        sender.send(RtpPacketizerTest.accessUnit(random, new int[]{0x67, 0x68},
+                new int[]{12, 4}), MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        for (int n = 0; n < 60; n++) {
+            sender.send(RtpPacketizerTest.accessUnit(random, new int[]{0x41},
+                    new int[]{4000}), 0, n * 33333L);
+        }
+        // the config and the first frames are long gone from the ring
+        NackGenerator generator = new NackGenerator(7);
+        generator.onPacket(0xFFFF, 42, 0);
+        generator.onPacket(9, 42, 0);
+        List<byte[]> answer = sender.answer(nackFor(generator, 0));
+        assertEquals(0, answer.size());
+        assertEquals(9, sender.responder.getEvictedPackets());
+        assertEquals(1, sender.keyFrameRequests);
+    }
+
+    @Test
+    public void nacksFollowTheRoundTrip() {
+        NackGenerator generator = new NackGenerator(7);
+        ByteBuffer out = ByteBuffer.allocate(512);
+        generator.onPacket(100, 42, 0);
+        generator.onPacket(103, 42, 0);
+        assertEquals(2, generator.poll(0, out));
+        // one FCI: PID 101, bit 0 for 102
+        assertEquals(16, out.position());
+        assertEquals(101, out.getShort(12));
+        assertEquals(1, out.getShort(14));
+        assertTrue(generator.isPending(101));
+
+        // no repeats before the initial timeout
+        out.clear();
+        assertEquals(0, generator.poll(50 * MS, out));
+        assertEquals(0, out.position());
+
+        // 102 comes back after 10 ms: srtt 10 ms, rttvar 5 ms, rto 30 ms
+        generator.onPacket(102, 42, 10 * MS);
+        assertEquals(10 * MS, generator.getRttNanos());
+        assertEquals(30 * MS, generator.getRtoNanos());
+        assertFalse(generator.isPending(102));
+
+        // 101 is asked again each time the rto has passed since the last
+        // NACK, retries give no rtt samples
+        out.clear();
+        assertEquals(1, generator.poll(100 * MS, out));
+        out.clear();
+        assertEquals(0, generator.poll(129 * MS, out));
+        assertEquals(1, generator.poll(130 * MS, out));
+        assertEquals(4, generator.getNackedPackets());
+        generator.onPacket(104, 42, 150 * MS);
+        assertTrue(generator.isPending(101));
+        generator.onPacket(105, 42, 160 * MS);
+        assertFalse(generator.isPending(101));
+        out.clear();
+        assertEquals(0, generator.poll(160 * MS, out));
+        assertEquals(1, generator.getGivenUpPackets());
+        assertEquals(0, generator.getPendingCount());
+        assertEquals(10 * MS, generator.getRttNanos());
+    }
+}
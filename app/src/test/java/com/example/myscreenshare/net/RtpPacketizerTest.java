@@ -0,0 +1,151 @@
+package com.example.myscreenshare.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RtpPacketizerTest {
+
+    // Annex-B access unit, NAL payloads without zero bytes so nothing looks
+    // like a start code
+    static byte[] accessUnit(Random random, int[] nalHeaders, int[] nalSizes) {
+        int total = 0;
+        for (int size : nalSizes) {
+            total += 4 + size;
+        }
+        ByteBuffer au = ByteBuffer.allocate(total);
+        for (int i = 0; i < nalSizes.length; i++) {
+            au.putInt(1);
+            au.put((byte) nalHeaders[i]);
+            for (int j = 1; j < nalSizes[i]; j++) {
+                au.put((byte) (1 + random.nextInt(255)));
+            }
+        }
+        return au.array();
+    }
+
+    static byte[] avcKeyFrame(Random random, int idrSize) {
+        // SPS, PPS, IDR slice
+        return accessUnit(random, new int[]{0x67, 0x68, 0x65}, new int[]{12, 4, idrSize});
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+
+    private static List<byte[]> packetize(RtpPacketizer packetizer, byte[] au, long ptsUsec)
+            throws IOException {
+        final List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(ByteBuffer.wrap(au), ptsUsec, new RtpPacketizer.Sink() {
+            @Override
+            public void onPacket(ByteBuffer packet) {
+                packets.add(toArray(packet));
+            }
+        });
+        return packets;
+    }
+
+    @Test
+    public void avcStreamSurvivesLoopbackUdp() throws Exception {
+        Random random = new Random(1);
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        UdpStreamer streamer = new UdpStreamer(receiver.getLocalAddress(),
+                RtpPacketizer.CODEC_AVC, RtpPacketizer.DEFAULT_MTU);
+        RtpDepacketizer depacketizer = new RtpDepacketizer(RtpPacketizer.CODEC_AVC, 1 << 16);
+        ByteBuffer packet = ByteBuffer.allocateDirect(2048);
+        try {
+            for (int n = 0; n < 10; n++) {
+                byte[] au = n == 0 ? avcKeyFrame(random, 20000) :
+                        accessUnit(random, new int[]{0x41}, new int[]{500 + 300 * n});
+                ByteBuffer direct = ByteBuffer.allocateDirect(au.length);
+                direct.put(au).flip();
+                streamer.onPacket(direct, 0, n * 33333L);
+                assertEquals(au.length, direct.remaining());
+
+                int result;
+                do {
+                    packet.clear();
+                    receiver.receive(packet);
+                    packet.flip();
+                    assertTrue(packet.remaining() <= RtpPacketizer.DEFAULT_MTU);
+                    result = depacketizer.push(packet);
+                } while (result == RtpDepacketizer.RESULT_NONE);
+                assertEquals(RtpDepacketizer.RESULT_FRAME, result);
+                assertArrayEquals(au, toArray(depacketizer.getFrame()));
+                assertEquals(RtpPacketizer.rtpTimestamp(n * 33333L),
+                        depacketizer.getFrameTimestamp());
+                assertEquals(n == 0, depacketizer.isKeyFrame());
+            }
+            assertEquals(0, depacketizer.getLostPackets());
+            assertEquals(0, streamer.getDroppedPackets());
+        } finally {
+            streamer.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void hevcFragmentsKeepTheTwoByteHeader() throws Exception {
+        Random random = new Random(2);
+        // VPS, SPS, PPS, IDR_W_RADL
+        byte[] au = accessUnit(random, new int[]{0x40, 0x42, 0x44, 0x26},
+                new int[]{24, 40, 8, 6000});
+        for (int i = 4, n = 0; n < 4; n++) {
+            // second header byte: layer 0, tid 1
+            au[i + 1] = 1;
+            i += 4 + new int[]{24, 40, 8, 6000}[n];
+        }
+        RtpPacketizer packetizer = new RtpPacketizer(RtpPacketizer.CODEC_HEVC, 96, 7, 1000);
+        List<byte[]> packets = packetize(packetizer, au, 0);
+        // three small NALs plus 6000 / (1000 - 12 - 3) fragments
+        assertEquals(3 + 7, packets.size());
+
+        RtpDepacketizer depacketizer = new RtpDepacketizer(RtpPacketizer.CODEC_HEVC, 1 << 16);
+        int result = RtpDepacketizer.RESULT_NONE;
+        for (byte[] p : packets) {
+            result = depacketizer.push(ByteBuffer.wrap(p));
+        }
+        assertEquals(RtpDepacketizer.RESULT_FRAME, result);
+        assertArrayEquals(au, toArray(depacketizer.getFrame()));
+        assertTrue(depacketizer.isKeyFrame());
+    }
+
+    @Test
+    public void lostFragmentDropsOnlyItsFrame() throws Exception {
+        Random random = new Random(3);
+        RtpPacketizer packetizer = new RtpPacketizer(RtpPacketizer.CODEC_AVC, 96, 7, 1200);
+        RtpDepacketizer depacketizer = new RtpDepacketizer(RtpPacketizer.CODEC_AVC, 1 << 16);
+
+        List<byte[]> first = packetize(packetizer, avcKeyFrame(random, 5000), 0);
+        byte[] second = accessUnit(random, new int[]{0x41}, new int[]{800});
+        List<byte[]> next = packetize(packetizer, second, 33333);
+
+        int result = RtpDepacketizer.RESULT_NONE;
+        for (int i = 0; i < first.size(); i++) {
+            if (i != 3) {
+                result = depacketizer.push(ByteBuffer.wrap(first.get(i)));
+            }
+        }
+        assertEquals(RtpDepacketizer.RESULT_DROPPED, result);
+        assertEquals(1, depacketizer.getLostPackets());
+
+        assertEquals(RtpDepacketizer.RESULT_FRAME, depacketizer.push(ByteBuffer.wrap(next.get(0))));
+        assertArrayEquals(second, toArray(depacketizer.getFrame()));
+
+        // a duplicate is ignored
+        assertEquals(RtpDepacketizer.RESULT_NONE, depacketizer.push(ByteBuffer.wrap(next.get(0))));
+        assertEquals(1, depacketizer.getLatePackets());
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.myscreenshare.receiver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+
+    private static final long FRAME_USEC = 33333;
+    private static final int TICKS_PER_FRAME = 3000; // 90 kHz
+    private static final int GOP = 30;
+
+    // A synthetic network: per frame delay of base plus exponential jitter,
+    // in order delivery, independent losses.
+    private static class Trace {
+        int frames = 900;
+        long baseDelayUsec = 20000;
+        long meanJitterUsec;
+        double loss;
+        long stallFromUsec = -1; // decoder doesn't poll in [from, from + stall)
+        long stallUsec;
+        int firstTimestamp;
+        long seed = 1;
+    }
+
+    private static class Result {
+        int shown;
+        int late;
+        long maxGapUsec; // between two shown frames
+        long latencySumUsec; // capture to display
+        int firstAfterStall = -1;
+
+        long averageLatencyUsec() {
+            return shown == 0 ? 0 : latencySumUsec / shown;
+        }
+    }
+
+    // Plays the trace with a decoder polling every millisecond. Checks that
+    // every frame handed out is decodable: a key frame or the successor of
+    // the previous one.
+    private static Result play(JitterBuffer buffer, Trace trace) {
+        Random random = new Random(trace.seed);
+        long[] arrivalUsec = new long[trace.frames];
+        boolean[] lost = new boolean[trace.frames];
+        for (int n = 0; n < trace.frames; n++) {
+            double jitter = -Math.log(1 - random.nextDouble()) * trace.meanJitterUsec;
+            arrivalUsec[n] = n * FRAME_USEC + trace.baseDelayUsec + (long) jitter;
+            if (n > 0) {
+                arrivalUsec[n] = Math.max(arrivalUsec[n], arrivalUsec[n - 1]);
+            }
+            lost[n] = n > 0 && random.nextDouble() < trace.loss;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(64);
+        Result result = new Result();
+        int next = 0;
+        int lastPolled = -1;
+        long lastShownUsec = -1;
+        boolean lossPending = false;
+        long endUsec = arrivalUsec[trace.frames - 1] + 1000000;
+        for (long nowUsec = 0; nowUsec < endUsec; nowUsec += 1000) {
+            while (next < trace.frames && arrivalUsec[next] <= nowUsec) {
+                if (lost[next]) {
+                    lossPending = true;
+                } else {
+                    if (lossPending) {
+                        // the depacketizer notices with the next packet
+                        buffer.onFrameLost();
+                        lossPending = false;
+                    }
+                    payload.clear();
+                    payload.putInt(next).flip();
+                    buffer.insert(payload, trace.firstTimestamp + next * TICKS_PER_FRAME,
+                            next % GOP == 0, arrivalUsec[next] * 1000);
+                }
+                next++;
+            }
+            if (nowUsec >= trace.stallFromUsec && nowUsec < trace.stallFromUsec + trace.stallUsec) {
+                continue;
+            }
+            JitterBuffer.Frame frame;
+            while ((frame = buffer.poll(nowUsec * 1000)) != null) {
+                int n = frame.data.getInt(0);
+                assertTrue("frame " + n + " after " + lastPolled,
+                        n > lastPolled && (frame.keyFrame || n == lastPolled + 1));
+                if (trace.stallFromUsec >= 0 && nowUsec >= trace.stallFromUsec &&
+                        result.firstAfterStall < 0) {
+                    result.firstAfterStall = n;
+                }
+                lastPolled = n;
+                if (frame.late) {
+                    result.late++;
+                } else {
+                    result.shown++;
+                    result.latencySumUsec += nowUsec - n * FRAME_USEC;
+                    if (lastShownUsec >= 0) {
+                        result.maxGapUsec = Math.max(result.maxGapUsec, nowUsec - lastShownUsec);
+                    }
+                    lastShownUsec = nowUsec;
+                }
+                buffer.release(frame);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void steadyStreamPlaysAtMinDelay() {
+        JitterBuffer buffer = new JitterBuffer(16, 1024);
+        Trace trace = new Trace();
+        Result result = play(buffer, trace);
+        assertEquals(trace.frames, result.shown);
+        assertEquals(0, result.late);
+        assertEquals(JitterBuffer.DEFAULT_MIN_DELAY_USEC, buffer.getDelayUsec());
+        // network plus playout delay, rounded up to the polling tick
+        assertTrue(result.averageLatencyUsec() <= trace.baseDelayUsec +
+                JitterBuffer.DEFAULT_MIN_DELAY_USEC + 1000);
+        assertTrue(result.maxGapUsec <= FRAME_USEC + 1000);
+    }
+
+    @Test
+    public void delayFollowsJitter() {
+        Trace trace = new Trace();
+        trace.meanJitterUsec = 15000;
+
+        JitterBuffer adaptive = new JitterBuffer(16, 1024);
+        Result adaptiveResult = play(adaptive, trace);
+        // a buffer stuck at the minimum delay for comparison
+        JitterBuffer fixed = new JitterBuffer(16, 1024,
+                JitterBuffer.DEFAULT_MIN_DELAY_USEC, JitterBuffer.DEFAULT_MIN_DELAY_USEC);
+        Result fixedResult = play(fixed, trace);
+
+        assertTrue(adaptive.getDelayUsec() > 2 * JitterBuffer.DEFAULT_MIN_DELAY_USEC);
+        assertTrue(adaptive.getJitterUsec() > 5000);
+        assertTrue(adaptiveResult.late * 4 < fixedResult.late);
+        assertTrue(adaptiveResult.late < trace.frames / 20);
+        assertEquals(trace.frames, adaptiveResult.shown + adaptiveResult.late);
+    }
+
+    @Test
+    public void lossWaitsForKeyFrame() {
+        Trace trace = new Trace();
+        trace.loss = 0.01;
+        trace.seed = 7;
+        JitterBuffer buffer = new JitterBuffer(16, 1024);
+        Result result = play(buffer, trace);
+        assertTrue(buffer.getLossCount() > 0);
+        assertTrue(buffer.getNeedKeyDropCount() > 0);
+        assertTrue(result.shown < trace.frames - buffer.getLossCount());
+        // the decodability check in play() held for every frame
+    }
+
+    @Test
+    public void stalledDecoderJumpsToNewestKeyFrame() {
+        Trace trace = new Trace();
+        trace.stallFromUsec = 5000000;
+        trace.stallUsec = 2000000;
+        JitterBuffer buffer = new JitterBuffer(16, 1024);
+        Result result = play(buffer, trace);
+        assertEquals(0, result.firstAfterStall % GOP);
+        // the newest key frame there was when the stall ended
+        long stallEndFrame = (trace.stallFromUsec + trace.stallUsec) / FRAME_USEC;
+        assertTrue(result.firstAfterStall >= stallEndFrame - GOP);
+        assertTrue(buffer.getSkipCount() + buffer.getOverflowCount() > 0);
+    }
+
+    @Test
+    public void timestampsWrapAround() {
+        Trace trace = new Trace();
+        trace.firstTimestamp = -100 * TICKS_PER_FRAME;
+        JitterBuffer buffer = new JitterBuffer(16, 1024);
+        Result result = play(buffer, trace);
+        assertEquals(trace.frames, result.shown);
+        assertEquals(0, buffer.getLateDropCount());
+    }
+
+    @Test
+    public void oldFramesAreDropped() {
+        JitterBuffer buffer = new JitterBuffer(4, 1024);
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        assertEquals(JitterBuffer.INSERT_NEED_KEY_FRAME,
+                buffer.insert(payload, 0, false, 0));
+        assertEquals(JitterBuffer.INSERT_OK, buffer.insert(payload, 3000, true, 0));
+        assertEquals(JitterBuffer.INSERT_LATE, buffer.insert(payload, 3000, false, 0));
+        assertEquals(JitterBuffer.INSERT_OVERFLOW,
+                buffer.insert(ByteBuffer.allocate(2048), 6000, false, 0));
+        assertTrue(buffer.isWaitingForKeyFrame());
+    }
+
+    @Test
+    public void delayAndLatencyFollowTheJitter() {
+        long[] jitters = {0, 5000, 15000, 40000};
+        double[] losses = {0, 0.005, 0.02};
+        for (double loss : losses) {
+            long lastDelayUsec = 0;
+            long lastLatencyUsec = 0;
+            for (long jitter : jitters) {
+                Trace trace = new Trace();
+                trace.frames = 1800;
+                trace.meanJitterUsec = jitter;
+                trace.loss = loss;
+                JitterBuffer buffer = new JitterBuffer(32, 1024);
+                Result result = play(buffer, trace);
+                String name = "jitter " + jitter + " loss " + loss;
+                long delayUsec = buffer.getDelayUsec();
+                assertTrue(name, delayUsec >= JitterBuffer.DEFAULT_MIN_DELAY_USEC
+                        && delayUsec <= JitterBuffer.DEFAULT_MAX_DELAY_USEC);
+                assertTrue(name, delayUsec >= lastDelayUsec);
+                assertTrue(name, result.averageLatencyUsec() >= lastLatencyUsec);
+                // network plus playout delay, plus the jitter the delay didn't cover
+                assertTrue(name, result.averageLatencyUsec() >= trace.baseDelayUsec + delayUsec);
+                assertTrue(name, result.averageLatencyUsec() <=
+                        trace.baseDelayUsec + delayUsec + jitter + 1000);
+                assertTrue(name, result.late < trace.frames / 20);
+                if (loss == 0) {
+                    // every frame played, or skipped for a key frame that was due
+                    assertEquals(name, trace.frames,
+                            result.shown + result.late + buffer.getSkipCount());
+                    assertTrue(name, result.maxGapUsec < 2 * delayUsec + FRAME_USEC + 1000);
+                } else {
+                    assertTrue(name, result.shown + result.late < trace.frames);
+                }
+                lastDelayUsec = delayUsec;
+                lastLatencyUsec = result.averageLatencyUsec();
+            }
+        }
+    }
+
+    @Test
+    public void zeroDelayPlaysEveryFrameAtOnce() {
+        // the frames come back to the pool, a long run never runs dry
+        JitterBuffer buffer = new JitterBuffer(32, 1024, 0, 0);
+        ByteBuffer payload = ByteBuffer.allocate(200);
+        int count = 100000;
+        for (int n = 0; n < count; n++) {
+            buffer.insert(payload, n * TICKS_PER_FRAME, n % GOP == 0, n * FRAME_USEC * 1000);
+            JitterBuffer.Frame frame = buffer.poll(n * FRAME_USEC * 1000);
+            assertNotNull(frame);
+            assertFalse(frame.late);
+            buffer.release(frame);
+        }
+        assertEquals(count, buffer.getPlayCount());
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.myscreenshare.receiver;
+
+import android.media.MediaCodec;
+
+import com.example.myscreenshare.codec.CircularEncoderBuffer;
+import com.example.myscreenshare.net.BitrateController;
+import com.example.myscreenshare.net.RtpPacketizer;
+import com.example.myscreenshare.net.UdpStreamer;
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RtpReceiverTest {
+
+    // Annex-B NAL units with 4 byte start codes, payload bytes never zero
+    private static ByteBuffer nals(int[] headers, int[] sizes) {
+        int total = 0;
+        for (int size : sizes) {
+            total += 4 + size;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(total);
+        for (int i = 0; i < headers.length; i++) {
+            buf.putInt(1);
+            buf.put((byte) headers[i]);
+            for (int j = 1; j < sizes[i]; j++) {
+                buf.put((byte) (j % 251 + 1));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void streamerToJitterBuffer() throws Exception {
+        JitterBuffer jitterBuffer = new JitterBuffer(8, 64 * 1024);
+        RtpReceiver receiver = new RtpReceiver(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                RtpPacketizer.CODEC_AVC, 64 * 1024, jitterBuffer, Clock.SYSTEM);
+        receiver.start();
+        UdpStreamer streamer = new UdpStreamer(receiver.getLocalAddress(),
+                RtpPacketizer.CODEC_AVC, RtpPacketizer.DEFAULT_MTU);
+
+        ByteBuffer config = nals(new int[]{0x67, 0x68}, new int[]{16, 5});
+        ByteBuffer keyFrame = nals(new int[]{0x65}, new int[]{20000});
+        ByteBuffer frame = nals(new int[]{0x41}, new int[]{3000});
+        // codec config first, as the encoder hands it out
+        streamer.onPacket(config, 0, 0);
+        streamer.onPacket(keyFrame, 0, 1000000);
+        streamer.onPacket(frame, 0, 1033333);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (jitterBuffer.getInsertCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        streamer.close();
+        receiver.close();
+
+        assertEquals(config, receiver.getCodecConfig());
+        assertEquals(2, jitterBuffer.getInsertCount());
+        // the config was taken out, the frames come through as sent
+        JitterBuffer.Frame first = jitterBuffer.poll(Long.MAX_VALUE / 2);
+        assertTrue(first.keyFrame);
+        assertEquals(keyFrame, first.data);
+        JitterBuffer.Frame second = jitterBuffer.poll(Long.MAX_VALUE / 2);
+        assertFalse(second.keyFrame);
+        assertEquals(frame, second.data);
+        // 90 kHz rounding
+        assertEquals(33333, second.ptsUsec - first.ptsUsec, 20);
+        assertEquals(0, receiver.getLostPackets());
+    }
+
+    // Forwards the stream to the receiver dropping the packets in drop, once
+    // each, and the feedback back to where the stream came from.
+    private static class LossyRelay extends Thread {
+        final DatagramChannel channel = DatagramChannel.open();
+        final SocketAddress receiver;
+        final Set<Integer> drop;
+        volatile int dropped;
+        SocketAddress sender;
+
+        LossyRelay(SocketAddress receiver, Set<Integer> drop) throws IOException {
+            this.receiver = receiver;
+            this.drop = drop;
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer packet = ByteBuffer.allocate(2048);
+            try {
+                for (;;) {
+                    packet.clear();
+                    SocketAddress from = channel.receive(packet);
+                    packet.flip();
+                    if (from.equals(receiver)) {
+                        channel.send(packet, sender);
+                        continue;
+                    }
+                    sender = from;
+                    if (drop.remove(packet.getShort(2) & 0xFFFF)) {
+                        dropped++;
+                        continue;
+                    }
+                    channel.send(packet, receiver);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    @Test
+    public void nackRepairsLostPackets() throws Exception {
+        JitterBuffer jitterBuffer = new JitterBuffer(16, 64 * 1024);
+        RtpReceiver receiver = new RtpReceiver(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                RtpPacketizer.CODEC_AVC, 64 * 1024, jitterBuffer, Clock.SYSTEM);
+        receiver.enableNack();
+        receiver.start();
+        // config 0-1, key frame 2-19, then 3 packets per frame but the single
+        // one of frame 3: two inside the key frame, the first of frame 2 and
+        // all of frame 3
+        Set<Integer> drop = Collections.synchronizedSet(new HashSet<>(Arrays.asList(
+                4, 5, 23, 26)));
+        LossyRelay relay = new LossyRelay(receiver.getLocalAddress(), drop);
+        relay.start();
+        CircularEncoderBuffer ring = new CircularEncoderBuffer(8000000, 30, 2);
+        UdpStreamer streamer = new UdpStreamer(relay.channel.getLocalAddress(),
+                RtpPacketizer.CODEC_AVC, RtpPacketizer.DEFAULT_MTU);
+        streamer.enableRetransmission(ring, null);
+
+        ByteBuffer config = nals(new int[]{0x67, 0x68}, new int[]{16, 5});
+        streamer.onPacket(config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        int frames = 8;
+        for (int n = 0; n < frames; n++) {
+            ByteBuffer frame = n == 0 ? nals(new int[]{0x65}, new int[]{20000}) :
+                    nals(new int[]{0x41}, new int[]{n == 3 ? 600 : 3000});
+            int flags = n == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            long ptsUsec = 1000000 + n * 33333L;
+            // the drainer's order
+            streamer.onPacket(frame, flags, ptsUsec);
+            ring.add(frame, flags, ptsUsec);
+            Thread.sleep(5);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (jitterBuffer.getInsertCount() < frames && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        streamer.close();
+        receiver.close();
+        relay.channel.close();
+
+        assertEquals(4, relay.dropped);
+        assertEquals(frames, jitterBuffer.getInsertCount());
+        assertEquals(4, receiver.getRepairedPackets());
+        assertEquals(4, streamer.getRetransmittedPackets());
+        assertEquals(0, receiver.getLostPackets());
+    }
+
+    @Test
+    public void rateFeedbackReachesTheController() throws Exception {
+        JitterBuffer jitterBuffer = new JitterBuffer(64, 64 * 1024);
+        RtpReceiver receiver = new RtpReceiver(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                RtpPacketizer.CODEC_AVC, 64 * 1024, jitterBuffer, Clock.SYSTEM);
+        receiver.enableRateFeedback();
+        receiver.start();
+        UdpStreamer streamer = new UdpStreamer(receiver.getLocalAddress(),
+                RtpPacketizer.CODEC_AVC, RtpPacketizer.DEFAULT_MTU);
+        BitrateController controller = new BitrateController(Clock.SYSTEM, 2000000,
+                200000, 6000000, null);
+        streamer.enableRateControl(controller);
+
+        for (int n = 0; n < 15; n++) {
+            ByteBuffer frame = n == 0 ? nals(new int[]{0x65}, new int[]{20000}) :
+                    nals(new int[]{0x41}, new int[]{3000});
+            streamer.onPacket(frame, 0, 1000000 + n * 33333L);
+            Thread.sleep(33);
+        }
+        Thread.sleep(50);
+        streamer.close();
+        receiver.close();
+
+        // a few reports with the frames in them, no loss on loopback
+        assertTrue(controller.getReceivedBitRate() > 0);
+        assertEquals(0, controller.getLossDecreaseCount());
+        assertTrue(controller.getTargetBitRate() >= 2000000);
+    }
+}
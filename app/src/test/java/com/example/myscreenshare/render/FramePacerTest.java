@@ -0,0 +1,89 @@
+package com.example.myscreenshare.render;
+
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+
+    private static class FakeClock implements Clock {
+        long nanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+    }
+
+    // Feeds frames at sourceFps for one second, polling the way the render
+    // thread does: when a frame asks for it and when a scheduled poll is due.
+    private static FramePacer run(int sourceFps, int targetFps) {
+        FakeClock clock = new FakeClock();
+        FramePacer pacer = new FramePacer(clock, targetFps);
+        long frameNanos = 1000000000L / sourceFps;
+        long nextFrame = 0;
+        int frames = 0;
+        long pollAt = -1;
+        long lastRender = Long.MIN_VALUE;
+        while (frames < sourceFps || pollAt >= 0) {
+            if (pollAt >= 0 && (pollAt <= nextFrame || frames == sourceFps)) {
+                clock.nanos = pollAt;
+                long delay = pacer.poll();
+                pollAt = delay > 0 ? clock.nanos + delay : -1;
+                if (delay == 0) {
+                    // never faster than the target, minus the slack
+                    assertTrue(lastRender == Long.MIN_VALUE ||
+                            clock.nanos - lastRender >= pacer.getIntervalNanos() * 3 / 4);
+                    lastRender = clock.nanos;
+                }
+            } else {
+                clock.nanos = nextFrame;
+                long delay = pacer.onFrameAvailable();
+                if (delay >= 0) {
+                    assertEquals(-1, pollAt);
+                    pollAt = clock.nanos + delay;
+                }
+                nextFrame += frameNanos;
+                frames++;
+            }
+        }
+        assertFalse(pacer.hasPendingFrame());
+        return pacer;
+    }
+
+    @Test
+    public void fastSourceIsDroppedToTheTargetRate() {
+        FramePacer pacer = run(60, 30);
+        assertEquals(30, pacer.getRenderedCount(), 1);
+        assertEquals(60, pacer.getRenderedCount() + pacer.getDroppedCount());
+    }
+
+    @Test
+    public void slowSourceIsNotHeldBack() {
+        FramePacer pacer = run(20, 30);
+        assertEquals(20, pacer.getRenderedCount());
+        assertEquals(0, pacer.getDroppedCount());
+    }
+
+    @Test
+    public void burstKeepsOnlyTheNewestFrame() {
+        FakeClock clock = new FakeClock();
+        FramePacer pacer = new FramePacer(clock, 30);
+        assertEquals(0, pacer.onFrameAvailable());
+        assertEquals(0, pacer.poll());
+
+        // three frames within 2 ms, one slot later only one of them is drawn
+        clock.nanos = 1000000;
+        long delay = pacer.onFrameAvailable();
+        assertTrue(delay > 0);
+        assertEquals(-1, pacer.onFrameAvailable());
+        assertEquals(-1, pacer.onFrameAvailable());
+        clock.nanos += delay;
+        assertEquals(0, pacer.poll());
+        assertEquals(-1, pacer.poll());
+        assertEquals(2, pacer.getRenderedCount());
+        assertEquals(2, pacer.getDroppedCount());
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.myscreenshare.render;
+
+import com.example.myscreenshare.util.Clock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IdleDetectorTest {
+
+    private static final long MS = 1000000L;
+
+    private static class FakeClock implements Clock {
+        long nanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void stillScreenGoesIdleAndRepeatsSlowly() {
+        FakeClock clock = new FakeClock();
+        IdleDetector idle = new IdleDetector(clock, 500 * MS, 1000 * MS);
+        idle.onFrame();
+        assertEquals(500 * MS, idle.getNextTickDelayNanos());
+
+        clock.nanos = 300 * MS;
+        idle.onFrame();
+        clock.nanos = 500 * MS;
+        assertEquals(IdleDetector.TICK_NONE, idle.tick());
+        assertEquals(300 * MS, idle.getNextTickDelayNanos());
+
+        clock.nanos = 800 * MS;
+        assertEquals(IdleDetector.TICK_IDLE, idle.tick());
+        assertTrue(idle.isIdle());
+
+        // ten seconds of nothing, one repeat a second
+        int keepalive = 0;
+        while (clock.nanos < 10800 * MS) {
+            clock.nanos += idle.getNextTickDelayNanos();
+            if (idle.tick() == IdleDetector.TICK_KEEPALIVE) {
+                keepalive++;
+            }
+        }
+        assertEquals(10, keepalive);
+        assertEquals(10, idle.getKeepaliveCount());
+    }
+
+    @Test
+    public void firstFrameEndsIdle() {
+        FakeClock clock = new FakeClock();
+        IdleDetector idle = new IdleDetector(clock, 500 * MS, 1000 * MS);
+        clock.nanos = 600 * MS;
+        assertEquals(IdleDetector.TICK_IDLE, idle.tick());
+
+        clock.nanos = 700 * MS;
+        assertTrue(idle.onFrame());
+        assertFalse(idle.isIdle());
+        assertFalse(idle.onFrame());
+        assertEquals(500 * MS, idle.getNextTickDelayNanos());
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.myscreenshare.render;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LetterboxTest {
+
+    // clip space position of (x, y) after mvp
+    private static float[] apply(float[] mvp, float x, float y) {
+        return new float[]{mvp[0] * x + mvp[4] * y + mvp[12], mvp[1] * x + mvp[5] * y + mvp[13]};
+    }
+
+    @Test
+    public void sameShapeFillsTheOutput() {
+        float[] mvp = new float[16];
+        assertFalse(Letterbox.computeMvp(mvp, 1080, 1920, 0, 540, 960));
+        assertArrayEquals(new float[]{1f, 1f}, apply(mvp, 1f, 1f), 1e-6f);
+    }
+
+    @Test
+    public void landscapeCaptureIsBarredInPortraitOutput() {
+        float[] mvp = new float[16];
+        assertTrue(Letterbox.computeMvp(mvp, 1920, 1080, 0, 1080, 1920));
+        // full width, 1080 * 1080 / 1920 = 607.5 of 1920 rows
+        float[] corner = apply(mvp, 1f, 1f);
+        assertEquals(1f, corner[0], 1e-6f);
+        assertEquals(607.5f / 1920f, corner[1], 1e-6f);
+    }
+
+    @Test
+    public void rotationTurnsTheContent() {
+        float[] mvp = new float[16];
+        // landscape capture turned upright fills the portrait output
+        assertFalse(Letterbox.computeMvp(mvp, 1920, 1080, 90, 1080, 1920));
+        float[] right = apply(mvp, 1f, 0f);
+        assertEquals(0f, right[0], 1e-6f);
+        assertEquals(1f, right[1], 1e-6f);
+
+        Letterbox.computeMvp(mvp, 1080, 1920, -90, 1080, 1920);
+        assertTrue(mvp[1] < 0);
+    }
+}